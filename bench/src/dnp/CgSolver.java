@@ -10,6 +10,16 @@ import java.util.logging.Logger;
 
 /**
  * Iterative conjugate-gradient solver for Ax = b, where A is a square matrix.
+ * <p>
+ * Optionally, this solver performs pipelined CG iterations, as described
+ * by Chronopoulos and Gear (1989). Pipelined iterations compute the same
+ * sequence of approximate solutions x, except for rounding errors, but
+ * require only one pass over vectors to update them and one more pass to
+ * compute all dot products, in addition to the application of A (and M, if
+ * preconditioned). Standard iterations instead perform five or more passes.
+ * Pipelined iterations require two more vectors than standard iterations;
+ * if those vectors implement the interface {@link VecCg}, the passes are
+ * fused. Otherwise, fused operations are computed with vector methods.
  * @author Dave Hale, Colorado School of Mines
  * @version 2009.09.15
  */
@@ -99,6 +109,15 @@ public class CgSolver {
     _maxi = maxi;
   }
 
+  /**
+   * Sets the use of pipelined CG iterations.
+   * The default is standard (not pipelined) iterations.
+   * @param pipelined true, for pipelined iterations; false, otherwise.
+   */
+  public void setPipelined(boolean pipelined) {
+    _pipelined = pipelined;
+  }
+
   /**
    * Solves the system of equation Ax = b with CG iterations.
    * @param a the linear operator that represents the matrix A.
@@ -152,6 +171,8 @@ public class CgSolver {
    * @param x the solution vector.
    */
   public Info solve(Stopper stopper, double anorm, A a, Vec b, Vec x) {
+    if (_pipelined)
+      return solvePipelined(stopper,anorm,a,null,b,x);
     Vec q = b.clone();
     a.apply(x,q); // q = Ax
     Vec r = b.clone();
@@ -207,6 +228,8 @@ public class CgSolver {
    * @param x the solution vector.
    */
   public Info solve(Stopper stopper, double anorm, A a, A m, Vec b, Vec x) {
+    if (_pipelined)
+      return solvePipelined(stopper,anorm,a,m,b,x);
     Vec q = b.clone();
     a.apply(x,q); // q = Ax
     Vec r = b.clone();
@@ -259,6 +282,96 @@ public class CgSolver {
 
   private double _tiny; // converged: norm(r)<tiny*(norm(A)*norm(x)+norm(b))
   private int _maxi; // upper limit on number of iterations
+  private boolean _pipelined; // true, for pipelined CG iterations
+
+  // Pipelined (Chronopoulos-Gear) CG iterations. The preconditioner m may
+  // be null, in which case u = r. Maintains vectors s = Ap and w = Au, so
+  // that both dot products r'u and p'Ap = w'u-beta*r'u/alpha are computed
+  // after updating all vectors in each iteration.
+  private Info solvePipelined(
+    Stopper stopper, double anorm, A a, A m, Vec b, Vec x)
+  {
+    Vec w = b.clone();
+    a.apply(x,w); // w = Ax
+    Vec r = b.clone();
+    r.add(1.0,w,-1.0); // r = b-Ax
+    Vec u = r;
+    if (m!=null) {
+      u = r.clone();
+      m.apply(r,u); // u = Mr
+    }
+    a.apply(u,w); // w = Au
+    Vec p = u.clone();
+    Vec s = w.clone();
+    p.zero();
+    s.zero();
+    double[] d = dotCg(r,u,w);
+    double gamma = d[0]; // r'u = r'Mr
+    double delta = d[1]; // w'u = u'Au
+    double bnorm = b.norm2();
+    double rnorm = Math.sqrt(d[2]);
+    double xnorm = x.norm2();
+    double alpha = 0.0;
+    double beta = 0.0;
+    logInit(bnorm,rnorm);
+    Info info = null;
+    int iter;
+    for (iter=0;
+         iter<_maxi
+           && rnorm>_tiny*(anorm*xnorm+bnorm)
+           && (info=userStop(stopper,iter,bnorm,rnorm))==null;
+         ++iter) {
+      logIter(iter,rnorm);
+      alpha = (iter==0)?gamma/delta:gamma/(delta-beta*gamma/alpha);
+      updateCg(alpha,beta,u,w,p,s,x,r); // p,s,x,r
+      if (anorm>0.0)
+        xnorm = x.norm2();
+      if (iter%50==49) { // if accumulated rounding error may be large, ...
+        a.apply(x,w); // w = Ax
+        r.add(0.0,b,1.0); // r = b
+        r.add(1.0,w,-1.0); // r = b-Ax
+        a.apply(p,s); // s = Ap
+      }
+      if (m!=null)
+        m.apply(r,u); // u = Mr
+      a.apply(u,w); // w = Au
+      d = dotCg(r,u,w);
+      double gammaOld = gamma;
+      gamma = d[0];
+      delta = d[1];
+      rnorm = Math.sqrt(d[2]);
+      beta = gamma/gammaOld;
+    }
+    logDone(iter,rnorm);
+    if (info==null) {
+      Stop stop = (iter<_maxi) ? Stop.TINY : Stop.MAXI;
+      info = new Info(stop,iter,bnorm,rnorm);
+    }
+    return info;
+  }
+
+  // Computes p = u+beta*p, s = w+beta*s, x = x+alpha*p and r = r-alpha*s.
+  private static void updateCg(
+    double alpha, double beta, Vec u, Vec w, Vec p, Vec s, Vec x, Vec r)
+  {
+    if (x instanceof VecCg) {
+      ((VecCg)x).updateCg(alpha,beta,u,w,p,s,r);
+    } else {
+      p.add(beta,u,1.0);
+      s.add(beta,w,1.0);
+      x.add(1.0,p,alpha);
+      r.add(1.0,s,-alpha);
+    }
+  }
+
+  // Returns dot products {r'u, w'u, r'r}.
+  private static double[] dotCg(Vec r, Vec u, Vec w) {
+    if (r instanceof VecCg) {
+      return ((VecCg)r).dotCg(u,w);
+    } else {
+      return new double[]{r.dot(u),w.dot(u),r.dot(r)};
+    }
+  }
 
   // Returns non-null info if user stops CG iterations.
   private Info userStop(
@@ -46,6 +46,14 @@ public class FlattenerCg {
     _sigma2 = (float)sigma2;
   }
 
+  /**
+   * Sets the use of pipelined conjugate-gradient iterations.
+   * @param pipelined true, for pipelined iterations; false, otherwise.
+   */
+  public void setPipelined(boolean pipelined) {
+    _pipelined = pipelined;
+  }
+
   public float[][] findShifts(float[][] p2) {
     return findShifts(p2,null);
   }
@@ -60,6 +68,7 @@ public class FlattenerCg {
     Smoother2 s2 = new Smoother2(n1,n2,_sigma1,_sigma2,el);
     A2 a2 = new A2(_epsilon,s2,p2,el);
     CgSolver cs = new CgSolver(_small,_niter);
+    cs.setPipelined(_pipelined);
     makeRhs(p2,el,r);
     s2.applyTranspose(r);
     cs.solve(a2,vr,vs);
@@ -81,6 +90,7 @@ public class FlattenerCg {
     Smoother3 s3 = new Smoother3(n1,n2,n3,_sigma1,_sigma2,_sigma2,ep);
     A3 a3 = new A3(_epsilon,s3,p2,p3,ep);
     CgSolver cs = new CgSolver(_small,_niter);
+    cs.setPipelined(_pipelined);
     makeRhs(p2,p3,ep,r);
     s3.applyTranspose(r);
     cs.solve(a3,vr,vs);
@@ -130,6 +140,7 @@ public class FlattenerCg {
   private float _epsilon = 0.000f; // damping for stability?
   private float _small = 0.01f; // stop CG iterations if residuals are small
   private int _niter = 1000; // maximum number of CG iterations
+  private boolean _pipelined = false; // true, for pipelined CG iterations
 
   // Conjugate-gradient operators.
   private static class A2 implements CgSolver.A {
@@ -11,7 +11,7 @@ package dnp;
  * @author Dave Hale, Colorado School of Mines
  * @version 2009.09.15
  */
-public class VecArrayFloat2 implements Vec {
+public class VecArrayFloat2 implements VecCg {
 
   /**
    * Constructs a zero vector with specified dimensions.
@@ -126,6 +126,69 @@ public class VecArrayFloat2 implements Vec {
     }
   }
 
+  public void updateCg(
+    double alpha, double beta, Vec u, Vec w, Vec p, Vec s, Vec r)
+  {
+    float fa = (float)alpha;
+    float fb = (float)beta;
+    float[][] ax = _a;
+    float[][] au = ((VecArrayFloat2)u)._a;
+    float[][] aw = ((VecArrayFloat2)w)._a;
+    float[][] ap = ((VecArrayFloat2)p)._a;
+    float[][] as = ((VecArrayFloat2)s)._a;
+    float[][] ar = ((VecArrayFloat2)r)._a;
+    for (int i2=0; i2<_n2; ++i2)
+      updateCg(fa,fb,au[i2],aw[i2],ap[i2],as[i2],ax[i2],ar[i2]);
+  }
+
+  public double[] dotCg(Vec u, Vec w) {
+    float[][] au = ((VecArrayFloat2)u)._a;
+    float[][] aw = ((VecArrayFloat2)w)._a;
+    return dotCg(_a,au,aw);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // package
+
+  // Updates one pipelined CG iteration for 1D arrays.
+  static void updateCg(
+    float fa, float fb,
+    float[] u, float[] w, float[] p, float[] s, float[] x, float[] r)
+  {
+    int n = x.length;
+    for (int i=0; i<n; ++i) {
+      float pi = u[i]+fb*p[i];
+      float si = w[i]+fb*s[i];
+      p[i] = pi;
+      s[i] = si;
+      x[i] += fa*pi;
+      r[i] -= fa*si;
+    }
+  }
+
+  // Returns dot products {r'u, w'u, r'r} for 2D arrays.
+  static double[] dotCg(float[][] r, float[][] u, float[][] w) {
+    int n2 = r.length;
+    int n1 = r[0].length;
+    double ru = 0.0, wu = 0.0, rr = 0.0;
+    for (int i2=0; i2<n2; ++i2) {
+      float[] r2 = r[i2];
+      float[] u2 = u[i2];
+      float[] w2 = w[i2];
+      for (int i1=0; i1<n1; ++i1) {
+        float ri = r2[i1];
+        float ui = u2[i1];
+        ru += ri*ui;
+        wu += w2[i1]*ui;
+        rr += ri*ri;
+      }
+    }
+    return new double[]{ru,wu,rr};
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
   private float[][] _a;
   private int _n1,_n2;
 }
@@ -14,7 +14,7 @@ import static edu.mines.jtk.util.Parallel.*;
  * @author Dave Hale, Colorado School of Mines
  * @version 2013.01.29
  */
-public class VecArrayFloat3 implements Vec {
+public class VecArrayFloat3 implements VecCg {
 
   /**
    * Constructs a zero vector with specified dimensions.
@@ -114,6 +114,44 @@ public class VecArrayFloat3 implements Vec {
     }
   }
 
+  public void updateCg(
+    double alpha, double beta, Vec u, Vec w, Vec p, Vec s, Vec r)
+  {
+    final float fa = (float)alpha;
+    final float fb = (float)beta;
+    final float[][][] ax = _a;
+    final float[][][] au = ((VecArrayFloat3)u)._a;
+    final float[][][] aw = ((VecArrayFloat3)w)._a;
+    final float[][][] ap = ((VecArrayFloat3)p)._a;
+    final float[][][] as = ((VecArrayFloat3)s)._a;
+    final float[][][] ar = ((VecArrayFloat3)r)._a;
+    final int n2 = _n2;
+    loop(_n3,new LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        VecArrayFloat2.updateCg(fa,fb,
+          au[i3][i2],aw[i3][i2],ap[i3][i2],as[i3][i2],ax[i3][i2],ar[i3][i2]);
+      }
+    }});
+  }
+
+  public double[] dotCg(Vec u, Vec w) {
+    final float[][][] ar = _a;
+    final float[][][] au = ((VecArrayFloat3)u)._a;
+    final float[][][] aw = ((VecArrayFloat3)w)._a;
+    return reduce(_n3,new ReduceInt<double[]>() {
+      public double[] compute(int i3) {
+        return VecArrayFloat2.dotCg(ar[i3],au[i3],aw[i3]);
+      }
+      public double[] combine(double[] a, double[] b) {
+        a[0] += b[0];
+        a[1] += b[1];
+        a[2] += b[2];
+        return a;
+      }
+    });
+  }
+
   ///////////////////////////////////////////////////////////////////////////
   // private
 
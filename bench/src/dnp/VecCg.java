@@ -0,0 +1,43 @@
+/****************************************************************************
+Copyright (c) 2009, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package dnp;
+
+/**
+ * An abstract vector with fused operations for pipelined conjugate-gradient
+ * iterations. Each of these operations replaces several passes over vectors
+ * with only one pass. All vectors specified must have the same type as this
+ * vector.
+ * @author agent
+ * @version 2026.10.18
+ */
+public interface VecCg extends Vec {
+
+  /**
+   * Updates vectors for one pipelined conjugate-gradient iteration.
+   * For this vector x, computes p = u+beta*p, s = w+beta*s, x = x+alpha*p
+   * and r = r-alpha*s, in that order, in one pass.
+   * @param alpha step length.
+   * @param beta factor by which to scale search directions p and s.
+   * @param u the preconditioned residual vector u.
+   * @param w the vector w = Au.
+   * @param p the search direction p.
+   * @param s the vector s = Ap.
+   * @param r the residual vector r.
+   */
+  public void updateCg(
+    double alpha, double beta, Vec u, Vec w, Vec p, Vec s, Vec r);
+
+  /**
+   * Returns dot products for one pipelined conjugate-gradient iteration.
+   * For this vector r, computes in one pass the dot products r'u, w'u and
+   * r'r.
+   * @param u the preconditioned residual vector u.
+   * @param w the vector w = Au.
+   * @return array {r'u, w'u, r'r} of dot products.
+   */
+  public double[] dotCg(Vec u, Vec w);
+}
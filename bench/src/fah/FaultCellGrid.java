@@ -24,6 +24,13 @@ import static fah.FaultGeometry.*;
  * Grid indices need not (and typically do not) begin at zero. Index bounds
  * for a fault cell grid are determined by the minima and maxima of indices of
  * cells used to construct the grid.
+ * <p>
+ * Most samples in the grid contain no cell. Cells are therefore stored in
+ * a hash table with open addressing, so that memory required is
+ * proportional to the number of cells, and not to the number of samples
+ * within the index bounds. After construction, cells in the grid may be
+ * searched concurrently by multiple threads, provided that no cells are
+ * being set.
  *
  * @author Dave Hale, Colorado School of Mines
  * @version 2014.07.06
@@ -56,7 +63,10 @@ public class FaultCellGrid {
     _n1 = 1+i1max-i1min;
     _n2 = 1+i2max-i2min;
     _n3 = 1+i3max-i3min;
-    _cells = new FaultCell[_n3][_n2][_n1];
+    int ntable = 16;
+    while (ntable<2*cells.length)
+      ntable *= 2;
+    _cells = new FaultCell[ntable];
     for (FaultCell cell:cells)
       set(cell);
   }
@@ -141,30 +151,31 @@ public class FaultCellGrid {
    * @return the fault cell; null, if none or if indices are out of bounds.
    */
   public FaultCell get(int i1, int i2, int i3) {
-    i1 -= _j1; 
-    i2 -= _j2; 
-    i3 -= _j3;
-    if (0<=i1 && i1<_n1 && 
-        0<=i2 && i2<_n2 && 
-        0<=i3 && i3<_n3) {
-      return _cells[i3][i2][i1];
-    } else {
-      return null;
-    }
+    int k = find(i1,i2,i3);
+    return (k>=0)?_cells[k]:null;
   }
 
   /**
-   * Sets the fault cell with specified indices.
-   * @param i1 sample index in 1st dimension.
-   * @param i2 sample index in 2nd dimension.
-   * @param i3 sample index in 3rd dimension.
+   * Sets the fault cell with indices of the specified cell. Replaces any
+   * other cell with those indices. The indices must be within the bounds
+   * of this grid.
    * @param cell the fault cell.
    */
   public void set(FaultCell cell) {
-    int i1 = cell.i1-_j1;
-    int i2 = cell.i2-_j2;
-    int i3 = cell.i3-_j3;
-    _cells[i3][i2][i1] = cell;
+    int i1 = cell.i1;
+    int i2 = cell.i2;
+    int i3 = cell.i3;
+    Check.argument(_j1<=i1 && i1<_j1+_n1 &&
+                   _j2<=i2 && i2<_j2+_n2 &&
+                   _j3<=i3 && i3<_j3+_n3,"cell indices are in bounds");
+    int k = find(i1,i2,i3);
+    if (k<0) {
+      if (2*(_ncell+1)>_cells.length)
+        grow();
+      k = -1-find(i1,i2,i3);
+      ++_ncell;
+    }
+    _cells[k] = cell;
   }
 
   /**
@@ -223,22 +234,66 @@ public class FaultCellGrid {
     return findCellLeftRight(false,cell);
   }
 
+  ///////////////////////////////////////////////////////////////////////////
+  // package
+
+  /**
+   * Gets the length of arrays indexed by indices of cells in this grid.
+   * @return the length.
+   */
+  int getTableLength() {
+    return _cells.length;
+  }
+
+  /**
+   * Gets the index of the specified cell in this grid. Indices are in the
+   * range [0,getTableLength()-1] and do not change unless more cells are
+   * set in this grid. They may therefore be used to store values for cells
+   * in arrays.
+   * @param cell the cell; must be in this grid.
+   * @return the index.
+   */
+  int indexOf(FaultCell cell) {
+    return find(cell.i1,cell.i2,cell.i3);
+  }
 
   ///////////////////////////////////////////////////////////////////////////
   // private
 
   private int _j1,_j2,_j3; // min cell indices
   private int _n1,_n2,_n3; // numbers of cells
-  private FaultCell[][][] _cells; // array of cells
+  private FaultCell[] _cells; // hash table of cells; length a power of 2
+  private int _ncell; // number of cells in hash table
 
-  private void init(FaultCell[] cells) {
-    if (cells!=null) {
-      for (FaultCell cell:cells) {
-        int i1 = cell.i1;
-        int i2 = cell.i2;
-        int i3 = cell.i3;
-        _cells[i3-_j3][i2-_j2][i1-_j1] = cell;
-      }
+  // Index in the hash table of the cell with specified indices, if any. If
+  // none, returns -1-k, where k is the index of the empty slot where that
+  // cell would be set. The table is never full, so probing terminates.
+  private int find(int i1, int i2, int i3) {
+    int mask = _cells.length-1;
+    int k = hash(i1,i2,i3)&mask;
+    for (FaultCell c=_cells[k]; c!=null; c=_cells[k]) {
+      if (c.i1==i1 && c.i2==i2 && c.i3==i3)
+        return k;
+      k = (k+1)&mask;
+    }
+    return -1-k;
+  }
+
+  // Hash code for specified cell indices. Multiplies the indices, relative
+  // to the min indices, by large odd constants, so that cells adjacent in
+  // any dimension are spread throughout the table.
+  private int hash(int i1, int i2, int i3) {
+    int h = (i1-_j1)*0x9e3779b1+(i2-_j2)*0x85ebca6b+(i3-_j3)*0xc2b2ae35;
+    return h^(h>>>16);
+  }
+
+  // Doubles the length of the hash table.
+  private void grow() {
+    FaultCell[] cells = _cells;
+    _cells = new FaultCell[2*cells.length];
+    for (FaultCell cell:cells) {
+      if (cell!=null)
+        _cells[-1-find(cell.i1,cell.i2,cell.i3)] = cell;
     }
   }
 
@@ -7,9 +7,12 @@ available at http://www.eclipse.org/legal/cpl-v10.html
 
 package fah;
 
+import java.io.*;
 import java.util.*;
 
 import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.io.ArrayFile;
+import edu.mines.jtk.util.Check;
 import edu.mines.jtk.util.Stopwatch;
 import static edu.mines.jtk.util.ArrayMath.*;
 import static edu.mines.jtk.util.Parallel.*;
@@ -244,6 +247,119 @@ public class FaultScanner {
     return scan(phiSampling,thetaSampling,snd);
   }
 
+  /**
+   * Sets the number of traces in bricks used to scan images in files.
+   * Each brick contains all samples in the 1st dimension for m2*m3 traces,
+   * plus traces in an overlap computed from the half-widths for smoothing
+   * along strike and dip. The default brick size is twice that overlap
+   * in both the 2nd and 3rd dimensions.
+   * @param m2 number of traces per brick in 2nd dimension; 0, for default.
+   * @param m3 number of traces per brick in 3rd dimension; 0, for default.
+   */
+  public void setBrickSize(int m2, int m3) {
+    Check.argument(m2>=0,"m2>=0");
+    Check.argument(m3>=0,"m3>=0");
+    _m2 = m2;
+    _m3 = m3;
+  }
+
+  /**
+   * Scans an image stored in files for fault strikes and dips. This scan
+   * reads and processes one brick of traces at a time, so that images
+   * much larger than memory can be scanned. Bricks overlap, and fault
+   * likelihoods, strikes, and dips computed for the traces in each brick,
+   * excluding the overlap, are written to output files. Bricks overlap by
+   * enough traces that truncation of smoothing filters at brick edges
+   * causes errors less than float rounding errors, so that results are
+   * those of the scan of the same image in memory.
+   * <p>
+   * All files contain floats with samples in the 1st dimension varying
+   * fastest, and with byte order the default for {@link ArrayFile}.
+   * @param phiSampling sampling of fault strikes, in degrees.
+   * @param thetaSampling sampling of fault dip angles, in degrees.
+   * @param n1 number of samples in 1st dimension.
+   * @param n2 number of samples in 2nd dimension.
+   * @param n3 number of samples in 3rd dimension.
+   * @param p2File name of file of slopes in the 2nd dimension.
+   * @param p3File name of file of slopes in the 3rd dimension.
+   * @param gFile name of file of the image to be scanned.
+   * @param flFile name of file for output fault likelihoods.
+   * @param fpFile name of file for output fault strikes.
+   * @param ftFile name of file for output fault dips.
+   */
+  public void scan(
+      Sampling phiSampling, Sampling thetaSampling,
+      int n1, int n2, int n3,
+      String p2File, String p3File, String gFile,
+      String flFile, String fpFile, String ftFile) {
+    int l23 = overlap(thetaSampling);
+    int m2 = (_m2>0)?_m2:2*l23;
+    int m3 = (_m3>0)?_m3:2*l23;
+    int nb2 = (n2+m2-1)/m2;
+    int nb3 = (n3+m3-1)/m3;
+    int np = phiSampling.getCount();
+    ArrayFile[] afi = new ArrayFile[3];
+    ArrayFile[] afo = new ArrayFile[3];
+    try {
+      try {
+        afi[0] = new ArrayFile(p2File,"r");
+        afi[1] = new ArrayFile(p3File,"r");
+        afi[2] = new ArrayFile(gFile,"r");
+        afo[0] = openForWrite(flFile);
+        afo[1] = openForWrite(fpFile);
+        afo[2] = openForWrite(ftFile);
+        Stopwatch sw = new Stopwatch();
+        sw.start();
+        for (int kb3=0,kb=0; kb3<nb3; ++kb3) {
+          for (int kb2=0; kb2<nb2; ++kb2,++kb) {
+            if (kb>0) {
+              double timeUsed = sw.time();
+              double timeLeft = ((double)nb2*nb3/(double)kb-1.0)*timeUsed;
+              int timeLeftSec = 1+(int)timeLeft;
+              trace("FaultScanner.scan: done in "+timeLeftSec+" seconds");
+            }
+
+            // Traces in this brick, and in the brick plus overlap.
+            int j2 = kb2*m2, k2 = min(n2,j2+m2);
+            int j3 = kb3*m3, k3 = min(n3,j3+m3);
+            int j2b = max(0,j2-l23), k2b = min(n2,k2+l23);
+            int j3b = max(0,j3-l23), k3b = min(n3,k3+l23);
+            int n2b = k2b-j2b;
+            int n3b = k3b-j3b;
+
+            // Scan all fault strikes and dips for this brick.
+            float[][][] p2 = readTraces(afi[0],n1,n2,j2b,j3b,n2b,n3b);
+            float[][][] p3 = readTraces(afi[1],n1,n2,j2b,j3b,n2b,n3b);
+            float[][][] g = readTraces(afi[2],n1,n2,j2b,j3b,n2b,n3b);
+            float[][][][] snd = semblanceNumDen(p2,p3,g);
+            p2 = p3 = g = null; // enable gc to collect these arrays
+            float[][][][] fpt = new float[3][n3b][n2b][n1];
+            for (int ip=0; ip<np; ++ip) {
+              float phi = (float)phiSampling.getValue(ip);
+              Rotator r = new Rotator(phi,n1,n2,n3,j2b,j3b,n2b,n3b);
+              scanPhi(phi,r,thetaSampling,snd,fpt);
+            }
+
+            // Write results for traces in this brick, excluding overlap.
+            for (int i=0; i<3; ++i) {
+              writeTraces(afo[i],n1,n2,j2,j3,k2-j2,k3-j3,
+                          j2-j2b,j3-j3b,fpt[i]);
+            }
+          }
+        }
+        sw.stop();
+        trace("FaultScanner.scan: done");
+      } finally {
+        for (int i=0; i<3; ++i) {
+          if (afi[i]!=null) afi[i].close();
+          if (afo[i]!=null) afo[i].close();
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("cannot scan image in files ("+e+")");
+    }
+  }
+
   /**
    * Thins fault images to include only ridges in fault likelihoods.
    * After thinning, may be only one voxel wide. Thinned fault strikes and
@@ -386,11 +502,85 @@ public class FaultScanner {
   // private
 
   private double _sigmaPhi,_sigmaTheta;
+  private int _m2,_m3; // numbers of traces in bricks; 0, for default
+
+  // Float rounding errors, relative to values smoothed.
+  private static final double ROUNDING = 6.0e-8;
 
   private static void trace(String s) {
     System.out.println(s);
   }
 
+  // Number of traces by which bricks overlap in 2nd and 3rd dimensions.
+  // Along strike, the overlap is the extent of horizontal smoothing; along
+  // dip, it is the horizontal extent of smoothing in the sheared slices,
+  // which is largest for the smallest fault dip. Beyond these extents,
+  // smoothing filters are truncated at brick edges with errors less than
+  // float rounding errors. Sinc interpolation in rotating and shearing
+  // adds a few more traces.
+  private int overlap(Sampling thetaSampling) {
+    int lp = extent(_sigmaPhi);
+    int lt = 0;
+    int nt = thetaSampling.getCount();
+    for (int it=0; it<nt; ++it) {
+      double theta = toRadians(thetaSampling.getValue(it));
+      double sint = abs(sin(theta));
+      double cost = abs(cos(theta));
+      if (sint>0.0)
+        lt = max(lt,(int)ceil(extent(_sigmaTheta*sint)*cost/sint));
+    }
+    return 1+4*Rotator.HALF_LSINC+lp+lt;
+  }
+
+  // Number of samples beyond which the impulse response of an exponential
+  // smoothing filter with half-width sigma sums to less than float rounding
+  // errors. The filter coefficient a is that computed by the recursive
+  // exponential filter, and the sum of the impulse response beyond n
+  // samples is less than a^n.
+  private static int extent(double sigma) {
+    if (sigma<=0.0)
+      return 0;
+    double ss = sigma*sigma;
+    double a = (1.0+ss-sqrt(1.0+2.0*ss))/ss;
+    return (int)ceil(log(ROUNDING)/log(a));
+  }
+
+  // Opens a file for writing, replacing any existing file.
+  private static ArrayFile openForWrite(String fileName) throws IOException {
+    File file = new File(fileName);
+    if (file.exists())
+      file.delete();
+    return new ArrayFile(file,"rw");
+  }
+
+  // Reads n2b*n3b traces beginning with trace (j2,j3) of an image with
+  // n1*n2*n3 samples.
+  private static float[][][] readTraces(
+    ArrayFile af, int n1, int n2, int j2, int j3, int n2b, int n3b)
+    throws IOException
+  {
+    float[][][] x = new float[n3b][n2b][n1];
+    for (int i3=0; i3<n3b; ++i3) {
+      af.seek(4L*n1*(j2+(long)n2*(i3+j3)));
+      af.readFloats(x[i3]);
+    }
+    return x;
+  }
+
+  // Writes m2*m3 traces beginning with trace (j2,j3) of an image with
+  // n1*n2*n3 samples, from those beginning with trace (l2,l3) of x.
+  private static void writeTraces(
+    ArrayFile af, int n1, int n2, int j2, int j3, int m2, int m3,
+    int l2, int l3, float[][][] x)
+    throws IOException
+  {
+    for (int i3=0; i3<m3; ++i3) {
+      af.seek(4L*n1*(j2+(long)n2*(i3+j3)));
+      for (int i2=0; i2<m2; ++i2)
+        af.writeFloats(x[i3+l3][i2+l2]);
+    }
+  }
+
   // This scan smooths semblance numerators and denominators along fault
   // planes by first rotating and shearing those images before applying
   // fast recursive axis-aligned smoothing filters.
@@ -405,19 +595,18 @@ public class FaultScanner {
     //   compute fphi,tphi (fault likelihood and dip) in 1-3 slices
     //   unrotate fphi,tphi to original coordinates
     //   update f,p,t for maximum likelihood
-    final int n1 = snd[0][0][0].length;
-    final int n2 = snd[0][0].length;
-    final int n3 = snd[0].length;
-    final float[][][] f = new float[n3][n2][n1];
-    final float[][][] p = new float[n3][n2][n1];
-    final float[][][] t = new float[n3][n2][n1];
-    final float tmin = (float)thetaSampling.getFirst();
-    final float tmax = (float)thetaSampling.getLast();
+    int n1 = snd[0][0][0].length;
+    int n2 = snd[0][0].length;
+    int n3 = snd[0].length;
+    float[][][] f = new float[n3][n2][n1];
+    float[][][] p = new float[n3][n2][n1];
+    float[][][] t = new float[n3][n2][n1];
+    float[][][][] fpt = {f,p,t};
     int np = phiSampling.getCount();
     Stopwatch sw = new Stopwatch();
     sw.start();
     for (int ip=0; ip<np; ++ip) {
-      final float phi = (float)phiSampling.getValue(ip);
+      float phi = (float)phiSampling.getValue(ip);
       if (ip>0) {
         double timeUsed = sw.time();
         double timeLeft = ((double)np/(double)ip-1.0)*timeUsed;
@@ -425,40 +614,58 @@ public class FaultScanner {
         trace("FaultScanner.scan: done in "+timeLeftSec+" seconds");
       }
       Rotator r = new Rotator(phi,n1,n2,n3);
-      float[][][][] rsnd = r.rotate(snd);
-      smooth2(rsnd);
-      float[][][][] rftp = scanTheta(thetaSampling,rsnd);
-      rsnd = null; // enable gc to collect this large array
-      float[][][][] ftp = r.unrotate(rftp);
-      final float[][][] fp = ftp[0];
-      final float[][][] tp = ftp[1];
-      loop(n3,new LoopInt() {
-      public void compute(int i3) {
-        for (int i2=0; i2<n2; ++i2) {
-          float[] f32 = f[i3][i2];
-          float[] p32 = p[i3][i2];
-          float[] t32 = t[i3][i2];
-          float[] fp32 = fp[i3][i2];
-          float[] tp32 = tp[i3][i2];
-          for (int i1=0; i1<n1; ++i1) {
-            float fpi = fp32[i1];
-            float tpi = tp32[i1];
-            if (fpi<0.0f) fpi = 0.0f; // necessary because of sinc
-            if (fpi>1.0f) fpi = 1.0f; // interpolation in unrotate,
-            if (tpi<tmin) tpi = tmin; // for both fault likelihood
-            if (tpi>tmax) tpi = tmax; // and fault dip theta
-            if (fpi>f32[i1]) {
-              f32[i1] = fpi;
-              p32[i1] = phi;
-              t32[i1] = tpi;
-            }
-          }
-        }
-      }});
+      scanPhi(phi,r,thetaSampling,snd,fpt);
     }
     sw.stop();
     trace("FaultScanner.scan: done");
-    return new float[][][][]{f,p,t};
+    return fpt;
+  }
+
+  // For one fault strike phi, scans over all fault dips theta and updates
+  // f,p,t (fault likelihood, phi, and theta) for maximum likelihood. The
+  // rotator determines the samples of rotated snum,sden.
+  private void scanPhi(
+    final float phi, Rotator r, Sampling thetaSampling,
+    float[][][][] snd, float[][][][] fpt)
+  {
+    final int n1 = snd[0][0][0].length;
+    final int n2 = snd[0][0].length;
+    final int n3 = snd[0].length;
+    final float[][][] f = fpt[0];
+    final float[][][] p = fpt[1];
+    final float[][][] t = fpt[2];
+    final float tmin = (float)thetaSampling.getFirst();
+    final float tmax = (float)thetaSampling.getLast();
+    float[][][][] rsnd = r.rotate(snd);
+    smooth2(rsnd);
+    float[][][][] rftp = scanTheta(thetaSampling,rsnd);
+    rsnd = null; // enable gc to collect this large array
+    float[][][][] ftp = r.unrotate(rftp);
+    final float[][][] fp = ftp[0];
+    final float[][][] tp = ftp[1];
+    loop(n3,new LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        float[] f32 = f[i3][i2];
+        float[] p32 = p[i3][i2];
+        float[] t32 = t[i3][i2];
+        float[] fp32 = fp[i3][i2];
+        float[] tp32 = tp[i3][i2];
+        for (int i1=0; i1<n1; ++i1) {
+          float fpi = fp32[i1];
+          float tpi = tp32[i1];
+          if (fpi<0.0f) fpi = 0.0f; // necessary because of sinc
+          if (fpi>1.0f) fpi = 1.0f; // interpolation in unrotate,
+          if (tpi<tmin) tpi = tmin; // for both fault likelihood
+          if (tpi>tmax) tpi = tmax; // and fault dip theta
+          if (fpi>f32[i1]) {
+            f32[i1] = fpi;
+            p32[i1] = phi;
+            t32[i1] = tpi;
+          }
+        }
+      }
+    }});
   }
 
   // Sampling of angles depends on extent of smoothing.
@@ -952,7 +1159,19 @@ public class FaultScanner {
   private static class Rotator {
 
     Rotator(double phi, int n1, int n2, int n3) {
+      this(phi,n1,n2,n3,0,0,n2,n3);
+    }
+
+    // Rotates a brick of m2*m3 traces that begins with trace (j2,j3) of an
+    // image with n2*n3 traces. Rotated samples of the brick are those of
+    // the rotated image that lie near the brick, so that rotating a brick
+    // yields the same samples as does rotating the entire image.
+    Rotator(
+      double phi, int n1, int n2, int n3, int j2, int j3, int m2, int m3)
+    {
       _n1 = n1;
+      _j2 = j2;
+      _j3 = j3;
 
       // angle phi in radians, cosine and sine
       _phir = toRadians(phi);
@@ -964,30 +1183,19 @@ public class FaultScanner {
       _x3c = 0.5*(n3-1.0);
 
       // input sampling
-      _s2p = new Sampling(n2,1.0,0.0);
-      _s3p = new Sampling(n3,1.0,0.0);
+      _s2p = new Sampling(m2,1.0,j2);
+      _s3p = new Sampling(m3,1.0,j3);
 
-      // corners of input sampling rectangle
-      double[] x2s = { 0.0, 0.0,n2-1,n2-1};
-      double[] x3s = { 0.0,n3-1,n3-1, 0.0};
-
-      // bounds after rotation
-      double x2min =  Double.MAX_VALUE;
-      double x3min =  Double.MAX_VALUE;
-      double x2max = -Double.MAX_VALUE;
-      double x3max = -Double.MAX_VALUE;
-      for (int i=0; i<4; ++i) {
-        double x2q = x2q(x2s[i],x3s[i]);
-        double x3q = x3q(x2s[i],x3s[i]);
-        if (x2q<x2min) x2min = x2q;
-        if (x2q>x2max) x2max = x2q;
-        if (x3q<x3min) x3min = x3q;
-        if (x3q>x3max) x3max = x3q;
-      }
-      x2min = floor(x2min);
-      x2max = ceil(x2max);
-      x3min = floor(x3min);
-      x3max = ceil(x3max);
+      // bounds after rotation of the image, limited to those of the brick
+      // plus a margin for sinc interpolation
+      int l2 = j2+m2-1, l3 = j3+m3-1;
+      double[] xi = bounds(0,0,n2-1,n3-1);
+      double[] xb = bounds(j2-HALF_LSINC,j3-HALF_LSINC,
+                           l2+HALF_LSINC,l3+HALF_LSINC);
+      double x2min = max(xi[0],xb[0]);
+      double x2max = min(xi[1],xb[1]);
+      double x3min = max(xi[2],xb[2]);
+      double x3max = min(xi[3],xb[3]);
 
       // sampling after rotation
       int n2q = max(2,1+(int)(x2max-x2min+0.5));
@@ -1004,6 +1212,26 @@ public class FaultScanner {
       //trace("s3q: n3q="+n3q+" d3q="+d3q+" f3q="+f3q);
     }
 
+    // Bounds {x2min,x2max,x3min,x3max}, rounded outward to integers,
+    // after rotation of the rectangle with specified corners.
+    private double[] bounds(double a2, double a3, double b2, double b3) {
+      double[] x2s = {a2,a2,b2,b2};
+      double[] x3s = {a3,b3,b3,a3};
+      double x2min =  Double.MAX_VALUE;
+      double x3min =  Double.MAX_VALUE;
+      double x2max = -Double.MAX_VALUE;
+      double x3max = -Double.MAX_VALUE;
+      for (int i=0; i<4; ++i) {
+        double x2q = x2q(x2s[i],x3s[i]);
+        double x3q = x3q(x2s[i],x3s[i]);
+        if (x2q<x2min) x2min = x2q;
+        if (x2q>x2max) x2max = x2q;
+        if (x3q<x3min) x3min = x3q;
+        if (x3q>x3max) x3max = x3q;
+      }
+      return new double[]{floor(x2min),ceil(x2max),floor(x3min),ceil(x3max)};
+    }
+
     float[][][][] rotate(float[][][][] p) {
       int n = p.length;
       float[][][][] q = new float[n][][][];
@@ -1030,6 +1258,8 @@ public class FaultScanner {
       final Sampling s2q = _s2q;
       final Sampling s3q = _s3q;
       final int n1 = _n1;
+      final int j2 = _j2;
+      final int j3 = _j3;
       final int n2p = _s2p.getCount();
       final int n3p = _s3p.getCount();
       final int n2q = _s2q.getCount();
@@ -1050,6 +1280,8 @@ public class FaultScanner {
               double f3p = x3p-i3p;
               int k2p = (int)(f2p*(nsinc-1)+0.5);
               int k3p = (int)(f3p*(nsinc-1)+0.5);
+              i2p -= j2; // indices of
+              i3p -= j3; // input arrays
               for (int k3s=0; k3s<lsinc; ++k3s) {
                 float s3 = siTable[k3p][k3s];
                 int j3p = i3p+k3s-lsinc/2+1;
@@ -1137,6 +1369,7 @@ public class FaultScanner {
     // private
 
     private int _n1; // number of samples in 1st dimension
+    private int _j2,_j3; // indices of first trace in brick
     private double _phir,_cosp,_sinp; // angle phi in radians, cosine, sine
     private double _x2c,_x3c; // coordinates of center of rotation
     private Sampling _s2p,_s3p; // samplings in original coordinates
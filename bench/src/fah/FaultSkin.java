@@ -416,6 +416,22 @@ public class FaultSkin implements Iterable<FaultCell>,Serializable {
     _cellList = new ArrayList<FaultCell>();
   }
 
+  /**
+   * Constructs a skin with specified seed and cells.
+   * Sets the skin of all specified cells to this skin.
+   * @param seed the seed; must be one of the specified cells.
+   * @param cells array of skinless cells.
+   */
+  FaultSkin(FaultCell seed, FaultCell[] cells) {
+    _seed = seed;
+    _cellList = new ArrayList<FaultCell>(cells.length);
+    for (FaultCell cell:cells) {
+      assert cell.skin==null;
+      cell.skin = this;
+      _cellList.add(cell);
+    }
+  }
+
   /**
    * Adds the specified skinless cell to this skin.
    * @param cell the cell to be added.
@@ -0,0 +1,330 @@
+/****************************************************************************
+Copyright (c) 2014, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package fah;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+
+import edu.mines.jtk.util.Check;
+import static edu.mines.jtk.util.Parallel.*;
+
+/**
+ * A file containing an array of fault skins. Unlike files written by
+ * {@link FaultSkin#writeToFile(String,FaultSkin)}, which contain only one
+ * skin each, one file contains all skins, with properties of cells stored
+ * in columns. Each column is an array with one value for every cell in
+ * the file, and cells in each skin are contiguous in every column. Links
+ * from cells to nabors above, below, left and right are stored as indices
+ * of cells in the file.
+ * <p>
+ * When opened, the file is memory-mapped, and only a small table of
+ * cell counts and seeds for skins is read. Any skin in the file may then
+ * be constructed without reading cells of other skins. Because all reads
+ * from the mapped file are bulk reads that do not change shared state,
+ * skins may be constructed concurrently by multiple threads.
+ * <p>
+ * Cell properties stored include location, fault likelihood, strike, dip,
+ * and dip-slip vector, which are also those stored in single-skin files.
+ *
+ * @author agent
+ * @version 2026.10.18
+ */
+public class FaultSkinFile {
+
+  /**
+   * Writes the specified skins to a file with specified name.
+   * Replaces any existing file with that name.
+   * @param fileName the fault skin file name.
+   * @param skins array of skins.
+   */
+  public static void write(String fileName, FaultSkin[] skins) {
+    int nskin = skins.length;
+    int[] starts = new int[nskin+1];
+    for (int iskin=0; iskin<nskin; ++iskin)
+      starts[iskin+1] = starts[iskin]+skins[iskin].size();
+    int ncell = starts[nskin];
+    checkCellCount(ncell);
+    long[] offsets = columnOffsets(nskin,ncell);
+    File file = new File(fileName);
+    if (file.exists())
+      file.delete();
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file,"rw");
+      try {
+        FileChannel fc = raf.getChannel();
+
+        // Header and table of skins.
+        ByteBuffer bb = ByteBuffer.allocate((int)offsets[0]);
+        bb.putInt(MAGIC);
+        bb.putInt(VERSION);
+        bb.putInt(nskin);
+        bb.putInt(ncell);
+        for (int iskin=0; iskin<=nskin; ++iskin)
+          bb.putInt(starts[iskin]);
+        for (int iskin=0; iskin<nskin; ++iskin) {
+          FaultSkin skin = skins[iskin];
+          bb.putInt((skin.size()>0)?indexOf(skin.getSeed(),skin):-1);
+        }
+        bb.flip();
+        writeFully(fc,bb,0);
+
+        // Columns, one skin at a time.
+        IdentityHashMap<FaultCell,Integer> indices =
+          new IdentityHashMap<FaultCell,Integer>();
+        for (int iskin=0; iskin<nskin; ++iskin) {
+          FaultCell[] cells = skins[iskin].getCells();
+          int mcell = cells.length;
+          int jcell = starts[iskin];
+          indices.clear();
+          for (int icell=0; icell<mcell; ++icell)
+            indices.put(cells[icell],jcell+icell);
+          bb = ByteBuffer.allocate(4*mcell);
+          for (int icol=0; icol<NFLOAT; ++icol) {
+            bb.clear();
+            for (FaultCell cell:cells)
+              bb.putFloat(getFloat(icol,cell));
+            bb.flip();
+            writeFully(fc,bb,offsets[icol]+4L*jcell);
+          }
+          for (int icol=0; icol<NLINK; ++icol) {
+            bb.clear();
+            for (FaultCell cell:cells) {
+              Integer index = indices.get(getLink(icol,cell));
+              bb.putInt((index!=null)?index:-1);
+            }
+            bb.flip();
+            writeFully(fc,bb,offsets[NFLOAT+icol]+4L*jcell);
+          }
+        }
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("cannot write fault skins to "+fileName+
+                                 " ("+e+")");
+    }
+  }
+
+  /**
+   * Returns all skins read from a file with specified name.
+   * @param fileName the fault skin file name.
+   * @return array of skins.
+   */
+  public static FaultSkin[] read(String fileName) {
+    FaultSkinFile fsf = new FaultSkinFile(fileName);
+    FaultSkin[] skins = fsf.getSkins();
+    fsf.close();
+    return skins;
+  }
+
+  /**
+   * Opens a fault skin file with specified name.
+   * @param fileName the fault skin file name.
+   */
+  public FaultSkinFile(String fileName) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(fileName,"r");
+      try {
+        FileChannel fc = raf.getChannel();
+        ByteBuffer hb = fc.map(FileChannel.MapMode.READ_ONLY,0,16);
+        if (hb.getInt(0)!=MAGIC || hb.getInt(4)!=VERSION)
+          throw new RuntimeException(fileName+" is not a fault skin file");
+        int nskin = hb.getInt(8);
+        int ncell = hb.getInt(12);
+        long[] offsets = columnOffsets(nskin,ncell);
+        IntBuffer tb = fc.map(FileChannel.MapMode.READ_ONLY,
+                              16,offsets[0]-16).asIntBuffer();
+        _starts = new int[nskin+1];
+        _seeds = new int[nskin];
+        tb.get(_starts);
+        tb.get(_seeds);
+        _floats = new FloatBuffer[NFLOAT];
+        _links = new IntBuffer[NLINK];
+        for (int icol=0; icol<NFLOAT+NLINK; ++icol) {
+          ByteBuffer cb = fc.map(FileChannel.MapMode.READ_ONLY,
+                                 offsets[icol],4L*ncell);
+          if (icol<NFLOAT) {
+            _floats[icol] = cb.asFloatBuffer();
+          } else {
+            _links[icol-NFLOAT] = cb.asIntBuffer();
+          }
+        }
+      } finally {
+        raf.close(); // mapped columns remain valid
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("cannot open fault skin file "+fileName+
+                                 " ("+e+")");
+    }
+  }
+
+  /**
+   * Closes this file. Skins already constructed remain valid.
+   */
+  public void close() {
+    _floats = null;
+    _links = null;
+  }
+
+  /**
+   * Returns the number of skins in this file.
+   * @return the number of skins.
+   */
+  public int countSkins() {
+    return _seeds.length;
+  }
+
+  /**
+   * Returns the number of cells in the specified skin in this file.
+   * @param iskin index of the skin.
+   * @return the number of cells.
+   */
+  public int countCells(int iskin) {
+    return _starts[iskin+1]-_starts[iskin];
+  }
+
+  /**
+   * Returns the number of cells in all skins in this file.
+   * @return the number of cells.
+   */
+  public int countCells() {
+    return _starts[_seeds.length];
+  }
+
+  /**
+   * Gets the specified skin in this file. Constructs a new skin, with new
+   * cells, each time this method is called. Reads only the cells in that
+   * skin, and may be called concurrently by multiple threads.
+   * @param iskin index of the skin.
+   * @return the skin.
+   */
+  public FaultSkin getSkin(int iskin) {
+    Check.state(_floats!=null,"fault skin file is open");
+    int jcell = _starts[iskin];
+    int ncell = _starts[iskin+1]-jcell;
+    float[][] f = new float[NFLOAT][ncell];
+    int[][] k = new int[NLINK][ncell];
+    for (int icol=0; icol<NFLOAT; ++icol) {
+      FloatBuffer fb = _floats[icol].duplicate();
+      fb.position(jcell);
+      fb.get(f[icol]);
+    }
+    for (int icol=0; icol<NLINK; ++icol) {
+      IntBuffer ib = _links[icol].duplicate();
+      ib.position(jcell);
+      ib.get(k[icol]);
+    }
+    FaultCell[] cells = new FaultCell[ncell];
+    for (int icell=0; icell<ncell; ++icell) {
+      FaultCell cell = cells[icell] = new FaultCell(
+        f[0][icell],f[1][icell],f[2][icell],  // x1,x2,x3
+        f[3][icell],f[4][icell],f[5][icell]); // fl,fp,ft
+      cell.s1 = f[6][icell];
+      cell.s2 = f[7][icell];
+      cell.s3 = f[8][icell];
+    }
+    for (int icell=0; icell<ncell; ++icell) {
+      FaultCell cell = cells[icell];
+      cell.ca = cellAt(k[0][icell]-jcell,cells);
+      cell.cb = cellAt(k[1][icell]-jcell,cells);
+      cell.cl = cellAt(k[2][icell]-jcell,cells);
+      cell.cr = cellAt(k[3][icell]-jcell,cells);
+    }
+    FaultCell seed = cellAt(_seeds[iskin],cells);
+    return new FaultSkin(seed,cells);
+  }
+
+  /**
+   * Gets all skins in this file. Constructs skins in parallel.
+   * @return array of skins.
+   */
+  public FaultSkin[] getSkins() {
+    final FaultSkin[] skins = new FaultSkin[countSkins()];
+    loop(skins.length,new LoopInt() {
+    public void compute(int iskin) {
+      skins[iskin] = getSkin(iskin);
+    }});
+    return skins;
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int MAGIC = 0x46534b46; // "FSKF"
+  private static final int VERSION = 1;
+  private static final int NFLOAT = 9; // x1,x2,x3,fl,fp,ft,s1,s2,s3
+  private static final int NLINK = 4; // ca,cb,cl,cr
+
+  private int[] _starts; // indices of first cells in skins, plus ncell
+  private int[] _seeds; // indices of seeds in skins; -1, if no seed
+  private FloatBuffer[] _floats; // mapped columns of cell properties
+  private IntBuffer[] _links; // mapped columns of indices of nabors
+
+  // Offsets in bytes of columns; the 1st offset is the size of the header
+  // and table of skins, which contains 4+(nskin+1)+nskin ints.
+  private static long[] columnOffsets(int nskin, int ncell) {
+    long[] offsets = new long[NFLOAT+NLINK];
+    offsets[0] = 4L*(4+(nskin+1)+nskin);
+    for (int icol=1; icol<NFLOAT+NLINK; ++icol)
+      offsets[icol] = offsets[icol-1]+4L*ncell;
+    return offsets;
+  }
+
+  // Each column is mapped as one buffer, which is limited to 2 GB.
+  private static void checkCellCount(int ncell) {
+    Check.argument(ncell<=Integer.MAX_VALUE/4,
+                   "number of cells does not exceed "+Integer.MAX_VALUE/4);
+  }
+
+  private static void writeFully(FileChannel fc, ByteBuffer bb, long offset)
+    throws IOException
+  {
+    while (bb.hasRemaining())
+      offset += fc.write(bb,offset);
+  }
+
+  private static float getFloat(int icol, FaultCell cell) {
+    switch (icol) {
+      case 0: return cell.x1;
+      case 1: return cell.x2;
+      case 2: return cell.x3;
+      case 3: return cell.fl;
+      case 4: return cell.fp;
+      case 5: return cell.ft;
+      case 6: return cell.s1;
+      case 7: return cell.s2;
+      default: return cell.s3;
+    }
+  }
+
+  private static FaultCell getLink(int icol, FaultCell cell) {
+    switch (icol) {
+      case 0: return cell.ca;
+      case 1: return cell.cb;
+      case 2: return cell.cl;
+      default: return cell.cr;
+    }
+  }
+
+  private static int indexOf(FaultCell cell, FaultSkin skin) {
+    int icell = 0;
+    for (FaultCell c:skin) {
+      if (c==cell)
+        return icell;
+      ++icell;
+    }
+    return -1;
+  }
+
+  // Cell with specified index, or null if index is out of bounds. Links
+  // to cells in other skins are not restored.
+  private static FaultCell cellAt(int icell, FaultCell[] cells) {
+    return (0<=icell && icell<cells.length)?cells[icell]:null;
+  }
+}
@@ -13,6 +13,7 @@ import edu.mines.jtk.dsp.*;
 import edu.mines.jtk.util.*;
 
 import static edu.mines.jtk.util.ArrayMath.*;
+import static edu.mines.jtk.util.Parallel.*;
 import static fah.FaultGeometry.*;
 
 /**
@@ -422,18 +423,23 @@ public class FaultSkinner {
     return cellList.toArray(new FaultCell[0]);
   }
 
-  // Returns skins constructed from specified cells.
+  // Returns skins constructed from specified cells. A skin grows from a
+  // seed by adding cells that are mutually best nabors of cells already in
+  // the skin. Because nabors depend only on cell properties, each skin is
+  // the set of all cells connected by nabors to its seed. Skins are grown
+  // in three steps. (1) In parallel, find nabors for all cells. (2) In
+  // order of decreasing fault likelihoods of seeds, find seeds that are
+  // not connected to any seed with higher likelihood. (3) In parallel,
+  // grow skins from those seeds. The skins and the orders of cells in
+  // them are the same as if skins were grown one at a time.
   private FaultSkin[] skins(FaultCell[] cells) {
     int ncell = cells.length;
 
     // Grid of cells used to quickly find cell nabors.
-    FaultCellGrid cellGrid = new FaultCellGrid(cells);
-
-    // Empty list of skins.
-    ArrayList<FaultSkin> skinList = new ArrayList<FaultSkin>();
+    final FaultCellGrid cellGrid = new FaultCellGrid(cells);
 
     // Cell comparator for high-to-low ordering based on fault likelihoods.
-    Comparator<FaultCell> flComparator = new Comparator<FaultCell>() {
+    final Comparator<FaultCell> flComparator = new Comparator<FaultCell>() {
       public int compare(FaultCell c1, FaultCell c2) {
         if (c1.fl<c2.fl)
           return 1;
@@ -451,81 +457,99 @@ public class FaultSkinner {
       if (cell.fl>=_flhi && cell.s1>=_fs1min && cell.s1<=_fs1max)
         seedList.add(cell);
     }
-    int nseed = seedList.size();
 
     // Sort the list of seeds high-to-low by fault likelihood.
     FaultCell[] seeds = seedList.toArray(new FaultCell[0]);
     Arrays.sort(seeds,flComparator);
+
+    // Nabors above, below, left and right of all cells.
+    final FaultCell[][] nabors = findNabors(cellGrid,cells);
+
+    // For each seed not already in a skin or connected to a previous seed,
+    // mark all cells connected to that seed, and add it to a list of seeds
+    // from which to grow skins.
+    boolean[] marked = new boolean[cellGrid.getTableLength()];
+    ArrayDeque<FaultCell> markStack = new ArrayDeque<FaultCell>();
     seedList.clear();
-    for (FaultCell seed:seeds)
-      seedList.add(seed);
-
-    // While potential seeds remain, ...
-    for (int kseed=0; kseed<nseed; ++kseed) {
-
-      // Skip any potential seeds that are already in a skin.
-      while (kseed<nseed && seedList.get(kseed).skin!=null)
-        ++kseed;
-
-      // If we found a seed with which to construct a new skin, ...
-      if (kseed<nseed) {
-        FaultCell seed = seedList.get(kseed);
-
-        // Make a new empty skin.
-        FaultSkin skin = new FaultSkin();
-
-        // Make a priority queue of cells, initially with only the seed.
-        PriorityQueue<FaultCell> growQueue = 
-            new PriorityQueue<FaultCell>(1024,flComparator);
-        growQueue.add(seed);
-
-        // While the grow queue is not empty, ...
-        while (!growQueue.isEmpty()) {
-
-          // Get and remove the cell with highest fault likelihood from the
-          // grow queue. If not already in the skin, add them and link and
-          // add any mutually best nabors to the grow queue.
-          FaultCell cell = growQueue.poll();
-          if (cell.skin==null) {
-            skin.add(cell);
-            FaultCell ca,cb,cl,cr;
-            ca = findNaborAbove(cellGrid,cell);
-            cb = findNaborBelow(cellGrid,ca);
-            if (ca!=null && ca.skin==null && cb==cell) {
-              linkAboveBelow(ca,cb);
-              growQueue.add(ca);
-            }
-            cb = findNaborBelow(cellGrid,cell);
-            ca = findNaborAbove(cellGrid,cb);
-            if (cb!=null && cb.skin==null && ca==cell) {
-              linkAboveBelow(ca,cb);
-              growQueue.add(cb);
-            }
-            cl = findNaborLeft(cellGrid,cell);
-            cr = findNaborRight(cellGrid,cl);
-            if (cl!=null && cl.skin==null && cr==cell) {
-              linkLeftRight(cl,cr);
-              growQueue.add(cl);
-            }
-            cr = findNaborRight(cellGrid,cell);
-            cl = findNaborLeft(cellGrid,cr);
-            if (cr!=null && cr.skin==null && cl==cell) {
-              linkLeftRight(cl,cr);
-              growQueue.add(cr);
+    for (FaultCell seed:seeds) {
+      if (seed.skin==null && !marked[cellGrid.indexOf(seed)]) {
+        seedList.add(seed);
+        marked[cellGrid.indexOf(seed)] = true;
+        markStack.push(seed);
+        while (!markStack.isEmpty()) {
+          int icell = cellGrid.indexOf(markStack.pop());
+          for (int inabor=0; inabor<4; ++inabor) {
+            FaultCell c = nabors[inabor][icell];
+            if (c!=null && c.skin==null && !marked[cellGrid.indexOf(c)]) {
+              marked[cellGrid.indexOf(c)] = true;
+              markStack.push(c);
             }
           }
         }
-
-        // Done growing. Add this skin to the list of skins. Here we include
-        // skins that are too small. If we did not include them here, we would
-        // need to put them in a list of small skins, so that we could later
-        // remove all of their cells. (By not removing those cells now, we
-        // prevent them from becoming parts of other skins.) Instead, we
-        // simply put all skins in the list, and filter that list later.
-        skinList.add(skin);
       }
     }
 
+    // Grow skins in parallel from seeds, in order of decreasing fault
+    // likelihood. Each skin contains only cells marked for its seed, so
+    // no two skins share any cell.
+    final FaultCell[] growSeeds = seedList.toArray(new FaultCell[0]);
+    final FaultSkin[] grownSkins = new FaultSkin[growSeeds.length];
+    loop(growSeeds.length,new LoopInt() {
+    public void compute(int iseed) {
+
+      // Make a new empty skin.
+      FaultSkin skin = new FaultSkin();
+
+      // Make a priority queue of cells, initially with only the seed.
+      PriorityQueue<FaultCell> growQueue = 
+          new PriorityQueue<FaultCell>(1024,flComparator);
+      growQueue.add(growSeeds[iseed]);
+
+      // While the grow queue is not empty, ...
+      while (!growQueue.isEmpty()) {
+
+        // Get and remove the cell with highest fault likelihood from the
+        // grow queue. If not already in the skin, add them and link and
+        // add any mutually best nabors to the grow queue.
+        FaultCell cell = growQueue.poll();
+        if (cell.skin==null) {
+          skin.add(cell);
+          int icell = cellGrid.indexOf(cell);
+          FaultCell ca = nabors[0][icell];
+          FaultCell cb = nabors[1][icell];
+          FaultCell cl = nabors[2][icell];
+          FaultCell cr = nabors[3][icell];
+          if (ca!=null && ca.skin==null) {
+            linkAboveBelow(ca,cell);
+            growQueue.add(ca);
+          }
+          if (cb!=null && cb.skin==null) {
+            linkAboveBelow(cell,cb);
+            growQueue.add(cb);
+          }
+          if (cl!=null && cl.skin==null) {
+            linkLeftRight(cl,cell);
+            growQueue.add(cl);
+          }
+          if (cr!=null && cr.skin==null) {
+            linkLeftRight(cell,cr);
+            growQueue.add(cr);
+          }
+        }
+      }
+
+      // Done growing. Here we include skins that are too small. If we did
+      // not include them here, we would need to put them in a list of small
+      // skins, so that we could later remove all of their cells. (By not
+      // removing those cells now, we prevent them from becoming parts of
+      // other skins.) Instead, we simply keep all skins, and filter them
+      // later.
+      grownSkins[iseed] = skin;
+    }});
+    ArrayList<FaultSkin> skinList = new ArrayList<FaultSkin>();
+    for (FaultSkin skin:grownSkins)
+      skinList.add(skin);
+
     // Filter skins to include only those that are big enough. Remove all
     // cells from any skins that are too small.
     ArrayList<FaultSkin> bigSkinList = new ArrayList<FaultSkin>();
@@ -545,6 +569,46 @@ public class FaultSkinner {
     return bigSkinList.toArray(new FaultSkin[0]);
   }
 
+  // Returns arrays {ca,cb,cl,cr} of nabors above, below, left and right of
+  // specified cells, indexed by indices of cells in the specified grid.
+  // Nabors are mutually best, so that, for example, if ca is the nabor
+  // above a cell, then that cell is the nabor below ca. Finds nabors only
+  // for cells not already in skins, and does not change any cells.
+  private FaultCell[][] findNabors(
+    final FaultCellGrid cellGrid, final FaultCell[] cells)
+  {
+    int ntable = cellGrid.getTableLength();
+    final FaultCell[] na = new FaultCell[ntable];
+    final FaultCell[] nb = new FaultCell[ntable];
+    final FaultCell[] nl = new FaultCell[ntable];
+    final FaultCell[] nr = new FaultCell[ntable];
+    loop(cells.length,new LoopInt() {
+    public void compute(int jcell) {
+      FaultCell cell = cells[jcell];
+      if (cell.skin==null) {
+        int icell = cellGrid.indexOf(cell);
+        FaultCell ca,cb,cl,cr;
+        ca = findNaborAbove(cellGrid,cell);
+        cb = findNaborBelow(cellGrid,ca);
+        if (ca!=null && cb==cell)
+          na[icell] = ca;
+        cb = findNaborBelow(cellGrid,cell);
+        ca = findNaborAbove(cellGrid,cb);
+        if (cb!=null && ca==cell)
+          nb[icell] = cb;
+        cl = findNaborLeft(cellGrid,cell);
+        cr = findNaborRight(cellGrid,cl);
+        if (cl!=null && cr==cell)
+          nl[icell] = cl;
+        cr = findNaborRight(cellGrid,cell);
+        cl = findNaborLeft(cellGrid,cr);
+        if (cr!=null && cl==cell)
+          nr[icell] = cr;
+      }
+    }});
+    return new FaultCell[][]{na,nb,nl,nr};
+  }
+
   // Returns true if the specified cells are nabors. This method assumes that
   // all links are mutual. For example, if c1 is the nabor above c2, then c2
   // must be the nabor below c1.
@@ -0,0 +1,118 @@
+/****************************************************************************
+Copyright (c) 2026, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package fah.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import edu.mines.jtk.dsp.Sampling;
+import edu.mines.jtk.io.ArrayFile;
+
+import fah.FaultScanner;
+
+/**
+ * Tests {@link fah.FaultScanner}.
+ * Fault likelihoods, strikes and dips computed by scanning an image in
+ * files, one brick of traces at a time, are compared with those computed
+ * by scanning the same image in memory.
+ * @author agent
+ * @version 2026.10.18
+ */
+public class FaultScannerTest extends TestCase {
+  public static void main(String[] args) {
+    TestSuite suite = new TestSuite(FaultScannerTest.class);
+    junit.textui.TestRunner.run(suite);
+  }
+
+  // For small fault dips, smoothing along dip extends horizontally much
+  // farther than smoothing along strike, so that bricks must overlap by
+  // many traces for results to be the same.
+  public void testScanBricks() throws IOException {
+    int n1 = 32, n2 = 201, n3 = 197;
+    float[][][][] pg = makeInputs(n1,n2,n3);
+    FaultScanner fs = new FaultScanner(1.0,6.0);
+    Sampling sp = new Sampling(3,60.0,0.0);
+    Sampling st = fs.getThetaSampling(20.0,40.0);
+    float[][][][] flpt = fs.scan(sp,st,pg[0],pg[1],pg[2]);
+    File[] files = new File[6];
+    try {
+      for (int i=0; i<6; ++i)
+        files[i] = File.createTempFile("fst",".dat");
+      for (int i=0; i<3; ++i)
+        writeFloats(files[i],pg[i]);
+      fs.setBrickSize(70,60);
+      fs.scan(sp,st,n1,n2,n3,
+              files[0].getPath(),files[1].getPath(),files[2].getPath(),
+              files[3].getPath(),files[4].getPath(),files[5].getPath());
+      for (int i=0; i<3; ++i)
+        assertEquals(flpt[i],readFloats(files[3+i],n1,n2,n3));
+    } finally {
+      for (int i=0; i<6; ++i)
+        if (files[i]!=null) files[i].delete();
+    }
+  }
+
+  // Random horizontal layers, with zero slopes, displaced by one planar
+  // fault with strike 30 and dip 30 degrees. Returns {p2,p3,g}.
+  private static float[][][][] makeInputs(int n1, int n2, int n3) {
+    Random r = new Random(314159);
+    int ns = 4; // fault throw
+    float[] gl = new float[n1+ns];
+    for (int i1=0; i1<n1+ns; ++i1)
+      gl[i1] = r.nextFloat()-0.5f;
+    double phi = Math.toRadians(30.0);
+    double cott = 1.0/Math.tan(Math.toRadians(30.0));
+    float[][][] p2 = new float[n3][n2][n1];
+    float[][][] p3 = new float[n3][n2][n1];
+    float[][][] g = new float[n3][n2][n1];
+    for (int i3=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1) {
+          double d = (i2-0.5*n2)*Math.cos(phi)-(i3-0.5*n3)*Math.sin(phi);
+          int j1 = (d>i1*cott)?i1+ns:i1;
+          g[i3][i2][i1] = gl[j1]+0.1f*(r.nextFloat()-0.5f);
+        }
+      }
+    }
+    return new float[][][][]{p2,p3,g};
+  }
+
+  private static void writeFloats(File file, float[][][] x)
+    throws IOException
+  {
+    ArrayFile af = new ArrayFile(file,"rw");
+    try {
+      af.writeFloats(x);
+    } finally {
+      af.close();
+    }
+  }
+
+  private static float[][][] readFloats(File file, int n1, int n2, int n3)
+    throws IOException
+  {
+    float[][][] x = new float[n3][n2][n1];
+    ArrayFile af = new ArrayFile(file,"r");
+    try {
+      af.readFloats(x);
+    } finally {
+      af.close();
+    }
+    return x;
+  }
+
+  private static void assertEquals(float[][][] e, float[][][] a) {
+    for (int i3=0; i3<e.length; ++i3)
+      for (int i2=0; i2<e[i3].length; ++i2)
+        for (int i1=0; i1<e[i3][i2].length; ++i1)
+          assertEquals(e[i3][i2][i1],a[i3][i2][i1],0.0f);
+  }
+}
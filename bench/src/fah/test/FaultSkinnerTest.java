@@ -0,0 +1,314 @@
+/****************************************************************************
+Copyright (c) 2026, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package fah.test;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import fah.FaultCell;
+import fah.FaultCellGrid;
+import fah.FaultSkin;
+import fah.FaultSkinner;
+import static fah.FaultGeometry.*;
+
+/**
+ * Tests {@link fah.FaultCellGrid} and {@link fah.FaultSkinner}.
+ * Cells in a grid are compared with those in a dense array of cells, and
+ * skins grown in parallel are compared with those grown one at a time by
+ * a simple sequential skinner.
+ * @author agent
+ * @version 2026.10.18
+ */
+public class FaultSkinnerTest extends TestCase {
+  public static void main(String[] args) {
+    TestSuite suite = new TestSuite(FaultSkinnerTest.class);
+    junit.textui.TestRunner.run(suite);
+  }
+
+  public void testCellGrid() {
+    FaultCell[] cells = makeSkinner().findCells(makeImages(40,41,42));
+    assertTrue(cells.length>1000);
+
+    // A grid with all cells, and a grid with only cells having min and
+    // max indices, to which all cells are then added, so that its hash
+    // table must grow.
+    FaultCellGrid ga = new FaultCellGrid(cells);
+    FaultCellGrid gb = new FaultCellGrid(extremeCells(cells));
+    for (FaultCell cell:cells)
+      gb.set(cell);
+    for (FaultCellGrid g:new FaultCellGrid[]{ga,gb}) {
+      int j1 = g.getI1Min(), n1 = g.getN1();
+      int j2 = g.getI2Min(), n2 = g.getN2();
+      int j3 = g.getI3Min(), n3 = g.getN3();
+      FaultCell[][][] c = new FaultCell[n3][n2][n1];
+      for (FaultCell cell:cells) {
+        int[] i = indices(cell);
+        c[i[2]-j3][i[1]-j2][i[0]-j1] = cell;
+      }
+      for (int i3=j3-1; i3<=j3+n3; ++i3) {
+        for (int i2=j2-1; i2<=j2+n2; ++i2) {
+          for (int i1=j1-1; i1<=j1+n1; ++i1) {
+            boolean in = j1<=i1 && i1<j1+n1 &&
+                         j2<=i2 && i2<j2+n2 &&
+                         j3<=i3 && i3<j3+n3;
+            FaultCell e = in?c[i3-j3][i2-j2][i1-j1]:null;
+            assertSame(e,g.get(i1,i2,i3));
+          }
+        }
+      }
+    }
+  }
+
+  public void testSkins() {
+    for (int minSize:new int[]{1,20,200}) {
+      FaultSkinner fs = makeSkinner();
+      fs.setMinSkinSize(minSize);
+      FaultCell[] cells = fs.findCells(makeImages(40,41,42));
+      SimpleSkinner ss = new SimpleSkinner(cells,minSize);
+      FaultSkin[] skins = fs.findSkins(cells);
+      assertTrue(skins.length>1);
+      assertEquals(ss.skins.size(),skins.length);
+      for (int is=0; is<skins.length; ++is) {
+        FaultCell[] e = ss.skins.get(is).toArray(new FaultCell[0]);
+        assertSame(e[0],skins[is].getSeed());
+        assertSame(e,skins[is].getCells());
+        assertSame(ss.cellsAB(e),skins[is].getCellsAB());
+        assertSame(ss.cellsLR(e),skins[is].getCellsLR());
+      }
+    }
+  }
+
+  // Parameters for skinning, also used by the simple skinner.
+  private static final float FLLO = 0.2f, FLHI = 0.8f;
+  private static final float DFLMAX = 0.2f, DFPMAX = 30.0f, DFTMAX = 10.0f;
+  private static final float DNPMAX = 0.5f;
+
+  private static FaultSkinner makeSkinner() {
+    FaultSkinner fs = new FaultSkinner();
+    fs.setGrowLikelihoods(FLLO,FLHI);
+    fs.setMaxDeltaLikelihood(DFLMAX);
+    fs.setMaxDeltaStrike(DFPMAX);
+    fs.setMaxDeltaDip(DFTMAX);
+    fs.setMaxPlanarDistance(DNPMAX);
+    return fs;
+  }
+
+  // Images {fl,fp,ft} of fault likelihoods, strikes and dips for three
+  // intersecting planar faults, with random variations in likelihoods.
+  private static float[][][][] makeImages(int n1, int n2, int n3) {
+    Random r = new Random(314159);
+    float[] fps = {30.0f,120.0f,80.0f};
+    float[] fts = {70.0f,60.0f,80.0f};
+    float[][] c = {{20.0f,15.0f,20.0f},
+                   {20.0f,25.0f,22.0f},
+                   {10.0f,20.0f,30.0f}};
+    float[][][] fl = new float[n3][n2][n1];
+    float[][][] fp = new float[n3][n2][n1];
+    float[][][] ft = new float[n3][n2][n1];
+    for (int jf=0; jf<fps.length; ++jf) {
+      float[] w = faultNormalVectorFromStrikeAndDip(fps[jf],fts[jf]);
+      for (int i3=0; i3<n3; ++i3) {
+        for (int i2=0; i2<n2; ++i2) {
+          for (int i1=0; i1<n1; ++i1) {
+            float d = w[0]*(i1-c[jf][0])+w[1]*(i2-c[jf][1])+w[2]*(i3-c[jf][2]);
+            float f = (float)Math.exp(-d*d)*(0.75f+0.25f*r.nextFloat());
+            if (f>fl[i3][i2][i1]) {
+              fl[i3][i2][i1] = f;
+              fp[i3][i2][i1] = fps[jf];
+              ft[i3][i2][i1] = fts[jf];
+            }
+          }
+        }
+      }
+    }
+    return new float[][][][]{fl,fp,ft};
+  }
+
+  // Cells with min and max indices.
+  private static FaultCell[] extremeCells(FaultCell[] cells) {
+    FaultCell[] c = new FaultCell[6];
+    for (FaultCell cell:cells) {
+      int[] i = indices(cell);
+      for (int k=0; k<3; ++k) {
+        if (c[2*k  ]==null || i[k]<indices(c[2*k  ])[k]) c[2*k  ] = cell;
+        if (c[2*k+1]==null || i[k]>indices(c[2*k+1])[k]) c[2*k+1] = cell;
+      }
+    }
+    return c;
+  }
+
+  // Indices {i1,i2,i3} of the sample nearest to a cell.
+  private static int[] indices(FaultCell cell) {
+    float[] x = cell.getX();
+    return new int[]{Math.round(x[0]),Math.round(x[1]),Math.round(x[2])};
+  }
+
+  // A sequential skinner, like that used before skins were grown in
+  // parallel. In order of decreasing fault likelihood, each seed not
+  // already in a skin grows a skin by adding mutually best nabors. Nabors
+  // and links are kept in maps, so that cells are not modified.
+  private static class SimpleSkinner {
+    ArrayList<ArrayList<FaultCell>> skins;
+    HashMap<FaultCell,FaultCell> ca = new HashMap<FaultCell,FaultCell>();
+    HashMap<FaultCell,FaultCell> cb = new HashMap<FaultCell,FaultCell>();
+    HashMap<FaultCell,FaultCell> cl = new HashMap<FaultCell,FaultCell>();
+    HashMap<FaultCell,FaultCell> cr = new HashMap<FaultCell,FaultCell>();
+    SimpleSkinner(FaultCell[] cells, int minSize) {
+      FaultCellGrid grid = new FaultCellGrid(cells);
+      Comparator<FaultCell> flComparator = new Comparator<FaultCell>() {
+        public int compare(FaultCell c1, FaultCell c2) {
+          return -Float.compare(c1.getFl(),c2.getFl());
+        }
+      };
+      ArrayList<FaultCell> seedList = new ArrayList<FaultCell>();
+      for (FaultCell cell:cells)
+        if (cell.getFl()>=FLHI)
+          seedList.add(cell);
+      FaultCell[] seeds = seedList.toArray(new FaultCell[0]);
+      Arrays.sort(seeds,flComparator);
+      HashSet<FaultCell> skinned = new HashSet<FaultCell>();
+      skins = new ArrayList<ArrayList<FaultCell>>();
+      for (FaultCell seed:seeds) {
+        if (skinned.contains(seed))
+          continue;
+        ArrayList<FaultCell> skin = new ArrayList<FaultCell>();
+        PriorityQueue<FaultCell> growQueue =
+            new PriorityQueue<FaultCell>(1024,flComparator);
+        growQueue.add(seed);
+        while (!growQueue.isEmpty()) {
+          FaultCell cell = growQueue.poll();
+          if (skinned.add(cell)) {
+            skin.add(cell);
+            FaultCell a = nabor(cell,grid.findCellAbove(cell));
+            if (a!=null && !skinned.contains(a) &&
+                nabor(a,grid.findCellBelow(a))==cell) {
+              link(ca,cb,a,cell);
+              growQueue.add(a);
+            }
+            FaultCell b = nabor(cell,grid.findCellBelow(cell));
+            if (b!=null && !skinned.contains(b) &&
+                nabor(b,grid.findCellAbove(b))==cell) {
+              link(ca,cb,cell,b);
+              growQueue.add(b);
+            }
+            FaultCell l = nabor(cell,grid.findCellLeft(cell));
+            if (l!=null && !skinned.contains(l) &&
+                nabor(l,grid.findCellRight(l))==cell) {
+              link(cl,cr,l,cell);
+              growQueue.add(l);
+            }
+            FaultCell r = nabor(cell,grid.findCellRight(cell));
+            if (r!=null && !skinned.contains(r) &&
+                nabor(r,grid.findCellLeft(r))==cell) {
+              link(cl,cr,cell,r);
+              growQueue.add(r);
+            }
+          }
+        }
+        skins.add(skin);
+      }
+      ArrayList<ArrayList<FaultCell>> bigSkins =
+          new ArrayList<ArrayList<FaultCell>>();
+      for (ArrayList<FaultCell> skin:skins)
+        if (skin.size()>=minSize)
+          bigSkins.add(skin);
+      skins = bigSkins;
+    }
+
+    // Arrays of cells linked above and below, as in a fault skin.
+    FaultCell[][] cellsAB(FaultCell[] cells) {
+      HashSet<FaultCell> cellSet = new HashSet<FaultCell>();
+      ArrayList<FaultCell[]> cellsList = new ArrayList<FaultCell[]>();
+      for (FaultCell cell:cells) {
+        if (!cellSet.contains(cell)) {
+          FaultCell c = cell;
+          while (ca.get(c)!=null)
+            c = ca.get(c);
+          ArrayList<FaultCell> cList = new ArrayList<FaultCell>();
+          for (; c!=null; c=cb.get(c)) {
+            cList.add(c);
+            cellSet.add(c);
+          }
+          cellsList.add(cList.toArray(new FaultCell[0]));
+        }
+      }
+      return cellsList.toArray(new FaultCell[0][]);
+    }
+
+    // Arrays of cells linked left and right, as in a fault skin.
+    FaultCell[][] cellsLR(FaultCell[] cells) {
+      HashSet<FaultCell> cellSet = new HashSet<FaultCell>();
+      ArrayList<FaultCell[]> cellsList = new ArrayList<FaultCell[]>();
+      for (FaultCell cell:cells) {
+        if (!cellSet.contains(cell)) {
+          FaultCell c = cell;
+          while (cl.get(c)!=null && cl.get(c)!=cell)
+            c = cl.get(c);
+          FaultCell cLeft = c;
+          ArrayList<FaultCell> cList = new ArrayList<FaultCell>();
+          cList.add(c);
+          cellSet.add(c);
+          for (c=cr.get(c); c!=null && c!=cLeft; c=cr.get(c)) {
+            cList.add(c);
+            cellSet.add(c);
+          }
+          cellsList.add(cList.toArray(new FaultCell[0]));
+        }
+      }
+      return cellsList.toArray(new FaultCell[0][]);
+    }
+
+    // Links cells c1 and c2 in maps for nabors m1 and m2.
+    private static void link(
+      HashMap<FaultCell,FaultCell> m1, HashMap<FaultCell,FaultCell> m2,
+      FaultCell c1, FaultCell c2)
+    {
+      m1.put(c2,c1);
+      m2.put(c1,c2);
+    }
+
+    // Returns the nabor cb of cell ca, if they can be nabors; else null.
+    private static FaultCell nabor(FaultCell ca, FaultCell cb) {
+      if (ca==null || cb==null)
+        return null;
+      float fla = ca.getFl(), flb = cb.getFl();
+      float[] xa = ca.getX(), xb = cb.getX();
+      float[] wa = ca.getW(), wb = cb.getW();
+      float dfp = faultStrikeFromNormalVector(wa)-
+                  faultStrikeFromNormalVector(wb);
+      float dft = faultDipFromNormalVector(wa)-
+                  faultDipFromNormalVector(wb);
+      dfp = Math.min(Math.abs(dfp),
+            Math.min(Math.abs(dfp+360.0f),Math.abs(dfp-360.0f)));
+      float dab = 0.0f, dba = 0.0f;
+      for (int i=0; i<3; ++i) {
+        dab += wa[i]*(xa[i]-xb[i]);
+        dba += wb[i]*(xa[i]-xb[i]);
+      }
+      boolean can = Math.min(fla,flb)>=FLLO &&
+                    Math.abs(fla-flb)<=DFLMAX &&
+                    dfp<=DFPMAX &&
+                    Math.abs(dft)<=DFTMAX &&
+                    Math.max(dab,dba)<=DNPMAX;
+      return can?cb:null;
+    }
+  }
+
+  private static void assertSame(FaultCell[] e, FaultCell[] a) {
+    assertEquals(e.length,a.length);
+    for (int i=0; i<e.length; ++i)
+      assertSame(e[i],a[i]);
+  }
+
+  private static void assertSame(FaultCell[][] e, FaultCell[][] a) {
+    assertEquals(e.length,a.length);
+    for (int i=0; i<e.length; ++i)
+      assertSame(e[i],a[i]);
+  }
+}
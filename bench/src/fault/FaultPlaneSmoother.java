@@ -18,7 +18,19 @@ import edu.mines.jtk.sgl.*;
  * 3D smoothing along fault planes with a rotated Gaussian filter.
  * This smoothing filter is implemented with FFTs, and is optimized 
  * for the case of repeated applications for different rotations to 
- * multiple arrays.
+ * multiple arrays. Transforms of the input arrays are computed only 
+ * once, when the smoother is constructed, and arrays used as workspace 
+ * are reused for all rotations in a scan over fault angles theta for 
+ * one fault strike angle phi.
+ * <p>
+ * The cached transforms are padded in all three dimensions. Their size 
+ * is about (n1fft*n2fft)/(n1*n2) times that of transforms padded in only 
+ * the 3rd dimension, where padding in each dimension is three times the 
+ * largest half-width sigma. For example, with sigma = 10 and arrays with 
+ * n1 = n2 = 200, the cached transforms are about 1.3 times larger. This 
+ * additional memory avoids a forward FFT over the 1st and 2nd dimensions 
+ * of every input array for every rotation, which would otherwise be
+ * nearly half of the FFT work for each rotation.
  * <p>
  * A fault plane is defined by two angles phi and theta in the range 
  * [-90,90] degrees. The angle phi is the strike of the fault, and 
@@ -99,14 +111,57 @@ public class FaultPlaneSmoother {
     _fft2 = new FftComplex(_n2fft);
     _fft3 = new FftReal(_n3fft);
 
-    // Space for inputs after FFT for only the 3rd dimension.
-    // The 3rd dimension is slowest, and we save space by not 
-    // padding and transforming over all three dimensions.
-    _fk = new float[_nf][_nk3][_n2][_n1*2];
+    // Wavenumbers for all three array dimensions.
+    float twopi = 2.0f*FLT_PI;
+    float dk1 = twopi/_n1fft;
+    float dk2 = twopi/_n2fft;
+    float dk3 = twopi/_n3fft;
+    _k1 = new float[_nk1];
+    _k2 = new float[_nk2];
+    _k3 = new float[_nk3];
+    for (int i1=0; i1<_nk1; ++i1) {
+      _k1[i1] = i1*dk1;
+      if (i1*2>_nk1) _k1[i1] -= twopi;
+    }
+    for (int i2=0; i2<_nk2; ++i2) {
+      _k2[i2] = i2*dk2;
+      if (i2*2>_nk2) _k2[i2] -= twopi;
+    }
+    for (int i3=0; i3<_nk3; ++i3)
+      _k3[i3] = i3*dk3;
+
+    // Space for inputs after FFT over all three dimensions. These 
+    // transforms do not depend on fault angles, so they are computed 
+    // only once. Unlike a cache transformed over only the 3rd dimension, 
+    // these transforms are padded in the 1st and 2nd dimensions, which 
+    // costs memory (see the class comment) but saves a forward FFT of 
+    // every array for every rotation. The 3rd dimension is slowest, so 
+    // we first transform over only that dimension, one array at a time, 
+    // using workspace for only one array that is not padded in the 1st 
+    // and 2nd dimensions.
+    _fk = new float[_nf][_nk3][][];
+    float[][][] fk = new float[_nk3][_n2][_n1*2];
+    for (int i=0; i<_nf; ++i) {
+      fft3Forward(f[i],fk);
+      fft12Forward(fk,_fk[i]);
+    }
+  }
+
+  /**
+   * Receives arrays smoothed for one fault orientation.
+   */
+  public interface Receiver {
 
-    // Perform forward FFT over 3rd dimension only.
-    for (int i=0; i<_nf; ++i)
-      fft3Forward(f[i],_fk[i]);
+    /**
+     * Receives arrays smoothed for one fault orientation. The smoothed 
+     * arrays are workspace that will be overwritten for other fault 
+     * orientations; they should not be referenced after this method 
+     * returns.
+     * @param phi fault strike angle in degrees [-90,90].
+     * @param theta fault angle from vertical in degrees [-90,90].
+     * @param g array of smoothed 3D arrays.
+     */
+    public void receive(double phi, double theta, float[][][][] g);
   }
   /**
    * Applies this filter for specified fault angles.
@@ -129,11 +184,26 @@ public class FaultPlaneSmoother {
     Check.argument(_n2==g[0][0].length,"dimension n2 of g is valid");
     Check.argument(_n3==g[0].length,"dimension n3 of g is valid");
     Check.argument(_nf==g.length,"number of arrays in g is valid");
-    float[][][] h = makeFilter(phi,theta);
     float[][][] gk = new float[_nk3][_n2][_n1*2];
-    for (int i=0; i<_nf; ++i) { // for all arrays, ...
-      applyFilter(h,_fk[i],gk); // multiply by transform of filter
-      fft3Inverse(gk,g[i]); // inverse FFT over 3rd dimension only
+    apply(phi,theta,gk,g);
+  }
+
+  /**
+   * Applies this filter for one fault strike angle and multiple fault 
+   * angles from vertical. For each angle theta, smoothed arrays are
+   * passed to the specified receiver. Only one array of smoothed arrays 
+   * is allocated, and it is reused for all angles theta. For each angle, 
+   * filtering is performed in parallel, and no arrays are allocated.
+   * @param phi fault strike angle in degrees [-90,90].
+   * @param theta array of fault angles from vertical in degrees [-90,90].
+   * @param r receiver of smoothed arrays.
+   */
+  public void apply(double phi, double[] theta, Receiver r) {
+    float[][][] gk = new float[_nk3][_n2][_n1*2];
+    float[][][][] g = new float[_nf][_n3][_n2][_n1];
+    for (int it=0; it<theta.length; ++it) {
+      apply(phi,theta[it],gk,g);
+      r.receive(phi,theta[it],g);
     }
   }
 
@@ -153,12 +223,63 @@ public class FaultPlaneSmoother {
   private int _n1,_n2,_n3,_nf;
   private int _n1fft,_n2fft,_n3fft;
   private int _nk1,_nk2,_nk3;
+  private float[] _k1,_k2,_k3; // wavenumbers
   private FftComplex _fft1;
   private FftComplex _fft2;
   private FftReal _fft3;
-  private float[][][][] _fk; // inputs after FFT over axis 3
+  private float[][][][] _fk; // inputs after FFT, [nf][nk3][nk2][2*nk1]
+  private Unsafe<float[][][]> _hgu = new Unsafe<float[][][]>(); // for 1,2
+  private Unsafe<float[][][]> _kxu = new Unsafe<float[][][]>(); // for 3
 
-  private float[][][] makeFilter(double phi, double theta) {
+  // Applies this filter for specified fault angles, using the specified
+  // array gk[nk3][n2][n1*2] as workspace.
+  private void apply(
+    double phi, double theta, float[][][] gk, float[][][][] g)
+  {
+    for (int i=0; i<_nf; ++i) { // for all arrays, ...
+      applyFilter(phi,theta,_fk[i],gk); // multiply by transform of filter
+      fft3Inverse(gk,g[i]); // inverse FFT over 3rd dimension only
+    }
+  }
+
+  // Computes the transform of the filter for one index i3 of the 3rd
+  // dimension, for specified unit vectors u, v and w.
+  private void makeFilter(
+    float u1, float u2, float u3, float v1, float v2, float v3,
+    float w1, float w2, float w3, int i3, float[][] h)
+  {
+    float sigmaus = _sigmau*_sigmau;
+    float sigmavs = _sigmav*_sigmav;
+    float sigmaws = _sigmaw*_sigmaw;
+    float hscale = 1.0f/_n1fft/_n2fft/_n3fft;
+    float k3 = _k3[i3];
+    float uk3 = u3*k3;
+    float vk3 = v3*k3;
+    float wk3 = w3*k3;
+    for (int i2=0; i2<_nk2; ++i2) {
+      float k2 = _k2[i2];
+      float uk23 = u2*k2+uk3;
+      float vk23 = v2*k2+vk3;
+      float wk23 = w2*k2+wk3;
+      float[] h32 = h[i2];
+      for (int i1=0; i1<_nk1; ++i1) {
+        float k1 = _k1[i1];
+        float uk = u1*k1+uk23;
+        float vk = v1*k1+vk23;
+        float wk = w1*k1+wk23;
+        float s = sigmaus*uk*uk+sigmavs*vk*vk+sigmaws*wk*wk;
+        h32[i1] = (s<10.0f)?exp(-0.5f*s)*hscale:0.0f;
+      }
+    }
+  }
+
+  // Multiplies transformed inputs fk[nk3][nk2][2*nk1] by the transform of
+  // the filter for specified fault angles, and then computes the inverse 
+  // FFT over 1st and 2nd dimensions to get gk[nk3][n2][2*n1]. Workspace 
+  // for each thread is reused for all fault angles.
+  private void applyFilter(
+    double phi, double theta, final float[][][] fk, final float[][][] gk) 
+  {
     float p = (float)toRadians(phi);
     float t = (float)toRadians(theta);
     float cp = cos(p), sp = sin(p);
@@ -166,66 +287,40 @@ public class FaultPlaneSmoother {
     final float u1 =   ct, u2 = -st*sp, u3 = st*cp; // u down the fault
     final float v1 = 0.0f, v2 =     cp, v3 =    sp; // v along strike
     final float w1 =  -st, w2 = -ct*sp, w3 = ct*cp; // w normal to fault
-    final float twopi = 2.0f*FLT_PI;
-    final float dk1 = twopi/_n1fft;
-    final float dk2 = twopi/_n2fft;
-    final float dk3 = twopi/_n3fft;
-    final float sigmaus = _sigmau*_sigmau;
-    final float sigmavs = _sigmav*_sigmav;
-    final float sigmaws = _sigmaw*_sigmaw;
-    final float hscale = 1.0f/_n1fft/_n2fft/_n3fft;
-    final float[][][] h = new float[_nk3][_nk2][_nk1];
     loop(_nk3,new LoopInt() {
     public void compute(int i3) {
-      float k3 = i3*dk3;
-      float uk3 = u3*k3;
-      float vk3 = v3*k3;
-      float wk3 = w3*k3;
+      float[][][] hg = _hgu.get();
+      if (hg==null) _hgu.set(hg=new float[2][_nk2][_nk1*2]);
+      float[][] h = hg[0];
+      float[][] g = hg[1];
+      makeFilter(u1,u2,u3,v1,v2,v3,w1,w2,w3,i3,h);
       for (int i2=0; i2<_nk2; ++i2) {
-        float k2 = i2*dk2;
-        if (i2*2>_nk2) k2 -= twopi;
-        float uk23 = u2*k2+uk3;
-        float vk23 = v2*k2+vk3;
-        float wk23 = w2*k2+wk3;
-        float[] h32 = h[i3][i2];
-        for (int i1=0; i1<_nk1; ++i1) {
-          float k1 = i1*dk1;
-          if (i1*2>_nk1) k1 -= twopi;
-          float uk = u1*k1+uk23;
-          float vk = v1*k1+vk23;
-          float wk = w1*k1+wk23;
-          float s = sigmaus*uk*uk+sigmavs*vk*vk+sigmaws*wk*wk;
-          if (s<10.0f)
-            h32[i1] = exp(-0.5f*s)*hscale;
+        float[] f32 = fk[i3][i2];
+        float[] g32 = g[i2];
+        float[] h32 = h[i2];
+        for (int i1=0,i1r=0,i1i=1; i1<_nk1; ++i1,i1r+=2,i1i+=2) {
+          float hi = h32[i1];
+          g32[i1r] = f32[i1r]*hi;
+          g32[i1i] = f32[i1i]*hi;
         }
       }
+      _fft1.complexToComplex1(1,_nk2,g,g);
+      _fft2.complexToComplex2(1,_n1,g,g);
+      copy(2*_n1,_n2,g,gk[i3]);
     }});
-    return h;
   }
 
-  private void applyFilter(float[][][] h, float[][][] f, float[][][] g) {
-    // arrays h[nk3][nk2][nk1], f[nk3][n2][2*n1], g[nk3][n2][2*n1]
-    final float[][][] hh = h;
-    final float[][][] ff = f;
-    final float[][][] gg = g;
+  // Forward FFT over 1st and 2nd dimensions, for inputs fk[nk3][n2][2*n1]
+  // already transformed over the 3rd dimension. Outputs gk[nk3][][] are 
+  // allocated with dimensions [nk2][2*nk1].
+  private void fft12Forward(final float[][][] fk, final float[][][] gk) {
     loop(_nk3,new LoopInt() {
     public void compute(int i3) {
-      float[][] gk = new float[_nk2][_nk1*2];
-      copy(2*_n1,_n2,ff[i3],gk);
-      _fft2.complexToComplex2(-1,_n1,gk,gk);
-      _fft1.complexToComplex1(-1,_nk2,gk,gk);
-      for (int i2=0; i2<_nk2; ++i2) {
-        float[] g32 = gk[i2];
-        float[] h32 = hh[i3][i2];
-        for (int i1=0,i1r=0,i1i=1; i1<_nk1; ++i1,i1r+=2,i1i+=2) {
-          float hi = h32[i1];
-          g32[i1r] *= hi;
-          g32[i1i] *= hi;
-        }
-      }
-      _fft1.complexToComplex1(1,_nk2,gk,gk);
-      _fft2.complexToComplex2(1,_n1,gk,gk);
-      copy(2*_n1,_n2,gk,gg[i3]);
+      float[][] g = new float[_nk2][_nk1*2];
+      copy(2*_n1,_n2,fk[i3],g);
+      _fft2.complexToComplex2(-1,_n1,g,g);
+      _fft1.complexToComplex1(-1,_nk2,g,g);
+      gk[i3] = g;
     }});
   }
 
@@ -247,8 +342,12 @@ public class FaultPlaneSmoother {
   private void fft3Inverse(final float[][][] fk, final float[][][] fx) {
     loop(_n2,new LoopInt() {
     public void compute(int i2) {
-      float[][] fkpad = new float[_nk3][_n1*2];
-      float[][] fxpad = new float[_n3fft][_n1];
+      float[][][] kx = _kxu.get();
+      if (kx==null) 
+        _kxu.set(kx=new float[][][]{new float[_nk3][_n1*2],
+                                    new float[_n3fft][_n1]});
+      float[][] fkpad = kx[0];
+      float[][] fxpad = kx[1];
       for (int i3=0; i3<_nk3; ++i3)
         ccopy(fk[i3][i2],fkpad[i3]);
       _fft3.complexToReal2(1,_n1,fkpad,fxpad);
@@ -226,13 +226,12 @@ public class FaultScanner3 {
     // construct fault plane smoother for snum,sden
     // initialize f,p,t (fault likelihood, phi, and theta)
     // for all phi:
-    //   for all theta:
+    //   for all theta (in one pass with reused workspace):
     //   use fault plane smoother to compute semblance
     //   compute fault likelihood from semblance
     //   update f,p,t for maximum likelihood
     Sampling sp = phiSampling;
     Sampling st = thetaSampling;
-    FaultSemblance fs = new FaultSemblance();
     final int n1 = _n1;
     final int n2 = _n2;
     final int n3 = _n3;
@@ -241,39 +240,58 @@ public class FaultScanner3 {
     final float[][][] t = new float[n3][n2][n1];
     int np = sp.getCount();
     int nt = st.getCount();
-    for (int ip=0; ip<np; ++ip) {
-      trace("FaultScanner3.scanF: ip/np="+ip+"/"+np);
-      final float phi = (float)sp.getValue(ip);
-      for (int it=0; it<nt; ++it) {
-        final float theta = (float)st.getValue(it);
-        float[][][][] snd = _fps.apply(phi,theta);
-        final float[][][] s = fs.semblanceFromNumDen(snd);
-        loop(n3,new LoopInt() {
-        public void compute(int i3) {
-          for (int i2=0; i2<n2; ++i2) {
-            float[] s32 = s[i3][i2];
-            float[] f32 = f[i3][i2];
-            float[] p32 = p[i3][i2];
-            float[] t32 = t[i3][i2];
-            for (int i1=0; i1<n1; ++i1) {
-              float si = s32[i1]; // semblance
-              si = si*si; // semblance^2
-              si = si*si; // semblance^4
-              si = si*si; // semblance^8
-              float fi = 1.0f-si;
-              if (fi>f32[i1]) {
-                f32[i1] = fi;
-                p32[i1] = phi;
-                t32[i1] = theta;
-              }
+    double[] thetas = new double[nt];
+    for (int it=0; it<nt; ++it)
+      thetas[it] = (float)st.getValue(it);
+    FaultPlaneSmoother.Receiver r = new FaultPlaneSmoother.Receiver() {
+    public void receive(double phid, double thetad, float[][][][] snd) {
+      final float phi = (float)phid;
+      final float theta = (float)thetad;
+      final float[][][] sn = snd[0];
+      final float[][][] sd = snd[1];
+      loop(n3,new LoopInt() {
+      public void compute(int i3) {
+        for (int i2=0; i2<n2; ++i2) {
+          float[] sn32 = sn[i3][i2];
+          float[] sd32 = sd[i3][i2];
+          float[] f32 = f[i3][i2];
+          float[] p32 = p[i3][i2];
+          float[] t32 = t[i3][i2];
+          for (int i1=0; i1<n1; ++i1) {
+            float si = semblance(sn32[i1],sd32[i1]);
+            si = si*si; // semblance^2
+            si = si*si; // semblance^4
+            si = si*si; // semblance^8
+            float fi = 1.0f-si;
+            if (fi>f32[i1]) {
+              f32[i1] = fi;
+              p32[i1] = phi;
+              t32[i1] = theta;
             }
           }
-        }});
-      }
+        }
+      }});
+    }};
+    for (int ip=0; ip<np; ++ip) {
+      trace("FaultScanner3.scanF: ip/np="+ip+"/"+np);
+      float phi = (float)sp.getValue(ip);
+      _fps.apply(phi,thetas,r);
     }
     return new float[][][][]{f,p,t};
   }
 
+  // Semblance for specified numerator and denominator, as computed by 
+  // FaultSemblance.semblanceFromNumDen.
+  private static float semblance(float sn, float sd) {
+    if (sd<=0.0f || sn<0.0f) {
+      return 0.0f;
+    } else if (sd<sn) {
+      return 1.0f;
+    } else {
+      return sn/sd;
+    }
+  }
+
   // This scan smooths semblance numerators and denominators along fault
   // planes by first rotating and shearing those factors before applying
   // fast recursive axis-aligned smoothing filters.
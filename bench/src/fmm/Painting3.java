@@ -14,6 +14,8 @@ import edu.mines.jtk.dsp.EigenTensors3;
 import edu.mines.jtk.dsp.LocalOrientFilter;
 import edu.mines.jtk.io.ArrayInputStream;
 import static edu.mines.jtk.util.ArrayMath.*;
+import static edu.mines.jtk.util.Parallel.*;
+import edu.mines.jtk.util.Check;
 import edu.mines.jtk.util.Stopwatch;
 
 /**
@@ -47,6 +49,27 @@ public class Painting3 {
     public void getTensor(int i1, int i2, int i3, float[] s);
   }
 
+  /**
+   * Methods for extrapolation of values from fixed samples.
+   * Both methods yield, for every sample not fixed, values of the fixed
+   * sample with the least time. They differ in how those times are found.
+   */
+  public enum Extrapolation {
+    /**
+     * Extrapolate from fixed samples one at a time, with a separate
+     * marching front for each fixed sample.
+     */
+    SEQUENTIAL,
+    /**
+     * Extrapolate from all fixed samples at once, in one marching front
+     * in which every sample is labeled with its nearest fixed sample. 
+     * Samples are partitioned into tiles, and tiles that are not adjacent 
+     * are marched in parallel, repeatedly, until times in all tiles are 
+     * consistent with those in adjacent tiles.
+     */
+    TILED
+  }
+
   /**
    * Constructs a painting with constant identity structure tensors.
    * In this case, time = distance, which is useful for testing.
@@ -96,6 +119,31 @@ public class Painting3 {
     _st = st;
   }
 
+  /**
+   * Sets the method used to extrapolate values from fixed samples.
+   * The default method is sequential.
+   * @param extrapolation the extrapolation method.
+   */
+  public void setExtrapolation(Extrapolation extrapolation) {
+    _extrapolation = extrapolation;
+  }
+
+  /**
+   * Sets the size of tiles used for tiled extrapolation.
+   * The default size is 16 samples in all dimensions.
+   * @param m1 number of samples per tile in 1st dimension.
+   * @param m2 number of samples per tile in 2nd dimension.
+   * @param m3 number of samples per tile in 3rd dimension.
+   */
+  public void setTileSize(int m1, int m2, int m3) {
+    Check.argument(m1>0,"m1>0");
+    Check.argument(m2>0,"m2>0");
+    Check.argument(m3>0,"m3>0");
+    _m1 = m1;
+    _m2 = m2;
+    _m3 = m3;
+  }
+
   /**
    * Sets the default value for value index zero.
    * Default values are used for all clear (not painted) samples.
@@ -204,6 +252,10 @@ public class Painting3 {
    * After extrapolation, all samples are either fixed or extrapolated.
    */
   public void extrapolate() {
+    if (_extrapolation==Extrapolation.TILED) {
+      extrapolateTiled();
+      return;
+    }
     _naborEs = null;
 
     // Clear all samples that are not fixed, and insert all fixed 
@@ -555,6 +607,20 @@ public class Painting3 {
     }
   }
 
+  // Tests whether a sample has a known time that may be used to compute 
+  // times for its neighbors. Sequential and tiled marching use different
+  // tests, but otherwise compute times in the same way.
+  private interface KnownTest {
+    public boolean isKnown(int j1, int j2, int j3);
+  }
+
+  // Samples are known to sequential marching if marked known.
+  private KnownTest _knownTest = new KnownTest() {
+    public boolean isKnown(int j1, int j2, int j3) {
+      return _mark[j3][j2][j1]==_known;
+    }
+  };
+
   private Tensors _st; // the structure tensor field
   private int _n1,_n2,_n3; // painting dimensions
   private int _nv; // number of values associated with each sample
@@ -566,6 +632,8 @@ public class Painting3 {
   private byte[][][] _type; // sample types: clear, fixed, extra, inter
   private TimeHeap3 _hmin; // the min heap
   private TimeHeap3 _hmax; // the max heap
+  private Extrapolation _extrapolation = Extrapolation.SEQUENTIAL;
+  private int _m1 = 16, _m2 = 16, _m3 = 16; // tile size
 
   // Sample index offsets for 26 neighbor samples.
   private static final int[] K1 = {
@@ -782,8 +850,255 @@ public class Painting3 {
    */
   private void updateTime(int j1, int j2, int j3, int[] kt, TimeList tl) {
 
-    // Elements of structure tensor.
-    float[] s = new float[6];
+    // The least time computed from known times in neighbor tets, and
+    // whether that time is less than the current time.
+    float tmin = computeLeastTime(j1,j2,j3,kt,_knownTest,new float[6]);
+    boolean smallerTimeFound = tmin<_tk[j3][j2][j1];
+
+    // If a smaller time has been found, ...
+    if (smallerTimeFound) {
+
+      // If not been here before, so this sample not already in the min-heap, 
+      // then insert this sample into the min-heap, and if the time list is
+      // not null, save the current stored time so it can be restored later.
+      if (_mark[j3][j2][j1]!=_trial) {
+        _mark[j3][j2][j1] = _trial;
+        _hmin.insert(j1,j2,j3,tmin);
+        if (tl!=null) 
+          tl.append(j1,j2,j3,_tk[j3][j2][j1]);
+      }
+
+      // Else, simply reduce the time already stored in the min-heap.
+      else {
+        _hmin.reduce(j1,j2,j3,tmin);
+      }
+
+      // Store the smaller time.
+      _tk[j3][j2][j1] = tmin;
+    }
+  }
+
+  /**
+   * Extrapolates values from all fixed samples at once, in tiles.
+   * Each sample is labeled by the indices (k1,k2,k3) of the fixed sample
+   * from which its time was computed. A time for a sample is computed 
+   * only from known samples in neighbor tets with the same label, so that 
+   * times are those that would be computed by marching separately from 
+   * each fixed sample.
+   * <p>
+   * Tiles are marched in eight passes, one for each color in a 2x2x2 
+   * checkerboard. Tiles with the same color are not adjacent, and are
+   * marched in parallel. Marching in a tile may reduce times in samples 
+   * near adjacent tiles, which must then be marched again. Because times 
+   * only decrease, this process stops when no times in any tile change.
+   */
+  private void extrapolateTiled() {
+
+    // Fixed samples have zero time and are labeled with their indices.
+    // Times for all other samples are invalid.
+    for (int i3=0; i3<_n3; ++i3) {
+      for (int i2=0; i2<_n2; ++i2) {
+        for (int i1=0; i1<_n1; ++i1) {
+          if (_type[i3][i2][i1]==FIXED) {
+            _tk[i3][i2][i1] = 0.0f;
+            _k1[i3][i2][i1] = i1;
+            _k2[i3][i2][i1] = i2;
+            _k3[i3][i2][i1] = i3;
+          } else {
+            _tk[i3][i2][i1] = TIME_INVALID;
+            _type[i3][i2][i1] = CLEAR;
+          }
+        }
+      }
+    }
+
+    // Initially, only tiles with fixed samples are active.
+    final int nt1 = 1+(_n1-1)/_m1;
+    final int nt2 = 1+(_n2-1)/_m2;
+    final int nt3 = 1+(_n3-1)/_m3;
+    final boolean[][][] active = new boolean[nt3][nt2][nt1];
+    for (int i3=0; i3<_n3; ++i3)
+      for (int i2=0; i2<_n2; ++i2)
+        for (int i1=0; i1<_n1; ++i1)
+          if (_type[i3][i2][i1]==FIXED)
+            active[i3/_m3][i2/_m2][i1/_m1] = true;
+
+    // March active tiles, one color at a time, until none are active.
+    final ThreadLocal<TileWork> work = new ThreadLocal<TileWork>() {
+      protected TileWork initialValue() {
+        return new TileWork();
+      }
+    };
+    int[] jt = new int[nt1*nt2*nt3];
+    for (boolean marched=true; marched;) {
+      marched = false;
+      for (int ic=0; ic<8; ++ic) {
+        int c1 = ic&1, c2 = (ic>>1)&1, c3 = (ic>>2)&1;
+        int mt = 0;
+        for (int t3=c3; t3<nt3; t3+=2)
+          for (int t2=c2; t2<nt2; t2+=2)
+            for (int t1=c1; t1<nt1; t1+=2)
+              if (active[t3][t2][t1])
+                jt[mt++] = t1+nt1*(t2+nt2*t3);
+        final int[] jtc = copy(mt,jt);
+        loop(mt,new LoopInt() {
+        public void compute(int it) {
+          int t1 = jtc[it]%nt1;
+          int t2 = (jtc[it]/nt1)%nt2;
+          int t3 = jtc[it]/nt1/nt2;
+          active[t3][t2][t1] = false;
+          marchTile(t1,t2,t3,active,work.get());
+        }});
+        marched = marched || mt>0;
+      }
+    }
+
+    // All samples reached are extrapolated, with values of the labeled 
+    // fixed sample.
+    for (int i3=0; i3<_n3; ++i3) {
+      for (int i2=0; i2<_n2; ++i2) {
+        for (int i1=0; i1<_n1; ++i1) {
+          if (_type[i3][i2][i1]!=FIXED && _tk[i3][i2][i1]<TIME_INVALID) {
+            int k1 = _k1[i3][i2][i1];
+            int k2 = _k2[i3][i2][i1];
+            int k3 = _k3[i3][i2][i1];
+            _type[i3][i2][i1] = EXTRA;
+            _vk[i3][i2][i1] = _vk[k3][k2][k1];
+          }
+        }
+      }
+    }
+  }
+
+  // Workspace for one thread marching tiles. Indices in the heap and 
+  // marks are relative to the first sample in the halo of the tile, with
+  // indices (o1,o2,o3). Samples are known to tiled marching if marked known
+  // and labeled (l1,l2,l3).
+  private class TileWork implements KnownTest {
+    TimeHeap3 heap = new TimeHeap3(TimeHeap3.Type.MIN,_m1+2,_m2+2,_m3+2);
+    int[][][] mark = new int[_m3+2][_m2+2][_m1+2];
+    int trial = 1; // samples in heap with a proposed time
+    int known = 2; // samples with a known time
+    int o1,o2,o3; // indices of first sample in halo
+    int l1,l2,l3; // label of sample removed from heap
+    float[] s = new float[6]; // structure tensor
+    public boolean isKnown(int j1, int j2, int j3) {
+      return mark[j3-o3][j2-o2][j1-o1]==known &&
+             _k1[j3][j2][j1]==l1 && 
+             _k2[j3][j2][j1]==l2 && 
+             _k3[j3][j2][j1]==l3;
+    }
+  }
+
+  /**
+   * Marches one tile with indices (t1,t2,t3). All samples in the tile 
+   * and its halo of adjacent samples that have valid times are inserted 
+   * into a min-heap. Samples are then removed in order of increasing 
+   * time, and become known, so that times for neighbors in the tile can 
+   * be updated. Samples in the halo are known, but not updated. If times 
+   * for samples adjacent to other tiles are reduced, those tiles are 
+   * activated.
+   */
+  private void marchTile(
+    int t1, int t2, int t3, boolean[][][] active, TileWork w) 
+  {
+    int b1 = t1*_m1, e1 = min(b1+_m1,_n1)-1;
+    int b2 = t2*_m2, e2 = min(b2+_m2,_n2)-1;
+    int b3 = t3*_m3, e3 = min(b3+_m3,_n3)-1;
+    int o1 = b1-1, o2 = b2-1, o3 = b3-1;
+    w.o1 = o1; w.o2 = o2; w.o3 = o3;
+    if (w.known+2>Integer.MAX_VALUE-2) {
+      w.trial = 1;
+      w.known = 2;
+      for (int i3=0; i3<_m3+2; ++i3)
+        for (int i2=0; i2<_m2+2; ++i2)
+          for (int i1=0; i1<_m1+2; ++i1)
+            w.mark[i3][i2][i1] = 0;
+    } else {
+      w.trial += 2;
+      w.known += 2;
+    }
+    TimeHeap3 heap = w.heap;
+    heap.clear();
+    for (int i3=max(b3-1,0); i3<=min(e3+1,_n3-1); ++i3) {
+      for (int i2=max(b2-1,0); i2<=min(e2+1,_n2-1); ++i2) {
+        for (int i1=max(b1-1,0); i1<=min(e1+1,_n1-1); ++i1) {
+          float ti = _tk[i3][i2][i1];
+          if (ti<TIME_INVALID) {
+            heap.insert(i1-o1,i2-o2,i3-o3,ti);
+            w.mark[i3-o3][i2-o2][i1-o1] = w.trial;
+          }
+        }
+      }
+    }
+    while (!heap.isEmpty()) {
+      TimeHeap3.Entry e = heap.remove();
+      int i1 = e.i1+o1;
+      int i2 = e.i2+o2;
+      int i3 = e.i3+o3;
+      w.mark[i3-o3][i2-o2][i1-o1] = w.known;
+      int l1 = _k1[i3][i2][i1];
+      int l2 = _k2[i3][i2][i1];
+      int l3 = _k3[i3][i2][i1];
+      w.l1 = l1; w.l2 = l2; w.l3 = l3;
+      for (int k=0; k<26; ++k) {
+        int j1 = i1+K1[k];
+        int j2 = i2+K2[k];
+        int j3 = i3+K3[k];
+        if (j1<b1 || j1>e1) continue;
+        if (j2<b2 || j2>e2) continue;
+        if (j3<b3 || j3>e3) continue;
+        int[][][] mark = w.mark;
+        if (mark[j3-o3][j2-o2][j1-o1]==w.known) continue;
+        float tj = computeLeastTime(j1,j2,j3,KT[k],w,w.s);
+        if (tj<_tk[j3][j2][j1]) {
+          if (mark[j3-o3][j2-o2][j1-o1]==w.trial) {
+            heap.reduce(j1-o1,j2-o2,j3-o3,tj);
+          } else {
+            heap.insert(j1-o1,j2-o2,j3-o3,tj);
+            mark[j3-o3][j2-o2][j1-o1] = w.trial;
+          }
+          _tk[j3][j2][j1] = tj;
+          _k1[j3][j2][j1] = l1;
+          _k2[j3][j2][j1] = l2;
+          _k3[j3][j2][j1] = l3;
+          if (j1==b1 || j1==e1 || j2==b2 || j2==e2 || j3==b3 || j3==e3)
+            activateNabors(j1,j2,j3,t1,t2,t3,active);
+        }
+      }
+    }
+  }
+
+  /**
+   * Activates tiles, other than the tile with indices (t1,t2,t3), that 
+   * contain neighbors of the sample with indices (j1,j2,j3).
+   */
+  private void activateNabors(
+    int j1, int j2, int j3, int t1, int t2, int t3, boolean[][][] active)
+  {
+    for (int k=0; k<26; ++k) {
+      int i1 = j1+K1[k];
+      int i2 = j2+K2[k];
+      int i3 = j3+K3[k];
+      if (i1<0 || i1>=_n1) continue;
+      if (i2<0 || i2>=_n2) continue;
+      if (i3<0 || i3>=_n3) continue;
+      int s1 = i1/_m1, s2 = i2/_m2, s3 = i3/_m3;
+      if (s1!=t1 || s2!=t2 || s3!=t3)
+        active[s3][s2][s1] = true;
+    }
+  }
+
+  /**
+   * Returns the least time for the sample with indices (j1,j2,j3) computed
+   * from neighbor tets with indices in the array kt. Only vertices for 
+   * which the specified test returns true are used to compute times. The
+   * array s is workspace for the structure tensor. Returns an invalid time
+   * if no time can be computed.
+   */
+  private float computeLeastTime(
+    int j1, int j2, int j3, int[] kt, KnownTest kn, float[] s)
+  {
     _st.getTensor(j1,j2,j3,s);
     float s11 = s[0];
     float s12 = s[1];
@@ -791,14 +1106,7 @@ public class Painting3 {
     float s22 = s[3];
     float s23 = s[4];
     float s33 = s[5];
-
-    // The current minimum time.
-    float tmin = _tk[j3][j2][j1];
-
-    // Initally assume that no computed time will be less than current min.
-    boolean smallerTimeFound = false;
-
-    // For all relevant neighbor tets, ...
+    float tmin = TIME_INVALID;
     for (int it=0; it<kt.length; ++it) {
       int jt = kt[it];
 
@@ -828,9 +1136,9 @@ public class Painting3 {
       if (j33<0 || j33>=_n3) continue;
 
       // Which neighbor vertices are known? (At least one must be!)
-      int m1 = _mark[j13][j12][j11];
-      int m2 = _mark[j23][j22][j21];
-      int m3 = _mark[j33][j32][j31];
+      boolean m1 = kn.isKnown(j11,j12,j13);
+      boolean m2 = kn.isKnown(j21,j22,j23);
+      boolean m3 = kn.isKnown(j31,j32,j33);
 
       // Times T0, T1, T2 and T3 at vertices X0, X1, X2 and X3 of tet.
       float t0 = TIME_INVALID;
@@ -839,9 +1147,9 @@ public class Painting3 {
       float t3 = _tk[j33][j32][j31];
 
       // Use only known times in {T1,T2,T3} to compute candidate time T0.
-      if (m1==_known) {
-        if (m2==_known) {
-          if (m3==_known) { // use triangle 123
+      if (m1) {
+        if (m2) {
+          if (m3) { // use triangle 123
             t0 = computeTime(s11,s12,s13,s22,s23,s33,
                              t1-t3,t2-t3,t3,
                              j11-j31,j12-j32,j13-j33,
@@ -854,7 +1162,7 @@ public class Painting3 {
                              j01-j21,j02-j22,j03-j23);
           }
         } else {
-          if (m3==_known) { // use segment 13
+          if (m3) { // use segment 13
             t0 = computeTime(s11,s12,s13,s22,s23,s33,
                              t1-t3,t3,
                              j11-j31,j12-j32,j13-j33,
@@ -864,8 +1172,8 @@ public class Painting3 {
                              t1,j01-j11,j02-j12,j03-j13);
           }
         }
-      } else if (m2==_known) {
-        if (m3==_known) { // use segment 23
+      } else if (m2) {
+        if (m3) { // use segment 23
           t0 = computeTime(s11,s12,s13,s22,s23,s33,
                            t2-t3,t3,
                            j21-j31,j22-j32,j23-j33,
@@ -874,39 +1182,14 @@ public class Painting3 {
           t0 = computeTime(s11,s12,s13,s22,s23,s33,
                            t2,j01-j21,j02-j22,j03-j23);
         }
-      } else if (m3==_known) { // use vertex 3
+      } else if (m3) { // use vertex 3
         t0 = computeTime(s11,s12,s13,s22,s23,s33,
                          t3,j01-j31,j02-j32,j03-j33);
       }
-
-      // If computed time T0 is smaller than the min time, update the min time.
-      if (t0<tmin) {
+      if (t0<tmin)
         tmin = t0;
-        smallerTimeFound = true;
-      }
-    }
-
-    // If a smaller time has been found, ...
-    if (smallerTimeFound) {
-
-      // If not been here before, so this sample not already in the min-heap, 
-      // then insert this sample into the min-heap, and if the time list is
-      // not null, save the current stored time so it can be restored later.
-      if (_mark[j3][j2][j1]!=_trial) {
-        _mark[j3][j2][j1] = _trial;
-        _hmin.insert(j1,j2,j3,tmin);
-        if (tl!=null) 
-          tl.append(j1,j2,j3,_tk[j3][j2][j1]);
-      }
-
-      // Else, simply reduce the time already stored in the min-heap.
-      else {
-        _hmin.reduce(j1,j2,j3,tmin);
-      }
-
-      // Store the smaller time.
-      _tk[j3][j2][j1] = tmin;
     }
+    return tmin;
   }
 
   // Returns the parameter a (alpha) that minimizes
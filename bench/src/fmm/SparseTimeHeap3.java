@@ -0,0 +1,466 @@
+/****************************************************************************
+Copyright (c) 2008, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package fmm;
+
+import static edu.mines.jtk.util.ArrayMath.*;
+import edu.mines.jtk.util.Check;
+
+/**
+ * A min- or max-heap of times sampled in a 3D array, with memory
+ * proportional to the number of entries in the heap.
+ * <p>
+ * Like {@link TimeHeap3}, this heap enables O(1) access to heap entries
+ * with specified array indices (i1,i2,i3), so that times in the heap can
+ * be reduced while marching. But instead of a 3D array of heap indices,
+ * this heap uses an open-addressing hash table that maps sample indices
+ * to heap indices. And instead of heap entry objects, this heap stores
+ * packed sample indices and times in parallel arrays of ints and floats.
+ * Memory required is therefore proportional to the number of entries
+ * in the heap (typically a narrow band of samples), not to the number
+ * of samples in the 3D array, and inserting entries does not construct
+ * objects.
+ * <p>
+ * Complexities of heap operations are those of {@link TimeHeap3}, with
+ * O(1) expected cost for each access to the hash table.
+ *
+ * @author agent
+ * @version 2026.10.18
+ */
+public class SparseTimeHeap3 {
+
+  /**
+   * The heap type determines whether the entry at the top has the minimum
+   * or maximum time. That top entry can be accessed with O(1) complexity
+   * and removed in O(log N) complexity, where N is the number times in the
+   * heap.
+   */
+  public enum Type {MIN,MAX};
+
+  /**
+   * An entry in the heap has sample indices (i1,i2,i3) and a time t.
+   */
+  public static class Entry {
+    public int i1,i2,i3;
+    public float t;
+  }
+
+  /**
+   * Constructs a heap with specified type and array dimensions.
+   * @param type the type of heap.
+   * @param n1 number of samples in 1st dimension.
+   * @param n2 number of samples in 2nd dimension.
+   * @param n3 number of samples in 3rd dimension.
+   */
+  public SparseTimeHeap3(Type type, int n1, int n2, int n3) {
+    Check.argument((long)n1*n2*n3<=Integer.MAX_VALUE,
+      "number of samples n1*n2*n3 does not exceed "+Integer.MAX_VALUE);
+    _type = type;
+    _n1 = n1;
+    _n2 = n2;
+    _n3 = n3;
+    _hk = fillint(-1,HASH_CAPACITY);
+    _hi = new int[HASH_CAPACITY];
+  }
+
+  /**
+   * Gets the type of this heap.
+   * @return the type.
+   */
+  public Type getType() {
+    return _type;
+  }
+
+  /**
+   * Gets the number of samples in the 1st dimension.
+   * @return the number of samples.
+   */
+  public int getN1() {
+    return _n1;
+  }
+
+  /**
+   * Gets the number of samples in the 2nd dimension.
+   * @return the number of samples.
+   */
+  public int getN2() {
+    return _n2;
+  }
+
+  /**
+   * Gets the number of samples in the 3rd dimension.
+   * @return the number of samples.
+   */
+  public int getN3() {
+    return _n3;
+  }
+
+  /**
+   * Inserts a new entry into this heap with specified time and indices.
+   * The heap must not already contain an entry with those indices.
+   * @param i1 the sample index in 1st dimension.
+   * @param i2 the sample index in 2nd dimension.
+   * @param i3 the sample index in 3rd dimension.
+   * @param t the time.
+   */
+  public void insert(int i1, int i2, int i3, float t) {
+    int k = key(i1,i2,i3);
+    Check.argument(find(k)<0,"entry with indices (i1,i2,i3) is not in heap");
+    int i = _n; // index at which to insert the entry
+    if (_n==_k.length) // if necessary, ...
+      grow(_n+1); // increase the capacity of this heap
+    if (2*(_n+1)>_hk.length) // if necessary, ...
+      rehash(2*_hk.length); // keep hash table at most half full
+    ++_n;
+    _k[i] = k;
+    _t[i] = t;
+    add(k,i);
+    siftUp(i);
+  }
+
+  /**
+   * Reduces the time of the entry in this heap with specified indices.
+   * This heap must already contain an entry with those indices, and
+   * the specified time must be less than the time for that entry.
+   * @param i1 the sample index in 1st dimension.
+   * @param i2 the sample index in 2nd dimension.
+   * @param i3 the sample index in 3rd dimension.
+   * @param t the reduced time.
+   */
+  public void reduce(int i1, int i2, int i3, float t) {
+    int h = find(key(i1,i2,i3)); // hash slot of entry with time to reduce
+    Check.argument(h>=0,"entry with indices (i1,i2,i3) is in the heap");
+    int i = _hi[h]; // heap index of that entry
+    Check.argument(t<_t[i],"specified time less than time in heap");
+    _t[i] = t; // reduce the time
+    if (_type==Type.MIN) { // for a min-heap, ...
+      siftUp(i); // the entry may need to move up
+    } else { // but for a max heap, ...
+      siftDown(i); // the entry may need to move down
+    }
+  }
+
+  /**
+   * Removes the heap entry with smallest/largest time.
+   * The heap must not be empty.
+   * @param e entry in which to store indices and time for the
+   *  entry removed.
+   */
+  public void remove(Entry e) {
+    Check.state(_n>0,"heap is not empty");
+    int k = _k[0];
+    e.i1 = k%_n1;
+    e.i2 = (k/_n1)%_n2;
+    e.i3 = k/_n1/_n2;
+    e.t = _t[0];
+    delete(find(k));
+    --_n;
+    if (_n>0) {
+      _k[0] = _k[_n];
+      _t[0] = _t[_n];
+      siftDown(0);
+    }
+  }
+
+  /**
+   * Removes and returns the heap entry with smallest/largest time.
+   * The heap must not be empty.
+   */
+  public Entry remove() {
+    Entry e = new Entry();
+    remove(e);
+    return e;
+  }
+
+  /**
+   * Determines whether this heap contains an entry with specified indices.
+   * @param i1 the sample index in 1st dimension.
+   * @param i2 the sample index in 2nd dimension.
+   * @param i3 the sample index in 3rd dimension.
+   * @return true, if in the heap; false, otherwise.
+   */
+  public boolean contains(int i1, int i2, int i3) {
+    return find(key(i1,i2,i3))>=0;
+  }
+
+  /**
+   * Removes all entries from this heap.
+   */
+  public void clear() {
+    fill(-1,_hk); // deleting keys one at a time would break clusters
+    _n = 0;
+  }
+
+  /**
+   * Returns the number of entries in this heap.
+   */
+  public int size() {
+    return _n;
+  }
+
+  /**
+   * Returns true if this heap is empty; false, otherwise.
+   */
+  public boolean isEmpty() {
+    return _n==0;
+  }
+
+  /**
+   * Dumps this heap to standard output; leading spaces show level in tree.
+   */
+  public void dump() {
+    dump("",0);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int HEAP_CAPACITY = 1024; // initial heap capacity
+  private static final int HASH_CAPACITY = 2048; // must be a power of two
+
+  private Type _type; // heap type, either MIN or MAX
+  private int _n1,_n2,_n3; // array dimensions
+  private int _n; // number of entries in this heap
+  private int[] _k = new int[HEAP_CAPACITY]; // packed sample indices
+  private float[] _t = new float[HEAP_CAPACITY]; // times
+  private int[] _hk; // hash table keys (packed sample indices), -1 if empty
+  private int[] _hi; // hash table values (heap indices)
+
+  /**
+   * Returns the key (packed sample index) for array indices (i1,i2,i3).
+   * Throws an exception if any indices are out of bounds.
+   */
+  private int key(int i1, int i2, int i3) {
+    if (i1<0 || i1>=_n1 || i2<0 || i2>=_n2 || i3<0 || i3>=_n3)
+      throw new ArrayIndexOutOfBoundsException(
+        "index (i1,i2,i3) = ("+i1+","+i2+","+i3+") is out of bounds");
+    return i1+_n1*(i2+_n2*i3);
+  }
+
+  /**
+   * Returns the hash table slot in which a search for the key begins.
+   */
+  private int slot(int k) {
+    int h = k*0x9e3779b9; // Fibonacci hashing scatters nearby keys
+    return (h^(h>>>16))&(_hk.length-1);
+  }
+
+  /**
+   * Returns the hash table slot for the specified key, or -1, if the
+   * key is not in the hash table.
+   */
+  private int find(int k) {
+    int mask = _hk.length-1;
+    for (int h=slot(k); _hk[h]>=0; h=(h+1)&mask) {
+      if (_hk[h]==k)
+        return h;
+    }
+    return -1;
+  }
+
+  /**
+   * Adds the specified key and heap index to the hash table. The
+   * hash table must not already contain the key, and must not be full.
+   */
+  private void add(int k, int i) {
+    int mask = _hk.length-1;
+    int h = slot(k);
+    while (_hk[h]>=0)
+      h = (h+1)&mask;
+    _hk[h] = k;
+    _hi[h] = i;
+  }
+
+  /**
+   * Deletes the key in the specified hash table slot. Subsequent keys
+   * in the same cluster of occupied slots are moved back as necessary,
+   * so that searches for them do not end at the newly empty slot.
+   */
+  private void delete(int h) {
+    int mask = _hk.length-1;
+    for (int j=(h+1)&mask; _hk[j]>=0; j=(j+1)&mask) {
+      int s = slot(_hk[j]);
+      if (((j-s)&mask)>=((j-h)&mask)) { // if slot h lies between s and j
+        _hk[h] = _hk[j];
+        _hi[h] = _hi[j];
+        h = j;
+      }
+    }
+    _hk[h] = -1;
+  }
+
+  /**
+   * Sets the i'th entry, and updates the hash table accordingly.
+   */
+  private void set(int i, int k, float t) {
+    _k[i] = k;
+    _t[i] = t;
+    _hi[find(k)] = i;
+  }
+
+  /**
+   * If necessary, moves entry i down so not greater/less than children.
+   */
+  private void siftDown(int i) {
+    int ki = _k[i]; // entry ki that may move down
+    float ti = _t[i]; // cached time for entry ki
+    int m = _n>>>1; // number of entries with at least one child
+    while (i<m) { // while not childless, ...
+      int c = (i<<1)+1; // index of left child
+      int r = c+1; // index of right child
+      if (_type==Type.MIN) { // if min-heap
+        if (r<_n && _t[r]<_t[c]) // if right child smallest, ...
+          c = r; // the smaller of left and right children
+        if (ti<=_t[c]) // break if ki not greater than smaller child
+          break;
+      } else { // if max-heap
+        if (r<_n && _t[r]>_t[c]) // if right child largest, ...
+          c = r; // the larger of left and right children
+        if (ti>=_t[c]) // break if ki not less than larger child
+          break;
+      }
+      set(i,_k[c],_t[c]); // move smaller/larger child up
+      i = c;
+    }
+    set(i,ki,ti); // set ki where it belongs
+  }
+
+  /**
+   * If necessary, moves entry i up so not less/greater than parent.
+   */
+  private void siftUp(int i) {
+    int ki = _k[i]; // entry ki that may move up
+    float ti = _t[i]; // cached time for entry ki
+    while (i>0) { // while a parent (not the root entry), ...
+      int p = (i-1)>>>1; // index of parent
+      if (_type==Type.MIN) { // if min-heap
+        if (ti>=_t[p]) // break if ki not less than parent
+          break;
+      } else {
+        if (ti<=_t[p]) // break if ki not greater than parent
+          break;
+      }
+      set(i,_k[p],_t[p]); // ki less/greater than parent, so move parent down
+      i = p;
+    }
+    set(i,ki,ti); // set ki where it belongs
+  }
+
+  /**
+   * Grows this heap to have at least the specified capacity.
+   */
+  private void grow(int minCapacity) {
+    if (minCapacity<0) // overflow
+      throw new OutOfMemoryError();
+    int oldCapacity = _k.length;
+    int newCapacity = oldCapacity*2;
+    if (newCapacity<0) // overflow
+      newCapacity = Integer.MAX_VALUE;
+    if (newCapacity<minCapacity)
+      newCapacity = minCapacity;
+    _k = copy(newCapacity,_k);
+    _t = copy(newCapacity,_t);
+  }
+
+  /**
+   * Rebuilds the hash table with the specified capacity.
+   */
+  private void rehash(int capacity) {
+    if (capacity<0) // overflow
+      throw new OutOfMemoryError();
+    _hk = fillint(-1,capacity);
+    _hi = new int[capacity];
+    for (int i=0; i<_n; ++i)
+      add(_k[i],i);
+  }
+
+  /**
+   * Recursively dumps heap entries with leading spaces.
+   */
+  private void dump(String s, int i) {
+    if (i<_n) {
+      s = s+"  ";
+      int k = _k[i];
+      System.out.println(s+k%_n1+" "+(k/_n1)%_n2+" "+k/_n1/_n2+" "+_t[i]);
+      dump(s,2*i+1);
+      dump(s,2*i+2);
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // testing
+
+  public static void main(String[] args) {
+    testHeap(new SparseTimeHeap3(SparseTimeHeap3.Type.MIN,9,11,13));
+    testHeap(new SparseTimeHeap3(SparseTimeHeap3.Type.MAX,9,11,13));
+    testClear(new SparseTimeHeap3(SparseTimeHeap3.Type.MIN,50,50,50));
+  }
+
+  private static void testClear(SparseTimeHeap3 heap) {
+    int n1 = heap.getN1();
+    int n2 = heap.getN2();
+    int n3 = heap.getN3();
+    int n = n1*n2*n3;
+    int m = 900; // enough entries to form long clusters in the hash table
+    float[] t = randfloat(m);
+    for (int iter=0; iter<2; ++iter) {
+      for (int i=0,k=0; i<m; ++i,k+=137) {
+        int j = k%n;
+        heap.insert(j%n1,(j/n1)%n2,j/n1/n2,t[i]);
+      }
+      assert heap.size()==m;
+      heap.clear();
+      assert heap.isEmpty();
+      for (int i=0,k=0; i<m; ++i,k+=137) {
+        int j = k%n;
+        assert !heap.contains(j%n1,(j/n1)%n2,j/n1/n2);
+      }
+    }
+    testHeap(heap);
+  }
+
+  private static void testHeap(SparseTimeHeap3 heap) {
+    int n1 = heap.getN1();
+    int n2 = heap.getN2();
+    int n3 = heap.getN3();
+    int n = n1*n2*n3;
+    float[] s = randfloat(n);
+    float[][][] t = reshape(n1,n2,n3,s);
+    for (int i3=0,i=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1,++i) {
+          float ti = t[i3][i2][i1];
+          heap.insert(i1,i2,i3,ti);
+          s[i] = ti;
+        }
+      }
+    }
+    for (int i3=0,i=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1,++i) {
+          s[i] -= 0.5f;
+          t[i3][i2][i1] -= 0.5f;
+          heap.reduce(i1,i2,i3,t[i3][i2][i1]);
+        }
+      }
+    }
+    assert !heap.isEmpty();
+    assert heap.size()==n;
+    quickSort(s); // increasing order
+    if (heap.getType()==SparseTimeHeap3.Type.MAX)
+      s = reverse(s); // decreasing order
+    Entry e = new Entry();
+    for (int i=0; i<n; ++i) {
+      heap.remove(e);
+      float ti = e.t;
+      assert ti==s[i];
+      assert ti==t[e.i3][e.i2][e.i1];
+      assert !heap.contains(e.i1,e.i2,e.i3);
+    }
+    assert heap.isEmpty();
+    assert heap.size()==0;
+  }
+}
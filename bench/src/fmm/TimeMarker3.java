@@ -6,13 +6,14 @@ available at http://www.eclipse.org/legal/cpl-v10.html
 ****************************************************************************/
 package fmm;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.mines.jtk.dsp.Tensors3;
 import static edu.mines.jtk.util.ArrayMath.*;
+import edu.mines.jtk.util.Check;
 
 /**
  * A time and closest-point transform for 3D anisotropic eikonal equations.
@@ -49,11 +50,26 @@ import static edu.mines.jtk.util.ArrayMath.*;
 public class TimeMarker3 {
 
   /**
-   * Type of concurrency used by this transform.
+   * Type of concurrency used by this transform. For tiled concurrency,
+   * samples are partitioned into tiles, each with its own active list, and 
+   * tiles are activated and deactivated as units.
    */
   public enum Concurrency {
     PARALLEL,
-    SERIAL
+    SERIAL,
+    TILED
+  };
+
+  /**
+   * Type of storage used for per-sample flags. With object storage, each 
+   * sample is represented by an object that has fields for its flags. 
+   * Compact storage instead uses arrays of flags that are indexed like
+   * the array of times, and thereby requires much less memory for large 
+   * arrays of times. Both types of storage yield the same times and marks.
+   */
+  public enum Storage {
+    OBJECTS,
+    COMPACT
   };
   
   /**
@@ -84,6 +100,45 @@ public class TimeMarker3 {
     _concurrency = concurrency;
   }
 
+  /**
+   * Sets the number of threads used for parallel or tiled concurrency.
+   * The default is the number of available processors.
+   * @param nthread the number of threads.
+   */
+  public void setThreadCount(int nthread) {
+    Check.argument(nthread>0,"nthread>0");
+    _nthread = nthread;
+  }
+
+  /**
+   * Sets the size of tiles used for tiled concurrency.
+   * The default size is 16 samples in all dimensions.
+   * @param m1 number of samples per tile in 1st dimension.
+   * @param m2 number of samples per tile in 2nd dimension.
+   * @param m3 number of samples per tile in 3rd dimension.
+   */
+  public void setTileSize(int m1, int m2, int m3) {
+    Check.argument(m1>0,"m1>0");
+    Check.argument(m2>0,"m2>0");
+    Check.argument(m3>0,"m3>0");
+    _m1 = m1;
+    _m2 = m2;
+    _m3 = m3;
+    _tiles = null;
+  }
+
+  /**
+   * Sets the type of storage used for per-sample flags.
+   * The default storage is objects.
+   * @param storage the type of storage.
+   */
+  public void setStorage(Storage storage) {
+    if (_storage!=storage) {
+      _storage = storage;
+      initStorage();
+    }
+  }
+
   /**
    * Transforms the specified array of times and marks.
    * Known samples are those for which times are zero, and times
@@ -118,6 +173,13 @@ public class TimeMarker3 {
     // Active list of samples used to compute times.
     ActiveList al = new ActiveList();
 
+    // For tiled concurrency, one pool of threads for all known samples.
+    if (_concurrency==Concurrency.TILED) {
+      if (_tiles==null)
+        initTiles();
+      _pool = new ForkJoinPool(_nthread);
+    }
+
     // For all known samples, ...
     for (int ik=0; ik<nk; ++ik) {
       int i1 = k1[ik];
@@ -129,7 +191,7 @@ public class TimeMarker3 {
 
       // Put the known sample with time zero into the active list.
       t[i3][i2][i1] = 0.0f;
-      al.append(_s[i3][i2][i1]);
+      al.append(index(i1,i2,i3));
 
       // The mark for the known sample.
       int m = marks[i3][i2][i1];
@@ -137,6 +199,10 @@ public class TimeMarker3 {
       // Process the active list until empty.
       solve(al,t,m,times,marks);
     }
+    if (_pool!=null) {
+      _pool.shutdown();
+      _pool = null;
+    }
   }
 
   private void solve(
@@ -144,6 +210,8 @@ public class TimeMarker3 {
   {
     if (_concurrency==Concurrency.PARALLEL) {
       solveParallel(al,t,m,times,marks);
+    } else if (_concurrency==Concurrency.TILED) {
+      solveTiled(al,t,m,times,marks);
     } else {
       solveSerial(al,t,m,times,marks);
     }
@@ -161,20 +229,51 @@ public class TimeMarker3 {
 
   private int _n1,_n2,_n3;
   private Tensors3 _tensors;
-  private Sample[][][] _s;
+  private Sample[] _s; // samples, for object storage
+  private int[] _activatedFlags; // activated flags, for compact storage
+  private byte[] _absent; // absent flags, for compact storage
+  private int[] _kn; // index offsets for six neighbor samples
+  private Storage _storage = Storage.OBJECTS;
   private Concurrency _concurrency = Concurrency.PARALLEL;
-  private ArrayList<Sample> _stack = new ArrayList<Sample>(1024);
+  private int _nthread = Runtime.getRuntime().availableProcessors();
+  private int _m1 = 16, _m2 = 16, _m3 = 16; // tile size
+  private Tile[] _tiles; // tiles, for tiled concurrency
+  private ForkJoinPool _pool; // threads, for tiled concurrency
 
   private void init(int n1, int n2, int n3, Tensors3 tensors) {
+    Check.argument((long)n1*n2*n3<=Integer.MAX_VALUE,
+      "number of samples n1*n2*n3 does not exceed "+Integer.MAX_VALUE);
     _n1 = n1;
     _n2 = n2;
     _n3 = n3;
     _tensors = tensors;
-    _s = new Sample[n3][n2][n1];
-    for (int i3=0; i3<n3; ++i3)
-      for (int i2=0; i2<n2; ++i2)
-        for (int i1=0; i1<n1; ++i1)
-          _s[i3][i2][i1] = new Sample(i1,i2,i3);
+    _kn = new int[6];
+    for (int k=0; k<6; ++k)
+      _kn[k] = K1[k]+n1*(K2[k]+n2*K3[k]);
+    initStorage();
+  }
+
+  // Allocates flags for all samples, and frees any flags allocated 
+  // previously for a different type of storage.
+  private void initStorage() {
+    int n = _n1*_n2*_n3;
+    _activated = 1;
+    if (_storage==Storage.COMPACT) {
+      _s = null;
+      _activatedFlags = new int[n];
+      _absent = new byte[n];
+    } else {
+      _activatedFlags = null;
+      _absent = null;
+      _s = new Sample[n];
+      for (int i=0; i<n; ++i)
+        _s[i] = new Sample();
+    }
+  }
+
+  // Index of the sample with specified indices.
+  private int index(int i1, int i2, int i3) {
+    return i1+_n1*(i2+_n2*i3);
   }
 
   // Sample index offsets for six neighbor samples.
@@ -222,22 +321,23 @@ public class TimeMarker3 {
       0, 0, 0, 0,-1,-1, 1, 1,-1,-1, 1, 1,
       0, 0, 0, 0,-1, 1}};
 
-  // A sample has indices and a flag used to build the active list.
+  // For object storage, a sample has flags used to build the active 
+  // list. Samples are indexed like those in compact storage.
   private static class Sample {
-    int i1,i2,i3; // sample indices
     int activated; // used to flag activated samples
     boolean absent; // used to build active lists
-    Sample(int i1, int i2, int i3) {
-      this.i1 = i1;
-      this.i2 = i2;
-      this.i3 = i3;
-    }
   }
 
-  // List of active samples.
+  // List of active samples, represented by their indices.
   private class ActiveList {
-    void append(Sample s) {
-      s.activated = _activated;
+    ActiveList() {
+      this(1024);
+    }
+    ActiveList(int capacity) {
+      _a = new int[capacity];
+    }
+    void append(int s) {
+      setActivated(s);
       if (_n==_a.length)
         growTo(2*_n);
       _a[_n++] = s;
@@ -248,7 +348,7 @@ public class TimeMarker3 {
     int size() {
       return _n;
     }
-    Sample get(int i) {
+    int get(int i) {
       return _a[i];
     }
     void clear() {
@@ -256,17 +356,17 @@ public class TimeMarker3 {
     }
     void setAllAbsent() {
       for (int i=0; i<_n; ++i)
-        _a[i].absent = true;
+        setAbsent(_a[i],true);
     }
     void appendIfAbsent(ActiveList al) {
       if (_n+al._n>_a.length)
         growTo(2*(_n+al._n));
       int n = al._n;
       for (int i=0; i<n; ++i) {
-        Sample s = al.get(i);
-        if (s.absent) {
+        int s = al.get(i);
+        if (isAbsent(s)) {
           _a[_n++] = s;
-          s.absent = false;
+          setAbsent(s,false);
         }
       }
     }
@@ -275,7 +375,7 @@ public class TimeMarker3 {
       for (int i=0; i<_n; ++i) {
         int j = r.nextInt(_n);
         int k = r.nextInt(_n);
-        Sample aj = _a[j];
+        int aj = _a[j];
         _a[j] = _a[k];
         _a[k] = aj;
       }
@@ -283,45 +383,71 @@ public class TimeMarker3 {
     void dump() { // debugging: prints this list
       trace("ActiveList.dump: n="+_n);
       for (int i=0; i<_n; ++i) {
-        Sample s = _a[i];
-        trace(" s["+i+"] = ("+s.i1+","+s.i2+","+s.i3+")");
+        int s = _a[i];
+        int i1 = s%_n1;
+        int i2 = (s/_n1)%_n2;
+        int i3 = s/_n1/_n2;
+        trace(" s["+i+"] = ("+i1+","+i2+","+i3+")");
       }
     }
     private int _n;
-    private Sample[] _a = new Sample[1024];
+    private int[] _a;
     private void growTo(int capacity) {
-      Sample[] a = new Sample[capacity];
+      int[] a = new int[capacity];
       System.arraycopy(_a,0,a,0,_n);
       _a = a;
     }
   }
 
+  // Absent flags used to build active lists. Flags for compact storage 
+  // are bytes, not bits, so that threads may set them concurrently.
+  private void setAbsent(int i, boolean absent) {
+    if (_absent!=null) {
+      _absent[i] = absent?(byte)1:(byte)0;
+    } else {
+      _s[i].absent = absent;
+    }
+  }
+  private boolean isAbsent(int i) {
+    return (_absent!=null)?_absent[i]!=0:_s[i].absent;
+  }
+
   // Flags set during computation of times. For efficiency, do not
   // loop over all the flags to clear them before computing times.
-  // Instead, modify the value that represents activated samples.
+  // Instead, modify the value that represents activated samples. This
+  // value changes for every known sample, so even for compact storage 
+  // these flags are ints; bytes would have to be cleared too often.
   private int _activated = 1;
   private void clearActivated() {
     if (_activated==Integer.MAX_VALUE) { // rarely!
       _activated = 1;
-      for (int i3=0; i3<_n3; ++i3) {
-        for (int i2=0; i2<_n2; ++i2) {
-          for (int i1=0; i1<_n1; ++i1) {
-            _s[i3][i2][i1].activated = 0;
-          }
-        }
+      if (_activatedFlags!=null) {
+        Arrays.fill(_activatedFlags,0);
+      } else {
+        for (int i=0; i<_s.length; ++i)
+          _s[i].activated = 0;
       }
     } else { // typically
       ++_activated;
     }
   }
-  private void setActivated(Sample s) {
-    s.activated = _activated;
+  private void setActivated(int i) {
+    if (_activatedFlags!=null) {
+      _activatedFlags[i] = _activated;
+    } else {
+      _s[i].activated = _activated;
+    }
   }
-  private void clearActivated(Sample s) {
-    s.activated = 0;
+  private void clearActivated(int i) {
+    if (_activatedFlags!=null) {
+      _activatedFlags[i] = 0;
+    } else {
+      _s[i].activated = 0;
+    }
   }
-  private boolean wasActivated(Sample s) {
-    return s.activated==_activated;
+  private boolean wasActivated(int i) {
+    return ((_activatedFlags!=null)?_activatedFlags[i]:_s[i].activated)
+      ==_activated;
   }
 
   // More efficient than ArrayStack<Short>.
@@ -423,8 +549,8 @@ public class TimeMarker3 {
       int n = al.size();
       ntotal += n;
       for (int i=0; i<n; ++i) {
-        Sample s = al.get(i);
-        solveOne(t,m,times,marks,s,bl,d);
+        int s = al.get(i);
+        solveOne(t,m,times,marks,s,bl,d,null);
       }
       bl.setAllAbsent();
       al.clear();
@@ -443,7 +569,7 @@ public class TimeMarker3 {
     final float[][][] t, final int m,
     final float[][][] times, final int[][][] marks)
   {
-    int nthread = Runtime.getRuntime().availableProcessors();
+    int nthread = _nthread;
     ExecutorService es = Executors.newFixedThreadPool(nthread);
     CompletionService<Void> cs = new ExecutorCompletionService<Void>(es);
     ActiveList[] bl = new ActiveList[nthread];
@@ -471,8 +597,8 @@ public class TimeMarker3 {
               int i = ib*mb; // beginning of block
               int j = min(i+mb,n); // beginning of next block (or end)
               for (int k=i; k<j; ++k) { // for each sample in block, ...
-                Sample s = al.get(k); // get k'th sample from A list
-                solveOne(t,m,times,marks,s,bltask,dtask); // process sample
+                int s = al.get(k); // get k'th sample from A list
+                solveOne(t,m,times,marks,s,bltask,dtask,null);
               }
             }
             bltask.setAllAbsent(); // needed when merging B lists below
@@ -502,26 +628,163 @@ public class TimeMarker3 {
     trace("               nratio="+(float)ntotal/(float)(_n1*_n2));
   }
 
+  /**
+   * Solves for times by processing tiles of samples in parallel. Tiles 
+   * are processed in rounds. In each round, samples in every active tile 
+   * are processed until the active list for that tile is empty. When a
+   * time decreases for a sample in a different tile, that sample is put 
+   * into a list of pending samples for that other tile, which is thereby
+   * activated for the next round. Threads synchronize only after each
+   * round, not after each iteration over samples in a global active list.
+   */
+  private void solveTiled(
+    ActiveList al,
+    float[][][] t, int m,
+    float[][][] times, int[][][] marks)
+  {
+    for (int i=0; i<al.size(); ++i) {
+      int s = al.get(i);
+      _tiles[tileIndex(s%_n1,(s/_n1)%_n2,s/_n1/_n2)].appendPending(s);
+    }
+    al.clear();
+    while (!_tileQueue.isEmpty()) {
+      Tile[] tiles = _tileQueue.toArray(new Tile[0]);
+      _tileQueue.clear();
+      _pool.invoke(new TileTask(tiles,0,tiles.length,t,m,times,marks));
+    }
+  }
+
+  // Tiles activated for the next round of tiled concurrency.
+  private ConcurrentLinkedQueue<Tile> _tileQueue = 
+    new ConcurrentLinkedQueue<Tile>();
+
+  // A tile of samples. Samples appended to a tile by threads processing 
+  // other tiles are pending until the tile is next processed. A tile is 
+  // queued for the next round when its first pending sample is appended.
+  private class Tile {
+    synchronized void appendPending(int s) {
+      if (_pending==null)
+        _pending = new ActiveList(16);
+      _pending.append(s);
+      if (!_queued) {
+        _queued = true;
+        _tileQueue.add(this);
+      }
+    }
+    synchronized void takePending(ActiveList al) {
+      int n = _pending.size();
+      for (int i=0; i<n; ++i)
+        al.append(_pending.get(i));
+      _pending.clear();
+      _queued = false;
+    }
+    private ActiveList _pending;
+    private boolean _queued;
+  }
+
+  // Workspace for one thread processing tiles.
+  private class TileWork {
+    float[] d = new float[6];
+    ActiveList al = new ActiveList();
+    ActiveList bl = new ActiveList();
+  }
+  private ThreadLocal<TileWork> _tileWork = new ThreadLocal<TileWork>() {
+    protected TileWork initialValue() {
+      return new TileWork();
+    }
+  };
+
+  // Processes a range of tiles, stealing work from other threads as needed.
+  private class TileTask extends RecursiveAction {
+    TileTask(
+      Tile[] tiles, int jtile, int ktile,
+      float[][][] t, int m, float[][][] times, int[][][] marks)
+    {
+      _ta = tiles;
+      _jt = jtile;
+      _kt = ktile;
+      _t = t;
+      _m = m;
+      _times = times;
+      _marks = marks;
+    }
+    protected void compute() {
+      if (_kt-_jt==1) {
+        solveTile(_t,_m,_times,_marks,_ta[_jt]);
+      } else {
+        int mt = (_jt+_kt)/2;
+        invokeAll(new TileTask(_ta,_jt,mt,_t,_m,_times,_marks),
+                  new TileTask(_ta,mt,_kt,_t,_m,_times,_marks));
+      }
+    }
+    private Tile[] _ta;
+    private int _jt,_kt;
+    private float[][][] _t,_times;
+    private int _m;
+    private int[][][] _marks;
+  }
+
+  private void initTiles() {
+    int l1 = 1+(_n1-1)/_m1;
+    int l2 = 1+(_n2-1)/_m2;
+    int l3 = 1+(_n3-1)/_m3;
+    _tiles = new Tile[l1*l2*l3];
+    for (int i=0; i<_tiles.length; ++i)
+      _tiles[i] = new Tile();
+  }
+
+  private int tileIndex(int i1, int i2, int i3) {
+    int l1 = 1+(_n1-1)/_m1;
+    int l2 = 1+(_n2-1)/_m2;
+    return i1/_m1+l1*(i2/_m2+l2*(i3/_m3));
+  }
+
+  /**
+   * Processes samples in one tile until its active list is empty.
+   */
+  private void solveTile(
+    float[][][] t, int m, float[][][] times, int[][][] marks, Tile tile)
+  {
+    TileWork tw = _tileWork.get();
+    ActiveList al = tw.al;
+    ActiveList bl = tw.bl;
+    tile.takePending(bl);
+    bl.setAllAbsent();
+    al.appendIfAbsent(bl);
+    bl.clear();
+    while (!al.isEmpty()) {
+      int n = al.size();
+      for (int i=0; i<n; ++i)
+        solveOne(t,m,times,marks,al.get(i),bl,tw.d,tile);
+      bl.setAllAbsent();
+      al.clear();
+      al.appendIfAbsent(bl);
+      bl.clear();
+    }
+  }
+
   /**
    * Gets the current times during one solution of the eikonal equation.
    * Times for samples not yet activated are infinite.
    */
   private float currentTime(float[][][] t, int i1, int i2, int i3) {
-    return wasActivated(_s[i3][i2][i1])?t[i3][i2][i1]:INFINITY;
+    return wasActivated(index(i1,i2,i3))?t[i3][i2][i1]:INFINITY;
   }
 
   /**
    * Processes one sample from the A list.
-   * Appends samples not yet converged to the B list.
+   * Appends samples not yet converged to the B list. For tiled
+   * concurrency, neighbor samples in other tiles are instead appended
+   * to the lists of pending samples for those tiles.
    */
   private void solveOne(
     float[][][] t, int m, float[][][] times, int[][][] marks,
-    Sample s, ActiveList bl, float[] d) 
+    int s, ActiveList bl, float[] d, Tile tile) 
   {
     // Sample indices.
-    int i1 = s.i1;
-    int i2 = s.i2;
-    int i3 = s.i3;
+    int i1 = s%_n1;
+    int i2 = (s/_n1)%_n2;
+    int i3 = s/_n1/_n2;
 
     // Current time and new time computed from all four neighbors.
     float ti = currentTime(t,i1,i2,i3);
@@ -567,8 +830,18 @@ public class TimeMarker3 {
             // Replace the current time.
             t[j3][j2][j1] = cj;
             
-            // Append neighbor to the B list, thereby activating it.
-            bl.append(_s[j3][j2][j1]);
+            // Append neighbor to the B list or to its tile, thereby 
+            // activating it.
+            if (tile==null) {
+              bl.append(s+_kn[k]);
+            } else {
+              Tile tilej = _tiles[tileIndex(j1,j2,j3)];
+              if (tilej==tile) {
+                bl.append(s+_kn[k]);
+              } else {
+                tilej.appendPending(s+_kn[k]);
+              }
+            }
           }
         }
       }
@@ -601,22 +874,22 @@ public class TimeMarker3 {
 
   // Methods to get times for neighbors.
   private float t1m(float[][][] t, int i1, int i2, int i3) {
-    return (--i1>=0 && wasActivated(_s[i3][i2][i1]))?t[i3][i2][i1]:INFINITY;
+    return (--i1>=0 && wasActivated(index(i1,i2,i3)))?t[i3][i2][i1]:INFINITY;
   }
   private float t1p(float[][][] t, int i1, int i2, int i3) {
-    return (++i1<_n1 && wasActivated(_s[i3][i2][i1]))?t[i3][i2][i1]:INFINITY;
+    return (++i1<_n1 && wasActivated(index(i1,i2,i3)))?t[i3][i2][i1]:INFINITY;
   }
   private float t2m(float[][][] t, int i1, int i2, int i3) {
-    return (--i2>=0 && wasActivated(_s[i3][i2][i1]))?t[i3][i2][i1]:INFINITY;
+    return (--i2>=0 && wasActivated(index(i1,i2,i3)))?t[i3][i2][i1]:INFINITY;
   }
   private float t2p(float[][][] t, int i1, int i2, int i3) {
-    return (++i2<_n2 && wasActivated(_s[i3][i2][i1]))?t[i3][i2][i1]:INFINITY;
+    return (++i2<_n2 && wasActivated(index(i1,i2,i3)))?t[i3][i2][i1]:INFINITY;
   }
   private float t3m(float[][][] t, int i1, int i2, int i3) {
-    return (--i3>=0 && wasActivated(_s[i3][i2][i1]))?t[i3][i2][i1]:INFINITY;
+    return (--i3>=0 && wasActivated(index(i1,i2,i3)))?t[i3][i2][i1]:INFINITY;
   }
   private float t3p(float[][][] t, int i1, int i2, int i3) {
-    return (++i3<_n3 && wasActivated(_s[i3][i2][i1]))?t[i3][i2][i1]:INFINITY;
+    return (++i3<_n3 && wasActivated(index(i1,i2,i3)))?t[i3][i2][i1]:INFINITY;
   }
 
   /**
@@ -8,6 +8,7 @@ package fmm;
 
 import java.awt.image.IndexColorModel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -17,6 +18,7 @@ import edu.mines.jtk.sgl.ImagePanelGroup;
 import edu.mines.jtk.sgl.World;
 import edu.mines.jtk.sgl.SimpleFrame;
 import static edu.mines.jtk.util.ArrayMath.*;
+import edu.mines.jtk.util.Check;
 import edu.mines.jtk.util.Stopwatch;
 
 /**
@@ -32,11 +34,27 @@ import edu.mines.jtk.util.Stopwatch;
 public class TimeSolver3 {
 
   /**
-   * Type of concurrency used when solving for times.
+   * Type of concurrency used when solving for times. For tiled concurrency,
+   * samples are partitioned into tiles, each with its own active list, and 
+   * tiles are activated and deactivated as units.
    */
   public enum Concurrency {
     PARALLEL,
-    SERIAL
+    SERIAL,
+    TILED
+  };
+
+  /**
+   * Type of storage used for per-sample flags. With object storage, each 
+   * sample is represented by an object that has fields for its flags. 
+   * Compact storage instead uses a few bytes per sample in arrays of flags
+   * that are indexed like the array of times, and thereby requires much 
+   * less memory for large arrays of times. Both types of storage yield 
+   * the same times.
+   */
+  public enum Storage {
+    OBJECTS,
+    COMPACT
   };
 
   /**
@@ -85,6 +103,45 @@ public class TimeSolver3 {
     _concurrency = concurrency;
   }
 
+  /**
+   * Sets the number of threads used for parallel or tiled concurrency.
+   * The default is the number of available processors.
+   * @param nthread the number of threads.
+   */
+  public void setThreadCount(int nthread) {
+    Check.argument(nthread>0,"nthread>0");
+    _nthread = nthread;
+  }
+
+  /**
+   * Sets the size of tiles used for tiled concurrency.
+   * The default size is 16 samples in all dimensions.
+   * @param m1 number of samples per tile in 1st dimension.
+   * @param m2 number of samples per tile in 2nd dimension.
+   * @param m3 number of samples per tile in 3rd dimension.
+   */
+  public void setTileSize(int m1, int m2, int m3) {
+    Check.argument(m1>0,"m1>0");
+    Check.argument(m2>0,"m2>0");
+    Check.argument(m3>0,"m3>0");
+    _m1 = m1;
+    _m2 = m2;
+    _m3 = m3;
+    _tiles = null;
+  }
+
+  /**
+   * Sets the type of storage used for per-sample flags.
+   * The default storage is objects.
+   * @param storage the type of storage.
+   */
+  public void setStorage(Storage storage) {
+    if (_storage!=storage) {
+      _storage = storage;
+      initStorage();
+    }
+  }
+
   /**
    * Sets the tensors used by this solver.
    * @param tensors the tensors.
@@ -163,12 +220,21 @@ public class TimeSolver3 {
   private Tensors3 _tensors;
   private float _tmax = INFINITY;
   private float[][][] _t;
-  private Sample[][][] _s;
+  private Sample[] _s; // samples, for object storage
+  private byte[] _marks; // marks, for compact storage
+  private byte[] _absent; // absent flags, for compact storage
+  private int[] _kn; // index offsets for six neighbor samples
+  private Storage _storage = Storage.OBJECTS;
   private Concurrency _concurrency = Concurrency.PARALLEL;
+  private int _nthread = Runtime.getRuntime().availableProcessors();
+  private int _m1 = 16, _m2 = 16, _m3 = 16; // tile size
+  private Tile[] _tiles; // tiles, for tiled concurrency
   private ArrayList<Listener> _listeners = new ArrayList<Listener>();
-  private ArrayList<Sample> _stack = new ArrayList<Sample>(1024);
+  private ActiveList _stack = new ActiveList();
 
   private void init(int n1, int n2, int n3, float[][][] t, Tensors3 tensors) {
+    Check.argument((long)n1*n2*n3<=Integer.MAX_VALUE,
+      "number of samples n1*n2*n3 does not exceed "+Integer.MAX_VALUE);
     _n1 = n1;
     _n2 = n2;
     _n3 = n3;
@@ -177,11 +243,33 @@ public class TimeSolver3 {
     _n3m = n3-1;
     _tensors = tensors;
     _t = (t!=null)?t:fillfloat(INFINITY,n1,n2,n3);
-    _s = new Sample[n3][n2][n1];
-    for (int i3=0; i3<n3; ++i3)
-      for (int i2=0; i2<n2; ++i2)
-        for (int i1=0; i1<n1; ++i1)
-          _s[i3][i2][i1] = new Sample(i1,i2,i3);
+    _kn = new int[6];
+    for (int k=0; k<6; ++k)
+      _kn[k] = K1[k]+n1*(K2[k]+n2*K3[k]);
+    initStorage();
+  }
+
+  // Allocates flags for all samples, and frees any flags allocated 
+  // previously for a different type of storage.
+  private void initStorage() {
+    int n = _n1*_n2*_n3;
+    _marked = 1;
+    if (_storage==Storage.COMPACT) {
+      _s = null;
+      _marks = new byte[n];
+      _absent = new byte[n];
+    } else {
+      _marks = null;
+      _absent = null;
+      _s = new Sample[n];
+      for (int i=0; i<n; ++i)
+        _s[i] = new Sample();
+    }
+  }
+
+  // Index of the sample with specified indices.
+  private int index(int i1, int i2, int i3) {
+    return i1+_n1*(i2+_n2*i3);
   }
 
   // Sample index offsets for six neighbor samples.
@@ -229,24 +317,28 @@ public class TimeSolver3 {
       0, 0, 0, 0,-1,-1, 1, 1,-1,-1, 1, 1,
       0, 0, 0, 0,-1, 1}};
 
-  // A sample has indices and a flag used to build the active list.
+  // For object storage, a sample has a mark and a flag used to build 
+  // the active list. Samples are indexed like those in compact storage.
   private static class Sample {
-    int i1,i2,i3; // sample indices
     int marked; // used to mark samples when computing times
     boolean absent; // used to build active lists
-    Sample(int i1, int i2, int i3) {
-      this.i1 = i1;
-      this.i2 = i2;
-      this.i3 = i3;
-    }
   }
 
-  // List of active samples.
+  // List of active samples, represented by their indices.
   private class ActiveList {
-    void append(Sample s) {
+    ActiveList() {
+      this(1024);
+    }
+    ActiveList(int capacity) {
+      _a = new int[capacity];
+    }
+    void append(int i) {
       if (_n==_a.length)
         growTo(2*_n);
-      _a[_n++] = s;
+      _a[_n++] = i;
+    }
+    int removeLast() {
+      return _a[--_n];
     }
     boolean isEmpty() {
       return _n==0;
@@ -254,7 +346,7 @@ public class TimeSolver3 {
     int size() {
       return _n;
     }
-    Sample get(int i) {
+    int get(int i) {
       return _a[i];
     }
     void clear() {
@@ -262,17 +354,17 @@ public class TimeSolver3 {
     }
     void setAllAbsent() {
       for (int i=0; i<_n; ++i)
-        _a[i].absent = true;
+        setAbsent(_a[i],true);
     }
     void appendIfAbsent(ActiveList al) {
       if (_n+al._n>_a.length)
         growTo(2*(_n+al._n));
       int n = al._n;
       for (int i=0; i<n; ++i) {
-        Sample s = al.get(i);
-        if (s.absent) {
+        int s = al.get(i);
+        if (isAbsent(s)) {
           _a[_n++] = s;
-          s.absent = false;
+          setAbsent(s,false);
         }
       }
     }
@@ -281,7 +373,7 @@ public class TimeSolver3 {
       for (int i=0; i<_n; ++i) {
         int j = r.nextInt(_n);
         int k = r.nextInt(_n);
-        Sample aj = _a[j];
+        int aj = _a[j];
         _a[j] = _a[k];
         _a[k] = aj;
       }
@@ -289,63 +381,89 @@ public class TimeSolver3 {
     void dump() { // debugging: prints this list
       trace("ActiveList.dump: n="+_n);
       for (int i=0; i<_n; ++i) {
-        Sample s = _a[i];
-        trace(" s["+i+"] = ("+s.i1+","+s.i2+","+s.i3+")");
+        int s = _a[i];
+        int i1 = s%_n1;
+        int i2 = (s/_n1)%_n2;
+        int i3 = s/_n1/_n2;
+        trace(" s["+i+"] = ("+i1+","+i2+","+i3+")");
       }
     }
     private int _n;
-    private Sample[] _a = new Sample[1024];
+    private int[] _a;
     private void growTo(int capacity) {
-      Sample[] a = new Sample[capacity];
+      int[] a = new int[capacity];
       System.arraycopy(_a,0,a,0,_n);
       _a = a;
     }
   }
 
+  // Absent flags used to build active lists. Flags for compact storage 
+  // are bytes, not bits, so that threads may set them concurrently.
+  private void setAbsent(int i, boolean absent) {
+    if (_absent!=null) {
+      _absent[i] = absent?(byte)1:(byte)0;
+    } else {
+      _s[i].absent = absent;
+    }
+  }
+  private boolean isAbsent(int i) {
+    return (_absent!=null)?_absent[i]!=0:_s[i].absent;
+  }
+
   // Marks set during computation of times. For efficiency, do not
   // loop over all the marks to clear them before computing times.
   // Instead, modify the value that represents marked samples.
+  // For compact storage, the marked value wraps more often, because
+  // marks are bytes.
   private int _marked = 1;
   private void clearMarked() {
-    if (_marked==Integer.MAX_VALUE) { // rarely!
+    int markedMax = (_marks!=null)?Byte.MAX_VALUE:Integer.MAX_VALUE;
+    if (_marked==markedMax) { // rarely!
       _marked = 1;
-      for (int i3=0; i3<_n3; ++i3) {
-        for (int i2=0; i2<_n2; ++i2) {
-          for (int i1=0; i1<_n1; ++i1) {
-            _s[i3][i2][i1].marked = 0;
-          }
-        }
+      if (_marks!=null) {
+        Arrays.fill(_marks,(byte)0);
+      } else {
+        for (int i=0; i<_s.length; ++i)
+          _s[i].marked = 0;
       }
     } else { // typically
       ++_marked;
     }
   }
-  private void mark(Sample s) {
-    s.marked = _marked;
+  private void mark(int i) {
+    if (_marks!=null) {
+      _marks[i] = (byte)_marked;
+    } else {
+      _s[i].marked = _marked;
+    }
   }
-  private void unmark(Sample s) {
-    s.marked -= 1;
+  private void unmark(int i) {
+    if (_marks!=null) {
+      _marks[i] -= 1;
+    } else {
+      _s[i].marked -= 1;
+    }
   }
-  private boolean isMarked(Sample s) {
-    return s.marked==_marked;
+  private boolean isMarked(int i) {
+    return ((_marks!=null)?_marks[i]:_s[i].marked)==_marked;
   }
 
   private void fireTimesDecreasedFrom(int i1, int i2, int i3) {
-    Sample si = _s[i3][i2][i1];
+    int si = index(i1,i2,i3);
     if (!isMarked(si))
       return;
     int nlistener = _listeners.size();
     if (nlistener==0)
       return;
     _stack.clear();
-    _stack.add(si);
+    _stack.append(si);
     while (!_stack.isEmpty()) {
-      si = _stack.remove(_stack.size()-1);
+      si = _stack.removeLast();
       if (isMarked(si)) {
         unmark(si);
-        i1 = si.i1;
-        i2 = si.i2;
-        i3 = si.i3;
+        i1 = si%_n1;
+        i2 = (si/_n1)%_n2;
+        i3 = si/_n1/_n2;
         float ti = _t[i3][i2][i1];
         for (int i=0; i<nlistener; ++i)
           _listeners.get(i).timeDecreased(i1,i2,i3,ti);
@@ -353,9 +471,9 @@ public class TimeSolver3 {
           int j1 = i1+K1[k];  if (j1<0 || j1>=_n1) continue;
           int j2 = i2+K2[k];  if (j2<0 || j2>=_n2) continue;
           int j3 = i3+K3[k];  if (j3<0 || j3>=_n3) continue;
-          Sample sj = _s[j3][j2][j1];
+          int sj = si+_kn[k];
           if (isMarked(sj))
-            _stack.add(sj);
+            _stack.append(sj);
         }
       }
     }
@@ -373,12 +491,13 @@ public class TimeSolver3 {
 
     // Put the sample with zero time into the active list.
     ActiveList al = new ActiveList();
-    Sample si = _s[i3][i2][i1];
-    al.append(si);
+    al.append(index(i1,i2,i3));
 
     // Complete the solve by processing the active list until it is empty.
     if (_concurrency==Concurrency.PARALLEL) {
       solveParallel(al);
+    } else if (_concurrency==Concurrency.TILED) {
+      solveTiled(al);
     } else {
       solveSerial(al);
     }
@@ -399,8 +518,8 @@ public class TimeSolver3 {
       int n = al.size();
       ntotal += n;
       for (int i=0; i<n; ++i) {
-        Sample s = al.get(i);
-        solveOne(s,bl,d);
+        int s = al.get(i);
+        solveOne(s,bl,d,null);
       }
       bl.setAllAbsent();
       al.clear();
@@ -415,7 +534,7 @@ public class TimeSolver3 {
    * Solves for times by processing samples in the active list in parallel.
    */
   private void solveParallel(final ActiveList al) {
-    int nthread = Runtime.getRuntime().availableProcessors();
+    int nthread = _nthread;
     /////////////////////////////////////////////////////////////////////////
     // Benchmarks: 07/26/2008
     // Anisotropic constant tensor with zero time at center sample. Tensor
@@ -452,8 +571,8 @@ public class TimeSolver3 {
               int i = ib*mb; // beginning of block
               int j = min(i+mb,n); // beginning of next block (or end)
               for (int k=i; k<j; ++k) { // for each sample in block, ...
-                Sample s = al.get(k); // get k'th sample from A list
-                solveOne(s,bltask,dtask); // process the sample
+                int s = al.get(k); // get k'th sample from A list
+                solveOne(s,bltask,dtask,null); // process the sample
               }
             }
             bltask.setAllAbsent(); // needed when merging B lists below
@@ -482,16 +601,142 @@ public class TimeSolver3 {
     //trace("               nratio="+(float)ntotal/(float)(_n1*_n2*_n3));
   }
 
+  /**
+   * Solves for times by processing tiles of samples in parallel. Tiles 
+   * are processed in rounds. In each round, samples in every active tile 
+   * are processed until the active list for that tile is empty. When a
+   * time decreases for a sample in a different tile, that sample is put 
+   * into a list of pending samples for that other tile, which is thereby
+   * activated for the next round. Threads synchronize only after each
+   * round, not after each iteration over samples in a global active list.
+   */
+  private void solveTiled(ActiveList al) {
+    if (_tiles==null)
+      initTiles();
+    for (int i=0; i<al.size(); ++i) {
+      int s = al.get(i);
+      _tiles[tileIndex(s%_n1,(s/_n1)%_n2,s/_n1/_n2)].appendPending(s);
+    }
+    ForkJoinPool pool = new ForkJoinPool(_nthread);
+    int nround = 0;
+    while (!_tileQueue.isEmpty()) {
+      Tile[] tiles = _tileQueue.toArray(new Tile[0]);
+      _tileQueue.clear();
+      pool.invoke(new TileTask(tiles,0,tiles.length));
+      ++nround;
+    }
+    pool.shutdown();
+    //trace("solveTiled: nround="+nround);
+  }
+
+  // Tiles activated for the next round of tiled concurrency.
+  private ConcurrentLinkedQueue<Tile> _tileQueue = 
+    new ConcurrentLinkedQueue<Tile>();
+
+  // A tile of samples. Samples appended to a tile by threads processing 
+  // other tiles are pending until the tile is next processed. A tile is 
+  // queued for the next round when its first pending sample is appended.
+  private class Tile {
+    synchronized void appendPending(int s) {
+      if (_pending==null)
+        _pending = new ActiveList(16);
+      _pending.append(s);
+      if (!_queued) {
+        _queued = true;
+        _tileQueue.add(this);
+      }
+    }
+    synchronized void takePending(ActiveList al) {
+      int n = _pending.size();
+      for (int i=0; i<n; ++i)
+        al.append(_pending.get(i));
+      _pending.clear();
+      _queued = false;
+    }
+    private ActiveList _pending;
+    private boolean _queued;
+  }
+
+  // Workspace for one thread processing tiles.
+  private class TileWork {
+    float[] d = new float[6];
+    ActiveList al = new ActiveList();
+    ActiveList bl = new ActiveList();
+  }
+  private ThreadLocal<TileWork> _tileWork = new ThreadLocal<TileWork>() {
+    protected TileWork initialValue() {
+      return new TileWork();
+    }
+  };
+
+  // Processes a range of tiles, stealing work from other threads as needed.
+  private class TileTask extends RecursiveAction {
+    TileTask(Tile[] tiles, int jtile, int ktile) {
+      _ta = tiles;
+      _jt = jtile;
+      _kt = ktile;
+    }
+    protected void compute() {
+      if (_kt-_jt==1) {
+        solveTile(_ta[_jt]);
+      } else {
+        int mt = (_jt+_kt)/2;
+        invokeAll(new TileTask(_ta,_jt,mt),new TileTask(_ta,mt,_kt));
+      }
+    }
+    private Tile[] _ta;
+    private int _jt,_kt;
+  }
+
+  private void initTiles() {
+    int l1 = 1+_n1m/_m1;
+    int l2 = 1+_n2m/_m2;
+    int l3 = 1+_n3m/_m3;
+    _tiles = new Tile[l1*l2*l3];
+    for (int i=0; i<_tiles.length; ++i)
+      _tiles[i] = new Tile();
+  }
+
+  private int tileIndex(int i1, int i2, int i3) {
+    int l1 = 1+_n1m/_m1;
+    int l2 = 1+_n2m/_m2;
+    return i1/_m1+l1*(i2/_m2+l2*(i3/_m3));
+  }
+
+  /**
+   * Processes samples in one tile until its active list is empty.
+   */
+  private void solveTile(Tile tile) {
+    TileWork tw = _tileWork.get();
+    ActiveList al = tw.al;
+    ActiveList bl = tw.bl;
+    tile.takePending(bl);
+    bl.setAllAbsent();
+    al.appendIfAbsent(bl);
+    bl.clear();
+    while (!al.isEmpty()) {
+      int n = al.size();
+      for (int i=0; i<n; ++i)
+        solveOne(al.get(i),bl,tw.d,tile);
+      bl.setAllAbsent();
+      al.clear();
+      al.appendIfAbsent(bl);
+      bl.clear();
+    }
+  }
+
   /**
    * Processes one sample from the A list.
-   * Appends samples not yet converged to the B list.
+   * Appends samples not yet converged to the B list. For tiled
+   * concurrency, neighbor samples in other tiles are instead appended
+   * to the lists of pending samples for those tiles.
    */
-  private void solveOne(Sample s, ActiveList bl, float[] d) {
+  private void solveOne(int s, ActiveList bl, float[] d, Tile tile) {
 
     // Sample indices.
-    int i1 = s.i1;
-    int i2 = s.i2;
-    int i3 = s.i3;
+    int i1 = s%_n1;
+    int i2 = (s/_n1)%_n2;
+    int i3 = s/_n1/_n2;
 
     // Current time and new time computed from all neighbors.
     float ti = _t[i3][i2][i1];
@@ -520,8 +765,17 @@ public class TimeSolver3 {
           // Replace the current time.
           _t[j3][j2][j1] = cj;
           
-          // Append neighbor to the B list.
-          bl.append(_s[j3][j2][j1]);
+          // Append neighbor to the B list or to its tile.
+          if (tile==null) {
+            bl.append(s+_kn[k]);
+          } else {
+            Tile tilej = _tiles[tileIndex(j1,j2,j3)];
+            if (tilej==tile) {
+              bl.append(s+_kn[k]);
+            } else {
+              tilej.appendPending(s+_kn[k]);
+            }
+          }
         }
       }
     }
@@ -745,7 +999,8 @@ public class TimeSolver3 {
   {
     trace("computeSerial:");
     return computeTimes(
-      n1,n2,n3,i1,i2,i3,tensors,TimeSolver3.Concurrency.SERIAL);
+      n1,n2,n3,i1,i2,i3,tensors,TimeSolver3.Concurrency.SERIAL,
+      TimeSolver3.Storage.OBJECTS);
   }
 
   private static float[][][] computeParallel(
@@ -755,16 +1010,41 @@ public class TimeSolver3 {
   {
     trace("computeParallel:");
     return computeTimes(
-      n1,n2,n3,i1,i2,i3,tensors,TimeSolver3.Concurrency.PARALLEL);
+      n1,n2,n3,i1,i2,i3,tensors,TimeSolver3.Concurrency.PARALLEL,
+      TimeSolver3.Storage.OBJECTS);
+  }
+
+  private static float[][][] computeTiled(
+    int n1, int n2, int n3,
+    int i1, int i2, int i3, 
+    Tensors3 tensors)
+  {
+    trace("computeTiled:");
+    return computeTimes(
+      n1,n2,n3,i1,i2,i3,tensors,TimeSolver3.Concurrency.TILED,
+      TimeSolver3.Storage.OBJECTS);
+  }
+
+  private static float[][][] computeCompact(
+    int n1, int n2, int n3,
+    int i1, int i2, int i3, 
+    Tensors3 tensors)
+  {
+    trace("computeCompact:");
+    return computeTimes(
+      n1,n2,n3,i1,i2,i3,tensors,TimeSolver3.Concurrency.SERIAL,
+      TimeSolver3.Storage.COMPACT);
   }
 
   private static float[][][] computeTimes(
     int n1, int n2, int n3,
     int i1, int i2, int i3, 
-    Tensors3 tensors, TimeSolver3.Concurrency concurrency) 
+    Tensors3 tensors, TimeSolver3.Concurrency concurrency,
+    TimeSolver3.Storage storage) 
   {
     TimeSolver3 ts = new TimeSolver3(n1,n2,n3,tensors);
     ts.setConcurrency(concurrency);
+    ts.setStorage(storage);
     Stopwatch sw = new Stopwatch();
     sw.start();
     ts.zeroAt(i1,i2,i3);
@@ -784,15 +1064,22 @@ public class TimeSolver3 {
     int i1 = 2*(n1-1)/4, i2 = 2*(n2-1)/4, i3 = 2*(n3-1)/4;
     float[][][] ts = computeSerial(n1,n2,n3,i1,i2,i3,tensors);
     float[][][] tp = computeParallel(n1,n2,n3,i1,i2,i3,tensors);
+    float[][][] tt = computeTiled(n1,n2,n3,i1,i2,i3,tensors);
+    float[][][] tc = computeCompact(n1,n2,n3,i1,i2,i3,tensors);
     float[][][] te = div(abs(sub(tp,ts)),ts);
     te[i3][i2][i1] = 0.0f;
     float temax = max(te);
     trace("temax="+temax);
+    te = div(abs(sub(tt,ts)),ts);
+    te[i3][i2][i1] = 0.0f;
+    float ttmax = max(te);
+    trace("ttmax="+ttmax);
+    trace("compact times equal serial times: "+equal(tc,ts));
     trace("********************************************************");
     //plot(ts,ColorMap.PRISM);
     //plot(tp,ColorMap.PRISM);
     //plot(te,ColorMap.JET);
-    if (temax>0.1f)
+    if (temax>0.1f || ttmax>0.1f || !equal(tc,ts))
       System.exit(-1);
   }
 
@@ -8,6 +8,8 @@ package lcc;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import edu.mines.jtk.io.ArrayFile;
 import edu.mines.jtk.util.Check;
@@ -49,11 +51,26 @@ import static edu.mines.jtk.util.ArrayMath.*;
  * may vary for different array dimensions. Chunk dimensions are computed 
  * to minimize this wasted computation.
  * <p>
- * Currently chunks are constructed by slicing only one array dimension.
- * Therefore, the maximum chunk size must be sufficiently large to contain 
- * complete slabs of the 3-D array, where the minimum slab thickness 
- * equals one plus the left and right overlaps. For efficiency (to 
- * reduce wasted computation) slabs should be much thicker than this.
+ * Chunks are bricks constructed by slicing any or all of the three array 
+ * dimensions, so that the maximum chunk size need not be large enough to 
+ * contain complete slabs of the 3-D array. The maximum chunk size must be 
+ * only large enough to contain one brick with dimensions equal to one plus 
+ * the left and right overlaps. For efficiency (to reduce wasted computation)
+ * bricks should be much larger than this. Among all numbers of chunks in 
+ * each dimension for which bricks fit within the maximum chunk size, those
+ * that minimize the total number of input samples are chosen. When the 
+ * maximum chunk size is large enough, chunks may be slabs, with only one 
+ * array dimension sliced.
+ * <p>
+ * Bricks are read and written one trace (or, where possible, one slice 
+ * or slab) at a time, and only the parts of files that correspond to each 
+ * brick are read or written.
+ * <p>
+ * By default, chunks are read, filtered, and written one at a time. 
+ * Alternatively, chunks may be processed in a pipeline, so that reading 
+ * and writing of chunks overlaps with filtering, and several chunks may 
+ * be filtered concurrently, within a limit on the total size of chunks 
+ * in memory. Output files are the same in all cases.
  *
  * @author Dave Hale, Colorado School of Mines
  * @version 2007.11.27
@@ -106,36 +123,96 @@ public class FileFloat3Chunks {
     _n2 = n2;  _l2 = l2;  _r2 = r2;
     _n3 = n3;  _l3 = l3;  _r3 = r3;
 
-    // Choose chunked dimension to minimize waste, while attempting to not
-    // exceed the max chunk size limit. In case of ties, favor chunking of 
-    // the 3rd dimension for which file I/O will be sequential. 
-    int w1 = (l1+r1)*n2*n3; // waste in 1st dimension
-    int w2 = (l2+r2)*n1*n3; // waste in 2nd dimension
-    int w3 = (l3+r3)*n1*n2; // waste in 3rd dimension
-    int m1 = (int)((_mc-w1)/(n2*n3)); // (l1+m1+r1)*n2*n3 <= mc
-    int m2 = (int)((_mc-w2)/(n1*n3)); // (l2+m2+r2)*n1*n3 <= mc
-    int m3 = (int)((_mc-w3)/(n1*n2)); // (l3+m3+r3)*n1*n2 <= mc
-    if (m3>0 && (w3<=w2 || m2<=0) && (w3<=w1 || m1<=0)) {
-      int mc = (l3+m3+r3)*n1*n2;
-      Check.state(mc<=_mc,"chunk size <= max chunk size");
-      _mc = mc;
-      _m3 = m3;
-    } else if (m2>0 && (w2<=w1 || m1<=0) && (w2<=w3 || m3<=0)) {
-      int mc = (l2+m2+r2)*n1*n3;
-      Check.state(mc<=_mc,"chunk size <= max chunk size");
-      _mc = mc;
-      _m2 = m2;
-    } else if (m1>0 && (w1<=w2 || m2<=0) && (w1<=w3 || m3<=0)) {
-      int mc = (l1+m1+r1)*n2*n3;
-      Check.state(mc<=_mc,"chunk size <= max chunk size");
-      _mc = mc;
-      _m1 = m1;
+    // Choose numbers of chunks in each dimension to minimize waste, the
+    // total number of input samples, while not exceeding the max chunk 
+    // size limit. For each dimension, consider only numbers of chunks 
+    // that yield distinct chunk sizes, each chunk size being as balanced 
+    // as possible. In case of ties, favor fewer chunks in the 1st and then
+    // 2nd dimensions, so that file I/O will be more nearly sequential.
+    int w1 = l1+r1, w2 = l2+r2, w3 = l3+r3;
+    double wbest = Double.MAX_VALUE;
+    int nc1best = 0, nc2best = 0;
+    for (int m3:chunkSizes(n3)) {
+      int nc3 = (n3+m3-1)/m3;
+      long s3 = m3+(nc3>1?w3:0);
+      for (int m2:chunkSizes(n2)) {
+        int nc2 = (n2+m2-1)/m2;
+        long s2 = m2+(nc2>1?w2:0);
+        long s1max = maxChunkSize/(s2*s3);
+        int m1;
+        if (n1<=s1max) {
+          m1 = n1;
+        } else if (1+w1<=s1max) {
+          m1 = (int)(s1max-w1);
+        } else {
+          continue;
+        }
+        int nc1 = (n1+m1-1)/m1;
+        m1 = (n1+nc1-1)/nc1; // balanced
+        double waste = (double)(n1+(nc1-1)*w1)*
+                       (double)(n2+(nc2-1)*w2)*
+                       (double)(n3+(nc3-1)*w3);
+        if (waste<wbest || 
+            waste==wbest && (nc1<nc1best || nc1==nc1best && nc2<nc2best)) {
+          wbest = waste;
+          nc1best = nc1;
+          nc2best = nc2;
+          _m1 = m1;
+          _m2 = m2;
+          _m3 = m3;
+        }
+      }
     }
-    Check.argument(_m1>0 || _m2>0 || _m3>0,"max chunk size is large enough");
+    Check.argument(_m1>0 && _m2>0 && _m3>0,"max chunk size is large enough");
+    long s1 = _m1+(_m1<n1?w1:0);
+    long s2 = _m2+(_m2<n2?w2:0);
+    long s3 = _m3+(_m3<n3?w3:0);
+    _mc = s1*s2*s3;
+    Check.state(_mc<=maxChunkSize,"chunk size <= max chunk size");
+  }
+
+  /**
+   * Enables or disables pipelined processing of chunks.
+   * When pipelined, the next chunk is read while the current chunk is
+   * filtered and the previous chunk is written, so that file I/O overlaps
+   * with computation. Up to three chunks are then held in memory. The
+   * default is not pipelined, so that chunks are read, filtered, and 
+   * written one at a time.
+   * @param pipelined true, for pipelined processing; false, otherwise.
+   */
+  public void setPipelined(boolean pipelined) {
+    _nfilter = pipelined?1:0;
+    _maxTotalSize = 0;
+  }
+
+  /**
+   * Enables pipelined processing in which chunks are filtered concurrently.
+   * As in pipelined processing, chunks are read and written in one thread 
+   * each, but up to the specified number of independent chunks are filtered
+   * concurrently in other threads. The filter must therefore be thread-safe.
+   * <p>
+   * The number of chunks held in memory is limited so that the total size
+   * of their input and output arrays does not exceed the specified maximum.
+   * This total must be at least the size for one chunk, as returned by the 
+   * method {@link #getChunkSize()}, times the number of arrays (inputs plus 
+   * outputs not in-place) per chunk.
+   * @param nthread maximum number of chunks filtered concurrently.
+   * @param maxTotalSize maximum total size in floats of chunks in memory.
+   */
+  public void setParallel(int nthread, long maxTotalSize) {
+    Check.argument(nthread>0,"nthread>0");
+    _nfilter = nthread;
+    _maxTotalSize = maxTotalSize;
   }
 
   /**
    * Transforms chunks in the specified files using the specified filter.
+   * <p>
+   * If pipelined or parallel, chunks are processed in that way only if no 
+   * output file is also an input file (the same array file object). 
+   * Otherwise, because overlapping parts of chunks read from such a file 
+   * may be written while filtering other chunks, chunks are processed one 
+   * at a time, in the same order as when not pipelined.
    * @param filter the filter.
    * @param xf array of files for input chunks.
    * @param yf array of files for output chunks.
@@ -146,12 +223,10 @@ public class FileFloat3Chunks {
     throws IOException 
   {
     ip = (ip!=null)?ip:fillint(-1,yf.length);
-    if (_m1>0) {
-      apply1(filter,xf,yf,ip);
-    } else if (_m2>0) {
-      apply2(filter,xf,yf,ip);
-    } else if (_m3>0) {
-      apply3(filter,xf,yf,ip);
+    if (_nfilter>0 && !sharesFiles(xf,yf)) {
+      applyPipelined(filter,xf,yf,ip);
+    } else {
+      applySerial(filter,xf,yf,ip);
     }
   }
 
@@ -182,110 +257,239 @@ public class FileFloat3Chunks {
   private int _n1,_m1,_l1,_r1;
   private int _n2,_m2,_l2,_r2;
   private int _n3,_m3,_l3,_r3;
+  private int _nfilter; // number of filter threads; zero, if not pipelined
+  private long _maxTotalSize; // limit for chunks in memory; zero, if none
 
   private long byteOffset(int i1, int i2, int i3) {
     return 4*((long)i1+(long)i2*_n1+(long)i3*_n1*_n2);
   }
 
-  private void apply1(Filter filter, ArrayFile[] xf, ArrayFile[] yf, int[] ip)
-    throws IOException 
-  {
+  // One chunk, with output samples beginning at indices (i1,i2,i3). Input 
+  // samples begin at indices (i1-l1,i2-l2,i3-l3), and the numbers of input 
+  // and output samples are (s1,s2,s3) and (m1,m2,m3), respectively.
+  private static class Chunk {
+    int i1,i2,i3; // start indices of output samples
+    int l1,l2,l3; // left overlaps
+    int m1,m2,m3; // numbers of output samples
+    int s1,s2,s3; // numbers of input samples
+    float[][][][] x; // input arrays
+    float[][][][] y; // output arrays
+  }
+
+  // Distinct balanced chunk sizes ceil(n/nc) for numbers of chunks nc, 
+  // in decreasing order. Dimensions with chunk size n are not sliced, and
+  // have only one chunk, with all samples and no overlaps.
+  private static int[] chunkSizes(int n) {
+    int[] m = new int[n];
+    int k = 0;
+    for (int nc=1; nc<=n; ++nc) {
+      int mc = (n+nc-1)/nc;
+      if (k==0 || mc<m[k-1])
+        m[k++] = mc;
+    }
+    return copy(k,m);
+  }
+
+  private int countChunks() {
+    return ((_n1+_m1-1)/_m1)*((_n2+_m2-1)/_m2)*((_n3+_m3-1)/_m3);
+  }
+
+  // Makes the chunk with specified index; chunks are ordered with the
+  // index in the 1st dimension varying fastest.
+  private Chunk makeChunk(int ic) {
+    int c1 = _m1, c2 = _m2, c3 = _m3;
+    int nc1 = (_n1+c1-1)/c1;
+    int nc2 = (_n2+c2-1)/c2;
+    Chunk c = new Chunk();
+    c.i1 = (ic%nc1)*c1;
+    c.i2 = ((ic/nc1)%nc2)*c2;
+    c.i3 = (ic/nc1/nc2)*c3;
+    c.l1 = min(_l1,c.i1); // 0 <= i1-l1
+    c.l2 = min(_l2,c.i2); // 0 <= i2-l2
+    c.l3 = min(_l3,c.i3); // 0 <= i3-l3
+    c.m1 = min(c1,_n1-c.i1); // i1+m1 <= n1
+    c.m2 = min(c2,_n2-c.i2); // i2+m2 <= n2
+    c.m3 = min(c3,_n3-c.i3); // i3+m3 <= n3
+    c.s1 = c.l1+c.m1+min(_r1,_n1-c.i1-c.m1); // i1+m1+r1 <= n1
+    c.s2 = c.l2+c.m2+min(_r2,_n2-c.i2-c.m2); // i2+m2+r2 <= n2
+    c.s3 = c.l3+c.m3+min(_r3,_n3-c.i3-c.m3); // i3+m3+r3 <= n3
+    return c;
+  }
+
+  // Reads input arrays for a chunk. Reads complete slices or traces,
+  // where possible, to minimize the number of seeks. Files are locked
+  // while reading, in case other threads are using them.
+  private void readChunk(Chunk c, ArrayFile[] xf) throws IOException {
     int nx = xf.length;
-    int ny = yf.length;
-    float[][][][] x = new float[nx][][][];
-    float[][][][] y = new float[ny][][][];
-    for (int i1=0; i1<_n1; i1+=_m1) {
-      int l1 = min(_l1,i1); // 0 <= i1-l1
-      int m1 = min(_m1,_n1-i1); // i1+m1 <= n1
-      int r1 = min(_r1,_n1-i1-m1); // i1+m1+r1 <= n1
-      int s1 = l1+m1+r1; // chunk size
-      int j1 = i1-l1; // chunk index
-      for (int ix=0; ix<nx; ++ix) {
-        float[][][] xi = x[ix] = new float[_n3][_n2][s1];
-        for (int i3=0; i3<_n3; ++i3) {
-          for (int i2=0; i2<_n2; ++i2) {
-            xf[ix].seek(byteOffset(j1,i2,i3));
-            xf[ix].readFloats(xi[i3][i2]);
+    int j1 = c.i1-c.l1, j2 = c.i2-c.l2, j3 = c.i3-c.l3;
+    c.x = new float[nx][][][];
+    for (int ix=0; ix<nx; ++ix) {
+      float[][][] xi = c.x[ix] = new float[c.s3][c.s2][c.s1];
+      synchronized (xf[ix]) {
+        if (c.s1==_n1 && c.s2==_n2) {
+          xf[ix].seek(byteOffset(0,0,j3));
+          xf[ix].readFloats(xi);
+        } else if (c.s1==_n1) {
+          for (int k3=0; k3<c.s3; ++k3) {
+            xf[ix].seek(byteOffset(0,j2,j3+k3));
+            xf[ix].readFloats(xi[k3]);
           }
-        }
-      }
-      for (int iy=0; iy<ny; ++iy)
-        y[iy] = ip[iy]<0?new float[_n3][_n2][s1]:x[ip[iy]];
-      filter.apply(i1,0,0,x,y);
-      for (int iy=0; iy<ny; ++iy) {
-        float[][][] yi = y[iy];
-        for (int i3=0; i3<_n3; ++i3) {
-          for (int i2=0; i2<_n2; ++i2) {
-            yf[iy].seek(byteOffset(i1,i2,i3));
-            yf[iy].writeFloats(yi[i3][i2],l1,m1);
+        } else {
+          for (int k3=0; k3<c.s3; ++k3) {
+            for (int k2=0; k2<c.s2; ++k2) {
+              xf[ix].seek(byteOffset(j1,j2+k2,j3+k3));
+              xf[ix].readFloats(xi[k3][k2]);
+            }
           }
         }
       }
     }
   }
 
-  private void apply2(Filter filter, ArrayFile[] xf, ArrayFile[] yf, int[] ip)
-    throws IOException 
-  {
-    int nx = xf.length;
+  // Makes output arrays for a chunk, after its input arrays are read.
+  private void makeOutputs(Chunk c, int[] ip) {
+    int ny = ip.length;
+    c.y = new float[ny][][][];
+    for (int iy=0; iy<ny; ++iy)
+      c.y[iy] = ip[iy]<0?new float[c.s3][c.s2][c.s1]:c.x[ip[iy]];
+  }
+
+  // Writes only the output samples (excluding overlaps) for a chunk.
+  private void writeChunk(Chunk c, ArrayFile[] yf) throws IOException {
     int ny = yf.length;
-    float[][][][] x = new float[nx][][][];
-    float[][][][] y = new float[ny][][][];
-    for (int i2=0; i2<_n2; i2+=_m2) {
-      int l2 = min(_l2,i2); // 0 <= i2-l2
-      int m2 = min(_m2,_n2-i2); // i2+m2 <= n2
-      int r2 = min(_r2,_n2-i2-m2); // i2+m2+r2 <= n2
-      int s2 = l2+m2+r2; // chunk size
-      int j2 = i2-l2; // chunk index
-      for (int ix=0; ix<nx; ++ix) {
-        float[][][] xi = x[ix] = new float[_n3][s2][_n1];
-        for (int i3=0; i3<_n3; ++i3) {
-          xf[ix].seek(byteOffset(0,j2,i3));
-          xf[ix].readFloats(xi[i3]);
+    for (int iy=0; iy<ny; ++iy) {
+      float[][][] yi = c.y[iy];
+      synchronized (yf[iy]) {
+        if (c.m1==_n1 && c.m2==_n2) {
+          yf[iy].seek(byteOffset(0,0,c.i3));
+          for (int k3=0; k3<c.m3; ++k3)
+            yf[iy].writeFloats(yi[c.l3+k3]);
+        } else if (c.m1==_n1) {
+          for (int k3=0; k3<c.m3; ++k3) {
+            yf[iy].seek(byteOffset(0,c.i2,c.i3+k3));
+            for (int k2=0; k2<c.m2; ++k2)
+              yf[iy].writeFloats(yi[c.l3+k3][c.l2+k2]);
+          }
+        } else {
+          for (int k3=0; k3<c.m3; ++k3) {
+            for (int k2=0; k2<c.m2; ++k2) {
+              yf[iy].seek(byteOffset(c.i1,c.i2+k2,c.i3+k3));
+              yf[iy].writeFloats(yi[c.l3+k3][c.l2+k2],c.l1,c.m1);
+            }
+          }
         }
       }
-      for (int iy=0; iy<ny; ++iy)
-        y[iy] = ip[iy]<0?new float[_n3][s2][_n1]:x[ip[iy]];
-      filter.apply(0,i2,0,x,y);
-      for (int iy=0; iy<ny; ++iy) {
-        float[][][] yi = y[iy];
-        for (int i3=0; i3<_n3; ++i3) {
-          yf[iy].seek(byteOffset(0,i2,i3));
-          for (int k2=0; k2<m2; ++k2)
-            yf[iy].writeFloats(yi[i3][l2+k2]);
-        }
+    }
+  }
+
+  private static boolean sharesFiles(ArrayFile[] xf, ArrayFile[] yf) {
+    for (ArrayFile y:yf) {
+      for (ArrayFile x:xf) {
+        if (y==x)
+          return true;
       }
     }
+    return false;
   }
 
-  private void apply3(Filter filter, ArrayFile[] xf, ArrayFile[] yf, int[] ip)
+  private void applySerial(
+    Filter filter, ArrayFile[] xf, ArrayFile[] yf, int[] ip)
     throws IOException 
   {
-    int nx = xf.length;
-    int ny = yf.length;
-    float[][][][] x = new float[nx][][][];
-    float[][][][] y = new float[ny][][][];
-    for (int i3=0; i3<_n3; i3+=_m3) {
-      int l3 = min(_l3,i3); // 0 <= i3-l3
-      int m3 = min(_m3,_n3-i3); // i3+m3 <= n3
-      int r3 = min(_r3,_n3-i3-m3); // i3+m3+r3 <= n3
-      int s3 = l3+m3+r3; // chunk size
-      int j3 = i3-l3; // chunk index
-      for (int ix=0; ix<nx; ++ix) {
-        float[][][] xi = x[ix] = new float[s3][_n2][_n1];
-        xf[ix].seek(byteOffset(0,0,j3));
-        xf[ix].readFloats(xi);
-      }
-      for (int iy=0; iy<ny; ++iy)
-        y[iy] = ip[iy]<0?new float[s3][_n2][_n1]:x[ip[iy]];
-      filter.apply(0,0,i3,x,y);
-      for (int iy=0; iy<ny; ++iy) {
-        float[][][] yi = y[iy];
-        yf[iy].seek(byteOffset(0,0,i3));
-        for (int k3=0; k3<m3; ++k3)
-          yf[iy].writeFloats(yi[l3+k3]);
+    int nc = countChunks();
+    for (int ic=0; ic<nc; ++ic) {
+      Chunk c = makeChunk(ic);
+      readChunk(c,xf);
+      makeOutputs(c,ip);
+      filter.apply(c.i1,c.i2,c.i3,c.x,c.y);
+      writeChunk(c,yf);
+    }
+  }
+
+  // Chunks are read in one thread, filtered in one or more threads, and
+  // written in another thread. The number of chunks in memory is limited 
+  // by permits that are acquired before reading each chunk, and released 
+  // after writing it. Failures in any thread are rethrown here.
+  private void applyPipelined(
+    final Filter filter, final ArrayFile[] xf, final ArrayFile[] yf, 
+    final int[] ip)
+    throws IOException 
+  {
+    int nc = countChunks();
+    int nfilter = _nfilter;
+    int nchunk = nfilter+2; // chunks being read, filtered, and written
+    if (_maxTotalSize>0) {
+      int nnew = 0; // number of output arrays that are not in-place
+      for (int iy=0; iy<ip.length; ++iy)
+        if (ip[iy]<0) ++nnew;
+      long chunkTotal = (xf.length+nnew)*_mc;
+      Check.argument(chunkTotal<=_maxTotalSize,
+        "max total size is large enough for one chunk");
+      nchunk = (int)min(nchunk,_maxTotalSize/max(1L,chunkTotal));
+    }
+    final Semaphore permits = new Semaphore(nchunk);
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final ExecutorService reader = Executors.newSingleThreadExecutor();
+    final ExecutorService filters = Executors.newFixedThreadPool(nfilter);
+    final ExecutorService writer = Executors.newSingleThreadExecutor();
+    try {
+      for (int ic=0; ic<nc && error.get()==null; ++ic) {
+        permits.acquire();
+        final Chunk c = makeChunk(ic);
+        reader.submit(new Runnable() {
+          public void run() {
+            try {
+              if (error.get()!=null) {
+                permits.release();
+                return;
+              }
+              readChunk(c,xf);
+              filters.submit(new Runnable() {
+                public void run() {
+                  try {
+                    makeOutputs(c,ip);
+                    filter.apply(c.i1,c.i2,c.i3,c.x,c.y);
+                    c.x = null;
+                    writer.submit(new Runnable() {
+                      public void run() {
+                        try {
+                          writeChunk(c,yf);
+                        } catch (Throwable e) {
+                          error.compareAndSet(null,e);
+                        } finally {
+                          c.y = null;
+                          permits.release();
+                        }
+                      }
+                    });
+                  } catch (Throwable e) {
+                    error.compareAndSet(null,e);
+                    permits.release();
+                  }
+                }
+              });
+            } catch (Throwable e) {
+              error.compareAndSet(null,e);
+              permits.release();
+            }
+          }
+        });
       }
+      permits.acquire(nchunk); // wait for all chunks to be written
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      reader.shutdown();
+      filters.shutdown();
+      writer.shutdown();
     }
+    Throwable e = error.get();
+    if (e instanceof IOException)
+      throw (IOException)e;
+    if (e instanceof RuntimeException)
+      throw (RuntimeException)e;
+    if (e instanceof Error)
+      throw (Error)e;
   }
 
   ///////////////////////////////////////////////////////////////////////////
@@ -457,6 +661,18 @@ public class FileFloat3Chunks {
     int n2, int l2, int r2,
     int n3, int l3, int r3) 
     throws IOException 
+  {
+    testFilter(maxChunkSize,n1,l1,r1,n2,l2,r2,n3,l3,r3,0);
+  }
+
+  // If nthread is positive, chunks are filtered concurrently.
+  private static void testFilter(
+    int maxChunkSize,
+    int n1, int l1, int r1,
+    int n2, int l2, int r2,
+    int n3, int l3, int r3,
+    int nthread) 
+    throws IOException 
   {
     float[][][] x = randfloat(n1,n2,n3);
     float[][][] y = zerofloat(n1,n2,n3);
@@ -475,6 +691,8 @@ public class FileFloat3Chunks {
       xaf.writeFloats(x);
       FileFloat3Chunks ff3c =
         new FileFloat3Chunks(maxChunkSize,n1,l1,r1,n2,l2,r2,n3,l3,r3);
+      if (nthread>0)
+        ff3c.setParallel(nthread,(nthread+2)*2*ff3c.getChunkSize());
       ff3c.apply(tf,new ArrayFile[]{xaf},new ArrayFile[]{yaf});
       yaf.seek(0);
       yaf.readFloats(y);
@@ -521,9 +739,31 @@ public class FileFloat3Chunks {
     testFilter(maxChunkSize,n1,l1,r1,n2,l2,r2,n3,l3,r3);
   }
 
+  private static void test4() throws IOException {
+    int n1 = 11,  l1 = 2,  r1 = 3;
+    int n2 = 10,  l2 = 3,  r2 = 4;
+    int n3 = 12,  l3 = 1,  r3 = 2;
+    int maxChunkSize = (l3+n3/6+r3)*n1*n2;
+    System.out.println("test4:");
+    testFilter(maxChunkSize,n1,l1,r1,n2,l2,r2,n3,l3,r3,1);
+    testFilter(maxChunkSize,n1,l1,r1,n2,l2,r2,n3,l3,r3,4);
+  }
+
+  private static void test5() throws IOException {
+    int n1 = 13,  l1 = 2,  r1 = 3;
+    int n2 = 12,  l2 = 3,  r2 = 1;
+    int n3 = 11,  l3 = 1,  r3 = 2;
+    int maxChunkSize = (l1+n1/3+r1)*(l2+n2/3+r2)*(l3+n3/3+r3);
+    System.out.println("test5:");
+    testFilter(maxChunkSize,n1,l1,r1,n2,l2,r2,n3,l3,r3);
+    testFilter(maxChunkSize,n1,l1,r1,n2,l2,r2,n3,l3,r3,4);
+  }
+
   public static void main(String[] args) throws IOException {
     test1();
     test2();
     test3();
+    test4();
+    test5();
   }
 }
@@ -6,8 +6,11 @@ available at http://www.eclipse.org/legal/cpl-v10.html
 ****************************************************************************/
 package lcc;
 
+import java.util.ArrayList;
+
 import edu.mines.jtk.dsp.RecursiveGaussianFilter;
 import edu.mines.jtk.util.Check;
+import edu.mines.jtk.util.Parallel;
 import static edu.mines.jtk.util.ArrayMath.*;
 
 /**
@@ -251,28 +254,7 @@ public class LocalCorrelationFilter {
     checkDimensions(c);
     if (_s==null)
       updateNormalize();
-    int n1 = _n1;
-    int l1 = lag;
-    if (_type==Type.SIMPLE) {
-      float[] sf = _s[0][0][0];
-      float[] sg = _s[1][0][0];
-      int i1min = max(0,-l1);
-      int i1max = min(n1,n1-l1);
-      for (int i1=0; i1<i1min; ++i1) {
-        c[i1] *= sf[i1]*sg[0];
-      }
-      for (int i1=i1min; i1<i1max; ++i1) {
-        c[i1] *= sf[i1]*sg[i1+l1];
-      }
-      for (int i1=i1max; i1<n1; ++i1) {
-        c[i1] *= sf[i1]*sg[n1-1];
-      }
-    } else if (_type==Type.SYMMETRIC) {
-      float[] s = _s[0][0][0];
-      for (int i1=0; i1<n1; ++i1) {
-        c[i1] *= s[i1];
-      }
-    }
+    normalize(lag,0,0,0,0,c);
   }
 
   /**
@@ -284,39 +266,9 @@ public class LocalCorrelationFilter {
     checkDimensions(c);
     if (_s==null)
       updateNormalize();
-    int n1 = _n1;
     int n2 = _n2;
-    int l1 = lag1;
-    int l2 = lag2;
-    if (_type==Type.SIMPLE) {
-      float[][] sf = _s[0][0];
-      float[][] sg = _s[1][0];
-      int i1min = max(0,-l1);
-      int i1max = min(n1,n1-l1);
-      for (int i2=0; i2<n2; ++i2) {
-        float[] c2 = c[i2];
-        float[] sf2 = sf[i2];
-        float[] sg2 = sg[max(0,min(n2-1,i2+l2))];
-        for (int i1=0; i1<i1min; ++i1) {
-          c2[i1] *= sf2[i1]*sg2[0];
-        }
-        for (int i1=i1min; i1<i1max; ++i1) {
-          c2[i1] *= sf2[i1]*sg2[i1+l1];
-        }
-        for (int i1=i1max; i1<n1; ++i1) {
-          c2[i1] *= sf2[i1]*sg2[n1-1];
-        }
-      }
-    } else if (_type==Type.SYMMETRIC) {
-      float[][] s = _s[0][0];
-      for (int i2=0; i2<n2; ++i2) {
-        float[] c2 = c[i2];
-        float[] s2 = s[i2];
-        for (int i1=0; i1<n1; ++i1) {
-          c2[i1] *= s2[i1];
-        }
-      }
-    }
+    for (int i2=0; i2<n2; ++i2)
+      normalize(lag1,lag2,0,i2,0,c[i2]);
   }
 
   /**
@@ -328,50 +280,11 @@ public class LocalCorrelationFilter {
     checkDimensions(c);
     if (_s==null)
       updateNormalize();
-    int n1 = _n1;
     int n2 = _n2;
     int n3 = _n3;
-    int l1 = lag1;
-    int l2 = lag2;
-    int l3 = lag3;
-    if (_type==Type.SIMPLE) {
-      float[][][] sf = _s[0];
-      float[][][] sg = _s[1];
-      int i1min = max(0,-l1);
-      int i1max = min(n1,n1-l1);
-      for (int i3=0; i3<n3; ++i3) {
-        float[][] c3 = c[i3];
-        float[][] sf3 = sf[i3];
-        float[][] sg3 = sg[max(0,min(n3-1,i3+l3))];
-        for (int i2=0; i2<n2; ++i2) {
-          float[] c32 = c3[i2];
-          float[] sf32 = sf3[i2];
-          float[] sg32 = sg3[max(0,min(n2-1,i2+l2))];
-          for (int i1=0; i1<i1min; ++i1) {
-            c32[i1] *= sf32[i1]*sg32[0];
-          }
-          for (int i1=i1min; i1<i1max; ++i1) {
-            c32[i1] *= sf32[i1]*sg32[i1+l1];
-          }
-          for (int i1=i1max; i1<n1; ++i1) {
-            c32[i1] *= sf32[i1]*sg32[n1-1];
-          }
-        }
-      }
-    } else if (_type==Type.SYMMETRIC) {
-      float[][][] s = _s[0];
-      for (int i3=0; i3<n3; ++i3) {
-        float[][] c3 = c[i3];
-        float[][] s3 = s[i3];
-        for (int i2=0; i2<n2; ++i2) {
-          float[] c32 = c3[i2];
-          float[] s32 = s3[i2];
-          for (int i1=0; i1<n1; ++i1) {
-            c32[i1] *= s32[i1];
-          }
-        }
-      }
-    }
+    for (int i3=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        normalize(lag1,lag2,lag3,i2,i3,c[i3][i2]);
   }
 
   /** 
@@ -419,6 +332,26 @@ public class LocalCorrelationFilter {
     return t;
   }
 
+  /**
+   * Sets the maximum number of lags for which cross-correlations are 
+   * computed together when searching for lags with maximum correlations.
+   * Correlations for a batch of lags are computed in one parallel sweep
+   * over the input arrays, but they must be kept until lags are searched. 
+   * Each lag in a batch requires an array of correlations with the same 
+   * dimensions as the input arrays, so memory required for correlations 
+   * is proportional to this number. For large 3-D inputs, this number 
+   * should be small enough that nbatch arrays of correlations fit in 
+   * memory. Lags found do not depend on this number. 
+   * <p>
+   * The default number is 4. A search for one lag at a time, with
+   * nbatch = 1, requires the least memory. 
+   * @param nbatch the maximum number of lags; must be positive.
+   */
+  public void setLagBatchSize(int nbatch) {
+    Check.argument(nbatch>0,"nbatch>0");
+    _nbatch = nbatch;
+  }
+
   /**
    * Searches for lags for which cross-correlations are maximized.
    * @param min minimum lag
@@ -427,56 +360,9 @@ public class LocalCorrelationFilter {
    */
   public void findMaxLags(int min, int max, byte[] lag) {
     checkDimension(1);
-
-    // Initialize arrays of lags.
-    int n = _n1;
-    for (int i=0; i<n; ++i)
-      lag[i] = 0;
-
-    // Array for cross-correlations.
-    float[] c = new float[n];
-    float[] cmax = new float[n];
-    for (int i=0; i<n; ++i)
-      cmax[i] = -FLT_MAX;
-
-    // Search begins in the middle of the specified range of lags.
     Lags lags = new Lags(min,max);
-    int l = (min+max)/2;
-
-    // While lags remain to be processed, ...
-    boolean done = false;
-    while (!done) {
-
-      // Apply correlation filter for this lag.
-      correlate(l,c);
-      if (_type==Type.SIMPLE)
-        normalize(l,c);
-
-      // Correlations have been computed for this lag, 
-      // but no maxima have yet been found.
-      lags.markLag(l);
-
-      // Look for maxima; if found, mark this lag accordingly.
-      boolean foundMax = false;
-      for (int i=0; i<n; ++i) { 
-        float ci = c[i];
-        if (ci>cmax[i]) {
-          cmax[i] = ci;
-          lag[i] = (byte)l;
-          foundMax = true;
-        }
-      }
-      if (foundMax)
-        lags.markMax(l);
-
-      // Which lag to process next?
-      int[] ls = lags.nextLag();
-      if (ls==null) {
-        done = true;
-      } else {
-        l = ls[0];
-      }
-    }
+    int[] l = {(min+max)/2,0,0};
+    findMaxLags(lags,l,new byte[][][]{{lag}},null,null);
   }
 
   /**
@@ -493,153 +379,31 @@ public class LocalCorrelationFilter {
     byte[][] lag1, byte[][] lag2) 
   {
     checkDimension(2);
-
-    // Initialize arrays of lags.
-    int n1 = _n1;
-    int n2 = _n2;
-    for (int i2=0; i2<n2; ++i2) {
-      for (int i1=0; i1<n1; ++i1) {
-        lag1[i2][i1] = 0;
-        lag2[i2][i1] = 0;
-      }
-    }
-
-    // Array for cross-correlations.
-    float[][] c = new float[n2][n1];
-    float[][] cmax = new float[n2][n1];
-    for (int i2=0; i2<n2; ++i2)
-      for (int i1=0; i1<n1; ++i1)
-        cmax[i2][i1] = -FLT_MAX;
-
-    // Search begins in the middle of the specified range of lags.
     Lags lags = new Lags(min1,max1,min2,max2);
-    int l1 = (min1+max1)/2;
-    int l2 = (min2+max2)/2;
-
-    // While lags remain to be processed, ...
-    boolean done = false;
-    while (!done) {
-
-      // Apply correlation filter for this lag.
-      correlate(l1,l2,c);
-      if (_type==Type.SIMPLE)
-        normalize(l1,l2,c);
-
-      // Correlations have been computed for this lag, 
-      // but no maxima have yet been found.
-      lags.markLag(l1,l2);
-
-      // Look for maxima; if found, mark this lag accordingly.
-      boolean foundMax = false;
-      for (int i2=0; i2<n2; ++i2) { 
-        float[] c2 = c[i2];
-        float[] cmax2 = cmax[i2];
-        for (int i1=0; i1<n1; ++i1) { 
-          float ci = c2[i1];
-          if (ci>cmax2[i1]) {
-            cmax[i2][i1] = ci;
-            lag1[i2][i1] = (byte)l1;
-            lag2[i2][i1] = (byte)l2;
-            foundMax = true;
-          }
-        }
-      }
-      if (foundMax)
-        lags.markMax(l1,l2);
-
-      // Which lag to process next?
-      int[] ls = lags.nextLag();
-      if (ls==null) {
-        done = true;
-      } else {
-        l1 = ls[0];
-        l2 = ls[1];
-      }
-    }
+    int[] l = {(min1+max1)/2,(min2+max2)/2,0};
+    findMaxLags(lags,l,new byte[][][]{lag1},new byte[][][]{lag2},null);
   }
 
+  /**
+   * Searches for lags for which cross-correlations are maximized.
+   * @param min1 minimum lag in 1st dimension
+   * @param max1 maximum lag in 1st dimension
+   * @param min2 minimum lag in 2nd dimension
+   * @param max2 maximum lag in 2nd dimension
+   * @param min3 minimum lag in 3rd dimension
+   * @param max3 maximum lag in 3rd dimension
+   * @param lag1 output array of lags in the 1st dimension.
+   * @param lag2 output array of lags in the 2nd dimension.
+   * @param lag3 output array of lags in the 3rd dimension.
+   */
   public void findMaxLags(
     int min1, int max1, int min2, int max2, int min3, int max3,
     byte[][][] lag1, byte[][][] lag2, byte[][][] lag3) 
   {
     checkDimension(3);
-
-    // Initialize arrays of lags.
-    int n1 = _n1;
-    int n2 = _n2;
-    int n3 = _n3;
-    for (int i3=0; i3<n3; ++i3) {
-      for (int i2=0; i2<n2; ++i2) {
-        for (int i1=0; i1<n1; ++i1) {
-          lag1[i3][i2][i1] = 0;
-          lag2[i3][i2][i1] = 0;
-          lag3[i3][i2][i1] = 0;
-        }
-      }
-    }
-
-    // Array for cross-correlations.
-    float[][][] c = new float[n3][n2][n1];
-    float[][][] cmax = new float[n3][n2][n1];
-    for (int i3=0; i3<n3; ++i3)
-      for (int i2=0; i2<n2; ++i2)
-        for (int i1=0; i1<n1; ++i1)
-          cmax[i3][i2][i1] = -FLT_MAX;
-
-    // Search begins in the middle of the specified range of lags.
     Lags lags = new Lags(min1,max1,min2,max2,min3,max3);
-    int l1 = (min1+max1)/2;
-    int l2 = (min2+max2)/2;
-    int l3 = (min3+max3)/2;
-
-    // While lags remain to be processed, ...
-    boolean done = false;
-    while (!done) {
-
-      // Apply correlation filter for this lag.
-      System.out.println("findMaxLags: l1="+l1+" l2="+l2+" l3="+l3);
-      correlate(l1,l2,l3,c);
-      if (_type==Type.SIMPLE)
-        normalize(l1,l2,l3,c);
-
-      // Correlations have been computed for this lag, 
-      // but no maxima have yet been found.
-      lags.markLag(l1,l2,l3);
-
-      // Look for maxima; if found, mark this lag accordingly.
-      boolean foundMax = false;
-      for (int i3=0; i3<n3; ++i3) { 
-        for (int i2=0; i2<n2; ++i2) { 
-          float[] c32 = c[i3][i2];
-          float[] cmax32 = cmax[i3][i2];
-          byte[] lag132 = lag1[i3][i2];
-          byte[] lag232 = lag2[i3][i2];
-          byte[] lag332 = lag3[i3][i2];
-          for (int i1=0; i1<n1; ++i1) { 
-            float ci = c32[i1];
-            if (ci>cmax32[i1]) {
-              cmax32[i1] = ci;
-              lag132[i1] = (byte)l1;
-              lag232[i1] = (byte)l2;
-              lag332[i1] = (byte)l3;
-              foundMax = true;
-            }
-          }
-        }
-      }
-      if (foundMax)
-        lags.markMax(l1,l2,l3);
-
-      // Which lag to process next?
-      int[] ls = lags.nextLag();
-      if (ls==null) {
-        done = true;
-      } else {
-        l1 = ls[0];
-        l2 = ls[1];
-        l3 = ls[2];
-      }
-    }
+    int[] l = {(min1+max1)/2,(min2+max2)/2,(min3+max3)/2};
+    findMaxLags(lags,l,lag1,lag2,lag3);
   }
 
   public void refineLags(byte[] l, float[] u) {
@@ -1017,6 +781,127 @@ public class LocalCorrelationFilter {
   ///////////////////////////////////////////////////////////////////////////
   // private
 
+  // Searches for lags for which cross-correlations are maximized, beginning
+  // with the specified lag l. Lags are processed one at a time, in the 
+  // order determined by the specified lags; each lag processed updates 
+  // the maximum correlation and the lags for each sample. That order and 
+  // those updates are the same as if correlations were computed for only
+  // one lag at a time. However, when correlations for the next lag have 
+  // not yet been computed, they are computed for a batch of lags, those 
+  // likely to be processed next, in one sweep over the inputs. Other than 
+  // correlations for that batch, only the maximum correlations and lags 
+  // found so far are kept. For 1-D or 2-D inputs, the arrays of lags in 
+  // higher dimensions are null.
+  private void findMaxLags(
+    Lags lags, int[] l, byte[][][] lag1, byte[][][] lag2, byte[][][] lag3) 
+  {
+    int n1 = _n1;
+    int n2 = max(1,_n2);
+    int n3 = max(1,_n3);
+    for (int i3=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1) {
+          lag1[i3][i2][i1] = 0;
+          if (lag2!=null) lag2[i3][i2][i1] = 0;
+          if (lag3!=null) lag3[i3][i2][i1] = 0;
+        }
+      }
+    }
+
+    // Arrays for maximum cross-correlations and a batch of correlations.
+    float[][][] cmax = new float[n3][n2][n1];
+    fill(-FLT_MAX,cmax);
+    float[][][][] cb = new float[_nbatch][][][];
+    CorrelationLag[] lb = new CorrelationLag[0];
+
+    // Normalization scale factors are used by all correlations in a batch.
+    if (_type==Type.SIMPLE && _s==null)
+      updateNormalize();
+
+    // While lags remain to be processed, ...
+    while (l!=null) {
+
+      // If correlations for this lag are not in the current batch,
+      // compute correlations for a new batch that begins with this lag.
+      int ib = indexOf(l,lb);
+      if (ib<0) {
+        int[][] ls = lags.nextLags(l,_nbatch);
+        int nb = ls.length;
+        lb = new CorrelationLag[nb];
+        for (int jb=0; jb<nb; ++jb) {
+          lb[jb] = new CorrelationLag(ls[jb][0],ls[jb][1],ls[jb][2]);
+          if (cb[jb]==null)
+            cb[jb] = new float[n3][n2][n1];
+        }
+        correlate(_f,_g,lb,cb);
+        ib = 0;
+      }
+
+      // Correlations have been computed for this lag, 
+      // but no maxima have yet been found.
+      lags.markLag(l[0],l[1],l[2]);
+
+      // Look for maxima; if found, mark this lag accordingly.
+      if (updateMaxLags(lb[ib],cb[ib],cmax,lag1,lag2,lag3))
+        lags.markMax(l[0],l[1],l[2]);
+
+      // Which lag to process next?
+      l = lags.nextLag();
+    }
+  }
+
+  // Updates maximum correlations and corresponding lags, in parallel for 
+  // all samples in 2nd and 3rd dimensions. Simple correlations are first
+  // normalized. Returns true, if correlations for the specified lag exceed 
+  // the maximum for any sample; false, if not.
+  private boolean updateMaxLags(
+    final CorrelationLag lag, final float[][][] c, final float[][][] cmax, 
+    final byte[][][] lag1, final byte[][][] lag2, final byte[][][] lag3)
+  {
+    final int n1 = c[0][0].length;
+    final int n2 = c[0].length;
+    final int n3 = c.length;
+    final int l1 = lag.l1;
+    final int l2 = lag.l2;
+    final int l3 = lag.l3;
+    return Parallel.reduce(n2*n3,new Parallel.ReduceInt<Boolean>() {
+    public Boolean compute(int i23) {
+      int i2 = i23%n2;
+      int i3 = i23/n2;
+      float[] c32 = c[i3][i2];
+      float[] cmax32 = cmax[i3][i2];
+      byte[] lag132 = lag1[i3][i2];
+      byte[] lag232 = (lag2!=null)?lag2[i3][i2]:null;
+      byte[] lag332 = (lag3!=null)?lag3[i3][i2]:null;
+      if (_type==Type.SIMPLE)
+        normalize(l1,l2,l3,i2,i3,c32);
+      boolean foundMax = false;
+      for (int i1=0; i1<n1; ++i1) { 
+        float ci = c32[i1];
+        if (ci>cmax32[i1]) {
+          cmax32[i1] = ci;
+          lag132[i1] = (byte)l1;
+          if (lag232!=null) lag232[i1] = (byte)l2;
+          if (lag332!=null) lag332[i1] = (byte)l3;
+          foundMax = true;
+        }
+      }
+      return foundMax;
+    }
+    public Boolean combine(Boolean found1, Boolean found2) {
+      return found1 || found2;
+    }});
+  }
+
+  // Returns the index of lag l in the specified array of lags, or -1.
+  private static int indexOf(int[] l, CorrelationLag[] ls) {
+    for (int i=0; i<ls.length; ++i) {
+      if (ls[i].l1==l[0] && ls[i].l2==l[1] && ls[i].l3==l[2])
+        return i;
+    }
+    return -1;
+  }
+
   // Information about lags used when searching for correlation maxima.
   // Lags for which correlations have been computed are marked. Lags for 
   // which correlation maxima have been found are marked differently.
@@ -1103,6 +988,43 @@ public class LocalCorrelationFilter {
       }
       return null;
     }
+    // Returns an array beginning with the specified lag l, which is not 
+    // marked, followed by at most nl-1 other lags that are likely to be 
+    // processed soon after l. Those other lags are not marked, but are 
+    // adjacent to either l or a lag for which a maximum has been found, 
+    // and are listed in the same order in which nextLag looks for them.
+    int[][] nextLags(int[] l, int nl) {
+      ArrayList<int[]> ls = new ArrayList<int[]>();
+      ls.add(l);
+      for (int l3=_min3; l3<=_max3 && ls.size()<nl; ++l3) {
+        for (int l2=_min2; l2<=_max2 && ls.size()<nl; ++l2) {
+          for (int l1=_min1; l1<=_max1 && ls.size()<nl; ++l1) {
+            boolean isl = l1==l[0] && l2==l[1] && l3==l[2];
+            if (isl || isMarkedMax(l1,l2,l3)) {
+              for (int k3=l3-1; k3<=l3+1; ++k3) {
+                for (int k2=l2-1; k2<=l2+1; ++k2) {
+                  for (int k1=l1-1; k1<=l1+1; ++k1) {
+                    int[] k = {k1,k2,k3};
+                    if (ls.size()<nl && 
+                        !isMarkedLag(k1,k2,k3) && 
+                        !contains(ls,k))
+                      ls.add(k);
+                  }
+                }
+              }
+            }
+          }
+        }
+      }
+      return ls.toArray(new int[ls.size()][]);
+    }
+    private static boolean contains(ArrayList<int[]> ls, int[] l) {
+      for (int[] k:ls) {
+        if (k[0]==l[0] && k[1]==l[1] && k[2]==l[2])
+          return true;
+      }
+      return false;
+    }
     int _min1,_max1,_min2,_max2,_min3,_max3;
     byte[][][] _mark;
   }
@@ -1256,6 +1178,7 @@ public class LocalCorrelationFilter {
   private int _n1,_n2,_n3; // array lengths
   private float[][][] _f,_g; // inputs f and g; by reference
   private float[][][][] _s; // normalization scale factors
+  private int _nbatch = 4; // max number of lags correlated together
 
   // Kaiser-windowed sinc interpolation coefficients for half-sample shifts.
   private static float S1 =  0.6157280f;
@@ -1265,280 +1188,300 @@ public class LocalCorrelationFilter {
   private static float[] S = {S4,S3,S2,S1,S1,S2,S3,S4};
 
   private void correlate(int lag, float[] f, float[] g, float[] c) {
-    Check.argument(f!=c,"f!=c");
-    Check.argument(g!=c,"g!=c");
-    int n1 = f.length;
-    int l1 = lag;
-
-    // Conventional lags for f and g for simple correlation.
-    int l1f = 0;
-    int l1g = l1;
-
-    // Shifted lags for symmetric correlation.
-    if (_type==Type.SYMMETRIC) {
-      // Examples of symmetric lags:
-      // lag  ...  -2  -1   0   1   2  ...
-      // l1f  ...  -1  -1   0   0   1  ...
-      // l1g  ...  -1   0   0   1   1  ...
-      l1f = (l1>=0)?(l1+0)/2:(l1-1)/2;
-      l1g = (l1>=0)?(l1+1)/2:(l1+0)/2;
-    }
-
-    // Scale factor so that center of window = 1.
-    double scale1 = 1.0;
-    if (_window==Window.GAUSSIAN) {
-      scale1 *= sqrt(2.0*PI)*_sigma1;
-    } else {
-      scale1 *= 1.0+2.0*_sigma1;
-    }
+    correlate(lag,0,0,
+      new float[][][]{{f}},new float[][][]{{g}},new float[][][]{{c}});
+  }
 
-    // If symmetric correlation, need extra lag-dependent scaling.
-    // This scaling accounts for the separation (by lag samples) of 
-    // the two windows implicitly applied to f and g. The filter we
-    // apply below to the correlation product h is the product of 
-    // those two windows.
-    if (_type==Type.SYMMETRIC) {
-      if (_window==Window.GAUSSIAN) {
-        scale1 *= exp((-0.125*l1*l1)/(_sigma1*_sigma1));
-      } else {
-        scale1 *= max(0.0,1.0+2.0*_sigma1-abs(l1))/(1.0+2.0*_sigma1);
-      }
-    }
-    float scale = (float)scale1;
+  private void correlate(
+    int lag1, int lag2, float[][] f, float[][] g, float[][] c) 
+  {
+    correlate(lag1,lag2,0,
+      new float[][][]{f},new float[][][]{g},new float[][][]{c});
+  }
 
-    // Correlation product.
-    float[] h = new float[n1];
-    int i1min = max(0,l1f,-l1g);
-    int i1max = min(n1,n1+l1f,n1-l1g);
-    for (int i1=i1min; i1<i1max; ++i1) {
-      h[i1] = scale*f[i1-l1f]*g[i1+l1g];
-    }
+  private void correlate(
+    int lag1, int lag2, int lag3, float[][][] f, float[][][] g, float[][][] c) 
+  {
+    CorrelationLag[] lb = {new CorrelationLag(lag1,lag2,lag3)};
+    correlate(f,g,lb,new float[][][][]{c});
+  }
 
-    // If Gaussian and symmetric and odd lag, delay (shift) by 1/2 sample.
-    if (_window==Window.GAUSSIAN && _type==Type.SYMMETRIC) {
-      if (l1f!=l1g) {
-        shift(h,c);
-        copy(c,h);
+  // Correlates inputs f and g for a batch of lags lb, in one sweep over
+  // the inputs. For 1-D and 2-D inputs, arrays have dimensions n3 = 1 and
+  // n2 = 1, as appropriate. For each slice i3, products for all lags are 
+  // formed, shifted, and filtered in the 1st and 2nd dimensions, using 
+  // workspace for only that slice. For 3-D inputs, correlations are then
+  // shifted, if necessary, and filtered in the 3rd dimension, for each 
+  // slice i2. The only arrays with the size of the inputs are the output 
+  // correlations c[nb][n3][n2][n1], one array for each lag. For each lag,
+  // operations are performed in the same order as when correlations are 
+  // computed for only that lag, so that correlations are the same.
+  private void correlate(
+    final float[][][] f, final float[][][] g, 
+    final CorrelationLag[] lb, final float[][][][] c)
+  {
+    final int nb = lb.length;
+    final int n1 = f[0][0].length;
+    final int n2 = f[0].length;
+    final int n3 = f.length;
+    boolean shift3 = false;
+    for (int ib=0; ib<nb; ++ib) {
+      Check.argument(f[0][0]!=c[ib][0][0],"f!=c");
+      Check.argument(g[0][0]!=c[ib][0][0],"g!=c");
+      shift3 = shift3 || lb[ib].shift3;
+    }
+
+    // Products, shifted and filtered in 1st and 2nd dimensions. Products 
+    // to be shifted in the 3rd dimension are filtered only after that 
+    // shift, for the same order of operations as for only one lag.
+    final Parallel.Unsafe<float[][][]> htu = 
+      new Parallel.Unsafe<float[][][]>();
+    Parallel.loop(n3,new Parallel.LoopInt() {
+    public void compute(int i3) {
+      float[][][] ht = htu.get();
+      if (ht==null) htu.set(ht=new float[2][n2][n1]);
+      float[][] h = ht[0];
+      float[][] t = ht[1];
+      for (int ib=0; ib<nb; ++ib) {
+        CorrelationLag lag = lb[ib];
+        lag.product(i3,f,g,h);
+        if (lag.shift1) {
+          shift1(h,t);
+          copy(t,h);
+        }
+        if (lag.shift2) {
+          shift2(h,t);
+          copy(t,h);
+        }
+        if (lag.shift3) {
+          copy(h,c[ib][i3]);
+        } else {
+          lag.filter12(h,t,c[ib][i3]);
+        }
       }
-    }
+    }});
+    if (_dimension<3)
+      return;
 
-    // Filter correlation product with window. For symmetric correlations
-    // with a rectangle window, the width of the product rectangle depends 
-    // on the lag, so we construct a new rectangle filter for each lag.
-    Filter f1 = _f1;
-    if (_window==Window.RECTANGLE && _type==Type.SYMMETRIC)
-      f1 = new RectangleFilter(_sigma1,l1);
-    f1.apply(h,c);
+    // Columns in the 3rd dimension for one slice i2, with workspace.
+    final Parallel.Unsafe<float[][][]> xyu = 
+      new Parallel.Unsafe<float[][][]>();
+
+    // Shifts in the 3rd dimension, followed by filters in 1st and 2nd.
+    if (shift3) {
+      Parallel.loop(n2,new Parallel.LoopInt() {
+      public void compute(int i2) {
+        float[][][] xy = xyu.get();
+        if (xy==null) xyu.set(xy=new float[][][]{new float[n3][],
+                                                  new float[n3][n1]});
+        float[][] x = xy[0];
+        float[][] y = xy[1];
+        for (int ib=0; ib<nb; ++ib) {
+          if (lb[ib].shift3) {
+            for (int i3=0; i3<n3; ++i3)
+              x[i3] = c[ib][i3][i2];
+            shift2(x,y);
+            copy(y,x);
+          }
+        }
+      }});
+      Parallel.loop(n3,new Parallel.LoopInt() {
+      public void compute(int i3) {
+        float[][][] ht = htu.get();
+        if (ht==null) htu.set(ht=new float[2][n2][n1]);
+        float[][] t = ht[1];
+        for (int ib=0; ib<nb; ++ib) {
+          if (lb[ib].shift3)
+            lb[ib].filter12(c[ib][i3],t,c[ib][i3]);
+        }
+      }});
+    }
+
+    // Filters in the 3rd dimension.
+    Parallel.loop(n2,new Parallel.LoopInt() {
+    public void compute(int i2) {
+      float[][][] xy = xyu.get();
+      if (xy==null) xyu.set(xy=new float[][][]{new float[n3][],
+                                                new float[n3][n1]});
+      float[][] x = xy[0];
+      float[][] y = xy[1];
+      for (int ib=0; ib<nb; ++ib) {
+        for (int i3=0; i3<n3; ++i3)
+          x[i3] = c[ib][i3][i2];
+        lb[ib].f3.apply2(x,y);
+        copy(y,x);
+      }
+    }});
   }
 
-  private void correlate(
-    int lag1, int lag2, float[][] f, float[][] g, float[][] c) 
-  {
-    Check.argument(f!=c,"f!=c");
-    Check.argument(g!=c,"g!=c");
-    int n1 = f[0].length;
-    int n2 = f.length;
-    int l1 = lag1;
-    int l2 = lag2;
-
-    // Conventional lags for f and g for simple correlation.
-    int l1f = 0;
-    int l1g = l1;
-    int l2f = 0;
-    int l2g = l2;
-
-    // Shifted lags for symmetric correlation.
-    if (_type==Type.SYMMETRIC) {
-      l1f = (l1>=0)?(l1+0)/2:(l1-1)/2;
-      l1g = (l1>=0)?(l1+1)/2:(l1+0)/2;
-      l2f = (l2>=0)?(l2+0)/2:(l2-1)/2;
-      l2g = (l2>=0)?(l2+1)/2:(l2+0)/2;
-    }
-
-    // Scale factor so that center of window = 1.
-    double scale1 = 1.0;
-    double scale2 = 1.0;
-    if (_window==Window.GAUSSIAN) {
-      scale1 *= sqrt(2.0*PI)*_sigma1;
-      scale2 *= sqrt(2.0*PI)*_sigma2;
-    } else {
-      scale1 *= 1.0+2.0*_sigma1;
-      scale2 *= 1.0+2.0*_sigma2;
-    }
+  // One lag for which inputs f and g are correlated, with the lags for f 
+  // and g, the scale factor, the half-sample shifts, and the filters that 
+  // implement the window, all of which depend on the lag.
+  private class CorrelationLag {
+    int l1,l2,l3; // the lag
+    int l1f,l1g,l2f,l2g,l3f,l3g; // lags for f and g
+    float scale; // scale factor for products
+    boolean shift1,shift2,shift3; // true, if shifted by 1/2 sample
+    Filter f1,f2,f3; // filters for products
+
+    CorrelationLag(int lag1, int lag2, int lag3) {
+      l1 = lag1;
+      l2 = lag2;
+      l3 = lag3;
+
+      // Conventional lags for f and g for simple correlation.
+      l1f = 0;
+      l1g = l1;
+      l2f = 0;
+      l2g = l2;
+      l3f = 0;
+      l3g = l3;
+
+      // Shifted lags for symmetric correlation.
+      if (_type==Type.SYMMETRIC) {
+        // Examples of symmetric lags:
+        // lag  ...  -2  -1   0   1   2  ...
+        // l1f  ...  -1  -1   0   0   1  ...
+        // l1g  ...  -1   0   0   1   1  ...
+        l1f = (l1>=0)?(l1+0)/2:(l1-1)/2;
+        l1g = (l1>=0)?(l1+1)/2:(l1+0)/2;
+        l2f = (l2>=0)?(l2+0)/2:(l2-1)/2;
+        l2g = (l2>=0)?(l2+1)/2:(l2+0)/2;
+        l3f = (l3>=0)?(l3+0)/2:(l3-1)/2;
+        l3g = (l3>=0)?(l3+1)/2:(l3+0)/2;
+      }
 
-    // If symmetric correlation, need extra lag-dependent scaling.
-    // This scaling accounts for the separation (by lag samples) of 
-    // the two windows implicitly applied to f and g. The filter we
-    // apply below to the correlation product h is the product of 
-    // those two windows.
-    if (_type==Type.SYMMETRIC) {
+      // Scale factor so that center of window = 1, for each dimension
+      // of the inputs.
+      int nd = _dimension;
+      double scale1 = 1.0;
+      double scale2 = 1.0;
+      double scale3 = 1.0;
       if (_window==Window.GAUSSIAN) {
-        scale1 *= exp((-0.125*l1*l1)/(_sigma1*_sigma1));
-        scale2 *= exp((-0.125*l2*l2)/(_sigma2*_sigma2));
+        scale1 *= sqrt(2.0*PI)*_sigma1;
+        if (nd>1) scale2 *= sqrt(2.0*PI)*_sigma2;
+        if (nd>2) scale3 *= sqrt(2.0*PI)*_sigma3;
       } else {
-        scale1 *= max(0.0,1.0+2.0*_sigma1-abs(l1))/(1.0+2.0*_sigma1);
-        scale2 *= max(0.0,1.0+2.0*_sigma2-abs(l2))/(1.0+2.0*_sigma2);
+        scale1 *= 1.0+2.0*_sigma1;
+        if (nd>1) scale2 *= 1.0+2.0*_sigma2;
+        if (nd>2) scale3 *= 1.0+2.0*_sigma3;
       }
-    }
-    float scale = (float)(scale1*scale2);
 
-    // Correlation product.
-    float[][] h = new float[n2][n1];
-    int i1min = max(0,l1f,-l1g);
-    int i1max = min(n1,n1+l1f,n1-l1g);
-    int i2min = max(0,l2f,-l2g);
-    int i2max = min(n2,n2+l2f,n2-l2g);
-    for (int i2=i2min; i2<i2max; ++i2) {
-      float[] f2 = f[i2-l2f];
-      float[] g2 = g[i2+l2g];
-      float[] h2 = h[i2];
-      for (int i1=i1min; i1<i1max; ++i1) {
-        h2[i1] = scale*f2[i1-l1f]*g2[i1+l1g];
+      // If symmetric correlation, need extra lag-dependent scaling.
+      // This scaling accounts for the separation (by lag samples) of 
+      // the two windows implicitly applied to f and g. The filter we
+      // apply below to the correlation product h is the product of 
+      // those two windows.
+      if (_type==Type.SYMMETRIC) {
+        if (_window==Window.GAUSSIAN) {
+          scale1 *= exp((-0.125*l1*l1)/(_sigma1*_sigma1));
+          if (nd>1) scale2 *= exp((-0.125*l2*l2)/(_sigma2*_sigma2));
+          if (nd>2) scale3 *= exp((-0.125*l3*l3)/(_sigma3*_sigma3));
+        } else {
+          scale1 *= max(0.0,1.0+2.0*_sigma1-abs(l1))/(1.0+2.0*_sigma1);
+          if (nd>1) 
+            scale2 *= max(0.0,1.0+2.0*_sigma2-abs(l2))/(1.0+2.0*_sigma2);
+          if (nd>2) 
+            scale3 *= max(0.0,1.0+2.0*_sigma3-abs(l3))/(1.0+2.0*_sigma3);
+        }
       }
-    }
+      scale = (float)(scale1*scale2*scale3);
 
-    // If Gaussian and symmetric and odd lag, delay (shift) by 1/2 sample.
-    if (_window==Window.GAUSSIAN && _type==Type.SYMMETRIC) {
-      if (l1f!=l1g) {
-        shift1(h,c);
-        copy(c,h);
+      // If Gaussian and symmetric and odd lag, delay (shift) by 1/2 sample.
+      if (_window==Window.GAUSSIAN && _type==Type.SYMMETRIC) {
+        shift1 = l1f!=l1g;
+        shift2 = l2f!=l2g;
+        shift3 = l3f!=l3g;
       }
-      if (l2f!=l2g) {
-        shift2(h,c);
-        copy(c,h);
-      }
-    }
 
-    // Filter correlation product with window. For symmetric correlations
-    // with a rectangle window, the width of the product rectangle depends 
-    // on the lag, so we construct a new rectangle filter for each lag.
-    Filter f1 = _f1;
-    Filter f2 = _f2;
-    if (_window==Window.RECTANGLE && _type==Type.SYMMETRIC) {
-      f1 = new RectangleFilter(_sigma1,l1);
-      f2 = new RectangleFilter(_sigma2,l2);
-    }
-    f1.apply1(h,c);
-    copy(c,h);
-    f2.apply2(h,c);
-  }
-
-  private void correlate(
-    int lag1, int lag2, int lag3, float[][][] f, float[][][] g, float[][][] c) 
-  {
-    Check.argument(f!=c,"f!=c");
-    Check.argument(g!=c,"g!=c");
-    int n1 = f[0][0].length;
-    int n2 = f[0].length;
-    int n3 = f.length;
-    int l1 = lag1;
-    int l2 = lag2;
-    int l3 = lag3;
-
-    // Conventional lags for f and g for simple correlation.
-    int l1f = 0;
-    int l1g = l1;
-    int l2f = 0;
-    int l2g = l2;
-    int l3f = 0;
-    int l3g = l3;
-
-    // Shifted lags for symmetric correlation.
-    if (_type==Type.SYMMETRIC) {
-      l1f = (l1>=0)?(l1+0)/2:(l1-1)/2;
-      l1g = (l1>=0)?(l1+1)/2:(l1+0)/2;
-      l2f = (l2>=0)?(l2+0)/2:(l2-1)/2;
-      l2g = (l2>=0)?(l2+1)/2:(l2+0)/2;
-      l3f = (l3>=0)?(l3+0)/2:(l3-1)/2;
-      l3g = (l3>=0)?(l3+1)/2:(l3+0)/2;
-    }
-
-    // Scale factor so that center of window = 1.
-    double scale1 = 1.0;
-    double scale2 = 1.0;
-    double scale3 = 1.0;
-    if (_window==Window.GAUSSIAN) {
-      scale1 *= sqrt(2.0*PI)*_sigma1;
-      scale2 *= sqrt(2.0*PI)*_sigma2;
-      scale3 *= sqrt(2.0*PI)*_sigma3;
-    } else {
-      scale1 *= 1.0+2.0*_sigma1;
-      scale2 *= 1.0+2.0*_sigma2;
-      scale3 *= 1.0+2.0*_sigma3;
-    }
-
-    // If symmetric correlation, need extra lag-dependent scaling.
-    // This scaling accounts for the separation (by lag samples) of 
-    // the two windows implicitly applied to f and g. The filter we
-    // apply below to the correlation product h is the product of 
-    // those two windows.
-    if (_type==Type.SYMMETRIC) {
-      if (_window==Window.GAUSSIAN) {
-        scale1 *= exp((-0.125*l1*l1)/(_sigma1*_sigma1));
-        scale2 *= exp((-0.125*l2*l2)/(_sigma2*_sigma2));
-        scale3 *= exp((-0.125*l3*l3)/(_sigma3*_sigma3));
-      } else {
-        scale1 *= max(0.0,1.0+2.0*_sigma1-abs(l1))/(1.0+2.0*_sigma1);
-        scale2 *= max(0.0,1.0+2.0*_sigma2-abs(l2))/(1.0+2.0*_sigma2);
-        scale3 *= max(0.0,1.0+2.0*_sigma3-abs(l3))/(1.0+2.0*_sigma3);
+      // For symmetric correlations with a rectangle window, the width of 
+      // the product rectangle depends on the lag, so we construct new 
+      // rectangle filters for each lag.
+      f1 = _f1;
+      f2 = _f2;
+      f3 = _f3;
+      if (_window==Window.RECTANGLE && _type==Type.SYMMETRIC) {
+        f1 = new RectangleFilter(_sigma1,l1);
+        f2 = new RectangleFilter(_sigma2,l2);
+        f3 = new RectangleFilter(_sigma3,l3);
       }
     }
-    float scale = (float)(scale1*scale2*scale3);
 
-    // Correlation product.
-    float[][][] h = new float[n3][n2][n1];
-    int i1min = max(0,l1f,-l1g);
-    int i1max = min(n1,n1+l1f,n1-l1g);
-    int i2min = max(0,l2f,-l2g);
-    int i2max = min(n2,n2+l2f,n2-l2g);
-    int i3min = max(0,l3f,-l3g);
-    int i3max = min(n3,n3+l3f,n3-l3g);
-    for (int i3=i3min; i3<i3max; ++i3) {
+    // Computes the correlation product h[n2][n1] for one slice i3.
+    void product(int i3, float[][][] f, float[][][] g, float[][] h) {
+      int n1 = f[0][0].length;
+      int n2 = f[0].length;
+      int n3 = f.length;
+      int i1min = max(0,l1f,-l1g);
+      int i1max = min(n1,n1+l1f,n1-l1g);
+      int i2min = max(0,l2f,-l2g);
+      int i2max = min(n2,n2+l2f,n2-l2g);
+      int i3min = max(0,l3f,-l3g);
+      int i3max = min(n3,n3+l3f,n3-l3g);
+      if (i3<i3min || i3>=i3max) {
+        zero(h);
+        return;
+      }
       float[][] f3 = f[i3-l3f];
       float[][] g3 = g[i3+l3g];
-      float[][] h3 = h[i3];
-      for (int i2=i2min; i2<i2max; ++i2) {
+      for (int i2=0; i2<n2; ++i2) {
+        float[] h32 = h[i2];
+        if (i2<i2min || i2>=i2max) {
+          zero(h32);
+          continue;
+        }
         float[] f32 = f3[i2-l2f];
         float[] g32 = g3[i2+l2g];
-        float[] h32 = h3[i2];
-        for (int i1=i1min; i1<i1max; ++i1) {
+        zero(h32);
+        for (int i1=i1min; i1<i1max; ++i1)
           h32[i1] = scale*f32[i1-l1f]*g32[i1+l1g];
-        }
       }
     }
 
-    // If Gaussian and symmetric and odd lag, delay (shift) by 1/2 sample.
-    if (_window==Window.GAUSSIAN && _type==Type.SYMMETRIC) {
-      if (l1f!=l1g) {
-        shift1(h,c);
-        copy(c,h);
+    // Filters one slice h[n2][n1] in the 1st and (for 2-D and 3-D inputs) 
+    // the 2nd dimensions, using workspace t. Outputs c can be h, but not t.
+    void filter12(float[][] h, float[][] t, float[][] c) {
+      if (_dimension==1) {
+        f1.apply1(h,t);
+        copy(t,c);
+      } else {
+        f1.apply1(h,t);
+        f2.apply2(t,c);
+      }
+    }
+  }
+
+  // Normalizes one row c32 = c[i3][i2] of the cross-correlation for a
+  // specified lag. For 1-D and 2-D inputs, indices i3 and i2 are zero, as 
+  // appropriate. Normalization scale factors must have been computed.
+  private void normalize(
+    int l1, int l2, int l3, int i2, int i3, float[] c32) 
+  {
+    int n1 = c32.length;
+    if (_type==Type.SIMPLE) {
+      float[][][] sf = _s[0];
+      float[][][] sg = _s[1];
+      int n2 = sf[0].length;
+      int n3 = sf.length;
+      float[] sf32 = sf[i3][i2];
+      float[] sg32 = sg[max(0,min(n3-1,i3+l3))][max(0,min(n2-1,i2+l2))];
+      int i1min = max(0,-l1);
+      int i1max = min(n1,n1-l1);
+      for (int i1=0; i1<i1min; ++i1) {
+        c32[i1] *= sf32[i1]*sg32[0];
       }
-      if (l2f!=l2g) {
-        shift2(h,c);
-        copy(c,h);
+      for (int i1=i1min; i1<i1max; ++i1) {
+        c32[i1] *= sf32[i1]*sg32[i1+l1];
       }
-      if (l3f!=l3g) {
-        shift3(h,c);
-        copy(c,h);
+      for (int i1=i1max; i1<n1; ++i1) {
+        c32[i1] *= sf32[i1]*sg32[n1-1];
+      }
+    } else if (_type==Type.SYMMETRIC) {
+      float[] s32 = _s[0][i3][i2];
+      for (int i1=0; i1<n1; ++i1) {
+        c32[i1] *= s32[i1];
       }
     }
-
-    // Filter correlation product with window. For symmetric correlations
-    // with a rectangle window, the width of the product rectangle depends 
-    // on the lag, so we construct a new rectangle filter for each lag.
-    Filter f1 = _f1;
-    Filter f2 = _f2;
-    Filter f3 = _f3;
-    if (_window==Window.RECTANGLE && _type==Type.SYMMETRIC) {
-      f1 = new RectangleFilter(_sigma1,l1);
-      f2 = new RectangleFilter(_sigma2,l2);
-      f3 = new RectangleFilter(_sigma3,l3);
-    }
-    f1.apply1(h,c);
-    copy(c,h);
-    f2.apply2(h,c);
-    copy(c,h);
-    f3.apply3(h,c);
   }
 
   private void updateNormalize() {
@@ -0,0 +1,192 @@
+/****************************************************************************
+Copyright (c) 2026, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package lcc.test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import lcc.LocalCorrelationFilter;
+
+/**
+ * Tests {@link lcc.LocalCorrelationFilter}.
+ * Lags found by searches that correlate batches of lags are compared with
+ * those found by a search that correlates one lag at a time.
+ * @author agent
+ * @version 2026.10.18
+ */
+public class LocalCorrelationFilterTest extends TestCase {
+  public static void main(String[] args) {
+    TestSuite suite = new TestSuite(LocalCorrelationFilterTest.class);
+    junit.textui.TestRunner.run(suite);
+  }
+
+  public void testMaxLags2() {
+    int n1 = 41, n2 = 23;
+    float[][][][] fg = makeInputs(1,n2,n1);
+    float[][] f = fg[0][0], g = fg[1][0];
+    for (LocalCorrelationFilter.Type type:TYPES) {
+      for (LocalCorrelationFilter.Window window:WINDOWS) {
+        LocalCorrelationFilter lcf =
+          new LocalCorrelationFilter(type,window,2.0,3.0);
+        lcf.setInputs(f,g);
+        byte[][][][] e = findMaxLags(lcf,type,new int[]{-3,3,-2,2,0,0},
+                                     1,n2,n1);
+        for (int nbatch:NBATCH) {
+          lcf.setLagBatchSize(nbatch);
+          byte[][] l1 = new byte[n2][n1];
+          byte[][] l2 = new byte[n2][n1];
+          lcf.findMaxLags(-3,3,-2,2,l1,l2);
+          assertEquals(e[0][0],l1);
+          assertEquals(e[1][0],l2);
+        }
+      }
+    }
+  }
+
+  public void testMaxLags3() {
+    int n1 = 21, n2 = 13, n3 = 11;
+    float[][][][] fg = makeInputs(n3,n2,n1);
+    float[][][] f = fg[0], g = fg[1];
+    for (LocalCorrelationFilter.Type type:TYPES) {
+      for (LocalCorrelationFilter.Window window:WINDOWS) {
+        LocalCorrelationFilter lcf =
+          new LocalCorrelationFilter(type,window,2.0,2.0,3.0);
+        lcf.setInputs(f,g);
+        byte[][][][] e = findMaxLags(lcf,type,new int[]{-2,2,-2,2,-2,2},
+                                     n3,n2,n1);
+        for (int nbatch:NBATCH) {
+          lcf.setLagBatchSize(nbatch);
+          byte[][][] l1 = new byte[n3][n2][n1];
+          byte[][][] l2 = new byte[n3][n2][n1];
+          byte[][][] l3 = new byte[n3][n2][n1];
+          lcf.findMaxLags(-2,2,-2,2,-2,2,l1,l2,l3);
+          for (int i3=0; i3<n3; ++i3) {
+            assertEquals(e[0][i3],l1[i3]);
+            assertEquals(e[1][i3],l2[i3]);
+            assertEquals(e[2][i3],l3[i3]);
+          }
+        }
+      }
+    }
+  }
+
+  private static final LocalCorrelationFilter.Type[] TYPES =
+    LocalCorrelationFilter.Type.values();
+  private static final LocalCorrelationFilter.Window[] WINDOWS =
+    LocalCorrelationFilter.Window.values();
+  private static final int[] NBATCH = {1,3,4,100};
+
+  // Random f and g, with g a shifted and noisy copy of f, and with
+  // a block of zeros in both, where correlations are the same for all
+  // lags and lags found depend on the order in which lags are searched.
+  private static float[][][][] makeInputs(int n3, int n2, int n1) {
+    Random r = new Random(314159);
+    float[][][] f = new float[n3][n2][n1];
+    float[][][] g = new float[n3][n2][n1];
+    for (int i3=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          f[i3][i2][i1] = r.nextFloat()-0.5f;
+    for (int i3=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1) {
+          int j3 = (n3>1)?i3-1:i3;
+          float fs = (j3>=0 && i2>=1 && i1>=2)?f[j3][i2-1][i1-2]:0.0f;
+          g[i3][i2][i1] = fs+0.2f*(r.nextFloat()-0.5f);
+        }
+      }
+    }
+    for (int i3=0; i3<n3; ++i3) {
+      for (int i2=n2/2; i2<n2; ++i2) {
+        for (int i1=n1/2; i1<n1; ++i1) {
+          f[i3][i2][i1] = 0.0f;
+          g[i3][i2][i1] = 0.0f;
+        }
+      }
+    }
+    return new float[][][][]{f,g};
+  }
+
+  // A search that correlates one lag at a time. Beginning with the lag
+  // in the middle, the next lag is the first (with lag 1 fastest) not yet
+  // correlated that is adjacent to a lag for which a maximum was found.
+  // Returns arrays of lags {lag1,lag2,lag3}.
+  private static byte[][][][] findMaxLags(
+    LocalCorrelationFilter lcf, LocalCorrelationFilter.Type type,
+    int[] lmm, int n3, int n2, int n1)
+  {
+    int min1 = lmm[0], max1 = lmm[1];
+    int min2 = lmm[2], max2 = lmm[3];
+    int min3 = lmm[4], max3 = lmm[5];
+    int nl1 = 1+max1-min1, nl2 = 1+max2-min2, nl3 = 1+max3-min3;
+    byte[][][] mark = new byte[nl3][nl2][nl1]; // -1: correlated, 1: max
+    byte[][][][] lag = new byte[3][n3][n2][n1];
+    float[][][] cmax = new float[n3][n2][n1];
+    for (int i3=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          cmax[i3][i2][i1] = -Float.MAX_VALUE;
+    float[][][] c = new float[n3][n2][n1];
+    boolean simple = type==LocalCorrelationFilter.Type.SIMPLE;
+    int[] l = {(min1+max1)/2,(min2+max2)/2,(min3+max3)/2};
+    while (l!=null) {
+      if (n3==1) {
+        lcf.correlate(l[0],l[1],c[0]);
+        if (simple) lcf.normalize(l[0],l[1],c[0]);
+      } else {
+        lcf.correlate(l[0],l[1],l[2],c);
+        if (simple) lcf.normalize(l[0],l[1],l[2],c);
+      }
+      mark[l[2]-min3][l[1]-min2][l[0]-min1] = -1;
+      boolean foundMax = false;
+      for (int i3=0; i3<n3; ++i3) {
+        for (int i2=0; i2<n2; ++i2) {
+          for (int i1=0; i1<n1; ++i1) {
+            if (c[i3][i2][i1]>cmax[i3][i2][i1]) {
+              cmax[i3][i2][i1] = c[i3][i2][i1];
+              lag[0][i3][i2][i1] = (byte)l[0];
+              lag[1][i3][i2][i1] = (byte)l[1];
+              lag[2][i3][i2][i1] = (byte)l[2];
+              foundMax = true;
+            }
+          }
+        }
+      }
+      if (foundMax)
+        mark[l[2]-min3][l[1]-min2][l[0]-min1] = 1;
+      l = null;
+      for (int l3=min3; l3<=max3 && l==null; ++l3) {
+        for (int l2=min2; l2<=max2 && l==null; ++l2) {
+          for (int l1=min1; l1<=max1 && l==null; ++l1) {
+            if (mark[l3-min3][l2-min2][l1-min1]!=1)
+              continue;
+            for (int k3=l3-1; k3<=l3+1 && l==null; ++k3) {
+              for (int k2=l2-1; k2<=l2+1 && l==null; ++k2) {
+                for (int k1=l1-1; k1<=l1+1 && l==null; ++k1) {
+                  if (min1<=k1 && k1<=max1 &&
+                      min2<=k2 && k2<=max2 &&
+                      min3<=k3 && k3<=max3 &&
+                      mark[k3-min3][k2-min2][k1-min1]==0)
+                    l = new int[]{k1,k2,k3};
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+    return lag;
+  }
+
+  private static void assertEquals(byte[][] e, byte[][] a) {
+    for (int i2=0; i2<e.length; ++i2)
+      for (int i1=0; i1<e[i2].length; ++i1)
+        assertEquals(e[i2][i1],a[i2][i1]);
+  }
+}
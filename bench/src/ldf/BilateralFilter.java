@@ -44,6 +44,15 @@ import static edu.mines.jtk.util.ArrayMath.*;
  * general reference is Paris, Kornprobst, Tumblin and Durand, 2007, 
  * A gentle introduction to bilateral filtering and its applications:
  * SIGGRAPH 2007 courses, ACM.
+ * <p>
+ * For 3-D arrays and the shift-invariant Gaussian spatial filter, a 
+ * faster bilateral grid may be used instead. Input samples are splatted 
+ * (accumulated with linear interpolation weights) into a grid that is 
+ * sampled coarsely in both space and range, and the grid is then blurred 
+ * with the range function and a Gaussian spatial filter. Output samples
+ * are sliced (linearly interpolated) from the blurred grid. Accuracy and 
+ * cost of this approximation depend on the grid sampling intervals, which
+ * are specified as fractions of the half-widths sigmaSpace and sigmaRange.
  *
  * @author Dave Hale, Colorado School of Mines
  * @version 2011.02.01
@@ -126,6 +135,27 @@ public class BilateralFilter {
     }
   }
 
+  /**
+   * Sets the sampling of the bilateral grid used to filter 3-D arrays.
+   * The grid is used only when the spatial filter is Gaussian and 
+   * shift-invariant. Grid sampling intervals are this ratio times the 
+   * half-widths sigmaSpace and sigmaRange, except that the spatial 
+   * interval is never less than one sample. Smaller ratios yield more 
+   * accurate output, but require more time. Ratios between 0.5 and 1.0
+   * are typically much faster than filtering without a grid. Ratios less
+   * than about 0.5 can be slower than filtering without a grid, which
+   * computes exact filter outputs for sampled input values. Memory
+   * required for the grid is bounded by processing it in blocks.
+   * <p>
+   * The default ratio is zero, for which no grid is used.
+   * @param ratio ratio of grid sampling intervals to half-widths; 
+   *  zero, for no grid.
+   */
+  public void setGridSampling(double ratio) {
+    Check.argument(0.0<=ratio && ratio<=1.0,"0 <= ratio <= 1");
+    _ratio = ratio;
+  }
+
   /**
    * Applies this filter. The spatial part of the filter is Gaussian
    * and shift-invariant.
@@ -216,8 +246,12 @@ public class BilateralFilter {
    * @param y array of output samples.
    */
   public void apply(float[][][] x, float[][][] y) {
-    _rgf = getRgf();
-    apply(_rgf,_fx,x,y);
+    if (_ratio>0.0) {
+      applyGrid(x,y);
+    } else {
+      _rgf = getRgf();
+      apply(_rgf,_fx,x,y);
+    }
   }
 
   /**
@@ -283,11 +317,13 @@ public class BilateralFilter {
   private Fx _fx; // range function of input sample differences
   private Rgf _rgf; // recursive Gaussian filter
   private Lsf _lsf; // local smoothing filter
+  private double _ratio; // grid sampling intervals / half-widths
   
   // Range functions f(x) of differences between input sample values.
   private interface Fx {
     public float eval(float x);
     public float getSigma();
+    public float getWidth(); // f(x) is negligible for |x| > width
     public void setSigma(double sigma);
   }
   private static class GaussFunction implements Fx {
@@ -300,6 +336,9 @@ public class BilateralFilter {
     public float getSigma() {
       return _sigma;
     }
+    public float getWidth() {
+      return 4.0f*_sigma;
+    }
     public void setSigma(double sigma) {
       _sigma = (float)sigma;
       _scale = -0.5f/(_sigma*_sigma);
@@ -318,6 +357,9 @@ public class BilateralFilter {
     public float getSigma() {
       return _sigma;
     }
+    public float getWidth() {
+      return Float.MAX_VALUE;
+    }
     public void setSigma(double sigma) {
       _sigma = (float)(sigma);
     }
@@ -340,6 +382,9 @@ public class BilateralFilter {
     public float getSigma() {
       return _sigma;
     }
+    public float getWidth() {
+      return _sigma;
+    }
     public void setSigma(double sigma) {
       _sigma = (float)(sigma*sqrt(5.0));
       _scale = 1.0f/_sigma;
@@ -664,4 +709,332 @@ public class BilateralFilter {
       }
     });
   }
+
+  // Applies the bilateral filter with a bilateral grid.
+  private void applyGrid(float[][][] x, float[][][] y) {
+    float xmin = min(x);
+    float xmax = max(x);
+    if (xmin==xmax) {
+      copy(x,y);
+      return;
+    }
+    double ds = max(1.0,_ratio*_sigmaS);
+    double dr = max(_ratio*_sigmaR,0.001*(xmax-xmin));
+    BilateralGrid bg = new BilateralGrid(_fx,_sigmaS,ds,dr,xmin,xmax,x);
+    bg.apply(x,y);
+  }
+
+  // A bilateral grid for 3-D arrays. To bound memory, the grid is 
+  // processed in blocks, each with a chunk of grid levels (samples in 
+  // range) and a slab of grid slices (samples in the 3rd dimension). 
+  // Grid arrays for each block include the levels within the half-width 
+  // of the range function and the slices within a few half-widths of the 
+  // spatial filter that are required to blur the block. These arrays 
+  // require no more memory than the four arrays of filter outputs used 
+  // in the method without a grid, unless even slabs with one slice would 
+  // exceed that bound. That may happen for range functions that are not
+  // negligible for any input values, for which all levels are required.
+  private static class BilateralGrid {
+
+    BilateralGrid(
+      Fx fx, double sigmaS, double ds, double dr, 
+      float xmin, float xmax, float[][][] x) 
+    {
+      _n1 = x[0][0].length;
+      _n2 = x[0].length;
+      _n3 = x.length;
+      _m1 = 2+(int)((_n1-1)/ds);
+      _m2 = 2+(int)((_n2-1)/ds);
+      _m3 = 2+(int)((_n3-1)/ds);
+      _mr = 2+(int)((xmax-xmin)/dr);
+      _ds = ds;
+      _sigma = sigmaS/ds;
+      _xmin = xmin;
+      _odr = (float)(1.0/dr);
+      _j1 = new int[_n1]; _w1 = new float[_n1];
+      _j2 = new int[_n2]; _w2 = new float[_n2];
+      _j3 = new int[_n3]; _w3 = new float[_n3];
+      sampleSpace(ds,_j1,_w1);
+      sampleSpace(ds,_j2,_w2);
+      sampleSpace(ds,_j3,_w3);
+
+      // The range function, sampled at grid intervals.
+      _h = (int)min(_mr-1,fx.getWidth()/dr);
+      _g = new float[_h+1];
+      for (int l=0; l<=_h; ++l)
+        _g[l] = fx.eval((float)(l*dr));
+
+      // Numbers of levels per chunk and slices per slab. Slabs are as thick
+      // as the memory bound permits, and the number of levels per chunk is
+      // that which minimizes an estimate of the total work, which includes
+      // the work for levels and slices outside each block that are
+      // required to blur it. Candidate chunks are those for which grid
+      // arrays contain fewer than all levels, plus one chunk with all
+      // levels. If no block fits within the memory bound, then chunks
+      // have the fewest levels and slabs have one slice.
+      _hs = min(_m3,(int)ceil(5.0*_sigma)+1);
+      int ncall = _mr-1;
+      int ncmin = ncall;
+      double wmin = blockWork(ncall);
+      for (int nc=1; nc<ncall-2*_h; ++nc) {
+        double w = blockWork(nc);
+        if (w<wmin) {
+          wmin = w;
+          ncmin = nc;
+        }
+      }
+      if (wmin==Double.MAX_VALUE)
+        ncmin = 1;
+      _nc = ncmin;
+      _nl = levels(_nc);
+      _ns = max(1,slices(_nl));
+      if (_ns+2*_hs>=_m3) // if grid arrays would contain all slices, ...
+        _ns = _m3; // use only one slab
+      _np = min(_m3,_ns+2*_hs);
+    }
+
+    void apply(float[][][] x, float[][][] y) {
+      float[][][][] gn = new float[_nl][_np][_m2][_m1];
+      float[][][][] gd = new float[_nl][_np][_m2][_m1];
+      RecursiveGaussianFilter rgf = new RecursiveGaussianFilter(_sigma);
+      for (int ka=0; ka<_mr-1; ka+=_nc) {
+        int kb = min(ka+_nc,_mr-1);
+        int la = max(0,ka-_h);
+        int lb = min(_mr-1,kb+_h);
+        for (int ja=0; ja<_m3; ja+=_ns) {
+          int jb = min(ja+_ns,_m3);
+          int qa = max(0,ja-_hs);
+          int qb = min(_m3,jb+_hs);
+          for (int l=0; l<=lb-la; ++l) {
+            zero(gn[l]);
+            zero(gd[l]);
+          }
+          splat(la,lb,qa,qb,x,gn,gd);
+          blurRange(la,lb,ka,kb,qa,qb,gn,gd);
+          blurSpace(la,ka,kb,qb-qa,rgf,gn,gd);
+          slice(la,ka,kb,qa,ja,jb,x,y,gn,gd);
+        }
+      }
+    }
+
+    private int _n1,_n2,_n3; // numbers of samples in input array
+    private int _m1,_m2,_m3,_mr; // numbers of samples in grid
+    private double _ds; // grid sampling interval in space
+    private double _sigma; // half-width of spatial filter for grid
+    private float _xmin; // smallest input value, for first grid level
+    private float _odr; // one over grid sampling interval in range
+    private int[] _j1,_j2,_j3; // grid indices for sample indices
+    private float[] _w1,_w2,_w3; // weights for grid indices j+1
+    private int _h; // half-width of range function in grid levels
+    private float[] _g; // range function sampled at grid levels
+    private int _nc; // number of levels sliced for each chunk
+    private int _nl; // number of levels in grid arrays
+    private int _hs; // number of slices in halo on each side of slab
+    private int _ns; // number of slices sliced for each slab
+    private int _np; // number of slices in grid arrays
+
+    // Work for the spatial filter per float, relative to that for one
+    // multiply-add, used to choose numbers of levels per chunk.
+    private static final double BLUR_WORK = 10.0;
+
+    // Returns the number of levels in grid arrays for chunks with nc levels.
+    private int levels(int nc) {
+      return min(_mr,nc+1+2*_h);
+    }
+
+    // Returns the number of slices per slab for grid arrays with nl levels,
+    // or zero, if arrays with a one-slice slab would exceed the memory bound.
+    private int slices(int nl) {
+      long nmax = 4L*_n1*_n2*_n3; // max number of floats in grid arrays
+      long ng = 2L*_m1*_m2; // number of floats in one grid level and slice
+      return (int)max(0L,min(_m3,nmax/(ng*nl)-2*_hs));
+    }
+
+    // Returns an estimate of the work for chunks with nc levels, or the
+    // largest double value, if no block with nc levels fits in memory.
+    private double blockWork(int nc) {
+      int nl = levels(nc);
+      int ns = slices(nl);
+      if (ns<1)
+        return Double.MAX_VALUE;
+      if (ns+2*_hs>=_m3)
+        ns = _m3;
+      long np = min(_m3,ns+2*_hs);
+      long ng = 2L*_m1*_m2;
+      long nb = (long)((_mr-2)/nc+1)*((_m3-1)/ns+1); // number of blocks
+      double wsplat = (1.0+16.0)*_ds*_n1*_n2/ng; // splat work per float
+      return nb*np*ng*(nl+(nc+1)*(2*_h+1+BLUR_WORK)+wsplat);
+    }
+
+    private static void sampleSpace(double ds, int[] j, float[] w) {
+      for (int i=0; i<j.length; ++i) {
+        double x = i/ds;
+        j[i] = (int)x;
+        w[i] = (float)(x-j[i]);
+      }
+    }
+
+    // Splats input samples into grid levels [la,lb] and grid slices 
+    // [qa,qb), with level la and slice qa stored in grid arrays with 
+    // indices 0. In parallel, each grid slice gathers the input samples 
+    // that contribute to it.
+    private void splat(
+      final int la, final int lb, final int qa, final int qb,
+      final float[][][] x, final float[][][][] gn, final float[][][][] gd)
+    {
+      Parallel.loop(qa,qb,new Parallel.LoopInt() {
+        public void compute(int j3) {
+          int i3lo = max(0,(int)((j3-1)*_ds));
+          int i3hi = min(_n3-1,(int)((j3+1)*_ds)+1);
+          for (int i3=i3lo; i3<=i3hi; ++i3) {
+            float w3;
+            if (_j3[i3]==j3) {
+              w3 = 1.0f-_w3[i3];
+            } else if (_j3[i3]+1==j3) {
+              w3 = _w3[i3];
+            } else {
+              continue;
+            }
+            for (int i2=0; i2<_n2; ++i2) {
+              float[] x32 = x[i3][i2];
+              int j2 = _j2[i2];
+              float w2 = _w2[i2];
+              for (int i1=0; i1<_n1; ++i1) {
+                float xi = x32[i1];
+                float r = (xi-_xmin)*_odr;
+                int k = min((int)r,_mr-2);
+                float wr = r-k;
+                for (int l=max(k,la); l<=min(k+1,lb); ++l) {
+                  float w = (l==k)?w3*(1.0f-wr):w3*wr;
+                  if (w==0.0f) continue;
+                  int j1 = _j1[i1];
+                  float w1 = _w1[i1];
+                  float w00 = w*(1.0f-w2)*(1.0f-w1);
+                  float w01 = w*(1.0f-w2)*w1;
+                  float w10 = w*w2*(1.0f-w1);
+                  float w11 = w*w2*w1;
+                  float[][] gnl = gn[l-la][j3-qa], gdl = gd[l-la][j3-qa];
+                  float[] gn0 = gnl[j2], gn1 = gnl[j2+1];
+                  float[] gd0 = gdl[j2], gd1 = gdl[j2+1];
+                  gn0[j1  ] += w00*xi; gd0[j1  ] += w00;
+                  gn0[j1+1] += w01*xi; gd0[j1+1] += w01;
+                  gn1[j1  ] += w10*xi; gd1[j1  ] += w10;
+                  gn1[j1+1] += w11*xi; gd1[j1+1] += w11;
+                }
+              }
+            }
+          }
+        }
+      });
+    }
+
+    // Convolves splatted grid levels [la,lb] with the range function to
+    // compute blurred levels [ka,kb], which replace splatted levels in 
+    // the grid arrays, for grid slices [qa,qb).
+    private void blurRange(
+      final int la, final int lb, final int ka, final int kb,
+      final int qa, final int qb,
+      final float[][][][] gn, final float[][][][] gd)
+    {
+      Parallel.loop(qa,qb,new Parallel.LoopInt() {
+        public void compute(int j3) {
+          int nl = lb-la+1;
+          float[] tn = new float[nl];
+          float[] td = new float[nl];
+          for (int j2=0; j2<_m2; ++j2) {
+            for (int j1=0; j1<_m1; ++j1) {
+              for (int l=0; l<nl; ++l) {
+                tn[l] = gn[l][j3-qa][j2][j1];
+                td[l] = gd[l][j3-qa][j2][j1];
+              }
+              for (int k=ka; k<=kb; ++k) {
+                float sn = 0.0f;
+                float sd = 0.0f;
+                for (int l=max(la,k-_h); l<=min(lb,k+_h); ++l) {
+                  float gl = _g[(l<k)?k-l:l-k];
+                  sn += gl*tn[l-la];
+                  sd += gl*td[l-la];
+                }
+                gn[k-la][j3-qa][j2][j1] = sn;
+                gd[k-la][j3-qa][j2][j1] = sd;
+              }
+            }
+          }
+        }
+      });
+    }
+
+    // Applies the spatial filter to the first nq slices of blurred levels 
+    // [ka,kb], in parallel.
+    private void blurSpace(
+      final int la, final int ka, final int kb, final int nq,
+      final RecursiveGaussianFilter rgf,
+      final float[][][][] gn, final float[][][][] gd)
+    {
+      int nk = kb-ka+1;
+      Parallel.loop(2*nk,new Parallel.LoopInt() {
+        public void compute(int ik) {
+          float[][][] gk = (ik%2==0)?gn[ka+ik/2-la]:gd[ka+ik/2-la];
+          float[][][] g = new float[nq][][];
+          for (int jq=0; jq<nq; ++jq)
+            g[jq] = gk[jq];
+          rgf.apply000(g,g);
+        }
+      });
+    }
+
+    // Slices output samples for input samples with values between blurred
+    // grid levels ka and kb, and with grid indices j3 in the slab [ja,jb).
+    private void slice(
+      final int la, final int ka, final int kb, 
+      final int qa, final int ja, final int jb, 
+      final float[][][] x, final float[][][] y,
+      final float[][][][] gn, final float[][][][] gd)
+    {
+      int i3lo = max(0,(int)(ja*_ds)-1);
+      int i3hi = min(_n3,(int)(jb*_ds)+1);
+      Parallel.loop(i3lo,i3hi,new Parallel.LoopInt() {
+        public void compute(int i3) {
+          int j3 = _j3[i3];
+          if (j3<ja || j3>=jb) 
+            return;
+          float w3 = _w3[i3];
+          for (int i2=0; i2<_n2; ++i2) {
+            float[] x32 = x[i3][i2];
+            float[] y32 = y[i3][i2];
+            int j2 = _j2[i2];
+            float w2 = _w2[i2];
+            for (int i1=0; i1<_n1; ++i1) {
+              float xi = x32[i1];
+              float r = (xi-_xmin)*_odr;
+              int k = min((int)r,_mr-2);
+              if (k<ka || k>=kb) continue;
+              float wr = r-k;
+              int j1 = _j1[i1];
+              float w1 = _w1[i1];
+              int jq = j3-qa;
+              float yn = (1.0f-wr)*lerp(gn[k-la],j1,j2,jq,w1,w2,w3) +
+                         wr*lerp(gn[k+1-la],j1,j2,jq,w1,w2,w3);
+              float yd = (1.0f-wr)*lerp(gd[k-la],j1,j2,jq,w1,w2,w3) +
+                         wr*lerp(gd[k+1-la],j1,j2,jq,w1,w2,w3);
+              y32[i1] = (yd>0.0f)?yn/yd:xi;
+            }
+          }
+        }
+      });
+    }
+
+    // Trilinear interpolation of one grid level.
+    private static float lerp(
+      float[][][] g, int j1, int j2, int j3, float w1, float w2, float w3) 
+    {
+      float[] g00 = g[j3  ][j2  ], g01 = g[j3  ][j2+1];
+      float[] g10 = g[j3+1][j2  ], g11 = g[j3+1][j2+1];
+      float v1 = 1.0f-w1;
+      return (1.0f-w3)*((1.0f-w2)*(v1*g00[j1]+w1*g00[j1+1]) +
+                              w2 *(v1*g01[j1]+w1*g01[j1+1])) +
+                   w3 *((1.0f-w2)*(v1*g10[j1]+w1*g10[j1+1]) +
+                              w2 *(v1*g11[j1]+w1*g11[j1+1]));
+    }
+  }
 }
@@ -413,6 +413,7 @@ public class LocalInterpolationFilterIc {
       }
     }
     LocalSpd27Filter lsf = new LocalSpd27Filter(s,0.001);
+    lsf.setParallel(true);
     //SimplePlot.asPixels(lsf.getMatrix());
     return new Operator3[]{new A3(lsf), new M3(lsf)};
   }
@@ -142,7 +142,24 @@ public class LocalSpd27Filter {
    * @param x the output solution array.
    */
   public void applyApproximateInverse(float[][][] y, float[][][] x) {
-    solveWithFactors(y,x);
+    if (_parallel) {
+      ensureFactors();
+      WavefrontSolver3.solve(K1,K2,K3,_l,y,x);
+    } else {
+      solveWithFactors(y,x);
+    }
+  }
+
+  /**
+   * Sets the use of parallel solves in applying the approximate inverse.
+   * Parallel solves use the same incomplete Cholesky factors, but solve
+   * for rows of samples in parallel wavefronts. Their solutions differ
+   * from those of sequential solves only in rounding errors.
+   * The default is sequential (not parallel) solves.
+   * @param parallel true, for parallel solves; false, otherwise.
+   */
+  public void setParallel(boolean parallel) {
+    _parallel = parallel;
   }
 
   /**
@@ -215,11 +232,19 @@ public class LocalSpd27Filter {
   private float[][][][] _s; // specified SPD filter coefficients
   private float[][][][] _l; // coefficients of IC(0) decomposition
   private float _b; // initial bias for IC(0) decomposition.
+  private boolean _parallel; // true, for parallel solves with factors
+
+  // Index offsets k1, k2 and k3 of coefficients {d000,l00p, ..., lppp}.
+  private static final int[] K1 = {0, 1,-1, 0, 1,-1, 0, 1,-1, 0, 1,-1, 0, 1};
+  private static final int[] K2 = {0, 0, 1, 1, 1,-1,-1,-1, 0, 0, 0, 1, 1, 1};
+  private static final int[] K3 = {0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1, 1, 1, 1};
 
   /**
-   * Makes the IC(0) factors, if not already made.
+   * Makes the IC(0) factors, if not already made. Factors are made only
+   * once, and are reused in all subsequent solves, even if those solves
+   * are performed concurrently by multiple threads.
    */
-  private void ensureFactors() {
+  private synchronized void ensureFactors() {
     if (_l==null)
       _l = factorIC0(_s,_b);
     Check.state(_l!=null,"incomplete Cholesky decomposition successful");
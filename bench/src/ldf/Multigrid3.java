@@ -0,0 +1,652 @@
+/****************************************************************************
+Copyright (c) 2009, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package ldf;
+
+import edu.mines.jtk.util.Check;
+import static edu.mines.jtk.util.ArrayMath.*;
+import static edu.mines.jtk.util.Parallel.*;
+
+/**
+ * A multigrid solver for 3-D grids. Solves Ax = b, where A is a symmetric
+ * positive-definite linear operator, b is a known function sampled on a
+ * 3-D grid, and x is an unknown sampled function to be computed.
+ * <p>
+ * This solver supports operators with 3x3x3 stencils, for which each
+ * sample of b is coupled to 27 samples nearest to the corresponding sample
+ * of x. Stencil coefficients are specified in the same array[14][n3][n2][n1]
+ * used by {@link LocalSpd27Filter}, in which, because A is symmetric, only
+ * 14 of the 27 coefficients are stored for each sample.
+ * <p>
+ * Operators for coarser grids are computed from the specified operator by
+ * Galerkin coarsening with trilinear interpolation between grids. Grids are
+ * coarsened by a factor of two in each dimension with not less than five
+ * samples, so that coarsening continues in long dimensions after short
+ * dimensions have stopped. The system on the coarsest grid, which has no
+ * more than 64 samples, is solved exactly.
+ * <p>
+ * The smoother is eight-color Gauss-Seidel relaxation. Samples with the
+ * same color are not coupled, and are updated in parallel. Smoothings after
+ * upsampling visit colors in the reverse order of those before downsampling,
+ * so that, if the numbers of smoothings before and after are equal, then one
+ * cycle beginning with a zero solution approximates the inverse of A with a
+ * symmetric positive-definite operator. That approximate inverse may then
+ * be used as a preconditioner in conjugate-gradient iterations.
+ * <p>
+ * Arrays used in cycles are allocated only once, when this solver is
+ * constructed. Therefore, although each cycle is parallel, a solver should
+ * not be used by more than one thread at a time.
+ *
+ * @author agent
+ * @version 2026.10.18
+ */
+public class Multigrid3 {
+
+  /**
+   * Constructs a multigrid solver.
+   * @param s array[14][n3][n2][n1] of stencil coefficients, as for the
+   *  filter {@link LocalSpd27Filter}. This array is referenced, not copied.
+   * @param nbefore number of smoothings before downsampling.
+   * @param ncycle number of recursive cycles at each coarse grid level.
+   *  In the terminology of multigrid methods, ncycle=1 yields a V cycle,
+   *  and ncycle=2 yields a W cycle. Values greater than 2 are unusual.
+   * @param nafter number of smoothings after upsampling.
+   */
+  public Multigrid3(
+    float[][][][] s, int nbefore, int ncycle, int nafter)
+  {
+    Check.argument(s.length==14,"s.length==14");
+    int n1 = s[0][0][0].length;
+    int n2 = s[0][0].length;
+    int n3 = s[0].length;
+    _nbefore = nbefore;
+    _ncycle = ncycle;
+    _nafter = nafter;
+
+    // Grid dimensions for all levels; level zero is the coarsest grid.
+    _nlevel = nlevel(n1,n2,n3);
+    _n = new int[_nlevel][];
+    _n[_nlevel-1] = new int[]{n1,n2,n3};
+    for (int ilevel=_nlevel-2; ilevel>=0; --ilevel) {
+      int[] n = _n[ilevel+1];
+      _n[ilevel] = new int[]{coarsen(n[0]),coarsen(n[1]),coarsen(n[2])};
+    }
+
+    // Operators and workspace for all levels.
+    _s = new float[_nlevel][][][][];
+    _s[_nlevel-1] = s;
+    for (int ilevel=_nlevel-2; ilevel>=0; --ilevel)
+      _s[ilevel] = coarsen(ilevel+1,_s[ilevel+1]);
+    _b = new float[_nlevel][][][];
+    _x = new float[_nlevel][][][];
+    _r = new float[_nlevel][][][];
+    for (int ilevel=0; ilevel<_nlevel; ++ilevel) {
+      int[] n = _n[ilevel];
+      if (ilevel<_nlevel-1) {
+        _b[ilevel] = new float[n[2]][n[1]][n[0]];
+        _x[ilevel] = new float[n[2]][n[1]][n[0]];
+      }
+      if (ilevel>0)
+        _r[ilevel] = new float[n[2]][n[1]][n[0]];
+    }
+
+    // Cholesky factor of the operator for the coarsest grid.
+    _l = factor(_s[0]);
+  }
+
+  /**
+   * Returns the number of grid levels, including the specified grid.
+   * @return the number of grid levels.
+   */
+  public int countLevels() {
+    return _nlevel;
+  }
+
+  /**
+   * Updates the multigrid solution x of Ax = b with one cycle for the
+   * finest grid level. Typically, this update corresponds to one V or
+   * W cycle. If a good initial guess is not available, the solution x
+   * may be initially zero.
+   * @param b array[n3][n2][n1] for the right-hand-side.
+   * @param x array[n3][n2][n1] for the solution to be updated.
+   */
+  public void update(float[][][] b, float[][][] x) {
+    cycleDownUp(_nlevel-1,b,x);
+  }
+
+  /**
+   * Updates the multigrid solution x of Ax = b with multiple cycles. Stops
+   * when the norm of the residual r = b-Ax is not greater than the norm of
+   * b times a specified small value, or when a specified maximum number of
+   * cycles have been performed.
+   * @param b array[n3][n2][n1] for the right-hand-side.
+   * @param x array[n3][n2][n1] for the solution to be updated.
+   * @param small stop when |b-Ax| &lt;= small*|b|.
+   * @param maxcycle maximum number of cycles.
+   * @return the number of cycles performed.
+   */
+  public int solve(float[][][] b, float[][][] x, double small, int maxcycle) {
+    double bnorm = sqrt(sumSquares(b));
+    double rnorm = sqrt(normResidual(b,x));
+    int icycle = 0;
+    for (; icycle<maxcycle && rnorm>small*bnorm; ++icycle) {
+      update(b,x);
+      rnorm = sqrt(normResidual(b,x));
+    }
+    return icycle;
+  }
+
+  /**
+   * Applies an approximate inverse of the operator A. Computes x with one
+   * cycle for the finest grid level, beginning with x = 0. If the numbers
+   * of smoothings before and after are equal, then this approximate inverse
+   * is symmetric and positive-definite, and may be used as a preconditioner
+   * in conjugate-gradient iterations.
+   * @param b array[n3][n2][n1] for the right-hand-side.
+   * @param x array[n3][n2][n1] for the approximate solution.
+   */
+  public void applyApproximateInverse(float[][][] b, float[][][] x) {
+    zero(x);
+    update(b,x);
+  }
+
+  /**
+   * Applies the operator for the finest grid. Computes y = Ax in parallel.
+   * @param x array[n3][n2][n1] of input samples.
+   * @param y array[n3][n2][n1] of output samples.
+   */
+  public void apply(float[][][] x, float[][][] y) {
+    residual(_s[_nlevel-1],null,x,y);
+  }
+
+  /**
+   * Returns the sum of squared residuals r = b-Ax.
+   * @param b array[n3][n2][n1] for the right-hand-side.
+   * @param x array[n3][n2][n1] for the solution.
+   */
+  public float normResidual(float[][][] b, float[][][] x) {
+    float[][][] r = (_nlevel>1)?_r[_nlevel-1]:copy(x);
+    residual(_s[_nlevel-1],b,x,r);
+    return (float)sumSquares(r);
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private int _nlevel; // number of multigrid levels
+  private int _nbefore; // number of smoothings before downsampling
+  private int _ncycle; // number of recursive cycles on coarse grids
+  private int _nafter; // number of smoothings after upsampling
+  private int[][] _n; // grid dimensions {n1,n2,n3}, one for each level
+  private float[][][][][] _s; // stencil coefficients, one for each level
+  private float[][][][] _b,_x; // right-hand-sides and solutions, coarse
+  private float[][][][] _r; // residuals, for all but the coarsest level
+  private double[][] _l; // Cholesky factor for the coarsest grid
+
+  // Index offsets k1, k2 and k3 of the 14 stored stencil coefficients,
+  // in the order s000, s00p, s0pm, s0p0, s0pp, spmm, spm0, spmp, sp0m,
+  // sp00, sp0p, sppm, spp0, sppp. The other 13 are for opposite offsets.
+  private static final int[] K1 = {0, 1,-1, 0, 1,-1, 0, 1,-1, 0, 1,-1, 0, 1};
+  private static final int[] K2 = {0, 0, 1, 1, 1,-1,-1,-1, 0, 0, 0, 1, 1, 1};
+  private static final int[] K3 = {0, 0, 0, 0, 0, 1, 1, 1, 1, 1, 1, 1, 1, 1};
+
+  // Colors of samples for Gauss-Seidel relaxation, as parities of indices.
+  private static final int[] C1 = {0,1,0,1,0,1,0,1};
+  private static final int[] C2 = {0,0,1,1,0,0,1,1};
+  private static final int[] C3 = {0,0,0,0,1,1,1,1};
+
+  /**
+   * Computes the number of levels, such that no dimension of the coarsest
+   * grid can be coarsened without becoming less than 3.
+   */
+  private static int nlevel(int n1, int n2, int n3) {
+    int nlevel = 1;
+    while (n1>=5 || n2>=5 || n3>=5) {
+      n1 = coarsen(n1);
+      n2 = coarsen(n2);
+      n3 = coarsen(n3);
+      ++nlevel;
+    }
+    return nlevel;
+  }
+
+  /**
+   * Returns a coarsened grid dimension. Dimensions less than 5 are not
+   * coarsened. For even dimensions, the last coarse sample lies just beyond
+   * the end of the fine grid, so that every fine sample is interpolated
+   * from two coarse samples.
+   */
+  private static int coarsen(int n) {
+    return (n>=5)?n/2+1:n;
+  }
+
+  /**
+   * Weight for interpolation from a coarse-grid sample to a fine-grid sample
+   * with a specified index offset, for coarsening ratio 1 or 2.
+   */
+  private static float weight(int r, int k) {
+    if (k==0) {
+      return 1.0f;
+    } else if (r==2 && (k==-1 || k==1)) {
+      return 0.5f;
+    } else {
+      return 0.0f;
+    }
+  }
+
+  /**
+   * Returns the ratios of grid dimensions for specified level to those
+   * for the next coarser level.
+   */
+  private int[] ratios(int ilevel) {
+    int[] n = _n[ilevel];
+    int[] m = _n[ilevel-1];
+    return new int[]{(n[0]==m[0])?1:2,(n[1]==m[1])?1:2,(n[2]==m[2])?1:2};
+  }
+
+  /**
+   * Gets the full 27-point stencil for the sample with indices i1,i2,i3.
+   * Coefficients are indexed by 13+k1+3*k2+9*k3, for offsets k1,k2,k3.
+   * Coefficients for samples outside the grid are zero.
+   */
+  private static void getStencil(
+    float[][][][] s, int i1, int i2, int i3, float[] a)
+  {
+    int n1 = s[0][0][0].length;
+    int n2 = s[0][0].length;
+    int n3 = s[0].length;
+    a[13] = s[0][i3][i2][i1];
+    for (int k=1; k<14; ++k) {
+      int k1 = K1[k], k2 = K2[k], k3 = K3[k];
+      int kk = k1+3*k2+9*k3;
+      int j1 = i1+k1, j2 = i2+k2, j3 = i3+k3;
+      a[13+kk] = (0<=j1 && j1<n1 && 0<=j2 && j2<n2 && j3<n3) ?
+        s[k][i3][i2][i1] :
+        0.0f;
+      j1 = i1-k1; j2 = i2-k2; j3 = i3-k3;
+      a[13-kk] = (0<=j1 && j1<n1 && 0<=j2 && j2<n2 && 0<=j3) ?
+        s[k][j3][j2][j1] :
+        0.0f;
+    }
+  }
+
+  /**
+   * Returns the sum of off-diagonal terms in one row of Ax, for the sample
+   * with indices i1,i2,i3. Terms for samples outside the grid are zero.
+   */
+  private static float offDiagonal(
+    float[][][][] s, float[][][] x, int i1, int i2, int i3)
+  {
+    int n1 = x[0][0].length;
+    int n2 = x[0].length;
+    int n3 = x.length;
+    float t = 0.0f;
+    if (0<i1 && i1<n1-1 && 0<i2 && i2<n2-1 && 0<i3 && i3<n3-1) {
+      for (int k=1; k<14; ++k) {
+        int k1 = K1[k], k2 = K2[k], k3 = K3[k];
+        int j1 = i1-k1, j2 = i2-k2, j3 = i3-k3;
+        t += s[k][i3][i2][i1]*x[i3+k3][i2+k2][i1+k1];
+        t += s[k][j3][j2][j1]*x[j3][j2][j1];
+      }
+    } else {
+      for (int k=1; k<14; ++k) {
+        int k1 = K1[k], k2 = K2[k], k3 = K3[k];
+        int j1 = i1+k1, j2 = i2+k2, j3 = i3+k3;
+        if (0<=j1 && j1<n1 && 0<=j2 && j2<n2 && j3<n3)
+          t += s[k][i3][i2][i1]*x[j3][j2][j1];
+        j1 = i1-k1; j2 = i2-k2; j3 = i3-k3;
+        if (0<=j1 && j1<n1 && 0<=j2 && j2<n2 && 0<=j3)
+          t += s[k][j3][j2][j1]*x[j3][j2][j1];
+      }
+    }
+    return t;
+  }
+
+  /**
+   * Computes the residual r = b-Ax, in parallel. If b is null, computes
+   * instead r = Ax. Arrays x and r must be distinct.
+   */
+  private static void residual(
+    final float[][][][] s,
+    final float[][][] b, final float[][][] x, final float[][][] r)
+  {
+    final int n1 = x[0][0].length;
+    final int n2 = x[0].length;
+    int n3 = x.length;
+    loop(n3,new LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        float[] s000 = s[0][i3][i2];
+        float[] x00 = x[i3][i2];
+        float[] r00 = r[i3][i2];
+        for (int i1=0; i1<n1; ++i1) {
+          float ax = s000[i1]*x00[i1]+offDiagonal(s,x,i1,i2,i3);
+          r00[i1] = (b!=null)?b[i3][i2][i1]-ax:ax;
+        }
+      }
+    }});
+  }
+
+  /**
+   * Eight-color Gauss-Seidel relaxation. Samples with the same color are
+   * updated in parallel. If not forward, colors are visited in reverse
+   * order.
+   */
+  private static void smooth(
+    final float[][][][] s, final float[][][] b, final float[][][] x,
+    boolean forward)
+  {
+    final int n1 = x[0][0].length;
+    final int n2 = x[0].length;
+    int n3 = x.length;
+    for (int ic=0; ic<8; ++ic) {
+      int jc = forward?ic:7-ic;
+      final int c1 = C1[jc];
+      final int c2 = C2[jc];
+      loop(C3[jc],n3,2,new LoopInt() {
+      public void compute(int i3) {
+        for (int i2=c2; i2<n2; i2+=2) {
+          float[] s000 = s[0][i3][i2];
+          float[] b00 = b[i3][i2];
+          float[] x00 = x[i3][i2];
+          for (int i1=c1; i1<n1; i1+=2)
+            x00[i1] = (b00[i1]-offDiagonal(s,x,i1,i2,i3))/s000[i1];
+        }
+      }});
+    }
+  }
+
+  /**
+   * Downsamples a residual r on the fine grid for the specified level to
+   * a right-hand-side b for the next coarser grid. Downsampling is the
+   * adjoint of upsampling by trilinear interpolation, scaled by 1/2 for
+   * each dimension that is coarsened.
+   */
+  private void downsample(int ilevel, final float[][][] r, final float[][][] b) {
+    int[] q = ratios(ilevel);
+    final int q1 = q[0], q2 = q[1], q3 = q[2];
+    final int n1 = r[0][0].length;
+    final int n2 = r[0].length;
+    final int n3 = r.length;
+    final int m1 = b[0][0].length;
+    final int m2 = b[0].length;
+    int m3 = b.length;
+    final float scale = 1.0f/(q1*q2*q3);
+    loop(m3,new LoopInt() {
+    public void compute(int j3) {
+      for (int j2=0; j2<m2; ++j2) {
+        for (int j1=0; j1<m1; ++j1) {
+          float bj = 0.0f;
+          for (int k3=-1; k3<=1; ++k3) {
+            int i3 = q3*j3+k3;
+            float w3 = weight(q3,k3);
+            if (i3<0 || i3>=n3 || w3==0.0f) continue;
+            for (int k2=-1; k2<=1; ++k2) {
+              int i2 = q2*j2+k2;
+              float w2 = w3*weight(q2,k2);
+              if (i2<0 || i2>=n2 || w2==0.0f) continue;
+              for (int k1=-1; k1<=1; ++k1) {
+                int i1 = q1*j1+k1;
+                float w1 = w2*weight(q1,k1);
+                if (i1<0 || i1>=n1 || w1==0.0f) continue;
+                bj += w1*r[i3][i2][i1];
+              }
+            }
+          }
+          b[j3][j2][j1] = scale*bj;
+        }
+      }
+    }});
+  }
+
+  /**
+   * Upsamples by trilinear interpolation a correction e on the next coarser
+   * grid and accumulates it in a solution x on the grid for the specified
+   * level.
+   */
+  private void upsample(int ilevel, final float[][][] e, final float[][][] x) {
+    int[] q = ratios(ilevel);
+    final int q1 = q[0], q2 = q[1], q3 = q[2];
+    final int n1 = x[0][0].length;
+    final int n2 = x[0].length;
+    int n3 = x.length;
+    final int m1 = e[0][0].length;
+    final int m2 = e[0].length;
+    final int m3 = e.length;
+    loop(n3,new LoopInt() {
+    public void compute(int i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1) {
+          float xi = 0.0f;
+          for (int j3=i3/q3; j3<=i3/q3+1 && j3<m3; ++j3) {
+            float w3 = weight(q3,i3-q3*j3);
+            if (w3==0.0f) continue;
+            for (int j2=i2/q2; j2<=i2/q2+1 && j2<m2; ++j2) {
+              float w2 = w3*weight(q2,i2-q2*j2);
+              if (w2==0.0f) continue;
+              for (int j1=i1/q1; j1<=i1/q1+1 && j1<m1; ++j1) {
+                float w1 = w2*weight(q1,i1-q1*j1);
+                if (w1==0.0f) continue;
+                xi += w1*e[j3][j2][j1];
+              }
+            }
+          }
+          x[i3][i2][i1] += xi;
+        }
+      }
+    }});
+  }
+
+  /**
+   * Returns the Galerkin coarsening RAP of the operator A for the specified
+   * level, where P is trilinear interpolation and R is downsampling. The
+   * coarse operator is symmetric, and only 14 coefficients are stored for
+   * each sample, as for the specified operator.
+   */
+  private float[][][][] coarsen(int ilevel, final float[][][][] s) {
+    int[] q = ratios(ilevel);
+    final int q1 = q[0], q2 = q[1], q3 = q[2];
+    final int n1 = s[0][0][0].length;
+    final int n2 = s[0][0].length;
+    final int n3 = s[0].length;
+    int[] m = _n[ilevel-1];
+    final int m1 = m[0], m2 = m[1], m3 = m[2];
+    final float scale = 1.0f/(q1*q2*q3);
+    final float[][][][] c = new float[14][m3][m2][m1];
+    loop(m3,new LoopInt() {
+    public void compute(int j3) {
+      float[] a = new float[27];
+      double[] b = new double[27];
+      for (int j2=0; j2<m2; ++j2) {
+        for (int j1=0; j1<m1; ++j1) {
+
+          // Accumulate b = RAP for offsets d1,d2,d3 from sample j1,j2,j3,
+          // by summing over fine samples i near the coarse sample j, and
+          // then over fine samples i+g coupled to i by the operator A.
+          for (int d=0; d<27; ++d)
+            b[d] = 0.0;
+          for (int e3=-1; e3<=1; ++e3) {
+            int i3 = q3*j3+e3;
+            float w3 = weight(q3,e3);
+            if (i3<0 || i3>=n3 || w3==0.0f) continue;
+            for (int e2=-1; e2<=1; ++e2) {
+              int i2 = q2*j2+e2;
+              float w2 = w3*weight(q2,e2);
+              if (i2<0 || i2>=n2 || w2==0.0f) continue;
+              for (int e1=-1; e1<=1; ++e1) {
+                int i1 = q1*j1+e1;
+                float w1 = w2*weight(q1,e1);
+                if (i1<0 || i1>=n1 || w1==0.0f) continue;
+                getStencil(s,i1,i2,i3,a);
+                for (int g=0; g<27; ++g) {
+                  if (a[g]==0.0f) continue;
+                  int f1 = e1+g%3-1;
+                  int f2 = e2+(g/3)%3-1;
+                  int f3 = e3+g/9-1;
+                  for (int d3=-1; d3<=1; ++d3) {
+                    float v3 = weight(q3,f3-q3*d3);
+                    if (v3==0.0f || j3+d3<0 || j3+d3>=m3) continue;
+                    for (int d2=-1; d2<=1; ++d2) {
+                      float v2 = v3*weight(q2,f2-q2*d2);
+                      if (v2==0.0f || j2+d2<0 || j2+d2>=m2) continue;
+                      for (int d1=-1; d1<=1; ++d1) {
+                        float v1 = v2*weight(q1,f1-q1*d1);
+                        if (v1==0.0f || j1+d1<0 || j1+d1>=m1) continue;
+                        b[13+d1+3*d2+9*d3] += w1*a[g]*v1;
+                      }
+                    }
+                  }
+                }
+              }
+            }
+          }
+
+          // Store the 14 coefficients for non-negative offsets.
+          for (int k=0; k<14; ++k)
+            c[k][j3][j2][j1] = scale*(float)b[13+K1[k]+3*K2[k]+9*K3[k]];
+        }
+      }
+    }});
+    return c;
+  }
+
+  /**
+   * Returns the lower triangle of the Cholesky factor of the specified
+   * operator, which must be small.
+   */
+  private static double[][] factor(float[][][][] s) {
+    int n1 = s[0][0][0].length;
+    int n2 = s[0][0].length;
+    int n3 = s[0].length;
+    int n = n1*n2*n3;
+    double[][] l = new double[n][];
+    for (int i=0; i<n; ++i)
+      l[i] = new double[i+1];
+    float[] a = new float[27];
+    for (int i3=0,i=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1,++i) {
+          getStencil(s,i1,i2,i3,a);
+          for (int k=0; k<27; ++k) {
+            int j1 = i1+k%3-1;
+            int j2 = i2+(k/3)%3-1;
+            int j3 = i3+k/9-1;
+            int j = j1+j2*n1+j3*n1*n2;
+            if (0<=j1 && j1<n1 && 0<=j2 && j2<n2 && 0<=j3 && j3<n3 && j<=i)
+              l[i][j] = a[k];
+          }
+        }
+      }
+    }
+    for (int i=0; i<n; ++i) {
+      double[] li = l[i];
+      for (int j=0; j<=i; ++j) {
+        double[] lj = l[j];
+        double t = li[j];
+        for (int k=0; k<j; ++k)
+          t -= li[k]*lj[k];
+        if (j<i) {
+          li[j] = t/lj[j];
+        } else {
+          Check.argument(t>0.0,"operator is positive-definite");
+          li[i] = sqrt(t);
+        }
+      }
+    }
+    return l;
+  }
+
+  /**
+   * Solves the system Ax = b for the coarsest grid, using the Cholesky
+   * factor of A.
+   */
+  private void solveCoarsest(float[][][] b, float[][][] x) {
+    int n1 = b[0][0].length;
+    int n2 = b[0].length;
+    int n3 = b.length;
+    int n = n1*n2*n3;
+    double[] y = new double[n];
+    for (int i3=0,i=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1,++i)
+          y[i] = b[i3][i2][i1];
+    for (int i=0; i<n; ++i) {
+      double[] li = _l[i];
+      double t = y[i];
+      for (int k=0; k<i; ++k)
+        t -= li[k]*y[k];
+      y[i] = t/li[i];
+    }
+    for (int i=n-1; i>=0; --i) {
+      double t = y[i]/_l[i][i];
+      y[i] = t;
+      for (int k=0; k<i; ++k)
+        y[k] -= _l[i][k]*t;
+    }
+    for (int i3=0,i=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1,++i)
+          x[i3][i2][i1] = (float)y[i];
+  }
+
+  /**
+   * Performs one cycle of the multigrid for the specified grid level.
+   * This cycle may recursively perform multiple cycles for lower levels
+   * corresponding to coarser grids. If the specified level is zero,
+   * corresponding to the coarsest grid, then this method solves this
+   * smallest system directly by Cholesky decomposition.
+   */
+  private void cycleDownUp(int ilevel, float[][][] b, float[][][] x) {
+    float[][][][] s = _s[ilevel];
+
+    // If coarsest grid, solve the coarsest system exactly.
+    if (ilevel==0) {
+      solveCoarsest(b,x);
+    }
+
+    // Else, cycle recursively on coarser grids.
+    else {
+
+      // Smooth the solution x.
+      for (int ibefore=0; ibefore<_nbefore; ++ibefore)
+        smooth(s,b,x,true);
+
+      // Compute and downsample the residual.
+      float[][][] r = _r[ilevel];
+      residual(s,b,x,r);
+      float[][][] rc = _b[ilevel-1];
+      downsample(ilevel,r,rc);
+
+      // Estimate error from downsampled residual on coarser grid.
+      float[][][] ec = _x[ilevel-1];
+      zero(ec);
+      for (int icycle=0; icycle<_ncycle; ++icycle)
+        cycleDownUp(ilevel-1,rc,ec);
+
+      // Upsample the estimated error and accumulate in solution x.
+      upsample(ilevel,ec,x);
+
+      // Smooth the solution x, visiting colors in reverse order.
+      for (int iafter=0; iafter<_nafter; ++iafter)
+        smooth(s,b,x,false);
+    }
+  }
+
+  private static double sumSquares(float[][][] x) {
+    int n1 = x[0][0].length;
+    int n2 = x[0].length;
+    int n3 = x.length;
+    double sum = 0.0;
+    for (int i3=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        float[] x32 = x[i3][i2];
+        for (int i1=0; i1<n1; ++i1)
+          sum += x32[i1]*x32[i1];
+      }
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,148 @@
+/****************************************************************************
+Copyright (c) 2008, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package ldf;
+
+import static edu.mines.jtk.util.ArrayMath.*;
+import static edu.mines.jtk.util.Parallel.*;
+
+/**
+ * Parallel solves with incomplete Cholesky factors of local SPD filters
+ * for 3-D arrays. The factorization A ~ L*D*L' has a unit-lower-triangular
+ * matrix L with the same stencil as the lower half of A, so that, like A,
+ * L is represented by coefficients for a few non-negative index offsets
+ * {k1,k2,k3}, the first of which is {0,0,0}. The first array of those
+ * coefficients contains the inverse of the diagonal matrix D.
+ * <p>
+ * Triangular solves with L and L' are inherently sequential for samples,
+ * but not for rows of samples. Each row [i3][i2] of samples depends only
+ * on rows with smaller (for L) or larger (for L') values of i2+2*i3, so
+ * that rows with the same value of i2+2*i3 form a wavefront of rows that
+ * may be solved in parallel. Samples are solved in the same order as for
+ * sequential solves within each row, and the solution differs from that
+ * of a sequential solve only in rounding errors.
+ * @author agent
+ * @version 2026.10.18
+ */
+class WavefrontSolver3 {
+
+  /**
+   * Solves L*D*L'*x = b.
+   * @param k1 array of offsets in 1st dimension of coefficients in L.
+   * @param k2 array of offsets in 2nd dimension of coefficients in L.
+   * @param k3 array of offsets in 3rd dimension of coefficients in L.
+   * @param l array of coefficients {d000,l...}, with one array for each
+   *  offset, where d000 contains the inverse of the diagonal matrix D.
+   * @param b the input right-hand side array.
+   * @param x the output solution array; may be the same as b.
+   */
+  static void solve(
+    final int[] k1, final int[] k2, final int[] k3,
+    final float[][][][] l, final float[][][] b, final float[][][] x)
+  {
+    int n2 = b[0].length;
+    int n3 = b.length;
+    int nt = n2+2*n3-2;
+
+    // Solve L*z = b, one wavefront at a time.
+    for (int it=0; it<nt; ++it) {
+      final int t = it;
+      loop(i3First(t,n2),i3Last(t,n3)+1,new LoopInt() {
+      public void compute(int i3) {
+        solveL(k1,k2,k3,l,b,x,t-2*i3,i3);
+      }});
+    }
+
+    // Solve D*y = z and L'*x = y, one wavefront at a time.
+    for (int it=nt-1; it>=0; --it) {
+      final int t = it;
+      loop(i3First(t,n2),i3Last(t,n3)+1,new LoopInt() {
+      public void compute(int i3) {
+        solveDLt(k1,k2,k3,l,x,t-2*i3,i3);
+      }});
+    }
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  // First and last indices i3 of rows in the wavefront i2+2*i3 = t.
+  private static int i3First(int t, int n2) {
+    return max(0,(t-n2+2)/2);
+  }
+  private static int i3Last(int t, int n3) {
+    return min(n3-1,t/2);
+  }
+
+  // Solves L*z = b for one row, with z stored in x. Because L is unit-
+  // lower-triangular, each sample of z depends only on b and on samples
+  // of z already computed, in this and in previous wavefronts. Terms for
+  // samples in previous wavefronts are accumulated first, one offset at
+  // a time; the term for the previous sample in this row is last.
+  private static void solveL(
+    int[] k1, int[] k2, int[] k3,
+    float[][][][] l, float[][][] b, float[][][] x, int i2, int i3)
+  {
+    int n1 = b[0][0].length;
+    int n2 = b[0].length;
+    float[] x00 = x[i3][i2];
+    float[] l00 = null;
+    copy(b[i3][i2],x00);
+    for (int k=1; k<l.length; ++k) {
+      int j2 = i2-k2[k];
+      int j3 = i3-k3[k];
+      if (j2==i2 && j3==i3) {
+        l00 = l[k][i3][i2];
+      } else if (0<=j2 && j2<n2 && 0<=j3) {
+        float[] lk = l[k][j3][j2];
+        float[] xk = x[j3][j2];
+        int j1 = -k1[k];
+        int i1b = max(0,-j1);
+        int i1e = min(n1,n1-j1);
+        for (int i1=i1b; i1<i1e; ++i1)
+          x00[i1] -= lk[i1+j1]*xk[i1+j1];
+      }
+    }
+    for (int i1=1; i1<n1; ++i1)
+      x00[i1] -= l00[i1-1]*x00[i1-1];
+  }
+
+  // Solves D*y = z and L'*x = y for one row, with z stored in x. Each
+  // sample of x depends only on z and on samples of x already computed,
+  // in this and in later wavefronts. Terms for samples in later wavefronts
+  // are accumulated first; the term for the next sample in this row is
+  // last.
+  private static void solveDLt(
+    int[] k1, int[] k2, int[] k3,
+    float[][][][] l, float[][][] x, int i2, int i3)
+  {
+    int n1 = x[0][0].length;
+    int n2 = x[0].length;
+    int n3 = x.length;
+    float[] d00 = l[0][i3][i2];
+    float[] x00 = x[i3][i2];
+    float[] l00 = null;
+    for (int i1=0; i1<n1; ++i1)
+      x00[i1] *= d00[i1];
+    for (int k=1; k<l.length; ++k) {
+      int j2 = i2+k2[k];
+      int j3 = i3+k3[k];
+      if (j2==i2 && j3==i3) {
+        l00 = l[k][i3][i2];
+      } else if (0<=j2 && j2<n2 && j3<n3) {
+        float[] lk = l[k][i3][i2];
+        float[] xk = x[j3][j2];
+        int j1 = k1[k];
+        int i1b = max(0,-j1);
+        int i1e = min(n1,n1-j1);
+        for (int i1=i1b; i1<i1e; ++i1)
+          x00[i1] -= lk[i1]*xk[i1+j1];
+      }
+    }
+    for (int i1=n1-2; i1>=0; --i1)
+      x00[i1] -= l00[i1]*x00[i1+1];
+  }
+}
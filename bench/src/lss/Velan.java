@@ -137,10 +137,34 @@ public class Velan {
   public static float[] semblance(
     Sampling st, Sampling sx, double vnmo, double tsigma, float[][] q,
     float[] bs)
+  {
+    int nt = q[0].length;
+    float[] s = new float[nt];
+    semblance(st,sx,vnmo,tsigma,q,bs,new float[8][nt],s);
+    return s;
+  }
+
+  public static float[] semblance(double tsigma, float[][] q) {
+    int nt = q[0].length;
+    float[] s = new float[nt];
+    semblance(tsigma,q,new float[4][nt],s);
+    return s;
+  }
+
+  /**
+   * Computes weighted semblance using specified workspace.
+   * Does not allocate any arrays.
+   * @param w workspace array[8][nt]; contents are overwritten.
+   * @param s output array of semblances.
+   */
+  static void semblance(
+    Sampling st, Sampling sx, double vnmo, double tsigma, float[][] q,
+    float[] bs, float[][] w, float[] s)
   {
     int nx = q.length;
     int nt = q[0].length;
-    float[] r = new float[nt];
+    float[] r = w[0];
+    zero(r);
     float xxsum = 0.0f;
     for (int ix=0; ix<nx; ++ix) {
       float x = (float)sx.getValue(ix);
@@ -150,12 +174,14 @@ public class Velan {
       }
     }
     float xxscl = 0.1f*xxsum/nx;
-    float[] arr = new float[nt];
-    float[] arq = new float[nt];
-    float[] aqq = new float[nt];
-    float[] brr = new float[nt];
-    float[] brq = new float[nt];
-    float[] bqq = new float[nt];
+    float[] arr = w[1];
+    float[] arq = w[2];
+    float[] aqq = w[3];
+    float[] brr = w[4];
+    float[] brq = w[5];
+    float[] bqq = w[6];
+    for (int iw=1; iw<=6; ++iw)
+      zero(w[iw]);
     float gamma = (float)(1.0/(vnmo*vnmo));
     for (int ix=0; ix<nx; ++ix) {
       float x = (float)sx.getValue(ix);
@@ -179,13 +205,8 @@ public class Velan {
         bqq[it] += ui*qq;
       }
     }
-    esmooth(tsigma,arr,arr);
-    esmooth(tsigma,arq,arq);
-    esmooth(tsigma,aqq,aqq);
-    esmooth(tsigma,brr,brr);
-    esmooth(tsigma,brq,brq);
-    esmooth(tsigma,bqq,bqq);
-    float[] s = new float[nt];
+    for (int iw=1; iw<=6; ++iw)
+      esmooth(tsigma,w[iw],w[7],w[iw]);
     for (int it=0; it<nt; ++it) {
       double arri = arr[it];
       double arqi = arq[it];
@@ -238,15 +259,23 @@ public class Velan {
         if (bs!=null) bs[it] = (float)b;
       }
     }
-    return s;
   }
 
-  public static float[] semblance(double tsigma, float[][] q) {
+  /**
+   * Computes unweighted semblance using specified workspace.
+   * Does not allocate any arrays.
+   * @param w workspace array[4][nt]; contents are overwritten.
+   * @param s output array of semblances.
+   */
+  static void semblance(double tsigma, float[][] q, float[][] w, float[] s) {
     int nx = q.length;
     int nt = q[0].length;
-    float[] sn = new float[nt];
-    float[] sd = new float[nt];
-    float[] sx = new float[nt];
+    float[] sn = w[0];
+    float[] sd = w[1];
+    float[] sx = w[2];
+    zero(sn);
+    zero(sd);
+    zero(sx);
     for (int ix=0; ix<nx; ++ix) {
       for (int it=0; it<nt; ++it) {
         float qi = q[ix][it];
@@ -257,15 +286,13 @@ public class Velan {
       }
     }
     mul(sn,sn,sn);
-    esmooth(tsigma,sn,sn);
-    esmooth(tsigma,sd,sd);
-    esmooth(tsigma,sx,sx);
-    float[] s = sn;
+    esmooth(tsigma,sn,w[3],sn);
+    esmooth(tsigma,sd,w[3],sd);
+    esmooth(tsigma,sx,w[3],sx);
     for (int it=0; it<nt; ++it) {
       s[it] = (sd[it]>0.0)?sn[it]/(sx[it]*sd[it]):0.0f;
       if (s[it]>1.0f) s[it] = 1.0f;
     }
-    return s;
   }
 
   public static float[][] nmo(
@@ -429,6 +456,27 @@ public class Velan {
    */
   public static void esmooth(double sigma, float[] p, float[] q) {
     if (p==q) p = copy(p);
+    esmoothX(sigma,p,q);
+  }
+
+  /**
+   * Two-sided exponential smoothing using a specified work array.
+   * Does not allocate any arrays, even if input and output arrays are
+   * the same array.
+   * @param sigma filter half-width, in samples; approximating a Gaussian.
+   * @param p array of input samples.
+   * @param t work array, distinct from the input and output arrays.
+   * @param q array of output samples.
+   */
+  static void esmooth(double sigma, float[] p, float[] t, float[] q) {
+    if (p==q) {
+      System.arraycopy(p,0,t,0,p.length);
+      p = t;
+    }
+    esmoothX(sigma,p,q);
+  }
+
+  private static void esmoothX(double sigma, float[] p, float[] q) {
     float sigmas = (float)(sigma*sigma);
     float a = (sigmas>0.0)?(1.0f+sigmas-sqrt(1.0f+2.0f*sigmas))/sigmas:0.0f;
     float b = (1.0f-a)/(1.0f+a);
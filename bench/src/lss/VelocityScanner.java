@@ -0,0 +1,209 @@
+/****************************************************************************
+Copyright (c) 2009, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+package lss;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Check;
+import static edu.mines.jtk.util.ArrayMath.*;
+import static edu.mines.jtk.util.Parallel.*;
+
+/**
+ * Computes velocity spectra for many CMP gathers with the same sampling.
+ * Spectra computed are identical to those computed by the method
+ * {@link Velan#velocitySpectrum(Sampling,Sampling,float[][],Sampling,
+ * double,boolean,float[][])}, but more efficiently.
+ * <p>
+ * Normal-moveout times for all trial velocities and offsets are computed
+ * only once, when this scanner is constructed, and are then shared by
+ * all gathers scanned. Each thread has its own workspace for the moveout-
+ * corrected gather and semblance sums, so that, after the first gather,
+ * scanning allocates no arrays other than any returned to the caller.
+ * <p>
+ * The table of moveout times contains nv*nx*nt floats, for nv trial
+ * velocities, nx offsets and nt time samples.
+ * @author agent
+ * @version 2026.10.18
+ */
+public class VelocityScanner {
+
+  /**
+   * A source of gathers to be scanned.
+   */
+  public interface GatherSource {
+
+    /**
+     * Returns the next gather, or null if no gathers remain. This method
+     * is never called by more than one thread at a time.
+     * @return array[nx][nt] of gather, or null.
+     */
+    public float[][] next();
+  }
+
+  /**
+   * A receiver of velocity spectra.
+   */
+  public interface SpectrumReceiver {
+
+    /**
+     * Receives the velocity spectrum for one gather. The spectrum and
+     * weight arrays are workspace that will be overwritten for other
+     * gathers; they should not be referenced after this method returns.
+     * This method may be called concurrently by multiple threads, and
+     * not in the order in which gathers were provided.
+     * @param index index of the gather, in the order provided.
+     * @param p array[nx][nt] of gather.
+     * @param s array[nv][nt] of semblances.
+     * @param b array[nv][nt] of weights; null, if not weighted.
+     */
+    public void receive(int index, float[][] p, float[][] s, float[][] b);
+  }
+
+  /**
+   * Constructs a scanner for specified samplings.
+   * @param st time sampling.
+   * @param sx offset sampling.
+   * @param sv velocity sampling.
+   * @param tsigma half-width of semblance smoothing, in samples.
+   * @param weighted true, for weighted semblance; false, otherwise.
+   */
+  public VelocityScanner(
+    Sampling st, Sampling sx, Sampling sv,
+    double tsigma, boolean weighted)
+  {
+    _st = st;
+    _sx = sx;
+    _sv = sv;
+    _tsigma = tsigma;
+    _weighted = weighted;
+    _nt = st.getCount();
+    _nx = sx.getCount();
+    _nv = sv.getCount();
+    _tnmo = new float[_nv][_nx][_nt];
+    loop(_nv,new LoopInt() {
+    public void compute(int iv) {
+      double v = _sv.getValue(iv);
+      for (int ix=0; ix<_nx; ++ix) {
+        double x = _sx.getValue(ix);
+        double xxg = (x*x)/(v*v);
+        float[] t = _tnmo[iv][ix];
+        for (int it=0; it<_nt; ++it) {
+          double t0 = _st.getValue(it);
+          t[it] = (float)sqrt(t0*t0+xxg);
+        }
+      }
+    }});
+  }
+
+  /**
+   * Returns the velocity spectrum for the specified gather.
+   * @param p array[nx][nt] of gather.
+   * @return array[nv][nt] of semblances.
+   */
+  public float[][] scan(float[][] p) {
+    float[][] s = new float[_nv][_nt];
+    scan(p,s,null);
+    return s;
+  }
+
+  /**
+   * Computes the velocity spectrum for the specified gather.
+   * Scans trial velocities in parallel.
+   * @param p array[nx][nt] of gather.
+   * @param s output array[nv][nt] of semblances.
+   * @param b output array[nv][nt] of weights; ignored if null or if
+   *  semblances are not weighted.
+   */
+  public void scan(
+    final float[][] p, final float[][] s, final float[][] b)
+  {
+    checkGather(p);
+    loop(_nv,new LoopInt() {
+    public void compute(int iv) {
+      scanVelocity(iv,p,s[iv],(b!=null)?b[iv]:null,_work.get());
+    }});
+  }
+
+  /**
+   * Computes velocity spectra for all gathers from the specified source.
+   * Scans gathers in parallel, one gather per thread, so that the number
+   * of gathers in memory at any time is bounded by the number of threads.
+   * @param gs the source of gathers.
+   * @param sr the receiver of velocity spectra.
+   */
+  public void scan(final GatherSource gs, final SpectrumReceiver sr) {
+    final AtomicInteger ai = new AtomicInteger();
+    int nthread = Runtime.getRuntime().availableProcessors();
+    loop(nthread,new LoopInt() {
+    public void compute(int ithread) {
+      Work w = _work.get();
+      if (w.s==null) {
+        w.s = new float[_nv][_nt];
+        w.b = _weighted?new float[_nv][_nt]:null;
+      }
+      for (;;) {
+        float[][] p;
+        int index;
+        synchronized (gs) {
+          p = gs.next();
+          index = ai.getAndIncrement();
+        }
+        if (p==null)
+          break;
+        checkGather(p);
+        for (int iv=0; iv<_nv; ++iv)
+          scanVelocity(iv,p,w.s[iv],(w.b!=null)?w.b[iv]:null,w);
+        sr.receive(index,p,w.s,w.b);
+      }
+    }});
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private Sampling _st,_sx,_sv; // samplings of time, offset and velocity
+  private double _tsigma; // half-width of semblance smoothing
+  private boolean _weighted; // true, for weighted semblance
+  private int _nt,_nx,_nv; // numbers of times, offsets and velocities
+  private float[][][] _tnmo; // table[nv][nx][nt] of moveout times
+
+  // Workspace for one thread scanning velocities.
+  private class Work {
+    SincInterpolator si = new SincInterpolator();
+    float[][] q = new float[_nx][_nt]; // moveout-corrected gather
+    float[][] w = new float[8][_nt]; // semblance sums
+    float[][] s,b; // spectra, used only when scanning a source of gathers
+  }
+  private ThreadLocal<Work> _work = new ThreadLocal<Work>() {
+    protected Work initialValue() {
+      return new Work();
+    }
+  };
+
+  private void checkGather(float[][] p) {
+    Check.argument(p.length==_nx,"gather has nx traces");
+    Check.argument(p[0].length==_nt,"gather has nt samples per trace");
+  }
+
+  // Corrects the gather for normal moveout for one trial velocity, and
+  // then computes semblance for that velocity, all in the workspace.
+  private void scanVelocity(
+    int iv, float[][] p, float[] s, float[] b, Work w)
+  {
+    int nt = _nt;
+    double dt = _st.getDelta();
+    double ft = _st.getFirst();
+    for (int ix=0; ix<_nx; ++ix)
+      w.si.interpolate(nt,dt,ft,p[ix],nt,_tnmo[iv][ix],w.q[ix]);
+    if (_weighted) {
+      double v = _sv.getValue(iv);
+      Velan.semblance(_st,_sx,v,_tsigma,w.q,b,w.w,s);
+    } else {
+      Velan.semblance(_tsigma,w.q,w.w,s);
+    }
+  }
+}
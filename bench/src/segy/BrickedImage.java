@@ -0,0 +1,462 @@
+/****************************************************************************
+Copyright (c) 2012, Colorado School of Mines and others. All rights reserved.
+This program and accompanying materials are made available under the terms of
+the Common Public License - v1.0, which accompanies this distribution, and is
+available at http://www.eclipse.org/legal/cpl-v10.html
+****************************************************************************/
+
+package segy;
+
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.mines.jtk.io.*;
+import edu.mines.jtk.util.*;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+/**
+ * A 3D image of floats stored in a file as bricks of samples.
+ * Samples in a bricked image file are grouped into bricks, each with
+ * m1*m2*m3 samples, so that slices, subvolumes, or traces along any of
+ * the three axes may be read efficiently. Only those bricks that intersect
+ * the requested samples are read, and recently read bricks are kept in a
+ * cache of limited size, with the least recently used bricks discarded
+ * first.
+ * <p>
+ * A bricked image file may be converted from a SEG-Y image. In that file,
+ * indices i1, i2, and i3 are zero-based, in ranges [0,n1-1], [0,n2-1], and
+ * [0,n3-1], where i2 = 0 and i3 = 0 correspond to the minimum inline and
+ * crossline indices of the SEG-Y image.
+ * <p>
+ * Bricks are stored with i1 varying fastest, both within each brick
+ * and among bricks. Bricks on the upper edges of the image are padded
+ * with zeros, so that all bricks have the same size.
+ *
+ * @author agent
+ * @version 2026.10.18
+ */
+public class BrickedImage {
+
+  /**
+   * Converts a SEG-Y image to a bricked image file.
+   * Writes zeros for any missing traces. Each column of bricks with
+   * constant brick indices in the 2nd and 3rd dimensions is written
+   * sequentially after reading the m2*m3 traces that it contains. If
+   * the SEG-Y image is memory-mapped, those traces are read in parallel.
+   * @param si the SEG-Y image.
+   * @param fileName name of the bricked image file.
+   * @param m1 number of samples per brick in 1st dimension.
+   * @param m2 number of samples per brick in 2nd dimension.
+   * @param m3 number of samples per brick in 3rd dimension.
+   */
+  public static void convert(
+    final SegyImage si, String fileName,
+    final int m1, final int m2, final int m3)
+  {
+    Check.argument(m1>0,"m1>0");
+    Check.argument(m2>0,"m2>0");
+    Check.argument(m3>0,"m3>0");
+    final int n1 = si.getN1();
+    final int n2 = si.getN2();
+    final int n3 = si.getN3();
+    final int i2min = si.getI2Min();
+    final int i3min = si.getI3Min();
+    int nb1 = (n1+m1-1)/m1;
+    int nb2 = (n2+m2-1)/m2;
+    int nb3 = (n3+m3-1)/m3;
+    final boolean parallel = si.isMemoryMapped();
+    File file = new File(fileName);
+    if (file.exists())
+      file.delete();
+    try {
+      ArrayFile af = new ArrayFile(file,"rw");
+      try {
+        writeHeader(af,n1,n2,n3,m1,m2,m3,
+                    si.getD1(),si.getD2(),si.getD3());
+        int mb = (int)(0.5+4.0*nb1*m1*nb2*m2*nb3*m3/1.0e6);
+        System.out.print(
+          "writing "+nb1+"*"+nb2+"*"+nb3+" bricks ("+mb+" MB) ");
+        final float[][][] c = new float[m3][m2][nb1*m1]; // column of bricks
+        float[][][] b = new float[m3][m2][m1]; // one brick
+        for (int k3=0; k3<nb3; ++k3) {
+          if (nb3>=10 && k3%(nb3/10)==0)
+            System.out.print(".");
+          for (int k2=0; k2<nb2; ++k2) {
+            final int j2 = k2*m2;
+            final int j3 = k3*m3;
+            if (parallel) {
+              Parallel.loop(m2*m3,new Parallel.LoopInt() {
+              public void compute(int i23) {
+                getTrace(si,n1,n2,n3,i2min,i3min,j2,j3,i23%m2,i23/m2,c);
+              }});
+            } else {
+              for (int i23=0; i23<m2*m3; ++i23)
+                getTrace(si,n1,n2,n3,i2min,i3min,j2,j3,i23%m2,i23/m2,c);
+            }
+            af.seek(brickOffset(0,k2,k3,nb1,nb2,m1,m2,m3));
+            for (int k1=0; k1<nb1; ++k1) {
+              for (int i3=0; i3<m3; ++i3)
+                for (int i2=0; i2<m2; ++i2)
+                  System.arraycopy(c[i3][i2],k1*m1,b[i3][i2],0,m1);
+              af.writeFloats(b);
+            }
+          }
+        }
+        System.out.println(" done");
+      } finally {
+        af.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("cannot write bricked image ("+e+")");
+    }
+  }
+
+  /**
+   * Constructs a bricked image for the specified file.
+   * @param fileName name of the bricked image file.
+   */
+  public BrickedImage(String fileName) {
+    try {
+      _af = new ArrayFile(fileName,"r");
+      if (_af.readInt()!=MAGIC || _af.readInt()!=VERSION)
+        throw new RuntimeException(fileName+" is not a bricked image file");
+      _n1 = _af.readInt();
+      _n2 = _af.readInt();
+      _n3 = _af.readInt();
+      _m1 = _af.readInt();
+      _m2 = _af.readInt();
+      _m3 = _af.readInt();
+      _d1 = _af.readDouble();
+      _d2 = _af.readDouble();
+      _d3 = _af.readDouble();
+    } catch (IOException e) {
+      throw new RuntimeException("cannot open bricked image "+fileName);
+    }
+    _nb1 = (_n1+_m1-1)/_m1;
+    _nb2 = (_n2+_m2-1)/_m2;
+    _nb3 = (_n3+_m3-1)/_m3;
+    setCacheSize(64);
+  }
+
+  /**
+   * Closes the file corresponding to this image.
+   */
+  public synchronized void close() {
+    try {
+      if (_af!=null)
+        _af.close();
+    } catch (IOException e) {
+      throw new RuntimeException("cannot close bricked image");
+    }
+    _af = null;
+    _cache.clear();
+  }
+
+  /**
+   * Sets the maximum number of bricks kept in the cache.
+   * The default is 64 bricks. When the cache is full, reading another
+   * brick discards the brick in the cache that was least recently used.
+   * @param nbrick the maximum number of bricks; must be positive.
+   */
+  public synchronized void setCacheSize(final int nbrick) {
+    Check.argument(nbrick>0,"nbrick>0");
+    Map<Long,float[][][]> cache = new LinkedHashMap<Long,float[][][]>(
+      16,0.75f,true) {
+      protected boolean removeEldestEntry(Map.Entry<Long,float[][][]> e) {
+        return size()>nbrick;
+      }
+    };
+    if (_cache!=null)
+      cache.putAll(_cache);
+    _cache = cache;
+  }
+
+  /**
+   * Gets the number of samples in 1st dimension.
+   * @return the number of samples.
+   */
+  public int getN1() {
+    return _n1;
+  }
+
+  /**
+   * Gets the number of samples in 2nd dimension.
+   * @return the number of samples.
+   */
+  public int getN2() {
+    return _n2;
+  }
+
+  /**
+   * Gets the number of samples in 3rd dimension.
+   * @return the number of samples.
+   */
+  public int getN3() {
+    return _n3;
+  }
+
+  /**
+   * Gets the number of samples per brick in 1st dimension.
+   * @return the number of samples.
+   */
+  public int getM1() {
+    return _m1;
+  }
+
+  /**
+   * Gets the number of samples per brick in 2nd dimension.
+   * @return the number of samples.
+   */
+  public int getM2() {
+    return _m2;
+  }
+
+  /**
+   * Gets the number of samples per brick in 3rd dimension.
+   * @return the number of samples.
+   */
+  public int getM3() {
+    return _m3;
+  }
+
+  /**
+   * Gets the sampling interval in 1st dimension.
+   * @return the sampling interval.
+   */
+  public double getD1() {
+    return _d1;
+  }
+
+  /**
+   * Gets the sampling interval in 2nd dimension.
+   * @return the sampling interval.
+   */
+  public double getD2() {
+    return _d2;
+  }
+
+  /**
+   * Gets the sampling interval in 3rd dimension.
+   * @return the sampling interval.
+   */
+  public double getD3() {
+    return _d3;
+  }
+
+
+  /**
+   * Gets a subvolume of this image.
+   * The numbers of samples in the subvolume are the dimensions of the
+   * specified array, which must lie within the bounds of this image.
+   * @param j1 index in 1st dimension of first sample in subvolume.
+   * @param j2 index in 2nd dimension of first sample in subvolume.
+   * @param j3 index in 3rd dimension of first sample in subvolume.
+   * @param x array[l3][l2][l1] for the subvolume.
+   */
+  public void get(int j1, int j2, int j3, final float[][][] x) {
+    int l1 = x[0][0].length;
+    int l2 = x[0].length;
+    int l3 = x.length;
+    copyBox(j1,j2,j3,l1,l2,l3,new Sink() {
+      public void put(int k1, int k2, int k3, float[] r, int jr, int nr) {
+        System.arraycopy(r,jr,x[k3][k2],k1,nr);
+      }
+    });
+  }
+
+  /**
+   * Gets a slice of this image with constant index in 1st dimension.
+   * This is a time (or depth) slice.
+   * @param i1 index in 1st dimension.
+   * @param x array[n3][n2] for the slice.
+   */
+  public void getSlice1(int i1, final float[][] x) {
+    copyBox(i1,0,0,1,_n2,_n3,new Sink() {
+      public void put(int k1, int k2, int k3, float[] r, int jr, int nr) {
+        x[k3][k2] = r[jr];
+      }
+    });
+  }
+
+  /**
+   * Gets a slice of this image with constant index in 2nd dimension.
+   * @param i2 index in 2nd dimension.
+   * @param x array[n3][n1] for the slice.
+   */
+  public void getSlice2(int i2, final float[][] x) {
+    copyBox(0,i2,0,_n1,1,_n3,new Sink() {
+      public void put(int k1, int k2, int k3, float[] r, int jr, int nr) {
+        System.arraycopy(r,jr,x[k3],k1,nr);
+      }
+    });
+  }
+
+  /**
+   * Gets a slice of this image with constant index in 3rd dimension.
+   * @param i3 index in 3rd dimension.
+   * @param x array[n2][n1] for the slice.
+   */
+  public void getSlice3(int i3, final float[][] x) {
+    copyBox(0,0,i3,_n1,_n2,1,new Sink() {
+      public void put(int k1, int k2, int k3, float[] r, int jr, int nr) {
+        System.arraycopy(r,jr,x[k2],k1,nr);
+      }
+    });
+  }
+
+  /**
+   * Gets a trace of this image along the 1st dimension.
+   * @param i2 index in 2nd dimension.
+   * @param i3 index in 3rd dimension.
+   * @param x array[n1] for the trace.
+   */
+  public void getTrace1(int i2, int i3, final float[] x) {
+    copyBox(0,i2,i3,_n1,1,1,new Sink() {
+      public void put(int k1, int k2, int k3, float[] r, int jr, int nr) {
+        System.arraycopy(r,jr,x,k1,nr);
+      }
+    });
+  }
+
+  /**
+   * Gets a trace of this image along the 2nd dimension.
+   * @param i1 index in 1st dimension.
+   * @param i3 index in 3rd dimension.
+   * @param x array[n2] for the trace.
+   */
+  public void getTrace2(int i1, int i3, final float[] x) {
+    copyBox(i1,0,i3,1,_n2,1,new Sink() {
+      public void put(int k1, int k2, int k3, float[] r, int jr, int nr) {
+        x[k2] = r[jr];
+      }
+    });
+  }
+
+  /**
+   * Gets a trace of this image along the 3rd dimension.
+   * @param i1 index in 1st dimension.
+   * @param i2 index in 2nd dimension.
+   * @param x array[n3] for the trace.
+   */
+  public void getTrace3(int i1, int i2, final float[] x) {
+    copyBox(i1,i2,0,1,1,_n3,new Sink() {
+      public void put(int k1, int k2, int k3, float[] r, int jr, int nr) {
+        x[k3] = r[jr];
+      }
+    });
+  }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // private
+
+  private static final int MAGIC = 0x42524b49; // "BRKI"
+  private static final int VERSION = 1;
+  private static final long HEADER_BYTES = 512L; // bytes reserved for header
+
+  private ArrayFile _af; // array file with random access
+  private int _n1,_n2,_n3; // numbers of samples in image
+  private int _m1,_m2,_m3; // numbers of samples in each brick
+  private int _nb1,_nb2,_nb3; // numbers of bricks
+  private double _d1,_d2,_d3; // sampling intervals
+  private Map<Long,float[][][]> _cache; // bricks, least recently used first
+
+  // Receives contiguous runs of samples along the 1st dimension, copied
+  // from a row r[jr:jr+nr-1] of a brick to indices (k1,k2,k3) relative
+  // to the first sample requested.
+  private interface Sink {
+    public void put(int k1, int k2, int k3, float[] r, int jr, int nr);
+  }
+
+  private static void writeHeader(
+    ArrayFile af, int n1, int n2, int n3, int m1, int m2, int m3,
+    double d1, double d2, double d3)
+    throws IOException
+  {
+    af.seek(0);
+    af.writeInt(MAGIC);
+    af.writeInt(VERSION);
+    af.writeInt(n1);
+    af.writeInt(n2);
+    af.writeInt(n3);
+    af.writeInt(m1);
+    af.writeInt(m2);
+    af.writeInt(m3);
+    af.writeDouble(d1);
+    af.writeDouble(d2);
+    af.writeDouble(d3);
+  }
+
+  private static long brickOffset(
+    int k1, int k2, int k3, int nb1, int nb2, int m1, int m2, int m3)
+  {
+    long kb = ((long)k3*nb2+k2)*nb1+k1;
+    return HEADER_BYTES+kb*4L*m1*m2*m3;
+  }
+
+  // Gets one trace (j2+i2,j3+i3) from a SEG-Y image into a column of
+  // bricks, or zeros if that trace lies beyond the image bounds.
+  private static void getTrace(
+    SegyImage si, int n1, int n2, int n3, int i2min, int i3min,
+    int j2, int j3, int i2, int i3, float[][][] c)
+  {
+    float[] ci = c[i3][i2];
+    if (j2+i2<n2 && j3+i3<n3) {
+      float[] f = new float[n1];
+      si.getTrace(i2min+j2+i2,i3min+j3+i3,f);
+      System.arraycopy(f,0,ci,0,n1);
+      for (int i1=n1; i1<ci.length; ++i1)
+        ci[i1] = 0.0f;
+    } else {
+      for (int i1=0; i1<ci.length; ++i1)
+        ci[i1] = 0.0f;
+    }
+  }
+
+  // Copies samples in the box [j1:j1+l1-1]x[j2:j2+l2-1]x[j3:j3+l3-1]
+  // to the sink, reading only those bricks that intersect the box.
+  private void copyBox(
+    int j1, int j2, int j3, int l1, int l2, int l3, Sink sink)
+  {
+    Check.argument(0<=j1 && j1+l1<=_n1,"box within bounds in 1st dimension");
+    Check.argument(0<=j2 && j2+l2<=_n2,"box within bounds in 2nd dimension");
+    Check.argument(0<=j3 && j3+l3<=_n3,"box within bounds in 3rd dimension");
+    int kb1lo = j1/_m1, kb1hi = (j1+l1-1)/_m1;
+    int kb2lo = j2/_m2, kb2hi = (j2+l2-1)/_m2;
+    int kb3lo = j3/_m3, kb3hi = (j3+l3-1)/_m3;
+    for (int kb3=kb3lo; kb3<=kb3hi; ++kb3) {
+      int i3lo = max(j3,kb3*_m3), i3hi = min(j3+l3,(kb3+1)*_m3);
+      for (int kb2=kb2lo; kb2<=kb2hi; ++kb2) {
+        int i2lo = max(j2,kb2*_m2), i2hi = min(j2+l2,(kb2+1)*_m2);
+        for (int kb1=kb1lo; kb1<=kb1hi; ++kb1) {
+          int i1lo = max(j1,kb1*_m1), i1hi = min(j1+l1,(kb1+1)*_m1);
+          float[][][] b = getBrick(kb1,kb2,kb3);
+          for (int i3=i3lo; i3<i3hi; ++i3) {
+            for (int i2=i2lo; i2<i2hi; ++i2) {
+              float[] r = b[i3-kb3*_m3][i2-kb2*_m2];
+              sink.put(i1lo-j1,i2-j2,i3-j3,r,i1lo-kb1*_m1,i1hi-i1lo);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private synchronized float[][][] getBrick(int kb1, int kb2, int kb3) {
+    Long key = ((long)kb3*_nb2+kb2)*_nb1+kb1;
+    float[][][] b = _cache.get(key);
+    if (b==null) {
+      b = new float[_m3][_m2][_m1];
+      try {
+        _af.seek(brickOffset(kb1,kb2,kb3,_nb1,_nb2,_m1,_m2,_m3));
+        _af.readFloats(b);
+      } catch (IOException e) {
+        throw new RuntimeException(
+          "cannot read brick ("+kb1+","+kb2+","+kb3+") ("+e+")");
+      }
+      _cache.put(key,b);
+    }
+    return b;
+  }
+
+}
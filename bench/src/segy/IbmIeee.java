@@ -1,5 +1,8 @@
 package segy;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 public class IbmIeee {
   public static void shortToFloat(short[] s, float[] f) {
     int n = s.length;
@@ -12,10 +15,50 @@ public class IbmIeee {
       f[i] = ieeeToFloat(ieee[i]);
   }
   public static void ibmToFloat(int[] ibm, float[] f) {
-    int n = ibm.length;
+    ibmToFloat(ibm,0,f,0,ibm.length);
+  }
+
+  // Bulk conversions of IBM floats. Unlike the scalar ibmToFloat(int) 
+  // below, these do not normalize the mantissa with a data-dependent 
+  // loop; instead, they use branch-free conversions computed with a
+  // leading-zero count and masks. Results are bit-exact with those of
+  // ibmToFloat(int), but loops over samples have no branches.
+
+  public static void ibmToFloat(
+    int[] ibm, int jbm, float[] f, int jf, int n) 
+  {
     for (int i=0; i<n; ++i)
-      f[i] = ibmToFloat(ibm[i]);
+      f[jf+i] = Float.intBitsToFloat(ibmToIeee(ibm[jbm+i]));
+  }
+
+  // Converts n IBM floats in a byte buffer, beginning at the specified 
+  // absolute byte index, and stored in the specified byte order, which 
+  // need not be the byte order of the buffer. Bytes are swapped in the 
+  // same pass, if necessary. Because only absolute gets are used, the 
+  // position of the buffer is unchanged, and the buffer (e.g., a mapped
+  // byte buffer) may be shared by threads that call this method.
+  public static void ibmToFloat(
+    ByteBuffer b, int index, ByteOrder order, float[] f, int jf, int n) 
+  {
+    if (b.order()==order) {
+      for (int i=0,k=index; i<n; ++i,k+=4)
+        f[jf+i] = Float.intBitsToFloat(ibmToIeee(b.getInt(k)));
+    } else {
+      for (int i=0,k=index; i<n; ++i,k+=4)
+        f[jf+i] = Float.intBitsToFloat(
+          ibmToIeee(Integer.reverseBytes(b.getInt(k))));
+    }
   }
+
+  // Converts IBM floats in a byte buffer, beginning at its current 
+  // position, which is advanced by the number of bytes converted.
+  public static void ibmToFloat(ByteBuffer b, ByteOrder order, float[] f) {
+    int n = f.length;
+    int index = b.position();
+    ibmToFloat(b,index,order,f,0,n);
+    b.position(index+4*n);
+  }
+
   public static float ieeeToFloat(int ieee) {
     return Float.intBitsToFloat(ieee);
   }
@@ -60,6 +103,23 @@ public class IbmIeee {
     */
     return Float.intBitsToFloat(ieee);
   }
+  // Branch-free conversion of IBM float bits to IEEE float bits.
+  // The mantissa shift that normalization would require is the number
+  // of leading zeros in the 24-bit mantissa. Masks for a zero mantissa,
+  // exponent underflow, and exponent overflow then select among zero, 
+  // the largest IEEE float, and the normalized result, as in the loop 
+  // in ibmToFloat(int).
+  private static int ibmToIeee(int ibm) {
+    int s = 0x80000000&ibm; // sign bit
+    int m = 0x00ffffff&ibm; // mantissa
+    int k = Integer.numberOfLeadingZeros(m)-8; // shift to normalize
+    int e = ((ibm>>>22)&0x1fc)-130-k; // = ((e>>24)-64)*4 - 1 + 127 - k
+    int nz = (m|-m)>>31; // -1, if m!=0; 0, otherwise
+    int uf = (e-1)>>31; // -1, if e<=0; 0, otherwise
+    int of = (254-e)>>31; // -1, if e>=255; 0, otherwise
+    int ieee = s|(e<<23)|((m<<k)&0x007fffff);
+    return nz&~uf&((of&(s|0x7f7fffff))|(~of&ieee));
+  }
   private static float ibmToFloatSu(int ibm) {
     int fconv = ((ibm    )     )<<24 |
                 ((ibm>> 8)&0xff)<<16 |
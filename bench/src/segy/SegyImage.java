@@ -9,6 +9,8 @@ package segy;
 
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Random;
 
 import edu.mines.jtk.dsp.*;
@@ -36,6 +38,17 @@ import static edu.mines.jtk.util.ArrayMath.*;
  * sequential trace index itrace or a pair of grid indices (i2,i3). 
  * For grid indices at which a trace does not exist, sample values 
  * are set to zero.
+ * <p>
+ * By default, traces are read through a random-access file with buffers
+ * shared by all calls, so that an image must not be used by more than
+ * one thread at a time. Alternatively, the SEG-Y file may be memory-mapped,
+ * in which case traces are decoded directly from mapped bytes, and any
+ * number of threads may get traces concurrently.
+ * <p>
+ * Information from trace headers is obtained by reading all trace 
+ * headers, which for large files may take a long time. To avoid reading 
+ * them more than once, this information may be saved in a sidecar index 
+ * file, from which it is loaded when the image is constructed again.
  *
  * @author Dave Hale, Colorado School of Mines
  * @version 2012.06.18
@@ -69,6 +82,40 @@ public class SegyImage {
    */
   public void close() {
     closeArrayFile();
+    _mbufs = null;
+  }
+
+  /**
+   * Sets whether traces are read from memory-mapped windows of the file.
+   * When mapped, the SEG-Y file is mapped into read-only windows, each of 
+   * which contains a whole number of traces, and trace samples are decoded 
+   * directly from the mapped bytes, without seeks or shared buffers.
+   * <p>
+   * Any number of threads may then get traces concurrently, provided that
+   * this image is not modified (e.g., by setting the format) while they do.
+   * Threads that get traces by grid indices (i2,i3) require information
+   * from trace headers, which should be loaded before those threads begin, 
+   * for example, by calling {@link #getN2()}.
+   * <p>
+   * The default is false, so that traces are read with a random-access 
+   * file, and an image must not be shared among threads.
+   * @param mapped true, for memory-mapped windows; false, otherwise.
+   */
+  public void setMemoryMapped(boolean mapped) {
+    if (mapped) {
+      loadBinaryHeaderInfo();
+      mapFile();
+    } else {
+      _mbufs = null;
+    }
+  }
+
+  /**
+   * Determines whether traces are read from memory-mapped windows.
+   * @return true, if memory-mapped; false, otherwise.
+   */
+  public boolean isMemoryMapped() {
+    return _mbufs!=null;
   }
 
   /**
@@ -289,6 +336,8 @@ public class SegyImage {
     } else {
       throw new RuntimeException("unknown data format: "+_format);
     }
+    if (_mbufs!=null)
+      mapFile();
   }
 
   /**
@@ -308,6 +357,27 @@ public class SegyImage {
     _i3hi = (inlineByte-1)/4;
   }
 
+  /**
+   * Sets the name of an index file for information from trace headers.
+   * When this information is first required, it is read from the index 
+   * file if that file exists and is valid for the SEG-Y file. Otherwise, 
+   * the information is read from all trace headers and then written to 
+   * the index file, so that it need not be read again.
+   * <p>
+   * The index file contains (i2,i3) indices and (x,y) coordinates for all 
+   * traces, and the guess for the format code. The index file is valid 
+   * only if the size and last-modified time of the SEG-Y file, the byte 
+   * order, the number of samples and bytes per sample, and the bytes used 
+   * for inline and xline numbers all match those recorded in it.
+   * <p>
+   * If used, this method must be called before any other method that 
+   * requires information from trace headers.
+   * @param indexFileName name of the index file; e.g., fileName+".idx".
+   */
+  public void setIndexFile(String indexFileName) {
+    _indexFileName = indexFileName;
+  }
+
   /**
    * Returns a guess for the format code, if a guess is possible.
    * Currently attempts to guess only if either IBM or IEEE floats.
@@ -526,6 +596,10 @@ public class SegyImage {
   public void getTrace(int i, float[] f) {
     loadBinaryHeaderInfo();
     checkTraceIndex(i);
+    if (_mbufs!=null) {
+      getTraceMapped(i,f);
+      return;
+    }
     try {
       _af.seek(traceOffset(i));
       if (_format==1) { // 4-byte IBM floats
@@ -740,6 +814,9 @@ public class SegyImage {
    * Writes a subset of this image to a simple file of floats.
    * Writes zeros for any missing traces; however, all minimum and 
    * maximum sample indices must be in the bounds for the grid.
+   * <p>
+   * If this image is memory-mapped, traces for each 2D slice of constant 
+   * i3 are read and converted in parallel before that slice is written.
    * @param fileName the file name.
    * @param scaleFactor scaling applied to each sample.
    * @param i1min minimum sample index in 1st dimension.
@@ -774,12 +851,18 @@ public class SegyImage {
         "writing "+m1+"*"+m2+"*"+m3+" floats ("+mb+" MB) ");
       float[] f = new float[_n1];
       float[] g = new float[m1];
+      float[][] gs = (_mbufs!=null)?new float[m2][m1]:null;
       float s = (float)scaleFactor;
       for (int i3=i3min; i3<=i3max; ++i3) {
         if (i3min<i3max && (i3-i3min)%((i3max-i3min)/10)==0) {
           double perc = (int)((i3-i3min)*100.0/(i3max-i3min));
           System.out.print(".");
         }
+        if (gs!=null) {
+          getTracesParallel(s,i1min,i2min,i3,gs);
+          aos.writeFloats(gs);
+          continue;
+        }
         for (int i2=i2min; i2<=i2max; ++i2) {
           getTrace(i2,i3,f);
           copy(m1,i1min,f,0,g);
@@ -819,6 +902,10 @@ public class SegyImage {
   private double[] _xs; // array[ntrace] of x coordinates
   private double[] _ys; // array[ntrace] of y coordinates
   private int[][] _itrace; // array[n3][n2] of trace indices; -1 if no trace
+  private int[] _krow; // array[n3+1] of first sparse entries for each i3
+  private int[] _i2row; // array[nsparse] of sorted indices i2-i2min
+  private int[] _itrow; // array[nsparse] of corresponding trace indices
+  private String _indexFileName; // name of index file; null, if none
   private int _i2min,_i2max; // bounds on index i2
   private int _i3min,_i3max; // bounds on index i3
   private double _xmin,_xmax; // bounds on coordinate x
@@ -833,11 +920,21 @@ public class SegyImage {
   private int[] _ibuf; // buffer for trace samples as ints
   private short[] _sbuf; // buffer for trace samples as shorts
   private byte[] _bbuf; // buffer for trace samples as bytes
+  private ByteBuffer[] _mbufs; // memory-mapped windows; null, if not mapped
+  private int _ntracePerMap; // number of traces in each mapped window
   private boolean _infoBH; // true, if binary header info has been loaded
   private boolean _infoTH; // true, if trace header info has been loaded
   private int _i2hi = 48; // index in trace header of integer xline number
   private int _i3hi = 47; // index in trace header of integer iline number
 
+  // Maximum number of bytes in one memory-mapped window. Must not exceed
+  // the largest index (Integer.MAX_VALUE) for a mapped byte buffer.
+  private static final long MAP_WINDOW_BYTES = 1L<<30;
+
+  // Identifies and versions index files for trace header information.
+  private static final int INDEX_MAGIC = 0x53594958; // "SYIX"
+  private static final int INDEX_VERSION = 1;
+
   private static String[] _binaryHeaderFields = {
     "3201-3204: job identification number",
     "3205-3208: line number",
@@ -996,6 +1093,78 @@ public class SegyImage {
     _af = null;
   }
 
+  private void mapFile() {
+    long ntraceBytes = 240L+_bytesPerSample*_n1;
+    int ntracePerMap = (int)max(1L,MAP_WINDOW_BYTES/ntraceBytes);
+    int nmap = (_ntrace+ntracePerMap-1)/ntracePerMap;
+    ByteBuffer[] mbufs = new ByteBuffer[nmap];
+    try {
+      RandomAccessFile raf = new RandomAccessFile(_fileName,"r");
+      try {
+        FileChannel fc = raf.getChannel();
+        for (int imap=0; imap<nmap; ++imap) {
+          int jtrace = imap*ntracePerMap;
+          int mtrace = min(ntracePerMap,_ntrace-jtrace);
+          long offset = headerOffset(jtrace);
+          long size = mtrace*ntraceBytes;
+          mbufs[imap] = fc.map(FileChannel.MapMode.READ_ONLY,offset,size);
+          mbufs[imap].order(_byteOrder);
+        }
+      } finally {
+        raf.close(); // mapped windows remain valid
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("cannot map SEG-Y file "+_fileName+
+                                 " ("+e+")");
+    }
+    _ntracePerMap = ntracePerMap;
+    _mbufs = mbufs;
+  }
+
+  // Decodes samples using only absolute gets, which do not change 
+  // the position of the mapped buffer, so that this method may be
+  // called concurrently by any number of threads.
+  private void getTraceMapped(int i, float[] f) {
+    int imap = i/_ntracePerMap;
+    ByteBuffer b = _mbufs[imap];
+    int k = (i-imap*_ntracePerMap)*(240+_bytesPerSample*_n1)+240;
+    int n1 = _n1;
+    if (_format==1) { // 4-byte IBM floats
+      IbmIeee.ibmToFloat(b,k,_byteOrder,f,0,n1);
+    } else if (_format==2) { // 4-byte integers
+      for (int i1=0; i1<n1; ++i1,k+=4)
+        f[i1] = b.getInt(k);
+    } else if (_format==3) { // 2-byte integers
+      for (int i1=0; i1<n1; ++i1,k+=2)
+        f[i1] = b.getShort(k);
+    } else if (_format==4) { // 4-byte fixed-point with gain (obsolete)
+      Check.state(_format!=4,"data sample format != 4 (obsolete)");
+    } else if (_format==5) { // 4-byte IEEE floats
+      for (int i1=0; i1<n1; ++i1,k+=4)
+        f[i1] = b.getFloat(k);
+    } else if (_format==8) { // 1-byte integers
+      for (int i1=0; i1<n1; ++i1,++k)
+        f[i1] = b.get(k);
+    }
+  }
+
+  // Gets scaled traces for one slice i3 in parallel from mapped windows.
+  private void getTracesParallel(
+    final float s, final int i1min, final int i2min, final int i3, 
+    final float[][] g)
+  {
+    final int m1 = g[0].length;
+    final int m2 = g.length;
+    Parallel.loop(m2,new Parallel.LoopInt() {
+    public void compute(int j2) {
+      float[] f = new float[_n1];
+      getTrace(i2min+j2,i3,f);
+      float[] g2 = g[j2];
+      for (int i1=0; i1<m1; ++i1)
+        g2[i1] = s*f[i1min+i1];
+    }});
+  }
+
   private void loadBinaryHeaderInfo() {
     if (_infoBH) 
       return;
@@ -1035,7 +1204,8 @@ public class SegyImage {
     _ibuf = new int[_n1];
     _sbuf = new short[_n1];
     _bbuf = new byte[_n1];
-    _formatGuess = guessFormat(10);
+    if (!readIndex(false))
+      _formatGuess = guessFormat(10);
   }
 
   private void checkTraceIndex(int i) {
@@ -1057,7 +1227,24 @@ public class SegyImage {
 
   private int index(int i2, int i3) {
     checkGridIndices(i2,i3);
-    return _itrace[i3-_i3min][i2-_i2min];
+    if (_itrace!=null)
+      return _itrace[i3-_i3min][i2-_i2min];
+    int j2 = i2-_i2min;
+    int j3 = i3-_i3min;
+    int klo = _krow[j3];
+    int khi = _krow[j3+1]-1;
+    while (klo<=khi) {
+      int k = (klo+khi)>>>1;
+      int k2 = _i2row[k];
+      if (k2<j2) {
+        klo = k+1;
+      } else if (k2>j2) {
+        khi = k-1;
+      } else {
+        return _itrow[k];
+      }
+    }
+    return -1;
   }
   private int indexForTrace(int i2, int i3) {
     int i = index(i2,i3);
@@ -1088,17 +1275,18 @@ public class SegyImage {
       return;
     _infoTH = true;
     loadBinaryHeaderInfo();
-    _i2min =  Integer.MAX_VALUE;
-    _i2max = -Integer.MAX_VALUE;
-    _i3min =  Integer.MAX_VALUE;
-    _i3max = -Integer.MAX_VALUE;
-    _xmin =  Double.MAX_VALUE;
-    _xmax = -Double.MAX_VALUE;
-    _ymin =  Double.MAX_VALUE;
-    _ymax = -Double.MAX_VALUE;
-    double uxy = 0.001*(_feet?0.3048:1.0);
+    if (!readIndex(true)) {
+      readTraceHeaders();
+      writeIndex();
+    }
+    computeBounds();
+    buildTraceMap();
+    computeGridSampling();
+  }
 
-    // Read indices (i2,i3) and coordinates (x,y) from trace headers.
+  // Reads indices (i2,i3) and coordinates (x,y) from trace headers.
+  private void readTraceHeaders() {
+    double uxy = 0.001*(_feet?0.3048:1.0);
     _i2s = new int[_ntrace];
     _i3s = new int[_ntrace];
     _xs = new double[_ntrace];
@@ -1126,14 +1314,6 @@ public class SegyImage {
         if (i2==0) // if no xline number, ... 
           i2 = hi[5]; // try the CDP number
         int i3 = hi[_i3hi]; // iline number
-        if (x<_xmin) _xmin = x;
-        if (x>_xmax) _xmax = x;
-        if (y<_ymin) _ymin = y;
-        if (y>_ymax) _ymax = y;
-        if (i2<_i2min) _i2min = i2;
-        if (i2>_i2max) _i2max = i2;
-        if (i3<_i3min) _i3min = i3;
-        if (i3>_i3max) _i3max = i3;
         _xs[itrace] = x;
         _ys[itrace] = y;
         _i2s[itrace] = i2;
@@ -1143,25 +1323,104 @@ public class SegyImage {
     } catch (IOException e) {
       throw new RuntimeException("cannot read trace headers");
     }
+  }
 
-    // Build mapping from grid indices to trace indices. With these
-    // indices we can determine whether or not a trace exists and,
-    // if it does, find x and y coordinates for any grid indices i2
-    // and i3. A trace exists if the trace index is non-negative. A 
-    // non-negative trace index can also be used to compute the byte 
-    // offset for the corresponding trace in the SEG-Y file.
+  // Computes bounds on indices (i2,i3) and coordinates (x,y).
+  private void computeBounds() {
+    _i2min =  Integer.MAX_VALUE;
+    _i2max = -Integer.MAX_VALUE;
+    _i3min =  Integer.MAX_VALUE;
+    _i3max = -Integer.MAX_VALUE;
+    _xmin =  Double.MAX_VALUE;
+    _xmax = -Double.MAX_VALUE;
+    _ymin =  Double.MAX_VALUE;
+    _ymax = -Double.MAX_VALUE;
+    for (int itrace=0; itrace<_ntrace; ++itrace) {
+      double x = _xs[itrace];
+      double y = _ys[itrace];
+      int i2 = _i2s[itrace];
+      int i3 = _i3s[itrace];
+      if (x<_xmin) _xmin = x;
+      if (x>_xmax) _xmax = x;
+      if (y<_ymin) _ymin = y;
+      if (y>_ymax) _ymax = y;
+      if (i2<_i2min) _i2min = i2;
+      if (i2>_i2max) _i2max = i2;
+      if (i3<_i3min) _i3min = i3;
+      if (i3>_i3max) _i3max = i3;
+    }
+  }
+
+  // Builds mapping from grid indices to trace indices. With these
+  // indices we can determine whether or not a trace exists and,
+  // if it does, find x and y coordinates for any grid indices i2
+  // and i3. A trace exists if the trace index is non-negative. A 
+  // non-negative trace index can also be used to compute the byte 
+  // offset for the corresponding trace in the SEG-Y file.
+  //
+  // If traces exist for at least half of all grid indices, the mapping 
+  // is a dense array[n3][n2]. Otherwise, for irregular surveys, the 
+  // mapping is sparse, with sorted indices i2 for each index i3, which 
+  // requires less memory. As for the dense array, if more than one trace 
+  // has the same grid indices, the mapping is to the last such trace.
+  private void buildTraceMap() {
     _n2 = 1+_i2max-_i2min;
     _n3 = 1+_i3max-_i3min;
-    _itrace = new int[_n3][_n2];
-    for (int i3=0; i3<_n3; ++i3)
-      for (int i2=0; i2<_n2; ++i2)
-        _itrace[i3][i2] = -1;
-    for (int itrace=0; itrace<_ntrace; ++itrace) {
-      int i2 = _i2s[itrace]-_i2min;
-      int i3 = _i3s[itrace]-_i3min;
-      _itrace[i3][i2] = itrace;
+    if (2L*_ntrace>=(long)_n2*_n3) {
+      _krow = null;
+      _i2row = null;
+      _itrow = null;
+      _itrace = new int[_n3][_n2];
+      for (int i3=0; i3<_n3; ++i3)
+        for (int i2=0; i2<_n2; ++i2)
+          _itrace[i3][i2] = -1;
+      for (int itrace=0; itrace<_ntrace; ++itrace) {
+        int i2 = _i2s[itrace]-_i2min;
+        int i3 = _i3s[itrace]-_i3min;
+        _itrace[i3][i2] = itrace;
+      }
+    } else {
+      _itrace = null;
+
+      // Sort (i2,itrace) pairs for each i3, packed as longs.
+      int[] krow = new int[_n3+1];
+      for (int itrace=0; itrace<_ntrace; ++itrace)
+        ++krow[_i3s[itrace]-_i3min+1];
+      for (int i3=0; i3<_n3; ++i3)
+        krow[i3+1] += krow[i3];
+      int[] kfill = copy(_n3,krow);
+      long[] pairs = new long[_ntrace];
+      for (int itrace=0; itrace<_ntrace; ++itrace) {
+        int i2 = _i2s[itrace]-_i2min;
+        int i3 = _i3s[itrace]-_i3min;
+        pairs[kfill[i3]++] = ((long)i2<<32)|itrace;
+      }
+      for (int i3=0; i3<_n3; ++i3)
+        Arrays.sort(pairs,krow[i3],krow[i3+1]);
+
+      // Keep only the last trace for any duplicate grid indices.
+      _krow = new int[_n3+1];
+      int nsparse = 0;
+      for (int i3=0; i3<_n3; ++i3) {
+        _krow[i3] = nsparse;
+        for (int k=krow[i3]; k<krow[i3+1]; ++k) {
+          if (k+1<krow[i3+1] && (pairs[k+1]>>>32)==(pairs[k]>>>32))
+            continue;
+          pairs[nsparse++] = pairs[k];
+        }
+      }
+      _krow[_n3] = nsparse;
+      _i2row = new int[nsparse];
+      _itrow = new int[nsparse];
+      for (int k=0; k<nsparse; ++k) {
+        _i2row[k] = (int)(pairs[k]>>>32);
+        _itrow[k] = (int)pairs[k];
+      }
     }
+  }
 
+  // Computes sampling intervals and grid azimuth from traces.
+  private void computeGridSampling() {
     // Compute sampling intervals d2 and d3 using largest spans 
     // of grid indices i2 and i3 for which traces exist. Using
     // the largest spans minimizes errors caused by rounding of
@@ -1219,6 +1478,81 @@ public class SegyImage {
     }
   }
   
+  // Reads the index file, if specified, valid, and readable. Reads only
+  // the guess for format, unless trace header info is also requested.
+  // Returns true, if the index file was read; false, otherwise.
+  private boolean readIndex(boolean traces) {
+    if (_indexFileName==null || !new File(_indexFileName).exists())
+      return false;
+    File file = new File(_fileName);
+    try {
+      ArrayInputStream ais = new ArrayInputStream(_indexFileName);
+      try {
+        if (ais.readInt()!=INDEX_MAGIC || 
+            ais.readInt()!=INDEX_VERSION ||
+            ais.readLong()!=file.length() ||
+            ais.readLong()!=file.lastModified() ||
+            ais.readInt()!=(_byteOrder==ByteOrder.BIG_ENDIAN?0:1) ||
+            ais.readInt()!=_n1 ||
+            ais.readInt()!=_bytesPerSample ||
+            ais.readInt()!=_i2hi ||
+            ais.readInt()!=_i3hi ||
+            ais.readInt()!=_ntrace)
+          return false;
+        int formatGuess = ais.readInt();
+        if (traces) {
+          int[] i2s = new int[_ntrace];
+          int[] i3s = new int[_ntrace];
+          double[] xs = new double[_ntrace];
+          double[] ys = new double[_ntrace];
+          ais.readInts(i2s);
+          ais.readInts(i3s);
+          ais.readDoubles(xs);
+          ais.readDoubles(ys);
+          _i2s = i2s;
+          _i3s = i3s;
+          _xs = xs;
+          _ys = ys;
+        }
+        _formatGuess = formatGuess;
+      } finally {
+        ais.close();
+      }
+    } catch (IOException e) {
+      return false; // if invalid, trace headers will be read
+    }
+    return true;
+  }
+
+  // Writes the index file, if specified.
+  private void writeIndex() {
+    if (_indexFileName==null)
+      return;
+    File file = new File(_fileName);
+    try {
+      ArrayOutputStream aos = new ArrayOutputStream(_indexFileName);
+      aos.writeInt(INDEX_MAGIC);
+      aos.writeInt(INDEX_VERSION);
+      aos.writeLong(file.length());
+      aos.writeLong(file.lastModified());
+      aos.writeInt(_byteOrder==ByteOrder.BIG_ENDIAN?0:1);
+      aos.writeInt(_n1);
+      aos.writeInt(_bytesPerSample);
+      aos.writeInt(_i2hi);
+      aos.writeInt(_i3hi);
+      aos.writeInt(_ntrace);
+      aos.writeInt(_formatGuess);
+      aos.writeInts(_i2s);
+      aos.writeInts(_i3s);
+      aos.writeDoubles(_xs);
+      aos.writeDoubles(_ys);
+      aos.close();
+    } catch (IOException e) {
+      throw new RuntimeException("cannot write index file "+_indexFileName+
+                                 " ("+e+")");
+    }
+  }
+
   private static float computeRatio(float[] a) {
     int len = a.length;
     float hSum  = 0;
@@ -1262,9 +1596,7 @@ public class SegyImage {
       f[i] = ieeeToFloat(ieee[i]);
   }
   private static void ibmToFloat(int[] ibm, float[] f) {
-    int n = ibm.length;
-    for (int i=0; i<n; ++i)
-      f[i] = ibmToFloat(ibm[i]);
+    IbmIeee.ibmToFloat(ibm,f); // branch-free bulk conversion
   }
   private static float ieeeToFloat(int ieee) {
     return Float.intBitsToFloat(ieee);
@@ -0,0 +1,91 @@
+package test;
+
+import java.util.Random;
+
+import edu.mines.jtk.util.Stopwatch;
+
+import ldf.BilateralFilter;
+
+/**
+ * Benchmarks 3D bilateral filtering with {@link ldf.BilateralFilter},
+ * using filter outputs for sampled input values (the default) and using
+ * bilateral grids with different sampling ratios. For each grid, reports
+ * the speedup and the rms difference between images filtered with and
+ * without the grid. Command-line arguments, if specified, are n1, n2, n3,
+ * sigmaSpace and sigmaRange.
+ */
+public class BilateralBench {
+  public static void main(String[] args) {
+    int n1 = (args.length>0)?Integer.parseInt(args[0]):201;
+    int n2 = (args.length>1)?Integer.parseInt(args[1]):202;
+    int n3 = (args.length>2)?Integer.parseInt(args[2]):203;
+    double sigmaS = (args.length>3)?Double.parseDouble(args[3]):8.0;
+    double sigmaR = (args.length>4)?Double.parseDouble(args[4]):0.05;
+    for (int iter=0; iter<3; ++iter)
+      bench(n1,n2,n3,sigmaS,sigmaR);
+  }
+
+  private static void bench(
+    int n1, int n2, int n3, double sigmaS, double sigmaR)
+  {
+    trace("bench: n1="+n1+" n2="+n2+" n3="+n3+
+          " sigmaS="+sigmaS+" sigmaR="+sigmaR);
+    float[][][] x = makeImage(n1,n2,n3);
+    float[][][] ye = new float[n3][n2][n1];
+    float[][][] yg = new float[n3][n2][n1];
+    BilateralFilter bf = new BilateralFilter(sigmaS,sigmaR);
+    Stopwatch sw = new Stopwatch();
+    sw.restart();
+    bf.apply(x,ye);
+    sw.stop();
+    double texact = sw.time();
+    trace("  levels: time="+(float)texact+" s");
+    double[] ratios = {1.0,0.5,0.25};
+    for (double ratio:ratios) {
+      bf.setGridSampling(ratio);
+      sw.restart();
+      bf.apply(x,yg);
+      sw.stop();
+      double tgrid = sw.time();
+      trace("  grid: ratio="+ratio+" time="+(float)tgrid+
+            " s, speedup="+(float)(texact/tgrid)+
+            ", rms difference="+(float)rmsDifference(ye,yg));
+    }
+  }
+
+  // Blocks with different values, plus smooth variations and noise.
+  private static float[][][] makeImage(int n1, int n2, int n3) {
+    Random r = new Random(314159);
+    float[][][] x = new float[n3][n2][n1];
+    for (int i3=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1) {
+          float b = ((i1*4/n1+i2*4/n2+i3*4/n3)%2==0)?0.0f:1.0f;
+          float s = (float)(0.2*Math.sin(0.05*(i1+i2+i3)));
+          x[i3][i2][i1] = b+s+0.05f*(float)r.nextGaussian();
+        }
+      }
+    }
+    return x;
+  }
+
+  private static double rmsDifference(float[][][] a, float[][][] b) {
+    double sum = 0.0;
+    int n3 = a.length;
+    int n2 = a[0].length;
+    int n1 = a[0][0].length;
+    for (int i3=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        for (int i1=0; i1<n1; ++i1) {
+          double d = a[i3][i2][i1]-b[i3][i2][i1];
+          sum += d*d;
+        }
+      }
+    }
+    return Math.sqrt(sum/n1/n2/n3);
+  }
+
+  private static void trace(String s) {
+    System.out.println(s);
+  }
+}
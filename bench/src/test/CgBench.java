@@ -0,0 +1,84 @@
+package test;
+
+import java.util.Random;
+
+import edu.mines.jtk.dsp.Tensors3;
+import edu.mines.jtk.util.Stopwatch;
+
+import lss.LocalSmoothingFilterX;
+
+/**
+ * Benchmarks standard and pipelined conjugate-gradient iterations in
+ * 3D tensor-guided smoothing with {@link lss.LocalSmoothingFilterX}.
+ * Iterations are never stopped early, so that times per iteration are
+ * comparable, and smoothed images computed with the two methods are
+ * compared. Command-line arguments, if specified, are n1, n2, n3 and the
+ * number of iterations.
+ */
+public class CgBench {
+  public static void main(String[] args) {
+    int n1 = (args.length>0)?Integer.parseInt(args[0]):201;
+    int n2 = (args.length>1)?Integer.parseInt(args[1]):202;
+    int n3 = (args.length>2)?Integer.parseInt(args[2]):203;
+    int niter = (args.length>3)?Integer.parseInt(args[3]):50;
+    for (int iter=0; iter<3; ++iter)
+      bench(n1,n2,n3,niter);
+  }
+
+  private static void bench(int n1, int n2, int n3, int niter) {
+    trace("bench: n1="+n1+" n2="+n2+" n3="+n3+" niter="+niter);
+    Tensors3 d = new Tensors3() {
+      public void getTensor(int i1, int i2, int i3, float[] d) {
+        d[0] = 0.1f; d[1] = 0.0f; d[2] = 0.0f; // d11,d12,d13
+        d[3] = 1.0f; d[4] = 0.2f; d[5] = 1.0f; // d22,d23,d33
+      }
+    };
+    float c = 10.0f;
+    float[][][] x = makeImage(n1,n2,n3);
+    float[][][] ys = new float[n3][n2][n1];
+    float[][][] yp = new float[n3][n2][n1];
+    LocalSmoothingFilterX lsf = new LocalSmoothingFilterX(0.0,niter);
+    Stopwatch sw = new Stopwatch();
+    sw.restart();
+    lsf.apply(d,c,x,ys);
+    sw.stop();
+    double tstandard = sw.time()/niter;
+    lsf.setPipelined(true);
+    sw.restart();
+    lsf.apply(d,c,x,yp);
+    sw.stop();
+    double tpipelined = sw.time()/niter;
+    trace("  time per iteration: standard="+(float)tstandard+
+          " s, pipelined="+(float)tpipelined+
+          " s, speedup="+(float)(tstandard/tpipelined));
+    trace("  max relative difference="+(float)maxRelativeDifference(ys,yp));
+  }
+
+  private static float[][][] makeImage(int n1, int n2, int n3) {
+    Random r = new Random(314159);
+    float[][][] x = new float[n3][n2][n1];
+    for (int i3=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          x[i3][i2][i1] = r.nextFloat()-0.5f;
+    return x;
+  }
+
+  private static double maxRelativeDifference(float[][][] a, float[][][] b) {
+    double dmax = 0.0;
+    double amax = 0.0;
+    for (int i3=0; i3<a.length; ++i3) {
+      for (int i2=0; i2<a[0].length; ++i2) {
+        for (int i1=0; i1<a[0][0].length; ++i1) {
+          dmax = Math.max(dmax,Math.abs(a[i3][i2][i1]-b[i3][i2][i1]));
+          amax = Math.max(amax,Math.abs(a[i3][i2][i1]));
+        }
+      }
+    }
+    return (amax>0.0)?dmax/amax:0.0;
+  }
+
+  private static void trace(String s) {
+    System.out.println(s);
+  }
+}
@@ -0,0 +1,112 @@
+package test;
+
+import java.util.Random;
+
+import edu.mines.jtk.util.Stopwatch;
+
+import warp.DynamicWarpingX;
+
+/**
+ * Benchmarks accumulation and smoothing of alignment errors in the 2nd
+ * dimension for {@link warp.DynamicWarpingX}. Compares the parallel,
+ * blocked accumulation with a serial accumulation that, for each sample
+ * in the 1st dimension, gathers arrays of errors for all indices in the
+ * 2nd dimension, and checks that accumulated errors are the same.
+ * Command-line arguments, if specified, are n1, n2 and nl; the default
+ * sizes are smaller than those of typical 2D seismic images, so that
+ * the benchmark fits in modest memory.
+ */
+public class DynamicWarpingBench {
+  public static void main(String[] args) {
+    int n1 = (args.length>0)?Integer.parseInt(args[0]):1000;
+    int n2 = (args.length>1)?Integer.parseInt(args[1]):500;
+    int nl = (args.length>2)?Integer.parseInt(args[2]):51;
+    for (int iter=0; iter<3; ++iter)
+      bench(n1,n2,nl);
+  }
+
+  private static final double maxtime = 2.0;
+
+  private static void bench(int n1, int n2, int nl) {
+    trace("bench: n1="+n1+" n2="+n2+" nl="+nl);
+    int lmax = (nl-1)/2;
+    DynamicWarpingX dw = new DynamicWarpingX(-lmax,lmax);
+    dw.setStrainMax(0.25);
+    float[][][] e = makeErrors(dw,n1,n2);
+    float[][][] ds = new float[n2][n1][nl];
+    float[][][] dp = new float[n2][n1][nl];
+    Stopwatch sw = new Stopwatch();
+    int nloop;
+    sw.restart();
+    for (nloop=0; sw.time()<maxtime; ++nloop)
+      accumulateForward2Serial(dw,e,ds);
+    sw.stop();
+    double tserial = sw.time()/nloop;
+    sw.restart();
+    for (nloop=0; sw.time()<maxtime; ++nloop)
+      dw.accumulateForward2(e,dp);
+    sw.stop();
+    double tparallel = sw.time()/nloop;
+    check(ds,dp);
+    trace("  accumulateForward2: serial="+(float)tserial+
+          " s, parallel="+(float)tparallel+
+          " s, speedup="+(float)(tserial/tparallel));
+    float[][][] es = new float[n2][n1][nl];
+    sw.restart();
+    for (nloop=0; sw.time()<maxtime; ++nloop)
+      dw.smoothErrors(e,es);
+    sw.stop();
+    trace("  smoothErrors: time="+(float)(sw.time()/nloop)+" s");
+  }
+
+  // The serial accumulation replaced by the blocked accumulation. Because
+  // the strain limits are the same in all dimensions, accumulating in the
+  // 1st dimension uses the same constraint as accumulating in the 2nd.
+  private static void accumulateForward2Serial(
+    DynamicWarpingX dw, float[][][] e, float[][][] d)
+  {
+    int n1 = e[0].length;
+    int n2 = e.length;
+    float[][] ei1 = new float[n2][];
+    float[][] di1 = new float[n2][];
+    for (int i1=0; i1<n1; ++i1) {
+      for (int i2=0; i2<n2; ++i2) {
+        ei1[i2] = e[i2][i1];
+        di1[i2] = d[i2][i1];
+      }
+      dw.accumulateForward(ei1,di1);
+    }
+  }
+
+  // Normalized alignment errors for random sequences.
+  private static float[][][] makeErrors(DynamicWarpingX dw, int n1, int n2) {
+    Random r = new Random(314159);
+    float[][] f = new float[n2][n1];
+    float[][] g = new float[n2][n1];
+    for (int i2=0; i2<n2; ++i2) {
+      for (int i1=0; i1<n1; ++i1) {
+        f[i2][i1] = r.nextFloat();
+        g[i2][i1] = r.nextFloat();
+      }
+    }
+    return dw.computeErrors(f,g);
+  }
+
+  private static void check(float[][][] da, float[][][] db) {
+    int nl = da[0][0].length;
+    int n1 = da[0].length;
+    int n2 = da.length;
+    for (int i2=0; i2<n2; ++i2) {
+      for (int i1=0; i1<n1; ++i1) {
+        for (int il=0; il<nl; ++il) {
+          if (da[i2][i1][il]!=db[i2][i1][il])
+            throw new RuntimeException("accumulated errors differ");
+        }
+      }
+    }
+  }
+
+  private static void trace(String s) {
+    System.out.println(s);
+  }
+}
@@ -0,0 +1,99 @@
+package test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import edu.mines.jtk.util.Stopwatch;
+
+import segy.IbmIeee;
+
+/**
+ * Benchmarks conversions of IBM floats to IEEE floats. Compares the
+ * scalar conversion with a data-dependent normalization loop to the
+ * branch-free bulk conversions of arrays and byte buffers.
+ */
+public class IbmIeeeBench {
+  public static void main(String[] args) {
+    int[] ibm = makeIbmFloats(n);
+    ByteBuffer bb = ByteBuffer.allocateDirect(4*n);
+    bb.order(ByteOrder.BIG_ENDIAN);
+    for (int i=0; i<n; ++i)
+      bb.putInt(4*i,ibm[i]);
+    float[] fs = new float[n];
+    float[] fb = new float[n];
+    for (int iter=0; iter<3; ++iter) {
+      benchScalar(ibm,fs);
+      benchBulk(ibm,fb);
+      check(fs,fb);
+      benchBuffer(bb,ByteOrder.BIG_ENDIAN,fb);
+      check(fs,fb);
+      bb.order(ByteOrder.LITTLE_ENDIAN);
+      benchBuffer(bb,ByteOrder.BIG_ENDIAN,fb); // with byte swapping
+      bb.order(ByteOrder.BIG_ENDIAN);
+      check(fs,fb);
+    }
+  }
+
+  private static final int n = 1000*1000;
+  private static final double maxtime = 2.0;
+
+  private static void benchScalar(int[] ibm, float[] f) {
+    Stopwatch sw = new Stopwatch();
+    sw.start();
+    int nloop;
+    for (nloop=0; sw.time()<maxtime; ++nloop) {
+      for (int i=0; i<n; ++i)
+        f[i] = IbmIeee.ibmToFloat(ibm[i]);
+    }
+    sw.stop();
+    report("scalar",nloop,sw.time());
+  }
+
+  private static void benchBulk(int[] ibm, float[] f) {
+    Stopwatch sw = new Stopwatch();
+    sw.start();
+    int nloop;
+    for (nloop=0; sw.time()<maxtime; ++nloop)
+      IbmIeee.ibmToFloat(ibm,f);
+    sw.stop();
+    report("bulk int[]",nloop,sw.time());
+  }
+
+  private static void benchBuffer(ByteBuffer b, ByteOrder order, float[] f) {
+    Stopwatch sw = new Stopwatch();
+    sw.start();
+    int nloop;
+    for (nloop=0; sw.time()<maxtime; ++nloop)
+      IbmIeee.ibmToFloat(b,0,order,f,0,n);
+    sw.stop();
+    String swap = (b.order()==order)?"":", swapped";
+    report("bulk ByteBuffer"+swap,nloop,sw.time());
+  }
+
+  // Random IBM floats with exponents in a realistic range, and a few
+  // that are not normalized, to exercise all shifts of the mantissa.
+  private static int[] makeIbmFloats(int n) {
+    Random r = new Random(314159);
+    int[] ibm = new int[n];
+    for (int i=0; i<n; ++i) {
+      int s = r.nextBoolean()?0x80000000:0;
+      int e = 64+r.nextInt(17)-8;
+      int m = r.nextInt(0x01000000)>>>r.nextInt(24);
+      ibm[i] = s|(e<<24)|m;
+    }
+    return ibm;
+  }
+
+  private static void check(float[] fs, float[] fb) {
+    for (int i=0; i<n; ++i) {
+      if (Float.floatToRawIntBits(fs[i])!=Float.floatToRawIntBits(fb[i]))
+        throw new RuntimeException("conversions differ at index "+i);
+    }
+  }
+
+  private static void report(String name, int nloop, double time) {
+    int rate = (int)(1.0e-6*n*nloop/time);
+    System.out.println(name+": rate = "+rate+" million samples/s");
+  }
+}
@@ -0,0 +1,161 @@
+package test;
+
+import java.util.Random;
+
+import edu.mines.jtk.util.Stopwatch;
+
+import dnp.CgSolver;
+import dnp.Vec;
+import dnp.VecArrayFloat3;
+import ldf.DiffusionTensors3;
+import ldf.LocalDiffusionKernelX;
+import ldf.Multigrid3;
+
+/**
+ * Benchmarks times to tolerance for 3D anisotropic smoothing systems
+ * (I+cL)x = b, solved with {@link ldf.Multigrid3} and with conjugate-
+ * gradient iterations. The operator L, a 27-point stencil computed by
+ * {@link ldf.LocalDiffusionKernelX}, smooths within planes with normal
+ * vectors that vary spatially. Solves with unpreconditioned CG, with CG
+ * preconditioned by one multigrid V cycle, and with multigrid V cycles
+ * alone. Times for preconditioned CG and multigrid alone include the
+ * time to construct the multigrid solver. Command-line arguments, if
+ * specified, are n1, n2, n3, the scale factor c and the tolerance.
+ */
+public class MultigridBench {
+  public static void main(String[] args) {
+    int n1 = (args.length>0)?Integer.parseInt(args[0]):256;
+    int n2 = (args.length>1)?Integer.parseInt(args[1]):256;
+    int n3 = (args.length>2)?Integer.parseInt(args[2]):256;
+    float c = (args.length>3)?Float.parseFloat(args[3]):100.0f;
+    double small = (args.length>4)?Double.parseDouble(args[4]):1.0e-5;
+    for (int iter=0; iter<3; ++iter)
+      bench(n1,n2,n3,c,small);
+  }
+
+  private static void bench(
+    int n1, int n2, int n3, float c, double small)
+  {
+    trace("bench: n1="+n1+" n2="+n2+" n3="+n3+" c="+c+" small="+small);
+    float[][][][] s = makeCoefficients(n1,n2,n3,c);
+    float[][][] b = makeImage(n1,n2,n3);
+    Stopwatch sw = new Stopwatch();
+
+    // Unpreconditioned CG.
+    sw.restart();
+    final Multigrid3 mg = new Multigrid3(s,1,1,1);
+    sw.stop();
+    double tsetup = sw.time();
+    CgSolver.A a = new CgSolver.A() {
+      public void apply(Vec x, Vec y) {
+        mg.apply(((VecArrayFloat3)x).getArray(),
+                 ((VecArrayFloat3)y).getArray());
+      }
+    };
+    CgSolver.A m = new CgSolver.A() {
+      public void apply(Vec x, Vec y) {
+        mg.applyApproximateInverse(((VecArrayFloat3)x).getArray(),
+                                   ((VecArrayFloat3)y).getArray());
+      }
+    };
+    CgSolver cs = new CgSolver(small,10000);
+    VecArrayFloat3 vb = new VecArrayFloat3(b);
+    VecArrayFloat3 vx = new VecArrayFloat3(n1,n2,n3);
+    sw.restart();
+    CgSolver.Info info = cs.solve(a,vb,vx);
+    sw.stop();
+    double tcg = sw.time();
+    trace("  cg: niter="+info.niter+" time="+(float)tcg+" s"+
+          " rnorm="+rnorm(mg,b,vx.getArray()));
+
+    // CG preconditioned with one V cycle.
+    vx = new VecArrayFloat3(n1,n2,n3);
+    sw.restart();
+    info = cs.solve(a,m,vb,vx);
+    sw.stop();
+    double tpcg = tsetup+sw.time();
+    trace("  mgcg: niter="+info.niter+" time="+(float)tpcg+" s"+
+          " (setup="+(float)tsetup+" s) rnorm="+rnorm(mg,b,vx.getArray()));
+
+    // Multigrid V cycles alone, with two smoothings before and after.
+    float[][][] x = new float[n3][n2][n1];
+    sw.restart();
+    Multigrid3 mg2 = new Multigrid3(s,2,1,2);
+    int ncycle = mg2.solve(b,x,small,100);
+    sw.stop();
+    double tmg = sw.time();
+    trace("  mg: ncycle="+ncycle+" time="+(float)tmg+" s"+
+          " rnorm="+rnorm(mg,b,x));
+    trace("  speedup: mgcg="+(float)(tcg/tpcg)+" mg="+(float)(tcg/tmg));
+  }
+
+  // Coefficients for the operator I+cL, where L smooths within planes
+  // with normal vectors that rotate with increasing i2 and i3.
+  private static float[][][][] makeCoefficients(
+    int n1, int n2, int n3, float c)
+  {
+    DiffusionTensors3 dt = new DiffusionTensors3(n1,n2,n3,1.0,1.0,1.0);
+    for (int i3=0; i3<n3; ++i3) {
+      for (int i2=0; i2<n2; ++i2) {
+        float a = (float)(0.5*Math.sin(6.0*i2/n2)*Math.cos(4.0*i3/n3));
+        float b = (float)(0.3*Math.cos(5.0*i2/n2+3.0*i3/n3));
+        float[] u = normalize(1.0f,a,b);
+        float[] w = normalize(-a,1.0f,0.0f);
+        float[] v = cross(w,u);
+        w = cross(u,v);
+        for (int i1=0; i1<n1; ++i1) {
+          dt.setCoefficients(i1,i2,i3,0.0f,0.99f,0.01f);
+          dt.setEigenvectorU(i1,i2,i3,u);
+          dt.setEigenvectorW(i1,i2,i3,w);
+        }
+      }
+    }
+    float[][][][] s = new LocalDiffusionKernelX().getCoefficients(dt);
+    for (int k=0; k<s.length; ++k) {
+      for (int i3=0; i3<n3; ++i3) {
+        for (int i2=0; i2<n2; ++i2) {
+          for (int i1=0; i1<n1; ++i1) {
+            s[k][i3][i2][i1] *= c;
+            if (k==0) s[k][i3][i2][i1] += 1.0f;
+          }
+        }
+      }
+    }
+    return s;
+  }
+
+  private static float[] normalize(float a, float b, float c) {
+    float s = (float)(1.0/Math.sqrt(a*a+b*b+c*c));
+    return new float[]{a*s,b*s,c*s};
+  }
+
+  private static float[] cross(float[] a, float[] b) {
+    return normalize(a[1]*b[2]-a[2]*b[1],
+                     a[2]*b[0]-a[0]*b[2],
+                     a[0]*b[1]-a[1]*b[0]);
+  }
+
+  private static float[][][] makeImage(int n1, int n2, int n3) {
+    Random r = new Random(314159);
+    float[][][] x = new float[n3][n2][n1];
+    for (int i3=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          x[i3][i2][i1] = r.nextFloat()-0.5f;
+    return x;
+  }
+
+  // Norm of the residual b-Ax relative to the norm of b.
+  private static float rnorm(Multigrid3 mg, float[][][] b, float[][][] x) {
+    double bb = 0.0;
+    for (int i3=0; i3<b.length; ++i3)
+      for (int i2=0; i2<b[0].length; ++i2)
+        for (int i1=0; i1<b[0][0].length; ++i1)
+          bb += b[i3][i2][i1]*b[i3][i2][i1];
+    return (float)Math.sqrt(mg.normResidual(b,x)/bb);
+  }
+
+  private static void trace(String s) {
+    System.out.println(s);
+  }
+}
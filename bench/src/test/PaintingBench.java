@@ -0,0 +1,179 @@
+package test;
+
+import java.util.Random;
+
+import edu.mines.jtk.util.Stopwatch;
+
+import fmm.Painting3;
+
+/**
+ * Benchmarks sequential and tiled extrapolation in {@link fmm.Painting3}.
+ * Fixed samples are scattered randomly, and each is painted with its own
+ * value, so that extrapolated values label the fixed sample from which
+ * each time was computed. Tensors are constant and anisotropic, so that
+ * exact times are known. Reports the speedup of tiled extrapolation, the
+ * maximum relative difference between tiled and sequential times, the
+ * maximum relative errors of both relative to exact times, the number of
+ * samples with different labels, and the number of those samples not on
+ * a boundary between regions with different labels, which should be zero.
+ * Command-line arguments, if specified, are n (= n1 = n2 = n3) and the
+ * number of fixed samples.
+ */
+public class PaintingBench {
+  public static void main(String[] args) {
+    int n = (args.length>0)?Integer.parseInt(args[0]):64;
+    int nf = (args.length>1)?Integer.parseInt(args[1]):50;
+    for (int iter=0; iter<3; ++iter)
+      bench(n,nf);
+  }
+
+  private static final int[] mtiles = {8,16,32};
+
+  private static void bench(int n, int nf) {
+    trace("bench: n1=n2=n3="+n+" nf="+nf);
+    int[][] k = makeFixed(n,nf);
+    float[][][] te = exactTimes(n,k);
+    Painting3 ps = makePainting(n,k);
+    Stopwatch sw = new Stopwatch();
+    sw.restart();
+    ps.extrapolate();
+    sw.stop();
+    double tsequential = sw.time();
+    float[][][] ts = ps.getTimes();
+    trace("  sequential: time="+(float)tsequential+
+          " s, error="+difference(te,ts));
+    float[][][] vs = ps.getValues();
+    for (int mtile:mtiles) {
+      Painting3 pt = makePainting(n,k);
+      pt.setExtrapolation(Painting3.Extrapolation.TILED);
+      pt.setTileSize(mtile,mtile,mtile);
+      sw.restart();
+      pt.extrapolate();
+      sw.stop();
+      double ttiled = sw.time();
+      float[][][] tt = pt.getTimes();
+      float[][][] vt = pt.getValues();
+      trace("  tiled: mtile="+mtile+
+            " speedup="+(float)(tsequential/ttiled)+
+            " difference="+difference(ts,tt)+
+            " error="+difference(te,tt)+
+            " nlabel="+countDifferent(vs,vt)+
+            " ninterior="+countInterior(vs,vt));
+    }
+  }
+
+  // Fixed samples with random indices {k1,k2,k3}.
+  private static int[][] makeFixed(int n, int nf) {
+    Random r = new Random(314159);
+    int[][] k = new int[nf][3];
+    for (int jf=0; jf<nf; ++jf) {
+      k[jf][0] = r.nextInt(n);
+      k[jf][1] = r.nextInt(n);
+      k[jf][2] = r.nextInt(n);
+    }
+    return k;
+  }
+
+  // Painting with fixed sample jf painted with value jf.
+  private static Painting3 makePainting(int n, int[][] k) {
+    Painting3 p = new Painting3(n,n,n,1,new ConstantTensors());
+    for (int jf=0; jf<k.length; ++jf)
+      p.paintAt(k[jf][0],k[jf][1],k[jf][2],(float)jf);
+    return p;
+  }
+
+  private static final float S11 = 1.00f, S12 = 0.30f, S13 = 0.10f;
+  private static final float S22 = 0.50f, S23 = 0.05f, S33 = 0.80f;
+  private static class ConstantTensors implements Painting3.Tensors {
+    public void getTensor(int i1, int i2, int i3, float[] s) {
+      s[0] = S11;
+      s[1] = S12;
+      s[2] = S13;
+      s[3] = S22;
+      s[4] = S23;
+      s[5] = S33;
+    }
+  }
+
+  // Exact times sqrt(y'*S*y) from the nearest fixed sample.
+  private static float[][][] exactTimes(int n, int[][] k) {
+    float[][][] t = new float[n][n][n];
+    for (int i3=0; i3<n; ++i3) {
+      for (int i2=0; i2<n; ++i2) {
+        for (int i1=0; i1<n; ++i1) {
+          double tmin = Double.MAX_VALUE;
+          for (int jf=0; jf<k.length; ++jf) {
+            double y1 = i1-k[jf][0];
+            double y2 = i2-k[jf][1];
+            double y3 = i3-k[jf][2];
+            double tj = Math.sqrt(S11*y1*y1+S22*y2*y2+S33*y3*y3+
+                                  2.0*(S12*y1*y2+S13*y1*y3+S23*y2*y3));
+            tmin = Math.min(tmin,tj);
+          }
+          t[i3][i2][i1] = (float)tmin;
+        }
+      }
+    }
+    return t;
+  }
+
+  // Maximum relative difference of times t relative to times ts.
+  private static float difference(float[][][] ts, float[][][] t) {
+    int n = ts.length;
+    float emax = 0.0f;
+    for (int i3=0; i3<n; ++i3) {
+      for (int i2=0; i2<n; ++i2) {
+        for (int i1=0; i1<n; ++i1) {
+          float tsi = ts[i3][i2][i1];
+          if (tsi>0.0f)
+            emax = Math.max(emax,Math.abs(t[i3][i2][i1]-tsi)/tsi);
+        }
+      }
+    }
+    return emax;
+  }
+
+  // Number of samples with different labels.
+  private static int countDifferent(float[][][] vs, float[][][] vt) {
+    int n = vs.length;
+    int count = 0;
+    for (int i3=0; i3<n; ++i3)
+      for (int i2=0; i2<n; ++i2)
+        for (int i1=0; i1<n; ++i1)
+          if (vs[i3][i2][i1]!=vt[i3][i2][i1])
+            ++count;
+    return count;
+  }
+
+  // Number of samples with different labels that do not lie on a region
+  // boundary; i.e., for which all neighbors have the same sequential label.
+  private static int countInterior(float[][][] vs, float[][][] vt) {
+    int n = vs.length;
+    int count = 0;
+    for (int i3=0; i3<n; ++i3) {
+      for (int i2=0; i2<n; ++i2) {
+        for (int i1=0; i1<n; ++i1) {
+          float vsi = vs[i3][i2][i1];
+          if (vsi==vt[i3][i2][i1])
+            continue;
+          boolean boundary = false;
+          for (int j3=i3-1; j3<=i3+1 && !boundary; ++j3) {
+            for (int j2=i2-1; j2<=i2+1 && !boundary; ++j2) {
+              for (int j1=i1-1; j1<=i1+1 && !boundary; ++j1) {
+                if (0<=j1 && j1<n && 0<=j2 && j2<n && 0<=j3 && j3<n)
+                  boundary = vs[j3][j2][j1]!=vsi;
+              }
+            }
+          }
+          if (!boundary)
+            ++count;
+        }
+      }
+    }
+    return count;
+  }
+
+  private static void trace(String s) {
+    System.out.println(s);
+  }
+}
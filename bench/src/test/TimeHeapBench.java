@@ -0,0 +1,198 @@
+package test;
+
+import java.util.Random;
+
+import edu.mines.jtk.util.Stopwatch;
+
+import fmm.SparseTimeHeap3;
+import fmm.TimeHeap2;
+import fmm.TimeHeap3;
+
+/**
+ * Benchmarks heaps of times used in fast marching methods. Compares
+ * {@link fmm.SparseTimeHeap3} with {@link fmm.TimeHeap2} and
+ * {@link fmm.TimeHeap3}, which maintain index maps with one int per
+ * sample. For each heap, the workload is the same: insert a band of
+ * entries scattered throughout a large array, reduce all of their times,
+ * and then remove them all. Times removed from the three heaps are
+ * checked to be the same. Clearing heaps with the same entries is timed
+ * separately.
+ */
+public class TimeHeapBench {
+  public static void main(String[] args) {
+    int n1 = 256, n2 = 256, n3 = 256;
+    int[] ms = {1000,10000,100000,1000000};
+    for (int iter=0; iter<3; ++iter) {
+      for (int m:ms)
+        bench(n1,n2,n3,m);
+    }
+  }
+
+  private static final double maxtime = 2.0;
+
+  private static void bench(int n1, int n2, int n3, int m) {
+    trace("bench: n1="+n1+" n2="+n2+" n3="+n3+" m="+m);
+    int[] k = makeIndices(n1*n2*n3,m);
+    float[] t = makeTimes(m,314159);
+    float[] r = makeTimes(m,271828);
+    for (int i=0; i<m; ++i)
+      r[i] = t[i]-0.5f*r[i]; // reduced times
+    float[] t2 = new float[m];
+    float[] t3 = new float[m];
+    float[] ts = new float[m];
+    bench2(n1,n2*n3,k,t,r,t2);
+    bench3(n1,n2,n3,k,t,r,t3);
+    benchSparse(n1,n2,n3,k,t,r,ts);
+    check(t2,t3);
+    check(t2,ts);
+  }
+
+  private static void bench2(
+    int n1, int n2, int[] k, float[] t, float[] r, float[] tr)
+  {
+    int m = k.length;
+    Stopwatch sw = new Stopwatch();
+    sw.start();
+    TimeHeap2 heap = new TimeHeap2(TimeHeap2.Type.MIN,n1,n2);
+    double tc = sw.time();
+    int nloop;
+    for (nloop=0; sw.time()<maxtime; ++nloop) {
+      for (int i=0; i<m; ++i)
+        heap.insert(k[i]%n1,k[i]/n1,t[i]);
+      for (int i=0; i<m; ++i)
+        heap.reduce(k[i]%n1,k[i]/n1,r[i]);
+      for (int i=0; i<m; ++i)
+        tr[i] = heap.remove().t;
+    }
+    sw.stop();
+    report("TimeHeap2",tc,nloop,m,sw.time()-tc);
+    sw.restart();
+    Stopwatch swc = new Stopwatch();
+    for (nloop=0; sw.time()<maxtime; ++nloop) {
+      for (int i=0; i<m; ++i)
+        heap.insert(k[i]%n1,k[i]/n1,t[i]);
+      swc.start();
+      heap.clear();
+      swc.stop();
+      checkEmpty(heap.isEmpty());
+    }
+    report("TimeHeap2.clear",nloop,m,swc.time());
+  }
+
+  private static void bench3(
+    int n1, int n2, int n3, int[] k, float[] t, float[] r, float[] tr)
+  {
+    int m = k.length;
+    Stopwatch sw = new Stopwatch();
+    sw.start();
+    TimeHeap3 heap = new TimeHeap3(TimeHeap3.Type.MIN,n1,n2,n3);
+    double tc = sw.time();
+    int nloop;
+    for (nloop=0; sw.time()<maxtime; ++nloop) {
+      for (int i=0; i<m; ++i)
+        heap.insert(k[i]%n1,(k[i]/n1)%n2,k[i]/n1/n2,t[i]);
+      for (int i=0; i<m; ++i)
+        heap.reduce(k[i]%n1,(k[i]/n1)%n2,k[i]/n1/n2,r[i]);
+      for (int i=0; i<m; ++i)
+        tr[i] = heap.remove().t;
+    }
+    sw.stop();
+    report("TimeHeap3",tc,nloop,m,sw.time()-tc);
+    sw.restart();
+    Stopwatch swc = new Stopwatch();
+    for (nloop=0; sw.time()<maxtime; ++nloop) {
+      for (int i=0; i<m; ++i)
+        heap.insert(k[i]%n1,(k[i]/n1)%n2,k[i]/n1/n2,t[i]);
+      swc.start();
+      heap.clear();
+      swc.stop();
+      checkEmpty(heap.isEmpty());
+    }
+    report("TimeHeap3.clear",nloop,m,swc.time());
+  }
+
+  private static void benchSparse(
+    int n1, int n2, int n3, int[] k, float[] t, float[] r, float[] tr)
+  {
+    int m = k.length;
+    Stopwatch sw = new Stopwatch();
+    sw.start();
+    SparseTimeHeap3 heap =
+      new SparseTimeHeap3(SparseTimeHeap3.Type.MIN,n1,n2,n3);
+    SparseTimeHeap3.Entry e = new SparseTimeHeap3.Entry();
+    double tc = sw.time();
+    int nloop;
+    for (nloop=0; sw.time()<maxtime; ++nloop) {
+      for (int i=0; i<m; ++i)
+        heap.insert(k[i]%n1,(k[i]/n1)%n2,k[i]/n1/n2,t[i]);
+      for (int i=0; i<m; ++i)
+        heap.reduce(k[i]%n1,(k[i]/n1)%n2,k[i]/n1/n2,r[i]);
+      for (int i=0; i<m; ++i) {
+        heap.remove(e);
+        tr[i] = e.t;
+      }
+    }
+    sw.stop();
+    report("SparseTimeHeap3",tc,nloop,m,sw.time()-tc);
+    sw.restart();
+    Stopwatch swc = new Stopwatch();
+    for (nloop=0; sw.time()<maxtime; ++nloop) {
+      for (int i=0; i<m; ++i)
+        heap.insert(k[i]%n1,(k[i]/n1)%n2,k[i]/n1/n2,t[i]);
+      swc.start();
+      heap.clear();
+      swc.stop();
+      checkEmpty(heap.isEmpty());
+    }
+    report("SparseTimeHeap3.clear",nloop,m,swc.time());
+  }
+
+  // Distinct packed indices of m samples scattered among n samples.
+  // Because n is a power of two, an odd stride visits every sample.
+  private static int[] makeIndices(int n, int m) {
+    int[] k = new int[m];
+    long stride = 2654435761L;
+    for (int i=0; i<m; ++i)
+      k[i] = (int)((i*stride)%n);
+    return k;
+  }
+
+  // Random times in the range [1,2).
+  private static float[] makeTimes(int m, long seed) {
+    Random r = new Random(seed);
+    float[] t = new float[m];
+    for (int i=0; i<m; ++i)
+      t[i] = 1.0f+r.nextFloat();
+    return t;
+  }
+
+  private static void checkEmpty(boolean empty) {
+    if (!empty)
+      throw new RuntimeException("heap not empty after clear");
+  }
+
+  private static void check(float[] ta, float[] tb) {
+    int m = ta.length;
+    for (int i=0; i<m; ++i) {
+      if (ta[i]!=tb[i])
+        throw new RuntimeException("heaps differ at removal "+i);
+    }
+  }
+
+  private static void report(
+    String name, double tc, int nloop, int m, double time)
+  {
+    int rate = (int)(1.0e-6*3*m*nloop/time);
+    trace("  "+name+": construct time = "+(float)tc+
+          " s, rate = "+rate+" million operations/s");
+  }
+
+  private static void report(String name, int nloop, int m, double time) {
+    int rate = (int)(1.0e-6*m*nloop/time);
+    trace("  "+name+": rate = "+rate+" million entries cleared/s");
+  }
+
+  private static void trace(String s) {
+    System.out.println(s);
+  }
+}
@@ -0,0 +1,92 @@
+package test;
+
+import edu.mines.jtk.dsp.Tensors3;
+import edu.mines.jtk.util.Stopwatch;
+import static edu.mines.jtk.util.ArrayMath.*;
+
+import fmm.TimeSolver3;
+
+/**
+ * Benchmarks parallel and tiled concurrency in 3D eikonal solvers. Uses
+ * the test case in {@link fmm.TimeSolver3}: a constant anisotropic tensor
+ * field with d11 = d22 = d33 = 1.0 and d12 = d13 = d23 = 0.9, and zero
+ * time at the center sample. Reports speedups relative to the serial
+ * solver for 1 to 64 threads.
+ */
+public class TimeSolverBench {
+  public static void main(String[] args) {
+    int n = (args.length>0)?Integer.parseInt(args[0]):64;
+    for (int iter=0; iter<3; ++iter)
+      bench(n);
+  }
+
+  private static final int[] nthreads = {1,2,4,8,16,32,64};
+  private static final int[] mtiles = {8,16};
+
+  private static void bench(int n) {
+    trace("bench: n1=n2=n3="+n);
+    float[][][] ts = new float[n][n][n];
+    double tserial = time(n,TimeSolver3.Concurrency.SERIAL,1,0,ts);
+    trace("  serial: time="+tserial);
+    float[][][] tp = new float[n][n][n];
+    for (int nthread:nthreads) {
+      double tparallel = time(n,TimeSolver3.Concurrency.PARALLEL,nthread,0,tp);
+      trace("  parallel: nthread="+nthread+
+            " speedup="+(float)(tserial/tparallel)+
+            " error="+error(ts,tp));
+      for (int mtile:mtiles) {
+        double ttiled = time(n,TimeSolver3.Concurrency.TILED,nthread,mtile,tp);
+        trace("  tiled:    nthread="+nthread+" mtile="+mtile+
+              " speedup="+(float)(tserial/ttiled)+
+              " error="+error(ts,tp));
+      }
+    }
+  }
+
+  // Returns the time to solve, in seconds, and the solution times in t.
+  private static double time(
+    int n, TimeSolver3.Concurrency concurrency, int nthread, int mtile,
+    float[][][] t)
+  {
+    fill(Float.MAX_VALUE,t);
+    TimeSolver3 ts = new TimeSolver3(t,new ConstantTensors());
+    ts.setConcurrency(concurrency);
+    ts.setThreadCount(nthread);
+    if (mtile>0)
+      ts.setTileSize(mtile,mtile,mtile);
+    int i = 2*(n-1)/4;
+    Stopwatch sw = new Stopwatch();
+    sw.start();
+    ts.zeroAt(i,i,i);
+    sw.stop();
+    return sw.time();
+  }
+
+  // Maximum relative error of times t relative to times ts.
+  private static float error(float[][][] ts, float[][][] t) {
+    int n = ts.length;
+    float emax = 0.0f;
+    for (int i3=0; i3<n; ++i3) {
+      for (int i2=0; i2<n; ++i2) {
+        for (int i1=0; i1<n; ++i1) {
+          float tsi = ts[i3][i2][i1];
+          if (tsi>0.0f)
+            emax = max(emax,abs(t[i3][i2][i1]-tsi)/tsi);
+        }
+      }
+    }
+    return emax;
+  }
+
+  private static class ConstantTensors implements Tensors3 {
+    public void getTensor(int i1, int i2, int i3, float[] d) {
+      d[0] = 1.0f; d[1] = 0.9f; d[2] = 0.9f;
+                   d[3] = 1.0f; d[4] = 0.9f;
+                                d[5] = 1.0f;
+    }
+  }
+
+  private static void trace(String s) {
+    System.out.println(s);
+  }
+}
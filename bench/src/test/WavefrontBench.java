@@ -0,0 +1,253 @@
+package test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.mines.jtk.util.Stopwatch;
+
+import ldf.LocalSpd19Filter;
+import ldf.LocalSpd27Filter;
+
+/**
+ * Benchmarks sequential and parallel wavefront solves with incomplete
+ * Cholesky factors in {@link ldf.LocalSpd27Filter} and
+ * {@link ldf.LocalSpd19Filter}. Reports the speedup of parallel solves
+ * and the maximum relative difference between their solutions, which
+ * should be no more than rounding errors. Also reports the numbers of
+ * iterations of conjugate gradients preconditioned with sequential and
+ * parallel solves, which should be the same. Command-line arguments, if
+ * specified, are n1, n2 and n3.
+ */
+public class WavefrontBench {
+  public static void main(String[] args) {
+    int n1 = (args.length>0)?Integer.parseInt(args[0]):101;
+    int n2 = (args.length>1)?Integer.parseInt(args[1]):102;
+    int n3 = (args.length>2)?Integer.parseInt(args[2]):103;
+    for (int iter=0; iter<3; ++iter) {
+      bench27(n1,n2,n3);
+      bench19(n1,n2,n3);
+    }
+  }
+
+  private static final float SMALL = 1.0e-6f; // for CG convergence
+  private static final int NITER = 1000; // maximum number of CG iterations
+
+  private static interface Filter {
+    public void apply(float[][][] x, float[][][] y);
+    public void applyApproximateInverse(float[][][] y, float[][][] x);
+    public void setParallel(boolean parallel);
+  }
+
+  private static void bench27(int n1, int n2, int n3) {
+    trace("bench27: n1="+n1+" n2="+n2+" n3="+n3);
+    final LocalSpd27Filter lsf =
+      new LocalSpd27Filter(makeCoefficients(14,n1,n2,n3));
+    bench(n1,n2,n3,new Filter() {
+      public void apply(float[][][] x, float[][][] y) {
+        lsf.apply(x,y);
+      }
+      public void applyApproximateInverse(float[][][] y, float[][][] x) {
+        lsf.applyApproximateInverse(y,x);
+      }
+      public void setParallel(boolean parallel) {
+        lsf.setParallel(parallel);
+      }
+    });
+  }
+
+  private static void bench19(int n1, int n2, int n3) {
+    trace("bench19: n1="+n1+" n2="+n2+" n3="+n3);
+    final LocalSpd19Filter lsf =
+      new LocalSpd19Filter(makeCoefficients(10,n1,n2,n3));
+    bench(n1,n2,n3,new Filter() {
+      public void apply(float[][][] x, float[][][] y) {
+        lsf.apply(x,y);
+      }
+      public void applyApproximateInverse(float[][][] y, float[][][] x) {
+        lsf.applyApproximateInverse(y,x);
+      }
+      public void setParallel(boolean parallel) {
+        lsf.setParallel(parallel);
+      }
+    });
+  }
+
+  private static void bench(int n1, int n2, int n3, Filter lsf) {
+    float[][][] b = makeImage(n1,n2,n3);
+    float[][][] xs = new float[n3][n2][n1];
+    float[][][] xp = new float[n3][n2][n1];
+
+    // The first solve computes the factors, which are not timed.
+    lsf.applyApproximateInverse(b,xs);
+    Stopwatch sw = new Stopwatch();
+    sw.restart();
+    lsf.applyApproximateInverse(b,xs);
+    sw.stop();
+    double tsequential = sw.time();
+    lsf.setParallel(true);
+    sw.restart();
+    lsf.applyApproximateInverse(b,xp);
+    sw.stop();
+    double tparallel = sw.time();
+    trace("  solve: sequential="+(float)tsequential+
+          " s, parallel="+(float)tparallel+
+          " s, speedup="+(float)(tsequential/tparallel));
+    trace("  max relative difference="+(float)maxRelativeDifference(xs,xp));
+
+    lsf.setParallel(false);
+    sw.restart();
+    int ns = solve(lsf,b,xs);
+    sw.stop();
+    tsequential = sw.time();
+    lsf.setParallel(true);
+    sw.restart();
+    int np = solve(lsf,b,xp);
+    sw.stop();
+    tparallel = sw.time();
+    lsf.setParallel(false);
+    trace("  cg: sequential="+(float)tsequential+" s ("+ns+" iterations),"+
+          " parallel="+(float)tparallel+" s ("+np+" iterations),"+
+          " speedup="+(float)(tsequential/tparallel));
+    trace("  max relative difference="+(float)maxRelativeDifference(xs,xp));
+  }
+
+  // Random off-diagonal coefficients in [-1,-0.5], with diagonal
+  // coefficients only slightly larger than the sums of magnitudes of
+  // off-diagonal coefficients in each row, so that the filter is nearly
+  // singular and conjugate gradients require many iterations. Sums of
+  // off-diagonal coefficients are computed by applying the filter, with
+  // zero diagonal coefficients, to an array of ones.
+  private static float[][][][] makeCoefficients(
+    int ns, int n1, int n2, int n3)
+  {
+    Random r = new Random(314159);
+    float[][][][] s = new float[ns][n3][n2][n1];
+    for (int is=1; is<ns; ++is)
+      for (int i3=0; i3<n3; ++i3)
+        for (int i2=0; i2<n2; ++i2)
+          for (int i1=0; i1<n1; ++i1)
+            s[is][i3][i2][i1] = -0.5f-0.5f*r.nextFloat();
+    float[][][] x = new float[n3][n2][n1];
+    float[][][] y = new float[n3][n2][n1];
+    for (int i3=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        Arrays.fill(x[i3][i2],1.0f);
+    if (ns==14) {
+      new LocalSpd27Filter(s).apply(x,y);
+    } else {
+      new LocalSpd19Filter(s).apply(x,y);
+    }
+    for (int i3=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          s[0][i3][i2][i1] = -1.001f*y[i3][i2][i1];
+    return s;
+  }
+
+  private static float[][][] makeImage(int n1, int n2, int n3) {
+    Random r = new Random(271828);
+    float[][][] x = new float[n3][n2][n1];
+    for (int i3=0; i3<n3; ++i3)
+      for (int i2=0; i2<n2; ++i2)
+        for (int i1=0; i1<n1; ++i1)
+          x[i3][i2][i1] = r.nextFloat()-0.5f;
+    return x;
+  }
+
+  // Solves Ax = b via conjugate gradients, with the approximate inverse
+  // of A as preconditioner. Returns the number of iterations.
+  private static int solve(Filter a, float[][][] b, float[][][] x) {
+    int n1 = b[0][0].length;
+    int n2 = b[0].length;
+    int n3 = b.length;
+    float[][][] d = new float[n3][n2][n1];
+    float[][][] q = new float[n3][n2][n1];
+    float[][][] r = new float[n3][n2][n1];
+    float[][][] s = new float[n3][n2][n1];
+    zero(x);
+    copy(b,r);
+    a.applyApproximateInverse(r,s);
+    copy(s,d);
+    double delta = dot(r,s);
+    double deltaSmall = delta*SMALL*SMALL;
+    int iter;
+    for (iter=0; iter<NITER && delta>deltaSmall; ++iter) {
+      a.apply(d,q);
+      double alpha = delta/dot(d,q);
+      saxpy(alpha,d,x);
+      saxpy(-alpha,q,r);
+      a.applyApproximateInverse(r,s);
+      double deltaOld = delta;
+      delta = dot(r,s);
+      double beta = delta/deltaOld;
+      sxpay(beta,s,d);
+    }
+    return iter;
+  }
+
+  private static void zero(float[][][] x) {
+    for (float[][] x3:x)
+      for (float[] x2:x3)
+        Arrays.fill(x2,0.0f);
+  }
+
+  private static void copy(float[][][] x, float[][][] y) {
+    for (int i3=0; i3<x.length; ++i3)
+      for (int i2=0; i2<x[0].length; ++i2)
+        System.arraycopy(x[i3][i2],0,y[i3][i2],0,x[0][0].length);
+  }
+
+  private static double dot(float[][][] x, float[][][] y) {
+    double sum = 0.0;
+    for (int i3=0; i3<x.length; ++i3) {
+      for (int i2=0; i2<x[0].length; ++i2) {
+        float[] x32 = x[i3][i2], y32 = y[i3][i2];
+        for (int i1=0; i1<x32.length; ++i1)
+          sum += x32[i1]*y32[i1];
+      }
+    }
+    return sum;
+  }
+
+  // y = y+a*x
+  private static void saxpy(double a, float[][][] x, float[][][] y) {
+    float fa = (float)a;
+    for (int i3=0; i3<x.length; ++i3) {
+      for (int i2=0; i2<x[0].length; ++i2) {
+        float[] x32 = x[i3][i2], y32 = y[i3][i2];
+        for (int i1=0; i1<x32.length; ++i1)
+          y32[i1] += fa*x32[i1];
+      }
+    }
+  }
+
+  // y = a*y+x
+  private static void sxpay(double a, float[][][] x, float[][][] y) {
+    float fa = (float)a;
+    for (int i3=0; i3<x.length; ++i3) {
+      for (int i2=0; i2<x[0].length; ++i2) {
+        float[] x32 = x[i3][i2], y32 = y[i3][i2];
+        for (int i1=0; i1<x32.length; ++i1)
+          y32[i1] = fa*y32[i1]+x32[i1];
+      }
+    }
+  }
+
+  private static double maxRelativeDifference(float[][][] a, float[][][] b) {
+    double dmax = 0.0;
+    double amax = 0.0;
+    for (int i3=0; i3<a.length; ++i3) {
+      for (int i2=0; i2<a[0].length; ++i2) {
+        for (int i1=0; i1<a[0][0].length; ++i1) {
+          dmax = Math.max(dmax,Math.abs(a[i3][i2][i1]-b[i3][i2][i1]));
+          amax = Math.max(amax,Math.abs(a[i3][i2][i1]));
+        }
+      }
+    }
+    return (amax>0.0)?dmax/amax:0.0;
+  }
+
+  private static void trace(String s) {
+    System.out.println(s);
+  }
+}
@@ -92,6 +92,43 @@ public class DynamicWarpingX {
     REFLECT
   }
 
+  /**
+   * The storage used for alignment errors when finding shifts for 2D 
+   * and 3D images. With quantized storage, alignment errors are computed, 
+   * smoothed, accumulated and backtracked one trace (or one column of 
+   * samples) at a time, so that no array of floats is required for all 
+   * errors. For each sample, errors for all lags are quantized relative 
+   * to the minimum and range of those errors, which are stored as floats.
+   * Normalizing errors then requires only that those minimums and ranges
+   * be shifted and scaled.
+   * <p>
+   * Quantization changes normalized errors by no more than 0.5/q, where
+   * q = 255 for bytes and q = 65535 for shorts. Shifts found minimize a 
+   * sum of quantized errors along a path of n1 samples. Therefore, the 
+   * sum of normalized errors (not quantized) along those shifts exceeds 
+   * the minimum such sum by no more than n1/q. Where that minimum is not
+   * well defined, shifts found may differ from those found with errors 
+   * stored as floats.
+   */
+  public enum ErrorStorage {
+    /**
+     * Store alignment errors as floats.
+     * <p>
+     * This is the default storage.
+     */
+    FLOAT,
+    /**
+     * Store alignment errors quantized to 16 bits, in about one half 
+     * of the memory required for floats.
+     */
+    SHORT,
+    /**
+     * Store alignment errors quantized to 8 bits, in about one quarter 
+     * of the memory required for floats.
+     */
+    BYTE
+  }
+
   /**
    * Constructs a dynamic warping for specified bounds on shifts.
    * @param shiftMin lower bound on shift u.
@@ -165,6 +202,17 @@ public class DynamicWarpingX {
     _extrap = ee;
   }
 
+  /**
+   * Sets the storage used for alignment errors when finding shifts for
+   * 2D and 3D images. Quantized storage requires less memory, but shifts 
+   * found may differ slightly from those found for errors stored as floats. 
+   * The default storage is floats.
+   * @param es the error storage.
+   */
+  public void setErrorStorage(ErrorStorage es) {
+    _estorage = es;
+  }
+
   /**
    * Sets the exponent used to compute alignment errors |f-g|^e.
    * The default exponent is 2.
@@ -460,6 +508,12 @@ public class DynamicWarpingX {
    * @param u output array of shifts u.
    */
   public void findShifts(float[][] f, float[][] g, float[][] u) {
+    if (_estorage!=ErrorStorage.FLOAT) {
+      findShifts(new float[][][]{f},new float[][][]{g},_estorage,
+                 new float[][][]{u});
+      smoothShifts(u,u);
+      return;
+    }
     final float[][][] e = computeErrors(f,g);
     final int nl = e[0][0].length;
     final int n1 = e[0].length;
@@ -485,43 +539,75 @@ public class DynamicWarpingX {
    * @param u output array of shifts u.
    */
   public void findShifts(float[][][] f, float[][][] g, float[][][] u) {
-    int n1 = f[0][0].length;
-    int n2 = f[0].length;
-    int n3 = f.length;
-    OverlappingWindows2 ow = 
+    final int n1 = f[0][0].length;
+    final int n2 = f[0].length;
+    final int n3 = f.length;
+    final OverlappingWindows2 ow = 
       new OverlappingWindows2(n2,n3,_owl2,_owl3,_owf2,_owf3);
-    int m2 = ow.getM1();
-    int m3 = ow.getM2();
-    int l2 = ow.getL1();
-    int l3 = ow.getL2();
-    float[][][] fw = new float[l3][l2][];
-    float[][][] gw = new float[l3][l2][];
-    float[][][] uw = new float[l3][l2][n1];
-    float[][][][] ew = new float[l3][l2][n1][_nl];
-    for (int k3=0; k3<m3; ++k3) {
-      int i3 = ow.getI2(k3);
-      for (int k2=0; k2<m2; ++k2) {
-        int i2 = ow.getI1(k2);
+    final int m2 = ow.getM1();
+    final int m3 = ow.getM2();
+    final int l2 = ow.getL1();
+    final int l3 = ow.getL2();
+    final float[][][] ff = f;
+    final float[][][] gf = g;
+    final float[][][] uf = u;
+
+    // Windows are processed in batches, with one window per thread. For
+    // all windows in a batch, shifts are computed in parallel, and each 
+    // thread has its own array of alignment errors. Weighted shifts are 
+    // then accumulated in parallel over the 3rd dimension of u, so that 
+    // no two threads update the same shifts, and for each sample shifts 
+    // are accumulated in the same order as for a serial loop over windows.
+    int mw = m2*m3; // number of windows
+    final int nb = min(mw,Runtime.getRuntime().availableProcessors());
+    final float[][][][] uw = new float[nb][l3][l2][n1];
+    final Parallel.Unsafe<float[][][][]> ewu = 
+      new Parallel.Unsafe<float[][][][]>();
+    final ErrorStorage es = _estorage;
+    for (int kw=0; kw<mw; kw+=nb) {
+      final int jw = kw; // index of first window in this batch
+      final int mb = min(nb,mw-kw); // number of windows in this batch
+      Parallel.loop(mb,new Parallel.LoopInt() {
+      public void compute(int ib) {
+        int i2 = ow.getI1((jw+ib)%m2);
+        int i3 = ow.getI2((jw+ib)/m2);
+        float[][][] fw = new float[l3][l2][];
+        float[][][] gw = new float[l3][l2][];
         for (int j3=0; j3<l3; ++j3) {
           for (int j2=0; j2<l2; ++j2) {
-            fw[j3][j2] = f[i3+j3][i2+j2];
-            gw[j3][j2] = g[i3+j3][i2+j2];
+            fw[j3][j2] = ff[i3+j3][i2+j2];
+            gw[j3][j2] = gf[i3+j3][i2+j2];
           }
         }
+        if (es!=ErrorStorage.FLOAT) {
+          findShifts(fw,gw,es,uw[ib]);
+          return;
+        }
+        float[][][][] ew = ewu.get();
+        if (ew==null) ewu.set(ew=new float[l3][l2][n1][_nl]);
         computeErrors(fw,gw,ew);
         normalizeErrors(ew);
         for (int is=0; is<_esmooth; ++is)
           smoothErrors(ew);
-        computeShifts(ew,uw);
-        for (int j3=0; j3<l3; ++j3) {
+        computeShifts(ew,uw[ib]);
+      }});
+      Parallel.loop(n3,new Parallel.LoopInt() {
+      public void compute(int i3) {
+        for (int ib=0; ib<mb; ++ib) {
+          int k2 = ow.getI1((jw+ib)%m2);
+          int k3 = ow.getI2((jw+ib)/m2);
+          int j3 = i3-k3;
+          if (j3<0 || j3>=l3) 
+            continue;
           for (int j2=0; j2<l2; ++j2) {
-            float wij = ow.getWeight(i2,i3,j2,j3);
-            float[] u32 = u[i3+j3][i2+j2];
+            float wij = ow.getWeight(k2,k3,j2,j3);
+            float[] u32 = uf[i3][k2+j2];
+            float[] uw32 = uw[ib][j3][j2];
             for (int i1=0; i1<n1; ++i1)
-              u32[i1] += wij*uw[j3][j2][i1];
+              u32[i1] += wij*uw32[i1];
           }
         }
-      }
+      }});
     }
     smoothShifts(u);
   }
@@ -1050,17 +1136,7 @@ public class DynamicWarpingX {
    * @param d output array of accumulated errors.
    */
   public void accumulateForward2(float[][][] e, float[][][] d) {
-    int n1 = e[0].length;
-    int n2 = e.length;
-    float[][]  ei1 = new float[n2][];
-    float[][] di1 = new float[n2][];
-    for (int i1=0; i1<n1; ++i1) {
-      for (int i2=0; i2<n2; ++i2) {
-        ei1[i2] = e[i2][i1];
-        di1[i2] = d[i2][i1];
-      }
-      accumulate( 1,_bstrain2,ei1,di1);
-    }
+    accumulate2( 1,_bstrain2,e,d);
   }
 
   /**
@@ -1069,17 +1145,7 @@ public class DynamicWarpingX {
    * @param d output array of accumulated errors.
    */
   public void accumulateReverse2(float[][][] e, float[][][] d) {
-    int n1 = e[0].length;
-    int n2 = e.length;
-    float[][]  ei1 = new float[n2][];
-    float[][] di1 = new float[n2][];
-    for (int i1=0; i1<n1; ++i1) {
-      for (int i2=0; i2<n2; ++i2) {
-        ei1[i2] = e[i2][i1];
-        di1[i2] = d[i2][i1];
-      }
-      accumulate(-1,_bstrain2,ei1,di1);
-    }
+    accumulate2(-1,_bstrain2,e,d);
   }
 
   /**
@@ -1287,6 +1353,7 @@ public class DynamicWarpingX {
   private int _nl; // number of lags
   private int _lmin,_lmax; // min,max lags
   private ErrorExtrapolation _extrap; // method for error extrapolation
+  private ErrorStorage _estorage = ErrorStorage.FLOAT; // storage for errors
   private float _epow = 2; // exponent used for alignment errors |f-g|^e
   private int _esmooth = 0; // number of nonlinear smoothings of errors
   private double _usmooth1 = 0.0; // extent of smoothing shifts in 1st dim
@@ -1629,6 +1696,18 @@ public class DynamicWarpingX {
     int n1 = e.length;
     float[][] ef = new float[n1][nl];
     float[][] er = new float[n1][nl];
+    smoothErrors1(b,e,ef,er,es);
+  }
+
+  /**
+   * Smooths alignment errors in 1st dimension, using specified arrays
+   * for errors accumulated in forward and reverse directions.
+   */
+  private static void smoothErrors1(
+    int b, float[][] e, float[][] ef, float[][] er, float[][] es) 
+  {
+    int nl = e[0].length;
+    int n1 = e.length;
     accumulate( 1,b,e,ef);
     accumulate(-1,b,e,er);
     for (int i1=0; i1<n1; ++i1)
@@ -1644,13 +1723,19 @@ public class DynamicWarpingX {
    * @param es output array of smoothed alignment errors.
    */
   private static void smoothErrors1(int b, float[][][] e, float[][][] es) {
+    final int nl = e[0][0].length;
+    final int n1 = e[0].length;
     final int n2 = e.length;
     final int bf = b;
     final float[][][] ef = e;
     final float[][][] esf = es;
+    final Parallel.Unsafe<float[][][]> eeu = 
+      new Parallel.Unsafe<float[][][]>();
     Parallel.loop(n2,new Parallel.LoopInt() {
     public void compute(int i2) {
-      smoothErrors1(bf,ef[i2],esf[i2]);
+      float[][][] ee = eeu.get();
+      if (ee==null) eeu.set(ee=new float[2][n1][nl]);
+      smoothErrors1(bf,ef[i2],ee[0],ee[1],esf[i2]);
     }});
   }
 
@@ -1665,35 +1750,132 @@ public class DynamicWarpingX {
     final int nl = e[0][0].length;
     final int n1 = e[0].length;
     final int n2 = e.length;
+    final int m1 = blockSize1(n1,nl);
+    final int mb = 1+(n1-1)/m1;
     final int bf = b;
     final float[][][]  ef = e;
     final float[][][] esf = es;
-    final Parallel.Unsafe<float[][][]> eeu = 
-      new Parallel.Unsafe<float[][][]>();
-    Parallel.loop(n1,new Parallel.LoopInt() {
-    public void compute(int i1) {
-      float[][][] ee = eeu.get();
-      if (ee==null) eeu.set(ee=new float[4][n2][nl]);
-      float[][]  e1 = ee[0];
-      float[][] es1 = ee[1];
-      float[][] ef1 = ee[2];
-      float[][] er1 = ee[3];
-      for (int i2=0; i2<n2; ++i2) {
-         e1[i2] =  ef[i2][i1];
-        es1[i2] = esf[i2][i1];
+    final Parallel.Unsafe<float[][][][]> eeu = 
+      new Parallel.Unsafe<float[][][][]>();
+    Parallel.loop(mb,new Parallel.LoopInt() {
+    public void compute(int ib) {
+      float[][][][] ee = eeu.get();
+      if (ee==null) eeu.set(ee=new float[2][n2][m1][nl]);
+      smoothErrors2(bf,ib*m1,min(m1,n1-ib*m1),ef,ee[0],ee[1],esf);
+    }});
+  }
+
+  /**
+   * Smooths alignment errors in 2nd dimension, for a block of m1 samples 
+   * beginning with index j1 in 1st dimension. Work arrays ef[n2][m1][nl] 
+   * and er[n2][m1][nl] are used for errors accumulated in forward and 
+   * reverse directions for only the samples in the block.
+   */
+  private static void smoothErrors2(
+    int b, int j1, int m1, float[][][] e, 
+    float[][][] ef, float[][][] er, float[][][] es)
+  {
+    int nl = e[0][0].length;
+    int n2 = e.length;
+    accumulate2( 1,b,j1,m1,e,0,ef);
+    accumulate2(-1,b,j1,m1,e,0,er);
+    for (int i2=0; i2<n2; ++i2) {
+      for (int k1=0,i1=j1; k1<m1; ++k1,++i1) {
+        float[] e1 = e[i2][i1];
+        float[] ef1 = ef[i2][k1];
+        float[] er1 = er[i2][k1];
+        float[] es1 = es[i2][i1];
         for (int il=0; il<nl; ++il) {
-          ef1[i2][il] = 0.0f;
-          er1[i2][il] = 0.0f;
+          es1[il] = ef1[il]+er1[il]-e1[il];
         }
       }
-      accumulate( 1,bf,e1,ef1);
-      accumulate(-1,bf,e1,er1);
-      for (int i2=0; i2<n2; ++i2) {
+    }
+  }
+
+  /**
+   * Accumulates alignment errors in 2nd dimension, in parallel for 
+   * blocks of samples in 1st dimension.
+   * @param dir accumulation direction, positive or negative.
+   * @param b sample offset used to constrain changes in lag.
+   * @param e input array[n2][n1][nl] of alignment errors.
+   * @param d output array[n2][n1][nl] of accumulated errors.
+   */
+  private static void accumulate2(
+    final int dir, final int b, final float[][][] e, final float[][][] d)
+  {
+    final int nl = e[0][0].length;
+    final int n1 = e[0].length;
+    final int m1 = blockSize1(n1,nl);
+    final int mb = 1+(n1-1)/m1;
+    Parallel.loop(mb,new Parallel.LoopInt() {
+    public void compute(int ib) {
+      accumulate2(dir,b,ib*m1,min(m1,n1-ib*m1),e,ib*m1,d);
+    }});
+  }
+
+  /**
+   * Accumulates alignment errors in 2nd dimension, for a block of m1 
+   * samples beginning with index j1 in 1st dimension, where accumulated
+   * errors for sample j1 are stored in d[i2][jd]. For each sample,
+   * the sums computed and the order of computation are the same as in
+   * the method {@link #accumulate(int,int,float[][],float[][])}; but all 
+   * samples in the block are processed before moving to the next index 
+   * in 2nd dimension, so that errors for those samples are accessed while 
+   * they remain in cache.
+   */
+  private static void accumulate2(
+    int dir, int b, int j1, int m1, float[][][] e, int jd, float[][][] d)
+  {
+    int nl = e[0][0].length;
+    int ni = e.length;
+    int nlm1 = nl-1;
+    int nim1 = ni-1;
+    int ib = (dir>0)?0:nim1;
+    int ie = (dir>0)?ni:-1;
+    int is = (dir>0)?1:-1;
+    int kd = jd+m1;
+    float[][] eb = new float[b][];
+    for (int id=jd; id<kd; ++id)
+      for (int il=0; il<nl; ++il)
+        d[ib][id][il] = 0.0f;
+    for (int ii=ib; ii!=ie; ii+=is) {
+      int ji = max(0,min(nim1,ii-is));
+      int jb = max(0,min(nim1,ii-is*b));
+      for (int i1=j1,id=jd; id<kd; ++i1,++id) {
+        float[] dii = d[ii][id];
+        float[] dji = d[ji][id];
+        float[] djb = d[jb][id];
+        float[] eii = e[ii][i1];
+        int nb = 0;
+        for (int kb=ji; kb!=jb; kb-=is)
+          eb[nb++] = e[kb][i1];
         for (int il=0; il<nl; ++il) {
-          es1[i2][il] = ef1[i2][il]+er1[i2][il]-e1[i2][il];
+          int ilm1 = il-1; if (ilm1==-1) ilm1 = 0;
+          int ilp1 = il+1; if (ilp1==nl) ilp1 = nlm1;
+          float dm = djb[ilm1];
+          float di = dji[il  ];
+          float dp = djb[ilp1];
+          for (int kb=0; kb<nb; ++kb) {
+            dm += eb[kb][ilm1];
+            dp += eb[kb][ilp1];
+          }
+          dii[il] = min3(dm,di,dp)+eii[il];
         }
       }
-    }});
+    }
+  }
+
+  /**
+   * Returns the number of samples in 1st dimension for blocks used when 
+   * accumulating errors in 2nd or 3rd dimensions. For each index in those 
+   * dimensions, errors, and accumulated errors for the current and previous
+   * indices, for all samples in a block should fit in a level-1 cache.
+   * Blocks are made smaller if necessary so that all threads have work.
+   */
+  private static int blockSize1(int n1, int nl) {
+    int m1 = max(1,4096/(4*nl));
+    int nthread = Runtime.getRuntime().availableProcessors();
+    return max(1,min(m1,n1/(4*nthread)));
   }
 
   private static float min3(float a, float b, float c) {
@@ -1780,22 +1962,41 @@ public class DynamicWarpingX {
     final int n2 = e[0].length;
     final int n3 = e.length;
     final float[][][][] ef = e;
-    Parallel.loop(n3,new Parallel.LoopInt() {
-    public void compute(int i3) {
-      smoothErrors1(_bstrain1,ef[i3],ef[i3]);
+    final int m1 = blockSize1(n1,nl);
+    final int mb = 1+(n1-1)/m1;
+    final Parallel.Unsafe<float[][][][]> eeu = 
+      new Parallel.Unsafe<float[][][][]>();
+    Parallel.loop(n2*n3,new Parallel.LoopInt() {
+    public void compute(int i23) {
+      float[][][][] ee = eeu.get();
+      if (ee==null) eeu.set(ee=new float[2][1][n1][nl]);
+      float[][] ei = ef[i23/n2][i23%n2];
+      smoothErrors1(_bstrain1,ei,ee[0][0],ee[1][0],ei);
     }});
     normalizeErrors(e);
-    Parallel.loop(n3,new Parallel.LoopInt() {
-    public void compute(int i3) {
-      smoothErrors2(_bstrain2,ef[i3],ef[i3]);
+    final Parallel.Unsafe<float[][][][]> e2u = 
+      new Parallel.Unsafe<float[][][][]>();
+    Parallel.loop(n3*mb,new Parallel.LoopInt() {
+    public void compute(int i3b) {
+      float[][][][] ee = e2u.get();
+      if (ee==null) e2u.set(ee=new float[2][n2][m1][nl]);
+      int i3 = i3b/mb;
+      int j1 = (i3b%mb)*m1;
+      smoothErrors2(_bstrain2,j1,min(m1,n1-j1),ef[i3],ee[0],ee[1],ef[i3]);
     }});
     normalizeErrors(e);
-    Parallel.loop(n2,new Parallel.LoopInt() {
-    public void compute(int i2) {
+    final Parallel.Unsafe<float[][][][]> e3u = 
+      new Parallel.Unsafe<float[][][][]>();
+    Parallel.loop(n2*mb,new Parallel.LoopInt() {
+    public void compute(int i2b) {
+      float[][][][] ee = e3u.get();
+      if (ee==null) e3u.set(ee=new float[2][n3][m1][nl]);
+      int i2 = i2b/mb;
+      int j1 = (i2b%mb)*m1;
       float[][][] ei2 = new float[n3][][];
       for (int i3=0; i3<n3; ++i3)
         ei2[i3] = ef[i3][i2];
-      smoothErrors2(_bstrain3,ei2,ei2);
+      smoothErrors2(_bstrain3,j1,min(m1,n1-j1),ei2,ee[0],ee[1],ei2);
     }});
     normalizeErrors(e);
   }
@@ -1822,6 +2023,230 @@ public class DynamicWarpingX {
     if (_ref2!=null) _ref2.apply2(u,u);
     if (_ref3!=null) _ref3.apply3(u,u);
   }
+
+  ///////////////////////////////////////////////////////////////////////////
+  // for quantized alignment errors
+
+  // Alignment errors for ntrace traces, each with n1 samples and nl lags.
+  // For each sample, errors for all lags are quantized to 8 or 16 bits,
+  // relative to the minimum error and range of errors for that sample.
+  // Those minimum errors and ranges are stored as floats, so that errors
+  // can be normalized without requantizing them.
+  private static class QuantizedErrors {
+    QuantizedErrors(ErrorStorage es, int ntrace, int n1, int nl) {
+      _nl = nl;
+      _e0 = new float[ntrace][n1];
+      _de = new float[ntrace][n1];
+      if (es==ErrorStorage.BYTE) {
+        _qb = new byte[ntrace][n1*nl];
+        _qmax = 255;
+      } else {
+        _qs = new short[ntrace][n1*nl];
+        _qmax = 65535;
+      }
+    }
+    // Gets errors e[nl] for one sample in one trace.
+    void get(int it, int i1, float[] e) {
+      float e0 = _e0[it][i1];
+      float de = _de[it][i1];
+      int k = i1*_nl;
+      if (_qb!=null) {
+        byte[] q = _qb[it];
+        for (int il=0; il<_nl; ++il,++k)
+          e[il] = e0+(q[k]&0xff)*de;
+      } else {
+        short[] q = _qs[it];
+        for (int il=0; il<_nl; ++il,++k)
+          e[il] = e0+(q[k]&0xffff)*de;
+      }
+    }
+    // Gets errors e[n1][nl] for one trace.
+    void get(int it, float[][] e) {
+      int n1 = e.length;
+      for (int i1=0; i1<n1; ++i1)
+        get(it,i1,e[i1]);
+    }
+    // Sets errors e[nl] for one sample in one trace.
+    void set(int it, int i1, float[] e) {
+      float emin = e[0];
+      float emax = e[0];
+      for (int il=1; il<_nl; ++il) {
+        float ei = e[il];
+        if (ei<emin) emin = ei;
+        if (ei>emax) emax = ei;
+      }
+      float qscale = (emax>emin)?_qmax/(emax-emin):0.0f;
+      _e0[it][i1] = emin;
+      _de[it][i1] = (emax>emin)?(emax-emin)/_qmax:0.0f;
+      int k = i1*_nl;
+      for (int il=0; il<_nl; ++il,++k) {
+        int q = (int)((e[il]-emin)*qscale+0.5f);
+        if (q>_qmax) q = _qmax;
+        if (_qb!=null) {
+          _qb[it][k] = (byte)q;
+        } else {
+          _qs[it][k] = (short)q;
+        }
+      }
+    }
+    // Sets errors e[n1][nl] for one trace.
+    void set(int it, float[][] e) {
+      int n1 = e.length;
+      for (int i1=0; i1<n1; ++i1)
+        set(it,i1,e[i1]);
+    }
+    // Normalizes all errors to be in range [0,1]. Because errors are
+    // quantized relative to the minimum and range for each sample, only 
+    // those minimums and ranges must be shifted and scaled.
+    void normalize() {
+      final int ntrace = _e0.length;
+      final int n1 = _e0[0].length;
+      MinMax mm = Parallel.reduce(ntrace,new Parallel.ReduceInt<MinMax>() {
+      public MinMax compute(int it) {
+        float emin =  Float.MAX_VALUE;
+        float emax = -Float.MAX_VALUE;
+        for (int i1=0; i1<n1; ++i1) {
+          float e0 = _e0[it][i1];
+          float e1 = e0+_qmax*_de[it][i1];
+          if (e0<emin) emin = e0;
+          if (e1>emax) emax = e1;
+        }
+        return new MinMax(emin,emax);
+      }
+      public MinMax combine(MinMax mm1, MinMax mm2) {
+        return new MinMax(min(mm1.emin,mm2.emin),max(mm1.emax,mm2.emax));
+      }});
+      final float eshift = mm.emin;
+      final float escale = (mm.emax>mm.emin)?1.0f/(mm.emax-mm.emin):1.0f;
+      Parallel.loop(ntrace,new Parallel.LoopInt() {
+      public void compute(int it) {
+        for (int i1=0; i1<n1; ++i1) {
+          _e0[it][i1] = (_e0[it][i1]-eshift)*escale;
+          _de[it][i1] *= escale;
+        }
+      }});
+    }
+    private int _nl; // number of lags
+    private int _qmax; // largest quantized error
+    private float[][] _e0; // minimum error for each sample
+    private float[][] _de; // error per quantum for each sample
+    private byte[][] _qb; // errors quantized to 8 bits
+    private short[][] _qs; // errors quantized to 16 bits
+  }
+
+  /**
+   * Finds shifts for traces of images f[n3][n2][n1] and g[n3][n2][n1], 
+   * without storing alignment errors as floats for all traces. Errors 
+   * are quantized, and are computed, smoothed and accumulated one trace 
+   * (or one column of samples) at a time.
+   */
+  private void findShifts(
+    float[][][] f, float[][][] g, ErrorStorage es, float[][][] u) 
+  {
+    int n1 = f[0][0].length;
+    int n2 = f[0].length;
+    int n3 = f.length;
+    QuantizedErrors q = new QuantizedErrors(es,n2*n3,n1,_nl);
+    computeErrors(f,g,q);
+    for (int is=0; is<_esmooth; ++is) {
+      smoothErrors1(_bstrain1,q,n1,n2*n3);
+      smoothErrors2(_bstrain2,q,n1,n2,n3,1,n2);
+      if (n3>1)
+        smoothErrors2(_bstrain3,q,n1,n3,n2,n2,1);
+    }
+    computeShifts(q,u);
+  }
+
+  /**
+   * Computes normalized and quantized alignment errors for all traces.
+   */
+  private void computeErrors(
+    float[][][] f, float[][][] g, QuantizedErrors q) 
+  {
+    final int n1 = f[0][0].length;
+    final int n2 = f[0].length;
+    final int n3 = f.length;
+    final float[][][] ff = f;
+    final float[][][] gf = g;
+    final QuantizedErrors qf = q;
+    final Parallel.Unsafe<float[][]> eu = new Parallel.Unsafe<float[][]>();
+    Parallel.loop(n2*n3,new Parallel.LoopInt() {
+    public void compute(int it) {
+      float[][] e = eu.get();
+      if (e==null) eu.set(e=new float[n1][_nl]);
+      computeErrors(ff[it/n2][it%n2],gf[it/n2][it%n2],e);
+      qf.set(it,e);
+    }});
+    q.normalize();
+  }
+
+  /**
+   * Smooths (and normalizes) quantized errors in 1st dimension, 
+   * one trace at a time.
+   */
+  private void smoothErrors1(
+    final int b, final QuantizedErrors q, final int n1, int ntrace) 
+  {
+    final Parallel.Unsafe<float[][][]> eu = new Parallel.Unsafe<float[][][]>();
+    Parallel.loop(ntrace,new Parallel.LoopInt() {
+    public void compute(int it) {
+      float[][][] e = eu.get();
+      if (e==null) eu.set(e=new float[4][n1][_nl]);
+      q.get(it,e[0]);
+      smoothErrors1(b,e[0],e[1],e[2],e[3]);
+      q.set(it,e[3]);
+    }});
+    q.normalize();
+  }
+
+  /**
+   * Smooths (and normalizes) quantized errors in the 2nd or 3rd dimension, 
+   * one column of samples at a time. Each column has m samples in traces 
+   * with indices kt*mt+jt*kj, for jt = 0, 1, ..., m-1, where the column
+   * index kt = 0, 1, ..., nt-1 is the same for all sample indices i1.
+   */
+  private void smoothErrors2(
+    final int b, final QuantizedErrors q, 
+    final int n1, final int m, int nt, final int kj, final int mt) 
+  {
+    final Parallel.Unsafe<float[][][]> eu = new Parallel.Unsafe<float[][][]>();
+    Parallel.loop(n1*nt,new Parallel.LoopInt() {
+    public void compute(int k) {
+      float[][][] e = eu.get();
+      if (e==null) eu.set(e=new float[4][m][_nl]);
+      int i1 = k%n1;
+      int kt = k/n1;
+      for (int jt=0,it=kt*mt; jt<m; ++jt,it+=kj)
+        q.get(it,i1,e[0][jt]);
+      smoothErrors1(b,e[0],e[1],e[2],e[3]);
+      for (int jt=0,it=kt*mt; jt<m; ++jt,it+=kj)
+        q.set(it,i1,e[3][jt]);
+    }});
+    q.normalize();
+  }
+
+  /**
+   * Computes shifts u[n3][n2][n1] by accumulating and backtracking
+   * quantized errors, one trace at a time.
+   */
+  private void computeShifts(QuantizedErrors q, float[][][] u) {
+    final int n1 = u[0][0].length;
+    final int n2 = u[0].length;
+    final int n3 = u.length;
+    final QuantizedErrors qf = q;
+    final float[][][] uf = u;
+    final Parallel.Unsafe<float[][][]> edu = 
+      new Parallel.Unsafe<float[][][]>();
+    Parallel.loop(n2*n3,new Parallel.LoopInt() {
+    public void compute(int it) {
+      float[][][] ed = edu.get();
+      if (ed==null) edu.set(ed=new float[2][n1][_nl]);
+      qf.get(it,ed[0]);
+      accumulateForward(ed[0],ed[1]);
+      backtrackReverse(ed[1],ed[0],uf[it/n2][it%n2]);
+    }});
+  }
+
   private static class MinMax {
     float emin,emax;
     MinMax(float emin, float emax) {
@@ -6,8 +6,11 @@ available at http://www.eclipse.org/legal/cpl-v10.html
 ****************************************************************************/
 package warp;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import edu.mines.jtk.dsp.*;
+import edu.mines.jtk.util.Check;
 import static edu.mines.jtk.util.ArrayMath.*;
+import static edu.mines.jtk.util.Parallel.*;
 
 /**
  * Normal-moveout (NMO) correction.
@@ -21,6 +24,11 @@ import static edu.mines.jtk.util.ArrayMath.*;
  * or computed to preserve mutes and/or limit the maximum NMO stretch. Note
  * that times t(u,x), amplitudes a(u,x), and the output gather g(u,x) are
  * functions of output time u, whereas f(t,x) is a function of input time t.
+ * <p>
+ * For stacking many gathers with the same time and offset sampling and
+ * the same NMO velocities, a {@link Stacker} computes times t(u,x) and
+ * inverse NMO stretch only once, and then corrects, mutes and stacks each
+ * gather in one pass, without storing the NMO-corrected gather.
  *
  * @author Dave Hale, Colorado School of Mines
  * @version 2013.12.17
@@ -63,18 +71,21 @@ public class NormalMoveout {
    * @param f array[nx][nt] for input gather f(t,x).
    * @return array[nx][nt] for output NMO-corrected gather g(u,x).
    */
-  public float[][] apply(Sampling st, float[][] t, float[][] a, float[][] f) {
+  public float[][] apply(
+    Sampling st, final float[][] t, final float[][] a, final float[][] f)
+  {
     int nx = f.length;
-    int nt = f[0].length;
-    double dt = st.getDelta();
-    double ft = st.getFirst();
-    float[][] g = new float[nx][nt];
-    for (int ix=0; ix<nx; ++ix) {
+    final int nt = f[0].length;
+    final double dt = st.getDelta();
+    final double ft = st.getFirst();
+    final float[][] g = new float[nx][nt];
+    loop(nx,new LoopInt() {
+    public void compute(int ix) {
       _si.interpolate(nt,dt,ft,f[ix],nt,t[ix],g[ix]);
       for (int it=0; it<nt; ++it) {
         g[ix][it] *= a[ix][it];
       }
-    }
+    }});
     return g;
   }
 
@@ -105,6 +116,240 @@ public class NormalMoveout {
     return apply(st,sx,fillfloat((float)vnmo,st.getCount()),f);
   }
 
+  /**
+   * A source of gathers to be stacked.
+   */
+  public interface GatherSource {
+
+    /**
+     * Returns the next gather, or null if no gathers remain. This method
+     * is never called by more than one thread at a time.
+     * @return array[nx][nt] for the gather, or null.
+     */
+    public float[][] next();
+  }
+
+  /**
+   * A receiver of stacks of gathers.
+   */
+  public interface StackReceiver {
+
+    /**
+     * Receives the stack for one gather. The stack array is workspace
+     * that will be overwritten for other gathers; it should not be
+     * referenced after this method returns. This method may be called
+     * concurrently by multiple threads, and not in the order in which
+     * gathers were provided.
+     * @param index index of the gather, in the order provided.
+     * @param s array[nt] for the stack.
+     */
+    public void receive(int index, float[] s);
+  }
+
+  /**
+   * NMO correction, mute and stack for gathers with the same geometry.
+   * Times t(u,x) and the inverse NMO stretch are computed once, when the
+   * stacker is made, and reused for all gathers. Amplitudes that depend on
+   * leading zeros in each input trace are computed on the fly.
+   * <p>
+   * Corrected gathers computed by a stacker are identical to those
+   * computed by this NMO correction. Stacks are normalized as in the method
+   * {@link NormalMoveout#stack(float[][])}, but offsets are summed in
+   * blocks, so that stacks may differ from those of corrected gathers by
+   * rounding errors. Stacks of the same gather are always identical.
+   */
+  public class Stacker {
+
+    /**
+     * Returns the NMO-corrected gather for the specified input gather.
+     * @param f array[nx][nt] for input gather.
+     * @return array[nx][nt] NMO-corrected output gather.
+     */
+    public float[][] apply(final float[][] f) {
+      checkGather(f);
+      final float[][] g = new float[_nx][_nt];
+      loop(_nx,new LoopInt() {
+      public void compute(int ix) {
+        correct(ix,f[ix],g[ix]);
+      }});
+      return g;
+    }
+
+    /**
+     * Returns the stack of the specified input gather after NMO correction.
+     * @param f array[nx][nt] for input gather.
+     * @return array[nt] for the stack.
+     */
+    public float[] stack(float[][] f) {
+      float[] s = new float[_nt];
+      stack(f,s);
+      return s;
+    }
+
+    /**
+     * Computes the stack of the specified input gather after NMO correction.
+     * Corrects and stacks blocks of offsets in parallel.
+     * @param f array[nx][nt] for input gather.
+     * @param s output array[nt] for the stack.
+     */
+    public void stack(final float[][] f, float[] s) {
+      checkGather(f);
+      final float[][] sb = new float[_nb][_nt];
+      final float[][] cb = new float[_nb][_nt];
+      loop(_nb,new LoopInt() {
+      public void compute(int ib) {
+        stackBlock(ib,f,sb[ib],cb[ib],_work.get().g);
+      }});
+      reduce(sb,cb,s);
+    }
+
+    /**
+     * Computes stacks for all gathers from the specified source.
+     * Stacks gathers in parallel, one gather per thread, so that the
+     * number of gathers in memory at any time is bounded by the number
+     * of threads.
+     * @param gs the source of gathers.
+     * @param sr the receiver of stacks.
+     */
+    public void stack(final GatherSource gs, final StackReceiver sr) {
+      final AtomicInteger ai = new AtomicInteger();
+      int nthread = Runtime.getRuntime().availableProcessors();
+      loop(nthread,new LoopInt() {
+      public void compute(int ithread) {
+        Work w = _work.get();
+        if (w.s==null) {
+          w.s = new float[_nt];
+          w.sb = new float[_nb][_nt];
+          w.cb = new float[_nb][_nt];
+        }
+        for (;;) {
+          float[][] f;
+          int index;
+          synchronized (gs) {
+            f = gs.next();
+            index = ai.getAndIncrement();
+          }
+          if (f==null)
+            break;
+          checkGather(f);
+          for (int ib=0; ib<_nb; ++ib)
+            stackBlock(ib,f,w.sb[ib],w.cb[ib],w.g);
+          reduce(w.sb,w.cb,w.s);
+          sr.receive(index,w.s);
+        }
+      }});
+    }
+
+    private int _nt,_nx,_nb; // numbers of times, offsets and offset blocks
+    private double _dt,_ft; // time sampling interval and first time
+    private float _dtf,_ftf,_dtmin; // as floats, and minimum time increment
+    private float[][] _t; // times t(u,x)
+    private float[][] _a; // inverse NMO stretch, ignoring mutes
+
+    // Workspace for one thread.
+    private class Work {
+      float[] g = new float[_nt]; // one NMO-corrected trace
+      float[] s; // stack, used only when stacking a source of gathers
+      float[][] sb,cb; // sums and counts for blocks of offsets
+    }
+    private ThreadLocal<Work> _work = new ThreadLocal<Work>() {
+      protected Work initialValue() {
+        return new Work();
+      }
+    };
+
+    private Stacker(Sampling st, Sampling sx, float[] vnmo) {
+      Check.argument(vnmo.length==st.getCount(),"vnmo.length == nt");
+      _nt = st.getCount();
+      _nx = sx.getCount();
+      _nb = 1+(_nx-1)/STACK_BLOCK;
+      _dt = st.getDelta();
+      _ft = st.getFirst();
+      _dtf = (float)_dt;
+      _ftf = (float)_ft;
+      _dtmin = _dtf/_smax;
+      _t = getTimes(st,sx,vnmo);
+      _a = new float[_nx][_nt];
+      float odt = 1.0f/_dtf;
+      for (int ix=0; ix<_nx; ++ix) {
+        float[] t = _t[ix];
+        float[] a = _a[ix];
+        a[0] = (t[1]-t[0])*odt;
+        for (int it=1; it<_nt; ++it)
+          a[it] = (t[it]-t[it-1])*odt;
+      }
+    }
+
+    private void checkGather(float[][] f) {
+      Check.argument(f.length==_nx,"gather has nx traces");
+      Check.argument(f[0].length==_nt,"gather has nt samples per trace");
+    }
+
+    // Corrects one trace for NMO. Amplitudes are zero for the same samples
+    // for which they are zero in the method getAmplitudes.
+    private void correct(int ix, float[] f, float[] g) {
+      float[] t = _t[ix];
+      float[] a = _a[ix];
+      float tnz = _ftf+countLeadingZeros(f)*_dtf;
+      int nz = 0;
+      if (t[0]<tnz || t[1]-t[0]<_dtmin)
+        ++nz;
+      for (int it=1; it<_nt; ++it) {
+        if (t[it]<tnz || t[it]-t[it-1]<_dtmin)
+          ++nz;
+      }
+      _si.interpolate(_nt,_dt,_ft,f,_nt,t,g);
+      for (int it=0; it<nz; ++it)
+        g[it] *= 0.0f; // multiply, as in apply, to keep signs of zeros
+      for (int it=nz; it<_nt; ++it)
+        g[it] *= a[it];
+    }
+
+    // Corrects and sums one block of traces, excluding leading zeros.
+    private void stackBlock(
+      int ib, float[][] f, float[] s, float[] c, float[] g)
+    {
+      zero(s);
+      zero(c);
+      int jx = ib*STACK_BLOCK;
+      int kx = min(jx+STACK_BLOCK,_nx);
+      for (int ix=jx; ix<kx; ++ix) {
+        correct(ix,f[ix],g);
+        int nz = countLeadingZeros(g);
+        for (int it=nz; it<_nt; ++it) {
+          c[it] += 1.0f;
+          s[it] += g[it];
+        }
+      }
+    }
+
+    // Sums blocks in order and normalizes the stack by counts.
+    private void reduce(float[][] sb, float[][] cb, float[] s) {
+      for (int it=0; it<_nt; ++it) {
+        float si = 0.0f;
+        float ci = 0.0f;
+        for (int ib=0; ib<_nb; ++ib) {
+          si += sb[ib][it];
+          ci += cb[ib][it];
+        }
+        s[it] = si/max(ci,1.0f);
+      }
+    }
+  }
+
+  /**
+   * Returns a stacker for gathers with specified sampling and velocities.
+   * The stacker uses the maximum stretch factor of this correction when
+   * the stacker is made.
+   * @param st uniform time sampling.
+   * @param sx offset sampling; need not be uniform.
+   * @param vnmo array[nt] of NMO velocities.
+   * @return the stacker.
+   */
+  public Stacker makeStacker(Sampling st, Sampling sx, float[] vnmo) {
+    return new Stacker(st,sx,vnmo);
+  }
+
   /**
    * For each offset, counts the number of leading zeros in a trace.
    * @param f array[nx][nt] in which to count leading zeros.
@@ -202,6 +447,9 @@ public class NormalMoveout {
     _si = SincInterpolator.fromErrorAndFrequency(0.01,0.40);
   private float _smax = 0.1f*Float.MAX_VALUE;
 
+  // Number of offsets in blocks summed by stackers.
+  private static final int STACK_BLOCK = 8;
+
   private static int countLeadingZeros(float[] f) {
     int n = f.length;
     int nz = 0;
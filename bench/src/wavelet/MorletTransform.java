@@ -3,6 +3,7 @@ package wavelet;
 import edu.mines.jtk.dsp.*;
 import edu.mines.jtk.util.Check;
 import static edu.mines.jtk.util.ArrayMath.*;
+import static edu.mines.jtk.util.Parallel.*;
 
 /**
  * A continuous wavelet transform with the Morlet wavelet.
@@ -15,6 +16,12 @@ import static edu.mines.jtk.util.ArrayMath.*;
  * and frequency is sampled non-uniformly. Specifically, the increment between
  * sampled frequencies increases linearly with frequency. This class provides
  * methods that simplify specification of this log-frequency sampling.
+ * <p>
+ * Methods that transform 2D and 3D arrays of traces process traces and
+ * frequencies in parallel. Because the full transform of an image is nf
+ * times larger than that image, other methods compute only magnitudes for
+ * selected frequencies or only peak frequencies; these methods use a small
+ * per-thread workspace instead of storing the full transform.
  *
  * @author Dave Hale, Colorado School of Mines
  * @version 2012.12.31
@@ -145,6 +152,127 @@ public class MorletTransform {
     return y;
   }
 
+  /**
+   * Returns a transformed array {yr,yi} for a 2D array of traces x(t).
+   * @param x input array[n2][nt] of x(t) to be transformed.
+   * @return array[2][nf][n2][nt] {yr,yi} of y(t,f).
+   */
+  public float[][][][] apply(final float[][] x) {
+    final int nf = _sf.getCount();
+    int nt = _st.getCount();
+    int n2 = x.length;
+    final float[][][][] y = new float[2][nf][n2][nt];
+    loop(n2*nf,new LoopInt() {
+    public void compute(int i) {
+      int i2 = i/nf, jf = i%nf;
+      _ks[jf].apply(x[i2],y[0][jf][i2],y[1][jf][i2]);
+    }});
+    return y;
+  }
+
+  /**
+   * Returns a transformed array {yr,yi} for a 3D array of traces x(t).
+   * @param x input array[n3][n2][nt] of x(t) to be transformed.
+   * @return array[2][nf][n3][n2][nt] {yr,yi} of y(t,f).
+   */
+  public float[][][][][] apply(final float[][][] x) {
+    final int nf = _sf.getCount();
+    int nt = _st.getCount();
+    final int n2 = x[0].length;
+    int n3 = x.length;
+    final float[][][][][] y = new float[2][nf][n3][n2][nt];
+    loop(n3*n2*nf,new LoopInt() {
+    public void compute(int i) {
+      int i3 = i/(n2*nf), i2 = (i/nf)%n2, jf = i%nf;
+      _ks[jf].apply(x[i3][i2],y[0][jf][i3][i2],y[1][jf][i3][i2]);
+    }});
+    return y;
+  }
+
+  /**
+   * Returns magnitudes of y(t,f) for selected frequencies.
+   * For each trace and selected frequency, this method computes the
+   * transform in workspace and stores only its magnitude.
+   * @param jf array of indices of selected frequencies.
+   * @param x input array[n2][nt] of x(t) to be transformed.
+   * @return array[njf][n2][nt] of magnitudes, for njf = jf.length.
+   */
+  public float[][][] applyAbs(final int[] jf, final float[][] x) {
+    checkFrequencies(jf);
+    final int njf = jf.length;
+    int nt = _st.getCount();
+    int n2 = x.length;
+    final float[][][] ya = new float[njf][n2][nt];
+    loop(n2*njf,new LoopInt() {
+    public void compute(int i) {
+      int i2 = i/njf, kf = i%njf;
+      applyAbs(jf[kf],x[i2],ya[kf][i2],_work.get());
+    }});
+    return ya;
+  }
+
+  /**
+   * Returns magnitudes of y(t,f) for selected frequencies.
+   * For each trace and selected frequency, this method computes the
+   * transform in workspace and stores only its magnitude.
+   * @param jf array of indices of selected frequencies.
+   * @param x input array[n3][n2][nt] of x(t) to be transformed.
+   * @return array[njf][n3][n2][nt] of magnitudes, for njf = jf.length.
+   */
+  public float[][][][] applyAbs(final int[] jf, final float[][][] x) {
+    checkFrequencies(jf);
+    final int njf = jf.length;
+    int nt = _st.getCount();
+    final int n2 = x[0].length;
+    int n3 = x.length;
+    final float[][][][] ya = new float[njf][n3][n2][nt];
+    loop(n3*n2*njf,new LoopInt() {
+    public void compute(int i) {
+      int i3 = i/(n2*njf), i2 = (i/njf)%n2, kf = i%njf;
+      applyAbs(jf[kf],x[i3][i2],ya[kf][i3][i2],_work.get());
+    }});
+    return ya;
+  }
+
+  /**
+   * Returns peak frequencies, those for which magnitudes of y(t,f) are
+   * largest, for each time t in a 2D array of traces x(t).
+   * @param x input array[n2][nt] of x(t) to be transformed.
+   * @param ap output array[n2][nt] of peak magnitudes; may be null.
+   * @return array[n2][nt] of peak frequencies.
+   */
+  public float[][] applyPeak(final float[][] x, final float[][] ap) {
+    int nt = _st.getCount();
+    int n2 = x.length;
+    final float[][] fp = new float[n2][nt];
+    loop(n2,new LoopInt() {
+    public void compute(int i2) {
+      applyPeak(x[i2],fp[i2],(ap!=null)?ap[i2]:null,_work.get());
+    }});
+    return fp;
+  }
+
+  /**
+   * Returns peak frequencies, those for which magnitudes of y(t,f) are
+   * largest, for each time t in a 3D array of traces x(t).
+   * @param x input array[n3][n2][nt] of x(t) to be transformed.
+   * @param ap output array[n3][n2][nt] of peak magnitudes; may be null.
+   * @return array[n3][n2][nt] of peak frequencies.
+   */
+  public float[][][] applyPeak(final float[][][] x, final float[][][] ap) {
+    int nt = _st.getCount();
+    final int n2 = x[0].length;
+    int n3 = x.length;
+    final float[][][] fp = new float[n3][n2][nt];
+    loop(n3*n2,new LoopInt() {
+    public void compute(int i) {
+      int i3 = i/n2, i2 = i%n2;
+      float[] api = (ap!=null)?ap[i3][i2]:null;
+      applyPeak(x[i3][i2],fp[i3][i2],api,_work.get());
+    }});
+    return fp;
+  }
+
   /**
    * Returns the magnitude (abs) of a complex-valued y(t,f).
    * @param array[2][nf][nt] {yr,yi} of y(t,f).
@@ -195,6 +323,56 @@ public class MorletTransform {
   private Sampling _sf; // frequency sampling
   private Kernel[] _ks; // array of kernels, one per frequency
 
+  // Workspace for one thread, for one transformed trace.
+  private class Work {
+    float[] yr = new float[_st.getCount()];
+    float[] yi = new float[_st.getCount()];
+    float[] ya = new float[_st.getCount()];
+    float[] am = new float[_st.getCount()];
+  }
+  private ThreadLocal<Work> _work = new ThreadLocal<Work>() {
+    protected Work initialValue() {
+      return new Work();
+    }
+  };
+
+  private void checkFrequencies(int[] jf) {
+    int nf = _sf.getCount();
+    for (int kf=0; kf<jf.length; ++kf)
+      Check.argument(0<=jf[kf] && jf[kf]<nf,"0 <= jf < nf");
+  }
+
+  // Computes the magnitude of y(t,f) for one trace and frequency.
+  private void applyAbs(int jf, float[] x, float[] ya, Work w) {
+    float[] yr = w.yr, yi = w.yi;
+    _ks[jf].apply(x,yr,yi);
+    int nt = x.length;
+    for (int jt=0; jt<nt; ++jt) {
+      float yrj = yr[jt];
+      float yij = yi[jt];
+      ya[jt] = sqrt(yrj*yrj+yij*yij);
+    }
+  }
+
+  // Computes peak frequencies and magnitudes for one trace. The peak
+  // frequency is the lowest frequency with the largest magnitude.
+  private void applyPeak(float[] x, float[] fp, float[] ap, Work w) {
+    int nf = _sf.getCount();
+    int nt = x.length;
+    float[] ya = w.ya;
+    float[] amax = (ap!=null)?ap:w.am;
+    for (int jf=0; jf<nf; ++jf) {
+      applyAbs(jf,x,ya,w);
+      float fj = (float)_sf.getValue(jf);
+      for (int jt=0; jt<nt; ++jt) {
+        if (jf==0 || ya[jt]>amax[jt]) {
+          amax[jt] = ya[jt];
+          fp[jt] = fj;
+        }
+      }
+    }
+  }
+
   private static class Kernel {
     Kernel(int n, double sigma, double freqn) {
       _n = n;